@@ -1,26 +1,49 @@
 package org.mpilone.vaadin.upload;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.vaadin.annotations.JavaScript;
 import com.vaadin.server.RequestHandler;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.communication.FileUploadHandler;
 import com.vaadin.ui.AbstractJavaScriptComponent;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 import com.vaadin.ui.Upload;
 
 /**
  * A base class for all HTML5 upload component implementations that provides
  * basic event handling and registration of the {@link Html5FileUploadHandler}.
+ * The html5upload.js support script is loaded before the connector of the
+ * implementation to provide client side functionality shared by all the
+ * uploaders.
  *
  * @author mpilone
  */
+@JavaScript("html5upload.js")
 public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
 
+  /**
+   * The name of the session attribute set once the request handlers are
+   * installed in the session.
+   */
+  private final static String HANDLERS_INSTALLED_ATTRIBUTE =
+      AbstractHtml5Upload.class.getName() + ".handlersInstalled";
+
   private final static Method SUCCEEDED_METHOD;
   private final static Method STARTED_METHOD;
   private final static Method FINISHED_METHOD;
   private final static Method FAILED_METHOD;
+  private final static Method PIPELINE_METHOD;
 
   static {
     try {
@@ -32,6 +55,8 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
           "uploadStarted", StartedEvent.class);
       FINISHED_METHOD = FinishedListener.class.getMethod(
           "uploadFinished", FinishedEvent.class);
+      PIPELINE_METHOD = PipelineListener.class.getMethod(
+          "uploadProcessed", PipelineEvent.class);
     }
     catch (NoSuchMethodException | SecurityException ex) {
       throw new RuntimeException("Unable to find listener event method.", ex);
@@ -58,24 +83,210 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
   protected Html5Receiver html5Receiver;
 
   /**
-   * Installs the {@link Html5FileUploadHandler} into the session if it is not
-   * already registered. This should be called when an HTML5 uploader is
-   * attached to the UI. It is safe to call this method multiple times and only
-   * a single handler will be installed for the session.
+   * The optional index of existing content that is checked before a file is
+   * uploaded.
+   */
+  protected Html5ContentIndex contentIndex;
+
+  /**
+   * The optional verifier of content found in the content index.
+   */
+  protected Html5ContentIndex.Verifier contentVerifier;
+
+  /**
+   * The flag which indicates if progress should be delivered with server push
+   * rather than polled by the client.
+   */
+  protected boolean pushProgressEnabled;
+
+  /**
+   * The flag which indicates if the upload should be completed on the server
+   * side as soon as the final chunk is committed.
+   */
+  protected boolean serverCompletionEnabled;
+
+  /**
+   * The optional advisor that adapts the chunk size to the measured
+   * throughput.
+   */
+  protected ChunkSizeAdvisor chunkSizeAdvisor;
+
+  /**
+   * The flag which indicates if files should be uploaded over a WebSocket
+   * channel when the client supports it.
+   */
+  protected boolean socketUploadEnabled;
+
+  /**
+   * The channel receiving the chunks over a WebSocket or null if socket
+   * upload is disabled or the component is not attached.
+   */
+  protected transient Html5UploadChannel uploadChannel;
+
+  /**
+   * The base URL of the separate origin that receives the upload requests or
+   * null to upload through the Vaadin servlet.
+   */
+  protected String ingestOrigin;
+
+  /**
+   * The flag which indicates if the upload requests are received by a
+   * session-free ingest target that writes directly to the receiver.
+   */
+  protected boolean directIngestEnabled;
+
+  /**
+   * The target receiving the upload requests on the ingest origin or null if
+   * no ingest origin is set or the component is not attached.
+   */
+  protected transient Html5IngestTarget ingestTarget;
+
+  /**
+   * The object store the client uploads files to directly or null to upload
+   * through the server.
+   */
+  protected Html5ObjectStore objectStore;
+
+  /**
+   * The multipart uploads to the object store in progress by client file ID.
+   */
+  protected final Map<String, Html5ObjectStore.Upload> objectUploads =
+      new HashMap<>();
+
+  /**
+   * The uploads to the object store that are being started in the
+   * background by client file ID.
+   */
+  private final Map<String, ObjectUploadRequest> startingObjectUploads =
+      new HashMap<>();
+
+  /**
+   * The uploads to the object store that are being completed in the
+   * background by client file ID.
+   */
+  private final Map<String, Html5ObjectStore.Upload> completingObjectUploads =
+      new HashMap<>();
+
+  /**
+   * The pipeline that processes the succeeded uploads or null if there is no
+   * post-processing.
+   */
+  protected transient Html5UploadPipeline pipeline;
+
+  @Override
+  public void attach() {
+    super.attach();
+
+    UploadLoadController.getInstance().register(this);
+  }
+
+  @Override
+  public void detach() {
+    closeUploadChannel();
+    closeIngestTarget();
+    interruptObjectUploads();
+    UploadLoadController.getInstance().unregister(this);
+
+    super.detach();
+  }
+
+  /**
+   * Returns true if an upload is currently in progress.
+   *
+   * @return the upload in progress
+   */
+  public abstract boolean isUploading();
+
+  /**
+   * Pauses the upload in progress at the next chunk boundary. The data
+   * already received is kept and the upload continues from the following
+   * chunk when {@link #resumeUpload()} is called. Pausing has no effect on an
+   * upload that isn't chunked.
+   */
+  public abstract void pauseUpload();
+
+  /**
+   * Resumes an upload paused with {@link #pauseUpload()}.
+   */
+  public abstract void resumeUpload();
+
+  /**
+   * Returns true if the upload is paused.
+   *
+   * @return true if paused
+   */
+  public abstract boolean isPaused();
+
+  /**
+   * Returns the stream variable that will receive the data events and content.
+   *
+   * @return the stream variable for this component
+   */
+  public abstract StreamVariable getStreamVariable();
+
+  /**
+   * Returns true if a request is currently streaming file data to the
+   * component on this node. A paused upload keeps streaming until the chunk
+   * in progress ends. This method doesn't require the session lock.
+   *
+   * @return true if data is being streamed
+   */
+  public boolean isStreaming() {
+    return Html5FileUploadHandler.isActive(getStreamVariable());
+  }
+
+  /**
+   * Installs the {@link Html5FileUploadHandler} and the
+   * {@link Html5AssetHandler} into the session if they are not already
+   * registered. This should be called when an HTML5 uploader is attached to
+   * the UI. It is safe to call this method multiple times and only a single
+   * handler of each type will be installed for the session.
    */
   protected void installHandler() {
-    // See if the uploader handler is already installed for this session.
+    // The scan below is done once per session rather than by every component
+    // so screens with many uploaders don't pay for it on each attach.
+    VaadinSession session = getSession();
+    if (session.getAttribute(HANDLERS_INSTALLED_ATTRIBUTE) != null) {
+      return;
+    }
+
+    // See if the handlers are already installed for this session.
     boolean handlerInstalled = false;
-    for (RequestHandler handler : getSession().getRequestHandlers()) {
+    boolean assetHandlerInstalled = false;
+    for (RequestHandler handler : session.getRequestHandlers()) {
       if (handler instanceof Html5FileUploadHandler) {
         handlerInstalled = true;
       }
+      else if (handler instanceof Html5AssetHandler) {
+        assetHandlerInstalled = true;
+      }
     }
 
-    // Install the upload handler if one is not already registered.
+    // Install the handlers if they are not already registered.
     if (!handlerInstalled) {
-      getSession().addRequestHandler(new Html5FileUploadHandler());
+      session.addRequestHandler(new Html5FileUploadHandler());
+    }
+    if (!assetHandlerInstalled) {
+      session.addRequestHandler(new Html5AssetHandler());
     }
+
+    session.setAttribute(HANDLERS_INSTALLED_ATTRIBUTE, Boolean.TRUE);
+  }
+
+  /**
+   * Publishes a script or other resource from the classpath so it can be
+   * loaded on demand by the client side rather than with the connector. The
+   * resource is served by the {@link Html5AssetHandler} under a content
+   * hashed URL so it is compressed and cached by the browser until the
+   * content changes.
+   *
+   * @param context the class the path is relative to
+   * @param path the path of the resource
+   *
+   * @return the URI of the resource to be translated by the client side
+   */
+  protected String publishLibrary(Class<?> context, String path) {
+    return Html5AssetHandler.publish(context, path);
   }
 
   /**
@@ -100,6 +311,43 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
    */
   protected void fireUploadSuccess(SucceededEvent evt) {
     fireEvent(evt);
+
+    if (pipeline != null) {
+      submitToPipeline(evt);
+    }
+  }
+
+  /**
+   * Submits the succeeded upload to the pipeline. The result is delivered to
+   * the pipeline listeners with {@link UI#access(java.lang.Runnable)} once the
+   * upload leaves the pipeline.
+   *
+   * @param evt the succeeded event that is the input of the first stage
+   */
+  protected void submitToPipeline(final SucceededEvent evt) {
+    pipeline.submit(evt, new Html5UploadPipeline.Callback() {
+      @Override
+      public void completed(final Object result, final Throwable failure,
+          final Map<String, Long> stageTimes) {
+        UI ui = getUI();
+        if (ui == null) {
+          return;
+        }
+
+        try {
+          ui.access(new Runnable() {
+            @Override
+            public void run() {
+              fireEvent(new PipelineEvent(AbstractHtml5Upload.this, evt,
+                  result, failure, stageTimes));
+            }
+          });
+        }
+        catch (UIDetachedException ex) {
+          // Ignore. The upload is going away.
+        }
+      }
+    });
   }
 
   /**
@@ -147,6 +395,7 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
    */
   public void addProgressListener(Upload.ProgressListener listener) {
     progressListeners.add(listener);
+    refreshDirectIngest();
   }
 
   /**
@@ -192,6 +441,7 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
    */
   public void removeProgressListener(Upload.ProgressListener listener) {
     progressListeners.remove(listener);
+    refreshDirectIngest();
   }
 
   /**
@@ -297,6 +547,833 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
     else {
       this.html5Receiver = new DefaultHtml5Receiver(receiver);
     }
+
+    refreshDirectIngest();
+  }
+
+  /**
+   * Returns true if progress should be delivered with server push when push
+   * is enabled in the UI.
+   *
+   * @return true if push progress is enabled
+   */
+  public boolean isPushProgressEnabled() {
+    return pushProgressEnabled;
+  }
+
+  /**
+   * Returns true if the upload is completed on the server side as soon as the
+   * final chunk is committed rather than when the client reports completion.
+   *
+   * @return true if server completion is enabled
+   */
+  public boolean isServerCompletionEnabled() {
+    return serverCompletionEnabled;
+  }
+
+  /**
+   * Returns true if server completion is enabled and push is enabled in the
+   * UI that this component is attached to. In this case the client doesn't
+   * need to report completion because the server pushes the result.
+   *
+   * @return true if the completion is pushed by the server
+   */
+  protected boolean isServerCompletionPushed() {
+    return serverCompletionEnabled && ProgressDispatcher.isPushEnabled(
+        getUI());
+  }
+
+  /**
+   * Completes the upload on the server side if server completion is enabled.
+   * The given task (which should fire the succeeded event) is run with
+   * {@link UI#access(java.lang.Runnable)} so it runs as soon as the session is
+   * unlocked and the result is pushed if push is enabled. This should be
+   * called by implementations when the final chunk is committed.
+   *
+   * @param endUpload the task that ends the upload
+   *
+   * @return true if the completion was scheduled, false if the
+   * implementation must wait for the client to report completion
+   */
+  protected boolean scheduleServerCompletion(Runnable endUpload) {
+    return serverCompletionEnabled && scheduleEndUpload(endUpload);
+  }
+
+  /**
+   * Runs the given task (which should end the upload and fire the appropriate
+   * event) with {@link UI#access(java.lang.Runnable)} so it runs as soon as
+   * the session is unlocked and the result is pushed if push is enabled.
+   *
+   * @param endUpload the task that ends the upload
+   *
+   * @return true if the task was scheduled, false if the component is not
+   * attached
+   */
+  protected boolean scheduleEndUpload(Runnable endUpload) {
+    UI ui = getUI();
+    if (ui == null) {
+      return false;
+    }
+
+    ui.access(endUpload);
+    return true;
+  }
+
+  /**
+   * Returns true if push progress is enabled and push is enabled in the UI
+   * that this component is attached to. In this case the progress is counted
+   * while streaming and delivered by the {@link ProgressDispatcher} of the UI
+   * and the client doesn't poll for progress.
+   *
+   * @return true if progress is delivered with server push
+   */
+  protected boolean isPushProgressActive() {
+    return pushProgressEnabled && ProgressDispatcher.isPushEnabled(getUI());
+  }
+
+  /**
+   * Returns the advisor that adapts the chunk size to the measured
+   * throughput.
+   *
+   * @return the chunk size advisor or null
+   */
+  public ChunkSizeAdvisor getChunkSizeAdvisor() {
+    return chunkSizeAdvisor;
+  }
+
+  /**
+   * Sets the advisor that adapts the chunk size to the measured throughput
+   * and latency of the received chunks. The recommended chunk size is
+   * returned in every chunk response and applied by the client to the next
+   * file uploaded. The configured chunk size is not changed so
+   * {@code getChunkSize()} always returns the size set by the application.
+   * Chunking must be enabled with a non-zero chunk size for the advisor to be
+   * used. The advisor is ignored while {@link #isChunkSizeFixed()} because
+   * checksums and content keys depend on the chunk size.
+   *
+   * @param chunkSizeAdvisor the chunk size advisor or null to use a fixed
+   * chunk size
+   */
+  public void setChunkSizeAdvisor(ChunkSizeAdvisor chunkSizeAdvisor) {
+    this.chunkSizeAdvisor = chunkSizeAdvisor;
+  }
+
+  /**
+   * Records the timing of a received chunk with the chunk size advisor and
+   * returns the recommended chunk size for the next file. This should be
+   * called by implementations when a chunk is committed.
+   *
+   * @param event the end event of the chunk
+   * @param currentChunkSize the chunk size currently in use
+   *
+   * @return the recommended chunk size or -1 if chunk sizing isn't adaptive
+   */
+  protected int adviseChunkSize(Html5StreamVariable.Html5StreamingEndEvent event,
+      int currentChunkSize) {
+    if (chunkSizeAdvisor == null || currentChunkSize <= 0
+        || isChunkSizeFixed()) {
+      return -1;
+    }
+
+    chunkSizeAdvisor.recordChunk(event.getBytesReceived(), event.
+        getRequestTime(), event.getTransferTime());
+    return chunkSizeAdvisor.getRecommendedChunkSize(currentChunkSize);
+  }
+
+  /**
+   * Returns true if the chunk size must not be adapted. The {@link TreeHash}
+   * of a file depends on the chunk size so the size is fixed when a content
+   * index is set or the receiver is a content index or a
+   * {@link ContentAddressableReceiver}; otherwise the same content uploaded
+   * twice would have different keys. Implementations that compute chunk
+   * checksums on the client also fix the chunk size while checksums are
+   * enabled.
+   *
+   * @return true if the chunk size is fixed
+   */
+  protected boolean isChunkSizeFixed() {
+    return contentIndex != null || html5Receiver instanceof Html5ContentIndex
+        || html5Receiver instanceof ContentAddressableReceiver;
+  }
+
+  /**
+   * Returns true if files are uploaded over a WebSocket channel when the
+   * client supports it.
+   *
+   * @return true if socket upload is enabled
+   */
+  public boolean isSocketUploadEnabled() {
+    return socketUploadEnabled;
+  }
+
+  /**
+   * Opens a new {@link Html5UploadChannel} for the given stream variable if
+   * socket upload is enabled and the component is attached. Any previous
+   * channel is closed. The returned URL uses the "context://" protocol so it
+   * must be translated on the client side.
+   *
+   * @param streamVariable the stream variable that receives the data
+   *
+   * @return the URL of the channel or null if socket upload is disabled
+   */
+  protected String openUploadChannel(StreamVariable streamVariable) {
+    closeUploadChannel();
+
+    if (!socketUploadEnabled || getUI() == null) {
+      return null;
+    }
+
+    uploadChannel = Html5UploadChannel.open(this, streamVariable);
+    return "context:/" + uploadChannel.getPath();
+  }
+
+  /**
+   * Closes the {@link Html5UploadChannel} of the component if there is one.
+   */
+  protected void closeUploadChannel() {
+    if (uploadChannel != null) {
+      uploadChannel.close();
+      uploadChannel = null;
+    }
+  }
+
+  /**
+   * Returns the base URL of the separate origin that receives the upload
+   * requests.
+   *
+   * @return the ingest origin or null if the uploads go through the Vaadin
+   * servlet
+   */
+  public String getIngestOrigin() {
+    return ingestOrigin;
+  }
+
+  /**
+   * Returns true if the upload requests are received by a session-free
+   * ingest target that writes directly to the receiver.
+   *
+   * @return true if direct ingest is enabled
+   */
+  public boolean isDirectIngestEnabled() {
+    return directIngestEnabled;
+  }
+
+  /**
+   * Sets the direct ingest flag. A value of true will cause the upload
+   * requests to be received by a session-free {@link Html5IngestTarget} on
+   * the ingest origin (or on the origin of the application if no ingest
+   * origin is set). The {@link DirectIngestStreamVariable} of the target
+   * writes the data to the receiver without the Vaadin session and the
+   * started, progress and finished events are fired asynchronously with
+   * {@link com.vaadin.ui.UI#access(java.lang.Runnable)}. The
+   * {@link Html5IngestServlet} must be deployed. Uploads received directly
+   * are not paused by {@link #pauseUpload()} and the retry setting is applied
+   * when direct ingest is enabled.
+   *
+   * @param enabled true to enable direct ingest
+   *
+   * @throws UnsupportedOperationException if direct ingest is enabled but not
+   * supported by the component
+   * @see #isDirectIngestSupported()
+   */
+  public void setDirectIngestEnabled(boolean enabled) {
+    if (enabled && !isDirectIngestSupported()) {
+      throw new UnsupportedOperationException(
+          "Direct ingest is not supported by " + getClass().getSimpleName());
+    }
+    directIngestEnabled = enabled;
+  }
+
+  /**
+   * Returns true if the component can receive uploads with a session-free
+   * ingest target. Implementations that return true must also implement
+   * {@link #createDirectIngestStreamVariable()}. This implementation returns
+   * false.
+   *
+   * @return true if direct ingest is supported
+   */
+  public boolean isDirectIngestSupported() {
+    return false;
+  }
+
+  /**
+   * Returns the URL the upload requests are sent to. If an ingest origin is
+   * set or direct ingest is enabled and the component is attached, a new
+   * {@link Html5IngestTarget} is opened if needed and its signed URL is
+   * returned. Otherwise the given default URL of the
+   * {@link Html5FileUploadHandler} is returned. A direct ingest target without
+   * an ingest origin is on the origin of the application.
+   *
+   * @param streamVariable the stream variable that receives the data
+   * @param defaultUrl the URL of the upload request handler
+   *
+   * @return the URL of the upload requests
+   */
+  protected String getUploadUrl(StreamVariable streamVariable,
+      String defaultUrl) {
+    if ((ingestOrigin == null && !directIngestEnabled) || getUI() == null) {
+      closeIngestTarget();
+      return defaultUrl;
+    }
+
+    // The "context://" protocol is translated on the client side.
+    String origin = ingestOrigin != null ? ingestOrigin : "context://";
+    boolean direct = ingestTarget != null && ingestTarget.getSession() == null;
+
+    if (ingestTarget == null || !ingestTarget.isOpen() || !origin.equals(
+        ingestTarget.getOrigin()) || direct != directIngestEnabled) {
+      closeIngestTarget();
+      ingestTarget = directIngestEnabled ? Html5IngestTarget.openSessionFree(
+          origin, this, createDirectIngestStreamVariable()) :
+          Html5IngestTarget.open(origin, this, streamVariable);
+    }
+
+    return ingestTarget.getUrl();
+  }
+
+  /**
+   * Creates the stream variable of a session-free ingest target. The
+   * implementation must provide the names of the parameters its client sends
+   * with each chunk. This is only called if
+   * {@link #isDirectIngestSupported()} returns true and this implementation
+   * throws an exception.
+   *
+   * @return the new stream variable
+   */
+  protected DirectIngestStreamVariable createDirectIngestStreamVariable() {
+    throw new UnsupportedOperationException(
+        "Direct ingest is not supported by " + getClass().getSimpleName());
+  }
+
+  /**
+   * Updates the upload URL sent to the client if the token of the ingest
+   * target was renewed. This implementation does nothing.
+   */
+  protected void renewUploadUrl() {
+  }
+
+  /**
+   * Returns true if a file is being received by a session-free ingest target.
+   *
+   * @return true if a file is being received directly
+   */
+  protected boolean isDirectIngestUploading() {
+    return ingestTarget != null && ingestTarget.getStreamVariable()
+        instanceof DirectIngestStreamVariable
+        && ((DirectIngestStreamVariable) ingestTarget.getStreamVariable()).
+        isUploading();
+  }
+
+  /**
+   * Interrupts the file being received by a session-free ingest target.
+   *
+   * @return true if a file was being received and is interrupted
+   */
+  protected boolean interruptDirectIngest() {
+    if (!isDirectIngestUploading()) {
+      return false;
+    }
+
+    StreamVariable streamVariable = ingestTarget.getStreamVariable();
+    ((DirectIngestStreamVariable) streamVariable).interrupt();
+    Html5FileUploadHandler.abort(streamVariable);
+    return true;
+  }
+
+  /**
+   * Updates the snapshot of the receiver and the progress listeners held by
+   * a session-free ingest target, if there is one, after they changed.
+   */
+  private void refreshDirectIngest() {
+    if (ingestTarget != null && ingestTarget.getStreamVariable()
+        instanceof DirectIngestStreamVariable) {
+      ((DirectIngestStreamVariable) ingestTarget.getStreamVariable()).
+          refresh();
+    }
+  }
+
+  /**
+   * Closes the {@link Html5IngestTarget} of the component if there is one.
+   * A file being received directly fails.
+   */
+  protected void closeIngestTarget() {
+    if (ingestTarget != null) {
+      ingestTarget.close();
+      if (ingestTarget.getStreamVariable() instanceof DirectIngestStreamVariable) {
+        ((DirectIngestStreamVariable) ingestTarget.getStreamVariable()).close();
+      }
+      ingestTarget = null;
+    }
+  }
+
+  /**
+   * Returns the object store the client uploads files to directly.
+   *
+   * @return the object store or null if files are uploaded through the
+   * server
+   */
+  public Html5ObjectStore getObjectStore() {
+    return objectStore;
+  }
+
+  /**
+   * Starts the multipart upload of a file to the object store and fires the
+   * started event. This should be called by implementations when the client
+   * asks to upload a file to the object store. The upload is started on the
+   * {@link Html5ObjectStore#getExecutor() executor} of the store so the
+   * session isn't locked while the bucket is called, and
+   * {@link #objectUploadStarted(java.lang.String, org.mpilone.vaadin.upload.Html5ObjectStore.Upload)}
+   * is called with {@link UI#access(java.lang.Runnable)} once the upload is
+   * started. If the upload can't be started, the failed event is fired.
+   *
+   * @param id the ID of the file on the client side
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   * @param contentLength the content length in bytes provided by the client
+   */
+  protected void beginObjectUpload(final String id, final String filename,
+      final String mimeType, final long contentLength) {
+
+    interruptObjectUpload(id);
+
+    fireStarted(new StartedEvent(this, filename, mimeType, contentLength));
+
+    final Html5ObjectStore store = objectStore;
+    final UI ui = getUI();
+    if (store == null || ui == null) {
+      fireUploadInterrupted(new FailedEvent(this, filename, mimeType,
+          contentLength, new IllegalStateException("No object store.")));
+      objectUploadStarted(id, null);
+      return;
+    }
+
+    final ObjectUploadRequest request = new ObjectUploadRequest(filename,
+        mimeType, contentLength);
+    startingObjectUploads.put(id, request);
+
+    try {
+      store.getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          Html5ObjectStore.Upload upload = null;
+          Exception failure = null;
+          try {
+            upload = store.begin(filename, mimeType, contentLength);
+          }
+          catch (IOException | RuntimeException ex) {
+            failure = ex;
+          }
+
+          final Html5ObjectStore.Upload started = upload;
+          final Exception startFailure = failure;
+          try {
+            ui.access(new Runnable() {
+              @Override
+              public void run() {
+                objectUploadBegun(id, request, started, startFailure);
+              }
+            });
+          }
+          catch (UIDetachedException ex) {
+            // Nobody is left to upload the parts.
+            if (started != null) {
+              started.abort();
+            }
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      startingObjectUploads.remove(id);
+      fireUploadInterrupted(new FailedEvent(this, filename, mimeType,
+          contentLength, ex));
+      objectUploadStarted(id, null);
+    }
+  }
+
+  /**
+   * Records an upload to the object store that was started in the
+   * background and notifies the implementation. The session must be locked.
+   *
+   * @param id the ID of the file on the client side
+   * @param request the request that started the upload
+   * @param upload the started upload or null if it failed to start
+   * @param failure the failure or null if the upload started
+   */
+  private void objectUploadBegun(String id, ObjectUploadRequest request,
+      Html5ObjectStore.Upload upload, Exception failure) {
+
+    // The upload was interrupted or replaced by another upload of the same
+    // file while it was starting and the failed event was already fired.
+    if (startingObjectUploads.get(id) != request) {
+      if (upload != null) {
+        abortObjectUpload(upload);
+      }
+      return;
+    }
+    startingObjectUploads.remove(id);
+
+    if (upload == null) {
+      fireUploadInterrupted(new FailedEvent(this, request.filename,
+          request.mimeType, request.contentLength, failure));
+    }
+    else {
+      objectUploads.put(id, upload);
+    }
+    objectUploadStarted(id, upload);
+  }
+
+  /**
+   * Called once an upload to the object store started with
+   * {@link #beginObjectUpload(java.lang.String, java.lang.String, java.lang.String, long)}
+   * is started or failed to start. Implementations should send the part size
+   * and the first batch of part URLs to the client. The session is locked
+   * but the method may be called from a background thread with
+   * {@link UI#access(java.lang.Runnable)} so the client only sees the answer
+   * with push or on its next request. This implementation does nothing.
+   *
+   * @param id the ID of the file on the client side
+   * @param upload the started upload or null if the upload failed and the
+   * failed event was fired
+   */
+  protected void objectUploadStarted(String id,
+      Html5ObjectStore.Upload upload) {
+  }
+
+  /**
+   * Signs the URLs of the next batch of parts of an upload to the object
+   * store.
+   *
+   * @param id the ID of the file on the client side
+   * @param firstPart the one based number of the first part to sign
+   *
+   * @return the presigned URLs or an empty list if the upload isn't in
+   * progress
+   */
+  protected List<String> signObjectParts(String id, int firstPart) {
+    Html5ObjectStore.Upload upload = objectUploads.get(id);
+    return upload == null ? new ArrayList<String>() : upload.signParts(
+        firstPart);
+  }
+
+  /**
+   * Completes an upload to the object store with the ETags reported by the
+   * client, verifies the object, and fires the succeeded or failed event. The
+   * key of the object is available from
+   * {@link SucceededEvent#getContentReference()}. The upload is completed on
+   * the {@link Html5ObjectStore#getExecutor() executor} of the store and the
+   * event is fired and
+   * {@link #objectUploadCompleted(java.lang.String, boolean)} is called with
+   * {@link UI#access(java.lang.Runnable)} once it is done. An upload that is
+   * being completed can no longer be interrupted.
+   *
+   * @param id the ID of the file on the client side
+   * @param etags the ETags of the parts in part number order
+   */
+  protected void completeObjectUpload(final String id,
+      final List<String> etags) {
+    final Html5ObjectStore.Upload upload = objectUploads.remove(id);
+    final UI ui = getUI();
+    if (upload == null || ui == null) {
+      if (upload != null) {
+        abortObjectUpload(upload);
+      }
+      objectUploadCompleted(id, false);
+      return;
+    }
+
+    completingObjectUploads.put(id, upload);
+
+    try {
+      upload.getObjectStore().getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          Exception failure = null;
+          try {
+            upload.complete(etags);
+          }
+          catch (IOException | RuntimeException ex) {
+            upload.abort();
+            failure = ex;
+          }
+
+          final Exception completeFailure = failure;
+          try {
+            ui.access(new Runnable() {
+              @Override
+              public void run() {
+                finishObjectUpload(id, upload, completeFailure);
+              }
+            });
+          }
+          catch (UIDetachedException ex) {
+            // Nobody will learn the key of the object.
+            if (completeFailure == null) {
+              upload.delete();
+            }
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      completingObjectUploads.remove(id);
+      fireUploadInterrupted(new FailedEvent(this, upload.getFilename(),
+          upload.getMimeType(), upload.getContentLength(), ex));
+      objectUploadCompleted(id, false);
+    }
+  }
+
+  /**
+   * Fires the event of an upload to the object store that was completed in
+   * the background and notifies the implementation. The session must be
+   * locked.
+   *
+   * @param id the ID of the file on the client side
+   * @param upload the completed upload
+   * @param failure the failure or null if the upload succeeded
+   */
+  private void finishObjectUpload(String id, Html5ObjectStore.Upload upload,
+      Exception failure) {
+    completingObjectUploads.remove(id);
+
+    if (failure != null) {
+      fireUploadInterrupted(new FailedEvent(this, upload.getFilename(),
+          upload.getMimeType(), upload.getContentLength(), failure));
+    }
+    else {
+      fireUploadSuccess(new SucceededEvent(this, upload.getFilename(),
+          upload.getMimeType(), upload.getContentLength(), null,
+          upload.getKey()));
+    }
+    objectUploadCompleted(id, failure == null);
+  }
+
+  /**
+   * Called once an upload to the object store is completed with
+   * {@link #completeObjectUpload(java.lang.String, java.util.List)} and the
+   * succeeded or failed event was fired. Implementations should tell the
+   * client the result. The session is locked but the method may be called
+   * from a background thread with {@link UI#access(java.lang.Runnable)} so
+   * the client only sees the answer with push or on its next request. This
+   * implementation does nothing.
+   *
+   * @param id the ID of the file on the client side
+   * @param success true if the upload succeeded
+   */
+  protected void objectUploadCompleted(String id, boolean success) {
+  }
+
+  /**
+   * Aborts an upload to the object store and fires the failed event. The
+   * multipart upload is aborted in the background.
+   *
+   * @param id the ID of the file on the client side
+   *
+   * @return true if the upload was in progress and is aborted
+   */
+  protected boolean interruptObjectUpload(String id) {
+    ObjectUploadRequest request = startingObjectUploads.remove(id);
+    if (request != null) {
+      // The upload is aborted once it is started.
+      fireUploadInterrupted(new FailedEvent(this, request.filename,
+          request.mimeType, request.contentLength,
+          new FileUploadHandler.UploadInterruptedException()));
+      return true;
+    }
+
+    Html5ObjectStore.Upload upload = objectUploads.remove(id);
+    if (upload == null) {
+      return false;
+    }
+
+    abortObjectUpload(upload);
+    fireUploadInterrupted(new FailedEvent(this, upload.getFilename(),
+        upload.getMimeType(), upload.getContentLength(),
+        new FileUploadHandler.UploadInterruptedException()));
+    return true;
+  }
+
+  /**
+   * Aborts a multipart upload on the executor of its store. If the executor
+   * rejects the task, the upload is left to the lifecycle rule of the
+   * bucket rather than aborted while the session is locked.
+   *
+   * @param upload the upload to abort
+   */
+  private void abortObjectUpload(final Html5ObjectStore.Upload upload) {
+    try {
+      upload.getObjectStore().getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          upload.abort();
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      // Ignore. The incomplete parts expire in the bucket.
+    }
+  }
+
+  /**
+   * Aborts all the uploads to the object store in progress. Uploads that are
+   * being completed are not aborted.
+   *
+   * @return true if any upload was in progress and is aborted
+   */
+  protected boolean interruptObjectUploads() {
+    boolean interrupted = false;
+    List<String> ids = new ArrayList<>(startingObjectUploads.keySet());
+    ids.addAll(objectUploads.keySet());
+    for (String id : ids) {
+      interrupted |= interruptObjectUpload(id);
+    }
+    return interrupted;
+  }
+
+  /**
+   * Returns true if a file is being uploaded to the object store including
+   * uploads that are being started or completed.
+   *
+   * @return true if an object upload is in progress
+   */
+  protected boolean isObjectUploading() {
+    return !startingObjectUploads.isEmpty() || !objectUploads.isEmpty()
+        || !completingObjectUploads.isEmpty();
+  }
+
+  /**
+   * Returns the pipeline that processes the succeeded uploads.
+   *
+   * @return the pipeline or null
+   */
+  public Html5UploadPipeline getPipeline() {
+    return pipeline;
+  }
+
+  /**
+   * Sets the pipeline that processes the succeeded uploads. Each succeeded
+   * event is submitted to the first stage of the pipeline after the succeeded
+   * listeners are notified and the result is delivered to the
+   * {@link PipelineListener}s with {@link UI#access(java.lang.Runnable)} so
+   * heavy processing never runs under the session lock. The pipeline is not
+   * serialized with the component and must be set again if the session is
+   * deserialized.
+   *
+   * @param pipeline the pipeline or null to disable post-processing
+   */
+  public void setPipeline(Html5UploadPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Adds the given listener for pipeline result events.
+   *
+   * @param listener the listener to add
+   */
+  public void addPipelineListener(PipelineListener listener) {
+    addListener(PipelineEvent.class, listener, PIPELINE_METHOD);
+  }
+
+  /**
+   * Removes the given listener for pipeline result events.
+   *
+   * @param listener the listener to remove
+   */
+  public void removePipelineListener(PipelineListener listener) {
+    removeListener(PipelineEvent.class, listener, PIPELINE_METHOD);
+  }
+
+  /**
+   * Returns the index of existing content that is checked before a file is
+   * uploaded.
+   *
+   * @return the content index or null
+   */
+  public Html5ContentIndex getContentIndex() {
+    return contentIndex;
+  }
+
+  /**
+   * Sets the index of existing content that is checked before a file is
+   * uploaded. When set, the client hashes the selected file (in a Web Worker
+   * when available) and asks the server if the content already exists. If the
+   * content is found, the started and succeeded events are fired immediately
+   * with a reference to the existing content and the file is not transferred.
+   * The check requires the HTML5 runtime and a browser with the Web Crypto API
+   * (normally only available over HTTPS); otherwise the file is uploaded
+   * normally.
+   * <p>
+   * The hash is supplied by the client and is not a proof that the client has
+   * the content, so the index should only find content the current user may
+   * already access. The index should normally be created per user or tenant
+   * (for example in the session) rather than shared by the whole application.
+   * A shared index should be combined with a verifier set with
+   * {@link #setContentVerifier(Html5ContentIndex.Verifier)}.
+   * </p>
+   *
+   * @param contentIndex the content index or null to disable the check
+   */
+  public void setContentIndex(Html5ContentIndex contentIndex) {
+    this.contentIndex = contentIndex;
+  }
+
+  /**
+   * Returns the verifier of content found in the content index.
+   *
+   * @return the verifier or null
+   */
+  public Html5ContentIndex.Verifier getContentVerifier() {
+    return contentVerifier;
+  }
+
+  /**
+   * Sets the verifier that is called with each reference found in the content
+   * index before the started and succeeded events are fired. If the verifier
+   * rejects the reference, the file is uploaded normally.
+   *
+   * @param contentVerifier the verifier or null to accept every reference
+   * found in the index
+   */
+  public void setContentVerifier(Html5ContentIndex.Verifier contentVerifier) {
+    this.contentVerifier = contentVerifier;
+  }
+
+  /**
+   * Checks the content index for existing content with the given hash and
+   * fires the started and succeeded events if the content is found. This
+   * should be called by implementations when the client asks if the content
+   * of a selected file is already known.
+   *
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   * @param contentLength the content length in bytes provided by the client
+   * @param checksum the {@link TreeHash} computed by the client
+   *
+   * @return true if the content exists and the upload is complete, false if
+   * the file must be uploaded
+   */
+  protected boolean fireIfContentExists(String filename, String mimeType,
+      long contentLength, String checksum) {
+
+    if (contentIndex == null || checksum == null) {
+      return false;
+    }
+
+    String reference = contentIndex.find(checksum, contentLength);
+    if (reference == null) {
+      return false;
+    }
+
+    if (contentVerifier != null && !contentVerifier.verify(reference, checksum,
+        contentLength)) {
+      return false;
+    }
+
+    fireStarted(new StartedEvent(this, filename, mimeType, contentLength));
+    fireUploadSuccess(new SucceededEvent(this, filename, mimeType,
+        contentLength, checksum, reference));
+
+    return true;
   }
 
   /**
@@ -541,6 +1618,9 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
    */
   public static class SucceededEvent extends FinishedEvent {
 
+    private final String checksum;
+    private final String contentReference;
+
     /**
      * Constructs the event.
      *
@@ -551,7 +1631,67 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
      */
     public SucceededEvent(Component source, String filename, String mimeType,
         long length) {
+      this(source, filename, mimeType, length, null);
+    }
+
+    /**
+     * Constructs the event.
+     *
+     * @param source the source component
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param length the content length in bytes provided by the client
+     * @param checksum the verified {@link TreeHash} of the file or null
+     */
+    public SucceededEvent(Component source, String filename, String mimeType,
+        long length, String checksum) {
+      this(source, filename, mimeType, length, checksum, null);
+    }
+
+    /**
+     * Constructs the event.
+     *
+     * @param source the source component
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param length the content length in bytes provided by the client
+     * @param checksum the verified {@link TreeHash} of the file or null
+     * @param contentReference the reference to the existing content found in
+     * the {@link Html5ContentIndex}, the key of the object uploaded to the
+     * {@link Html5ObjectStore}, or null if the file was uploaded to the
+     * receiver
+     */
+    public SucceededEvent(Component source, String filename, String mimeType,
+        long length, String checksum, String contentReference) {
       super(source, filename, mimeType, length);
+      this.checksum = checksum;
+      this.contentReference = contentReference;
+    }
+
+    /**
+     * Returns the hex encoded {@link TreeHash} of the file built from the
+     * verified chunk checksums. The hash is only available if checksums are
+     * enabled on the component and the client was able to compute a checksum
+     * for every chunk.
+     *
+     * @return the checksum of the file or null
+     */
+    public String getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * Returns the reference to the existing content if the content was found
+     * in the {@link Html5ContentIndex} and the file was never transferred or
+     * the key of the object if the file was uploaded directly to the
+     * {@link Html5ObjectStore}. In these cases the receiver was not used for
+     * the upload.
+     *
+     * @return the reference to the content or null if the file was uploaded
+     * to the receiver
+     */
+    public String getContentReference() {
+      return contentReference;
     }
 
   }
@@ -569,4 +1709,129 @@ public abstract class AbstractHtml5Upload extends AbstractJavaScriptComponent {
     void uploadSucceeded(SucceededEvent evt);
   }
 
+  /**
+   * An event describing the result of processing a succeeded upload in the
+   * {@link Html5UploadPipeline}.
+   */
+  public static class PipelineEvent extends Component.Event {
+
+    private final SucceededEvent succeededEvent;
+    private final transient Object result;
+    private final Throwable failure;
+    private final Map<String, Long> stageTimes;
+
+    /**
+     * Constructs the event.
+     *
+     * @param source the source component
+     * @param succeededEvent the succeeded event of the upload
+     * @param result the result of the last stage or null if processing failed
+     * @param failure the failure or null if processing succeeded
+     * @param stageTimes the processing time in milliseconds of each stage the
+     * upload went through by stage name
+     */
+    public PipelineEvent(Component source, SucceededEvent succeededEvent,
+        Object result, Throwable failure, Map<String, Long> stageTimes) {
+      super(source);
+
+      this.succeededEvent = succeededEvent;
+      this.result = result;
+      this.failure = failure;
+      this.stageTimes = stageTimes;
+    }
+
+    /**
+     * Returns the succeeded event of the processed upload.
+     *
+     * @return the succeeded event
+     */
+    public SucceededEvent getSucceededEvent() {
+      return succeededEvent;
+    }
+
+    /**
+     * Returns the result of the last stage of the pipeline.
+     *
+     * @return the result or null if processing failed
+     */
+    public Object getResult() {
+      return result;
+    }
+
+    /**
+     * Returns the reason processing failed. A
+     * {@link java.util.concurrent.RejectedExecutionException} indicates that
+     * the pipeline was full and the upload was never processed.
+     *
+     * @return the failure or null if processing succeeded
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+
+    /**
+     * Returns true if the upload went through all the stages of the
+     * pipeline.
+     *
+     * @return true if processing succeeded
+     */
+    public boolean isSucceeded() {
+      return failure == null;
+    }
+
+    /**
+     * Returns the processing time in milliseconds of each stage the upload
+     * went through in processing order.
+     *
+     * @return the stage times by stage name
+     */
+    public Map<String, Long> getStageTimes() {
+      return stageTimes;
+    }
+
+  }
+
+  /**
+   * A listener that receives pipeline result events.
+   */
+  public interface PipelineListener {
+
+    /**
+     * Called in the UI when an upload leaves the pipeline, either success or
+     * failure.
+     *
+     * @param evt the event details
+     */
+    void uploadProcessed(PipelineEvent evt);
+  }
+
+
+  /**
+   * The file of an upload to the object store that is being started.
+   */
+  private static class ObjectUploadRequest implements Serializable {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final String filename;
+    private final String mimeType;
+    private final long contentLength;
+
+    /**
+     * Constructs the request.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param contentLength the content length in bytes provided by the client
+     */
+    public ObjectUploadRequest(String filename, String mimeType,
+        long contentLength) {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.contentLength = contentLength;
+    }
+  }
 }
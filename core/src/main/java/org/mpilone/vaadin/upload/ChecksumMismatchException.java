@@ -0,0 +1,27 @@
+package org.mpilone.vaadin.upload;
+
+import static java.lang.String.format;
+
+import com.vaadin.server.UploadException;
+
+/**
+ * An exception raised when the checksum of the received chunk data does not
+ * match the checksum computed by the client. The chunk is rejected before it is
+ * committed so the client can retry it.
+ *
+ * @author mpilone
+ */
+@SuppressWarnings("serial")
+public class ChecksumMismatchException extends UploadException {
+
+  /**
+   * Constructs the exception.
+   *
+   * @param expected the checksum sent by the client
+   * @param actual the checksum of the data received
+   */
+  public ChecksumMismatchException(String expected, String actual) {
+    super(format("Chunk checksum mismatch. Expected %s but received %s.",
+        expected, actual));
+  }
+}
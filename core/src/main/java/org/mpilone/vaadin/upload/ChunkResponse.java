@@ -0,0 +1,203 @@
+package org.mpilone.vaadin.upload;
+
+import elemental.json.Json;
+import elemental.json.JsonObject;
+
+/**
+ * The upload state that is returned to the client in the response of every
+ * chunk. Folding the state into the chunk response lets the client side react
+ * to the server (for example to stop after an interrupt) without waiting for
+ * a separate RPC round trip. The response is a JSON object with the fields:
+ * <ul>
+ * <li>success: true if the chunk was accepted</li>
+ * <li>bytesAccepted: the total bytes of the file accepted so far</li>
+ * <li>totalBytes: the authoritative total size of the file or -1</li>
+ * <li>interrupted: true if the upload was interrupted on the server side</li>
+ * <li>preventRetry: true if the client must not retry the chunk</li>
+ * <li>paused: true if the client should pause before the next chunk</li>
+ * <li>ended: true if the server already ended the upload so the client
+ * doesn't need to report completion</li>
+ * <li>recommendedChunkSize: the chunk size recommended for the next file or
+ * -1</li>
+ * <li>status: one of the STATUS constants</li>
+ * <li>error: an optional error description</li>
+ * </ul>
+ *
+ * @author mpilone
+ */
+public class ChunkResponse {
+
+  /**
+   * The status when a chunk was accepted and more chunks are expected.
+   */
+  public static final String STATUS_CHUNK = "chunk";
+
+  /**
+   * The status when the final chunk was accepted and the file is complete.
+   */
+  public static final String STATUS_COMPLETE = "complete";
+
+  /**
+   * The status when a chunk failed and may be retried.
+   */
+  public static final String STATUS_FAILED = "failed";
+
+  /**
+   * The status when the upload was interrupted and must not be retried.
+   */
+  public static final String STATUS_INTERRUPTED = "interrupted";
+
+  private boolean success;
+  private long bytesAccepted = -1;
+  private long totalBytes = -1;
+  private boolean interrupted;
+  private boolean preventRetry;
+  private boolean paused;
+  private boolean ended;
+  private int recommendedChunkSize = -1;
+  private String status;
+  private String error;
+
+  /**
+   * Constructs the response.
+   *
+   * @param success true if the chunk was accepted
+   * @param status the status of the upload
+   */
+  public ChunkResponse(boolean success, String status) {
+    this.success = success;
+    this.status = status;
+  }
+
+  /**
+   * Sets the total bytes of the file accepted so far.
+   *
+   * @param bytesAccepted the bytes accepted or -1 if unknown
+   */
+  public void setBytesAccepted(long bytesAccepted) {
+    this.bytesAccepted = bytesAccepted;
+  }
+
+  /**
+   * Sets the authoritative total size of the file.
+   *
+   * @param totalBytes the total size or -1 if unknown
+   */
+  public void setTotalBytes(long totalBytes) {
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Sets the flag which indicates that the upload was interrupted on the
+   * server side and the client should stop sending chunks.
+   *
+   * @param interrupted true if the upload was interrupted
+   */
+  public void setInterrupted(boolean interrupted) {
+    this.interrupted = interrupted;
+  }
+
+  /**
+   * Sets the flag which indicates that the client must not retry the chunk.
+   *
+   * @param preventRetry true to prevent retries
+   */
+  public void setPreventRetry(boolean preventRetry) {
+    this.preventRetry = preventRetry;
+  }
+
+  /**
+   * Sets the flag which indicates that the client should pause the upload
+   * before sending the next chunk.
+   *
+   * @param paused true to pause the upload
+   */
+  public void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Sets the flag which indicates that the server already ended the upload
+   * (and fired the final event) so the client doesn't need to report
+   * completion.
+   *
+   * @param ended true if the upload ended on the server side
+   */
+  public void setEnded(boolean ended) {
+    this.ended = ended;
+  }
+
+  /**
+   * Sets the chunk size recommended by the server for the next file.
+   *
+   * @param recommendedChunkSize the chunk size in bytes or -1 if unknown
+   */
+  public void setRecommendedChunkSize(int recommendedChunkSize) {
+    this.recommendedChunkSize = recommendedChunkSize;
+  }
+
+  /**
+   * Sets the optional error description.
+   *
+   * @param error the error description or null
+   */
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  /**
+   * Returns true if the chunk was accepted.
+   *
+   * @return true if the chunk was accepted
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  /**
+   * Returns the status of the upload.
+   *
+   * @return one of the STATUS constants
+   */
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * Encodes the response as JSON.
+   *
+   * @return the JSON object
+   */
+  public JsonObject toJson() {
+    JsonObject json = Json.createObject();
+    json.put("success", success);
+    json.put("bytesAccepted", bytesAccepted);
+    json.put("totalBytes", totalBytes);
+    json.put("interrupted", interrupted);
+    json.put("preventRetry", preventRetry);
+    json.put("paused", paused);
+    json.put("ended", ended);
+    json.put("recommendedChunkSize", recommendedChunkSize);
+    json.put("status", status);
+
+    if (error != null) {
+      json.put("error", error);
+    }
+
+    return json;
+  }
+
+  /**
+   * Creates the upload response to be sent to the client. The content type is
+   * "text/plain" to support clients that parse the response from a hidden
+   * iframe.
+   *
+   * @param statusCode the HTTP status code
+   *
+   * @return the upload response
+   */
+  public Html5StreamVariable.UploadResponse toUploadResponse(int statusCode) {
+    return new Html5StreamVariable.UploadResponse(statusCode, "text/plain",
+        toJson().toJson());
+  }
+}
@@ -0,0 +1,198 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Recommends a chunk size from the measured throughput and latency of the
+ * chunks received for an upload component. Small chunks waste time on the
+ * per-request overhead on fast links while large chunks make retries costly on
+ * slow or lossy links. The advisor aims for chunks that take about the target
+ * chunk time to transfer, grows the time if the per-request overhead would
+ * otherwise be a large fraction of each chunk, and backs off after failed
+ * chunks.
+ * </p>
+ * <p>
+ * The chunk size can only change between files because the chunk boundaries
+ * of a file are fixed once the upload starts. Note that the checksums and the
+ * {@link TreeHash} of a file depend on the chunk size so the same content
+ * uploaded with different chunk sizes produces different tree hashes.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ChunkSizeAdvisor implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default target time in milliseconds to transfer a chunk.
+   */
+  public static final long DEFAULT_TARGET_CHUNK_TIME = 2000;
+
+  /**
+   * The recommended chunk sizes are rounded to a multiple of this value.
+   */
+  private static final int GRANULARITY = 64 * 1024;
+
+  /**
+   * The weight of the latest measurement in the moving averages.
+   */
+  private static final double SMOOTHING = 0.3;
+
+  /**
+   * The maximum fraction of the chunk time that can be spent on the
+   * per-request overhead.
+   */
+  private static final double MAX_OVERHEAD_FRACTION = 0.1;
+
+  /**
+   * The fraction of the recommended chunk size that a different size must
+   * exceed to be recommended. This prevents small fluctuations from changing
+   * the chunk size on every file.
+   */
+  private static final double HYSTERESIS = 0.25;
+
+  private final int minChunkSize;
+  private final int maxChunkSize;
+  private long targetChunkTime = DEFAULT_TARGET_CHUNK_TIME;
+  private double throughput = -1;
+  private double overhead = -1;
+  private double penalty = 1;
+
+  /**
+   * Constructs the advisor that recommends chunk sizes within the given
+   * bounds.
+   *
+   * @param minChunkSize the minimum chunk size in bytes
+   * @param maxChunkSize the maximum chunk size in bytes
+   */
+  public ChunkSizeAdvisor(int minChunkSize, int maxChunkSize) {
+    if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid chunk size bounds [%d, %d].", minChunkSize, maxChunkSize));
+    }
+
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+  }
+
+  /**
+   * Returns the minimum chunk size in bytes.
+   *
+   * @return the minimum chunk size
+   */
+  public int getMinChunkSize() {
+    return minChunkSize;
+  }
+
+  /**
+   * Returns the maximum chunk size in bytes.
+   *
+   * @return the maximum chunk size
+   */
+  public int getMaxChunkSize() {
+    return maxChunkSize;
+  }
+
+  /**
+   * Returns the target time in milliseconds to transfer a chunk.
+   *
+   * @return the target chunk time
+   */
+  public long getTargetChunkTime() {
+    return targetChunkTime;
+  }
+
+  /**
+   * Sets the target time in milliseconds to transfer a chunk. The default is
+   * {@link #DEFAULT_TARGET_CHUNK_TIME}.
+   *
+   * @param targetChunkTime the target chunk time
+   */
+  public void setTargetChunkTime(long targetChunkTime) {
+    if (targetChunkTime <= 0) {
+      throw new IllegalArgumentException("Target chunk time must be positive.");
+    }
+    this.targetChunkTime = targetChunkTime;
+  }
+
+  /**
+   * Records a chunk that was received successfully.
+   *
+   * @param bytes the number of bytes in the chunk
+   * @param requestTime the time in milliseconds from the start of the request
+   * to the end of the data
+   * @param transferTime the time in milliseconds spent reading the data
+   */
+  public synchronized void recordChunk(long bytes, long requestTime,
+      long transferTime) {
+    if (bytes <= 0) {
+      return;
+    }
+
+    double chunkThroughput = (double) bytes / Math.max(transferTime, 1);
+    double chunkOverhead = Math.max(requestTime - transferTime, 0);
+
+    throughput = throughput < 0 ? chunkThroughput : average(throughput,
+        chunkThroughput);
+    overhead = overhead < 0 ? chunkOverhead : average(overhead, chunkOverhead);
+
+    // Recover from earlier failures one chunk at a time.
+    penalty = Math.min(penalty * 2, 1);
+  }
+
+  /**
+   * Records a chunk that failed and will be retried. Each failure halves the
+   * recommended chunk size until chunks succeed again.
+   */
+  public synchronized void recordFailure() {
+    penalty = Math.max(penalty / 2, (double) minChunkSize / maxChunkSize);
+  }
+
+  /**
+   * Returns the recommended chunk size given the chunk size currently in use.
+   * The current size is returned if it is close enough to the recommendation
+   * or if nothing has been measured yet.
+   *
+   * @param currentChunkSize the chunk size currently in use
+   *
+   * @return the recommended chunk size in bytes
+   */
+  public synchronized int getRecommendedChunkSize(int currentChunkSize) {
+    if (throughput < 0) {
+      return currentChunkSize;
+    }
+
+    // Make the chunks long enough that the per-request overhead stays a
+    // small fraction of the total time.
+    double chunkTime = Math.max(targetChunkTime, overhead
+        / MAX_OVERHEAD_FRACTION);
+
+    long size = (long) (throughput * chunkTime * penalty);
+    size = size / GRANULARITY * GRANULARITY;
+    size = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+
+    if (currentChunkSize > 0 && Math.abs(size - currentChunkSize) <= size
+        * HYSTERESIS) {
+      return currentChunkSize;
+    }
+
+    return (int) size;
+  }
+
+  /**
+   * Adds the given value to the exponentially weighted moving average.
+   *
+   * @param average the current average
+   * @param value the new value
+   *
+   * @return the new average
+   */
+  private static double average(double average, double value) {
+    return average + SMOOTHING * (value - average);
+  }
+}
@@ -0,0 +1,567 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An implementation of an {@link Html5Receiver} that stores each distinct
+ * content only once. The data is written to a staging file while a
+ * {@link TreeHash} is computed from the chunk boundaries reported by the upload
+ * component. When the upload completes, the staging file is published into a
+ * sharded, hash prefixed directory layout (e.g. {@code blobs/ab/cd/abcd...})
+ * with an atomic link or rename. If the content already exists, the staged
+ * bytes are dropped and only a reference to the existing blob is reported to
+ * the {@link StoredListener}s.
+ * </p>
+ * <p>
+ * Concurrent uploads of identical content are safe: exactly one upload
+ * publishes the blob and all the others see it as a duplicate. Because the key
+ * is a {@link TreeHash}, the same content uploaded with a different chunk size
+ * is stored under a different key.
+ * </p>
+ * <p>
+ * The store is normally shared by all users so the receiver itself is not a
+ * {@link Html5ContentIndex}; a client that knows the hash of another user's
+ * file could otherwise claim it without uploading it. Instead,
+ * {@link #forOwner(java.lang.String)} returns a receiver for a single user or
+ * tenant that records the content each owner uploads and is an index that
+ * only finds that content. Set the owner receiver as both the receiver and
+ * the content index of the upload component to skip the transfer of content
+ * the owner already uploaded.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ContentAddressableReceiver implements Html5Receiver {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      ContentAddressableReceiver.class);
+
+  /**
+   * The number of directory levels used to shard the blobs.
+   */
+  private final static int SHARD_DEPTH = 2;
+
+  /**
+   * The number of hash characters used for each shard directory name.
+   */
+  private final static int SHARD_WIDTH = 2;
+
+  private final Path blobDir;
+  private final Path stagingDir;
+  private final Path ownerDir;
+  private final List<StoredListener> listeners =
+      new CopyOnWriteArrayList<>();
+
+  /**
+   * Constructs the receiver. The blobs are stored in a "blobs" directory,
+   * uploads are staged in a "staging" directory and the content of each owner
+   * is recorded in an "owners" directory under the given root. The blob and
+   * staging directories must be on the same file system to allow for atomic
+   * publication.
+   *
+   * @param rootDir the root directory of the store
+   *
+   * @throws IOException if the directories cannot be created
+   */
+  public ContentAddressableReceiver(File rootDir) throws IOException {
+    this.blobDir = Files.createDirectories(rootDir.toPath().resolve("blobs"));
+    this.stagingDir = Files.createDirectories(rootDir.toPath().resolve(
+        "staging"));
+    this.ownerDir = Files.createDirectories(rootDir.toPath().resolve(
+        "owners"));
+  }
+
+  /**
+   * Returns a receiver for the given owner that stores uploads in this store
+   * and records the content for the owner. The returned receiver is also a
+   * {@link Html5ContentIndex} that only finds content recorded for the owner.
+   *
+   * @param owner the ID of the user or tenant that owns the uploads
+   *
+   * @return the owner receiver
+   */
+  public OwnerReceiver forOwner(String owner) {
+    return new OwnerReceiver(owner);
+  }
+
+  /**
+   * Adds a listener that will be notified when an upload is stored.
+   *
+   * @param listener the listener to add
+   */
+  public void addStoredListener(StoredListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a previously added listener.
+   *
+   * @param listener the listener to remove
+   */
+  public void removeStoredListener(StoredListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the file that holds the content with the given key. The file may
+   * not exist if the key is not known.
+   *
+   * @param key the hex encoded {@link TreeHash} of the content
+   *
+   * @return the blob file
+   */
+  public File getBlob(String key) {
+    return toBlobPath(key).toFile();
+  }
+
+  /**
+   * Records that the given owner may access the content with the given key,
+   * for example to share content with another user. Content uploaded through
+   * an {@link OwnerReceiver} is recorded automatically.
+   *
+   * @param key the hex encoded {@link TreeHash} of the content
+   * @param owner the ID of the user or tenant
+   *
+   * @throws IOException if the record cannot be written
+   */
+  public void addOwner(String key, String owner) throws IOException {
+    Path record = toOwnerPath(key, owner);
+    Files.createDirectories(record.getParent());
+    try {
+      Files.createFile(record);
+    }
+    catch (FileAlreadyExistsException ex) {
+      // Already recorded.
+    }
+  }
+
+  /**
+   * Returns true if the content with the given key is recorded for the given
+   * owner.
+   *
+   * @param key the hex encoded {@link TreeHash} of the content
+   * @param owner the ID of the user or tenant
+   *
+   * @return true if the owner may access the content
+   */
+  public boolean isOwner(String key, String owner) {
+    return Files.exists(toOwnerPath(key, owner));
+  }
+
+  /**
+   * Looks up the content with the given hash and length if it is recorded for
+   * the owner.
+   *
+   * @param owner the ID of the user or tenant
+   * @param checksum the hex encoded {@link TreeHash} of the content
+   * @param contentLength the length of the content in bytes
+   *
+   * @return the key of the content or null if the owner has no such content
+   */
+  private String find(String owner, String checksum, long contentLength) {
+    Path path;
+    try {
+      path = toBlobPath(checksum);
+    }
+    catch (IllegalArgumentException ex) {
+      log.debug("Ignoring invalid content key {}.", checksum);
+      return null;
+    }
+
+    try {
+      if (isOwner(checksum, owner) && Files.isRegularFile(path) && Files.size(
+          path) == contentLength) {
+        return path.getFileName().toString();
+      }
+    }
+    catch (IOException ex) {
+      log.warn("Unable to read blob {}.", path, ex);
+    }
+
+    return null;
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType) {
+    return receiveUpload(filename, mimeType, null);
+  }
+
+  /**
+   * Creates the staging stream for an upload.
+   *
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   * @param owner the owner to record the content for or null
+   *
+   * @return the staging stream
+   */
+  private OutputStream receiveUpload(String filename, String mimeType,
+      String owner) {
+    try {
+      return new StagingOutputStream(filename, mimeType, owner);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to create staging file.", ex);
+    }
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType,
+      boolean retryEnabled, boolean chunkingEnabled, int chunkContentLength,
+      int contentLength) {
+
+    // The staging stream always supports retries because the chunk
+    // boundaries are needed to build the tree hash.
+    return receiveUpload(filename, mimeType);
+  }
+
+  /**
+   * Returns the path of the blob with the given key in the sharded layout.
+   *
+   * @param key the hex encoded key
+   *
+   * @return the blob path
+   */
+  private Path toBlobPath(String key) {
+    key = key.toLowerCase();
+
+    // Validate the key to prevent path traversal with a forged checksum.
+    Streams.fromHex(key);
+    if (key.length() < SHARD_DEPTH * SHARD_WIDTH) {
+      throw new IllegalArgumentException("Invalid content key: " + key);
+    }
+
+    Path path = blobDir;
+    for (int i = 0; i < SHARD_DEPTH; ++i) {
+      path = path.resolve(key.substring(i * SHARD_WIDTH, (i + 1)
+          * SHARD_WIDTH));
+    }
+    return path.resolve(key);
+  }
+
+  /**
+   * Returns the path of the file that records the content with the given key
+   * for the owner. The owner ID is hex encoded so any ID is a safe directory
+   * name.
+   *
+   * @param key the hex encoded key
+   * @param owner the ID of the owner
+   *
+   * @return the record path
+   */
+  private Path toOwnerPath(String key, String owner) {
+    return ownerDir.resolve(Streams.toHex(owner.getBytes(
+        StandardCharsets.UTF_8))).resolve(toBlobPath(key).getFileName());
+  }
+
+  /**
+   * Publishes the staged file under the given key. Creating a hard link fails
+   * if the target already exists so exactly one concurrent upload wins. If the
+   * file system doesn't support hard links, an atomic rename is used instead
+   * which may replace an identical blob but never exposes partial content.
+   *
+   * @param staged the staged file
+   * @param key the key of the content
+   *
+   * @return true if the content was published, false if it already existed
+   * @throws IOException if the content cannot be published
+   */
+  private boolean publish(Path staged, String key) throws IOException {
+    Path target = toBlobPath(key);
+    Files.createDirectories(target.getParent());
+
+    try {
+      Files.createLink(target, staged);
+      Files.delete(staged);
+      return true;
+    }
+    catch (FileAlreadyExistsException ex) {
+      Files.delete(staged);
+      return false;
+    }
+    catch (UnsupportedOperationException ex) {
+      if (Files.exists(target)) {
+        Files.delete(staged);
+        return false;
+      }
+
+      Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    }
+  }
+
+  /**
+   * Notifies the listeners that an upload was stored.
+   *
+   * @param event the event to fire
+   */
+  private void fireStored(StoredEvent event) {
+    for (StoredListener listener : listeners) {
+      listener.uploadStored(event);
+    }
+  }
+
+  /**
+   * A receiver for a single owner that stores uploads in the shared store. The
+   * content of every upload, including duplicates, is recorded for the owner
+   * and the receiver is an index that only finds content recorded for the
+   * owner, so it can be set as the content index of the upload component of
+   * that owner.
+   */
+  public class OwnerReceiver implements Html5Receiver, Html5ContentIndex {
+
+    private final String owner;
+
+    /**
+     * Constructs the receiver.
+     *
+     * @param owner the ID of the user or tenant that owns the uploads
+     */
+    private OwnerReceiver(String owner) {
+      if (owner == null) {
+        throw new IllegalArgumentException("The owner must not be null.");
+      }
+      this.owner = owner;
+    }
+
+    /**
+     * Returns the ID of the owner.
+     *
+     * @return the owner
+     */
+    public String getOwner() {
+      return owner;
+    }
+
+    @Override
+    public String find(String checksum, long contentLength) {
+      return ContentAddressableReceiver.this.find(owner, checksum,
+          contentLength);
+    }
+
+    @Override
+    public OutputStream receiveUpload(String filename, String mimeType) {
+      return ContentAddressableReceiver.this.receiveUpload(filename, mimeType,
+          owner);
+    }
+
+    @Override
+    public OutputStream receiveUpload(String filename, String mimeType,
+        boolean retryEnabled, boolean chunkingEnabled, int chunkContentLength,
+        int contentLength) {
+      return receiveUpload(filename, mimeType);
+    }
+  }
+
+  /**
+   * A listener that is notified when an upload is stored.
+   */
+  public interface StoredListener {
+
+    /**
+     * Called when an upload is stored or found to be a duplicate of existing
+     * content.
+     *
+     * @param event the stored event
+     */
+    void uploadStored(StoredEvent event);
+  }
+
+  /**
+   * The event fired when an upload is stored.
+   */
+  public static class StoredEvent {
+
+    private final String filename;
+    private final String mimeType;
+    private final String key;
+    private final long length;
+    private final boolean duplicate;
+
+    /**
+     * Constructs the event.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param key the key of the stored content
+     * @param length the length of the content in bytes
+     * @param duplicate true if the content already existed
+     */
+    public StoredEvent(String filename, String mimeType, String key,
+        long length, boolean duplicate) {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.key = key;
+      this.length = length;
+      this.duplicate = duplicate;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the file name
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the mime-type provided by the client.
+     *
+     * @return the mime-type
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * Returns the key of the stored content which can be used as a reference
+     * and passed to
+     * {@link ContentAddressableReceiver#getBlob(java.lang.String)}.
+     *
+     * @return the hex encoded {@link TreeHash} of the content
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the length of the content in bytes.
+     *
+     * @return the content length
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Returns true if the content already existed and the uploaded bytes were
+     * dropped.
+     *
+     * @return true if the upload was a duplicate
+     */
+    public boolean isDuplicate() {
+      return duplicate;
+    }
+  }
+
+  /**
+   * An output stream that writes to a staging file and hashes each chunk.
+   * Retried chunks are discarded by truncating the staging file to the length
+   * of the last completed chunk. The content is only published if every chunk
+   * was ended with {@link #chunkEnd(int, int)} before the stream is closed.
+   */
+  private class StagingOutputStream extends RetryableOutputStream {
+
+    private final String filename;
+    private final String mimeType;
+    private final String owner;
+    private final Path staged;
+    private final RandomAccessFile stagedStream;
+    private final MessageDigest chunkDigest = TreeHash.newDigest();
+    private final TreeHash treeHash = new TreeHash();
+    private long committedLength;
+    private boolean closed;
+
+    /**
+     * Constructs the stream and creates the staging file.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param owner the owner to record the content for or null
+     *
+     * @throws IOException if the staging file cannot be created
+     */
+    public StagingOutputStream(String filename, String mimeType, String owner)
+        throws IOException {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.owner = owner;
+      this.staged = Files.createTempFile(stagingDir, "upload", ".tmp");
+      this.stagedStream = new RandomAccessFile(staged.toFile(), "rw");
+    }
+
+    @Override
+    public void chunkStart(int chunkIndex, int chunkCount) throws IOException {
+      // Discard anything written since the last completed chunk.
+      chunkDigest.reset();
+      stagedStream.setLength(committedLength);
+      stagedStream.seek(committedLength);
+    }
+
+    @Override
+    public void chunkEnd(int chunkIndex, int chunkCount) throws IOException {
+      treeHash.put(chunkIndex, chunkCount, Streams.toHex(chunkDigest.digest()));
+      committedLength = stagedStream.getFilePointer();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      stagedStream.write(b);
+      chunkDigest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      stagedStream.write(b, off, len);
+      chunkDigest.update(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      super.close();
+      stagedStream.close();
+
+      // Only content that ended with a completed final chunk is published. A
+      // close without it means the upload failed or was interrupted and the
+      // staged data may be truncated.
+      if (!treeHash.isComplete()) {
+        Files.deleteIfExists(staged);
+        return;
+      }
+
+      String key = treeHash.getValue();
+      boolean published;
+      try {
+        published = publish(staged, key);
+      }
+      catch (IOException ex) {
+        Files.deleteIfExists(staged);
+        throw ex;
+      }
+
+      log.debug("Stored upload {} as {} (duplicate: {}).", filename, key,
+          !published);
+
+      if (owner != null) {
+        try {
+          addOwner(key, owner);
+        }
+        catch (IOException ex) {
+          log.warn("Unable to record content {} for owner {}.", key, owner,
+              ex);
+        }
+      }
+
+      fireStored(new StoredEvent(filename, mimeType, key, committedLength,
+          !published));
+    }
+  }
+}
@@ -54,7 +54,7 @@ public class DefaultHtml5Receiver implements
 
     if (retryEnabled) {
       outstream = chunkContentLength <= MAX_RETRY_MEMORY ?
-          new MemoryRetryableOutputStream(outstream) :
+          new MemoryRetryableOutputStream(outstream, chunkContentLength) :
           new DiskRetryableOutputStream(outstream);
     }
 
@@ -64,51 +64,119 @@ public class DefaultHtml5Receiver implements
   /**
    * An in-memory buffering output stream. The data will be stored in a byte
    * buffer and flushed to the delegate output stream when a chunk completes
-   * successfully.
+   * successfully. If a chunk turns out to be larger than
+   * {@link #MAX_RETRY_MEMORY}, the stream spills to a
+   * {@link DiskRetryableOutputStream} for the rest of the upload so a client
+   * can't force larger heap allocations by sending more than it advertised.
    */
   private static class MemoryRetryableOutputStream extends RetryableOutputStream {
 
-    private final ByteBuffer buffer;
+    private ByteBuffer buffer;
     private final OutputStream receiverOutstream;
+    private DiskRetryableOutputStream overflow;
 
     /**
-     * Constructs the output stream which will buffer incoming data up to the
-     * given capacity.
+     * Constructs the output stream which will buffer incoming data. The buffer
+     * is sized for the expected chunk length so small uploads don't allocate
+     * the maximum retry memory and it grows up to the maximum if a chunk
+     * turns out to be larger.
      *
      * @param delegate the delegate stream to write to
+     * @param chunkContentLength the expected length of a chunk or -1 if
+     * unknown
      */
-    public MemoryRetryableOutputStream(OutputStream delegate) {
-      this.buffer = ByteBuffer.allocate(MAX_RETRY_MEMORY);
+    public MemoryRetryableOutputStream(OutputStream delegate,
+        int chunkContentLength) {
+      this.buffer = ByteBuffer.allocate(chunkContentLength > 0 ? Math.min(
+          chunkContentLength, MAX_RETRY_MEMORY) : MAX_RETRY_MEMORY);
       this.receiverOutstream = delegate;
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-      buffer.put(b);
+      write(b, 0, b.length);
     }
 
     @Override
     public void write(int b) throws IOException {
-      buffer.put((byte) b);
+      write(new byte[]{(byte) b}, 0, 1);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-      buffer.put(b, off, len);
+      if (overflow == null && !ensureCapacity(len)) {
+        spill();
+      }
+
+      if (overflow != null) {
+        overflow.write(b, off, len);
+      }
+      else {
+        buffer.put(b, off, len);
+      }
+    }
+
+    /**
+     * Grows the buffer if needed so the given number of bytes can be written.
+     * The buffer never grows beyond {@link #MAX_RETRY_MEMORY}.
+     *
+     * @param len the number of bytes to be written
+     *
+     * @return true if the bytes fit in the buffer, false if the chunk is too
+     * large to be held in memory
+     */
+    private boolean ensureCapacity(int len) {
+      if (buffer.remaining() >= len) {
+        return true;
+      }
+
+      int needed = buffer.position() + len;
+      if (needed > MAX_RETRY_MEMORY || needed < 0) {
+        return false;
+      }
+
+      int capacity = Math.min(MAX_RETRY_MEMORY, Math.max(buffer.capacity()
+          * 2, needed));
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+      return true;
+    }
+
+    /**
+     * Moves the data of the current chunk to a disk buffering stream that
+     * takes over the rest of the upload and releases the memory buffer.
+     *
+     * @throws IOException if the temporary file can't be written
+     */
+    private void spill() throws IOException {
+      overflow = new DiskRetryableOutputStream(receiverOutstream);
+      overflow.chunkStart(0, 0);
+      overflow.write(buffer.array(), 0, buffer.position());
+      buffer = null;
     }
 
     @Override
     public void chunkStart(int chunkIndex, int chunkCount) throws IOException {
-      buffer.rewind();
+      if (overflow != null) {
+        overflow.chunkStart(chunkIndex, chunkCount);
+      }
+      else {
+        buffer.rewind();
+      }
     }
 
     @Override
     public void chunkEnd(int chunkIndex, int chunkCount) throws IOException {
+      if (overflow != null) {
+        overflow.chunkEnd(chunkIndex, chunkCount);
+        return;
+      }
 
-      int available = buffer.position();
-      buffer.rewind();
-
-      Streams.copy(buffer, available, receiverOutstream);
+      // The buffer is always heap backed so the data can be written directly
+      // without an intermediate copy.
+      receiverOutstream.write(buffer.array(), 0, buffer.position());
 
       receiverOutstream.flush();
       buffer.rewind();
@@ -117,7 +185,12 @@ public class DefaultHtml5Receiver implements
     @Override
     public void close() throws IOException {
       super.close();
-      receiverOutstream.close();
+      if (overflow != null) {
+        overflow.close();
+      }
+      else {
+        receiverOutstream.close();
+      }
     }
   }
 
@@ -0,0 +1,403 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.communication.FileUploadHandler;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * <p>
+ * A stream variable that writes the upload data directly to the
+ * {@link Html5Receiver} of a component without the Vaadin session. It is used
+ * with a session-free {@link Html5IngestTarget} so the chunks received by the
+ * {@link Html5IngestServlet} never go through the Vaadin servlet or wait for
+ * the session lock. The component is notified asynchronously with
+ * {@link UI#access(java.lang.Runnable)} when a file starts, progresses, and
+ * completes or fails so the listeners run in the session as usual.
+ * </p>
+ * <p>
+ * The receiver and the progress listeners of the component are read from
+ * the request threads without the session lock, so the stream variable
+ * works with a snapshot of them that is taken when the target is opened and
+ * updated by the component when they change.
+ * </p>
+ * <p>
+ * The chunks of a file must be sent one at a time. Every chunk response is a
+ * {@link ChunkResponse} and the response to the final chunk is marked as ended
+ * so the client doesn't report completion. The data of a failed chunk is
+ * discarded if the receiver returns a
+ * {@link Html5Receiver.RetryableOutputStream} so the client may retry it;
+ * otherwise the file fails as a whole.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class DirectIngestStreamVariable implements StreamVariable {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      DirectIngestStreamVariable.class);
+
+  private final AbstractHtml5Upload upload;
+  private final UI ui;
+  private final Parameters parameters;
+  private final boolean retryEnabled;
+  private final AtomicBoolean progressPending = new AtomicBoolean();
+  private volatile boolean interrupted;
+  private volatile Html5Receiver receiver;
+  private volatile boolean progressEnabled;
+
+  private OutputStream receiverOutstream;
+  private String filename;
+  private String mimeType;
+  private long contentLength;
+  private long bytesRead;
+  private int chunkIndex;
+  private int chunkCount;
+  private TreeHash treeHash;
+
+  /**
+   * Constructs the stream variable. The session of the upload component must
+   * be locked.
+   *
+   * @param upload the attached upload component to notify
+   * @param parameters the names of the request parameters sent by the client
+   * @param retryEnabled true if the client retries failed chunks
+   */
+  public DirectIngestStreamVariable(AbstractHtml5Upload upload,
+      Parameters parameters, boolean retryEnabled) {
+    this.upload = upload;
+    this.ui = upload.getUI();
+    this.parameters = parameters;
+    this.retryEnabled = retryEnabled;
+
+    if (ui == null) {
+      throw new IllegalStateException(
+          "The upload must be attached to receive data directly.");
+    }
+
+    refresh();
+  }
+
+  /**
+   * Takes a snapshot of the receiver and the progress listeners of the
+   * component. The session of the upload component must be locked.
+   */
+  void refresh() {
+    receiver = upload.html5Receiver;
+    progressEnabled = !upload.progressListeners.isEmpty();
+  }
+
+  /**
+   * Interrupts the file being received. The next chunk (or the one in
+   * progress) fails and the component gets a failed event.
+   */
+  public void interrupt() {
+    interrupted = true;
+  }
+
+  /**
+   * Returns true if a file is being received.
+   *
+   * @return true if a file is being received
+   */
+  public synchronized boolean isUploading() {
+    return receiverOutstream != null;
+  }
+
+  /**
+   * Fails the file being received, if any, and closes the receiver stream.
+   * This should be called when the target is closed.
+   */
+  public synchronized void close() {
+    if (receiverOutstream != null) {
+      endFile(new FileUploadHandler.UploadInterruptedException());
+    }
+  }
+
+  @Override
+  public boolean listenProgress() {
+    return progressEnabled;
+  }
+
+  @Override
+  public void onProgress(StreamingProgressEvent event) {
+    final long totalBytes;
+    final long length;
+    synchronized (this) {
+      totalBytes = bytesRead + event.getBytesReceived();
+      length = contentLength;
+    }
+
+    // Progress is dropped while an earlier update is waiting for the session
+    // so a busy session never builds up a queue of stale updates.
+    if (progressPending.compareAndSet(false, true)) {
+      access(new Runnable() {
+        @Override
+        public void run() {
+          progressPending.set(false);
+          upload.fireUpdateProgress(totalBytes, length);
+        }
+      });
+    }
+  }
+
+  @Override
+  public boolean isInterrupted() {
+    return interrupted;
+  }
+
+  @Override
+  public synchronized OutputStream getOutputStream() {
+    return receiverOutstream == null ? null : new UncloseableOutputStream(
+        receiverOutstream);
+  }
+
+  @Override
+  public synchronized void streamingStarted(StreamingStartEvent event) {
+    Html5StreamVariable.Html5StreamingStartEvent html5Event =
+        (Html5StreamVariable.Html5StreamingStartEvent) event;
+
+    String param = html5Event.getParameterValue(parameters.chunkCount);
+    chunkCount = param != null ? Integer.parseInt(param) : 1;
+
+    param = html5Event.getParameterValue(parameters.chunkIndex);
+    chunkIndex = param != null ? Integer.parseInt(param) : 0;
+
+    // The first chunk of a file while another file is open means the client
+    // gave up on the other file.
+    if (chunkIndex == 0 && receiverOutstream != null) {
+      endFile(new FileUploadHandler.UploadInterruptedException());
+    }
+
+    if (receiverOutstream == null) {
+      if (chunkIndex != 0) {
+        // The file was already ended so there is nothing to write to.
+        return;
+      }
+
+      // An interrupt only applies to the file in progress.
+      interrupted = false;
+      startFile(html5Event);
+    }
+
+    if (receiverOutstream instanceof Html5Receiver.RetryableOutputStream) {
+      try {
+        ((Html5Receiver.RetryableOutputStream) receiverOutstream).chunkStart(
+            chunkIndex, chunkCount);
+      }
+      catch (IOException ex) {
+        throw new RuntimeException("Unable to start chunk in retryable stream.",
+            ex);
+      }
+    }
+  }
+
+  /**
+   * Opens the receiver stream for a new file and notifies the component.
+   *
+   * @param event the start event of the first chunk
+   */
+  private void startFile(Html5StreamVariable.Html5StreamingStartEvent event) {
+    String name = event.getParameterValue(parameters.filename);
+    filename = Streams.removePath(name != null ? name : event.getFileName());
+    mimeType = event.getMimeType();
+    bytesRead = 0;
+    treeHash = new TreeHash();
+
+    String param = event.getParameterValue(parameters.totalSize);
+    contentLength = Streams.parseLength(param, event.getContentLength()
+        * chunkCount);
+
+    Html5Receiver receiver = this.receiver;
+    if (receiver == null) {
+      final String noOutputFilename = filename;
+      final String noOutputMimeType = mimeType;
+      final long noOutputLength = contentLength;
+      access(new Runnable() {
+        @Override
+        public void run() {
+          upload.fireNoOutputStream(noOutputFilename, noOutputMimeType,
+              noOutputLength);
+        }
+      });
+      return;
+    }
+
+    receiverOutstream = receiver.receiveUpload(filename, mimeType,
+        retryEnabled, chunkCount > 1, (int) event.getContentLength(),
+        Streams.toReceiverLength(contentLength));
+
+    final AbstractHtml5Upload.StartedEvent startedEvent =
+        new AbstractHtml5Upload.StartedEvent(upload, filename, mimeType,
+            contentLength);
+    access(new Runnable() {
+      @Override
+      public void run() {
+        upload.renewUploadUrl();
+        upload.fireStarted(startedEvent);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void streamingFinished(StreamingEndEvent event) {
+    Html5StreamVariable.Html5StreamingEndEvent html5Event =
+        (Html5StreamVariable.Html5StreamingEndEvent) event;
+
+    if (receiverOutstream instanceof Html5Receiver.RetryableOutputStream) {
+      try {
+        ((Html5Receiver.RetryableOutputStream) receiverOutstream).chunkEnd(
+            chunkIndex, chunkCount);
+      }
+      catch (IOException ex) {
+        throw new RuntimeException("Unable to end chunk in retryable stream.",
+            ex);
+      }
+    }
+
+    bytesRead += event.getBytesReceived();
+    if (html5Event.getChecksum() != null) {
+      treeHash.put(chunkIndex, chunkCount, html5Event.getChecksum());
+    }
+
+    boolean complete = chunkCount == chunkIndex + 1;
+
+    ChunkResponse response = new ChunkResponse(true, complete ?
+        ChunkResponse.STATUS_COMPLETE : ChunkResponse.STATUS_CHUNK);
+    response.setBytesAccepted(bytesRead);
+    response.setTotalBytes(contentLength);
+    response.setEnded(complete);
+    html5Event.setResponse(response.toUploadResponse(200));
+
+    if (complete) {
+      endFile(null);
+    }
+  }
+
+  @Override
+  public synchronized void streamingFailed(StreamingErrorEvent event) {
+    Html5StreamVariable.Html5StreamingErrorEvent html5Event =
+        (Html5StreamVariable.Html5StreamingErrorEvent) event;
+
+    Exception exception = event.getException();
+    String msg = exception == null ? "unknown" : exception.getMessage();
+
+    boolean retryable = !interrupted && receiverOutstream != null && !(exception
+        instanceof FileUploadHandler.UploadInterruptedException)
+        && retryEnabled
+        && receiverOutstream instanceof Html5Receiver.RetryableOutputStream;
+
+    ChunkResponse response = new ChunkResponse(false, interrupted ?
+        ChunkResponse.STATUS_INTERRUPTED : ChunkResponse.STATUS_FAILED);
+    response.setError(interrupted ? "interrupted" : msg);
+    response.setInterrupted(interrupted);
+    response.setPreventRetry(!retryable);
+    response.setBytesAccepted(bytesRead);
+    response.setTotalBytes(contentLength);
+
+    if (retryable) {
+      // The data of the chunk is discarded by the retryable stream when the
+      // chunk is started again.
+      html5Event.setResponse(response.toUploadResponse(400));
+      log.info("Direct ingest of a chunk failed. The chunk will be retried if "
+          + "retries are not exhausted. Exception: {}", msg);
+    }
+    else {
+      // Respond with success so the client reads the response and stops.
+      html5Event.setResponse(response.toUploadResponse(200));
+      if (receiverOutstream != null) {
+        endFile(exception != null ? exception :
+            new FileUploadHandler.UploadInterruptedException());
+      }
+    }
+  }
+
+  /**
+   * Closes the receiver stream of the current file and notifies the
+   * component that the file succeeded or failed.
+   *
+   * @param exception the reason the file failed or null if it succeeded
+   */
+  private void endFile(final Exception exception) {
+    Streams.tryClose(receiverOutstream);
+    receiverOutstream = null;
+    interrupted = false;
+
+    final AbstractHtml5Upload.FinishedEvent finishedEvent;
+    if (exception == null) {
+      finishedEvent = new AbstractHtml5Upload.SucceededEvent(upload, filename,
+          mimeType, bytesRead, treeHash.getValue());
+    }
+    else {
+      finishedEvent = new AbstractHtml5Upload.FailedEvent(upload, filename,
+          mimeType, contentLength, exception);
+    }
+
+    access(new Runnable() {
+      @Override
+      public void run() {
+        if (finishedEvent instanceof AbstractHtml5Upload.SucceededEvent) {
+          upload.fireUploadSuccess(
+              (AbstractHtml5Upload.SucceededEvent) finishedEvent);
+        }
+        else {
+          upload.fireUploadInterrupted(
+              (AbstractHtml5Upload.FailedEvent) finishedEvent);
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs the given task in the session of the component. The task is pushed
+   * to the client if push is enabled or seen on the next round trip.
+   *
+   * @param task the task to run
+   */
+  private void access(Runnable task) {
+    try {
+      ui.access(task);
+    }
+    catch (UIDetachedException ex) {
+      // Ignore. The upload is going away.
+    }
+  }
+
+  /**
+   * The names of the request parameters the client uses to describe the
+   * file and the chunk.
+   */
+  public static class Parameters {
+
+    private final String filename;
+    private final String chunkIndex;
+    private final String chunkCount;
+    private final String totalSize;
+
+    /**
+     * Constructs the parameter names.
+     *
+     * @param filename the name of the file name parameter
+     * @param chunkIndex the name of the zero based chunk index parameter
+     * @param chunkCount the name of the chunk count parameter
+     * @param totalSize the name of the total file size parameter
+     */
+    public Parameters(String filename, String chunkIndex, String chunkCount,
+        String totalSize) {
+      this.filename = filename;
+      this.chunkIndex = chunkIndex;
+      this.chunkCount = chunkCount;
+      this.totalSize = totalSize;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.*;
+import com.vaadin.util.FileTypeResolver;
+
+/**
+ * <p>
+ * A request handler that serves the static assets of the upload components,
+ * such as the third-party uploader libraries, under a content hashed URL.
+ * Because the URL changes whenever the content changes, the assets are served
+ * with immutable, long lived cache headers so repeat visits don't request
+ * them again.
+ * </p>
+ * <p>
+ * Each asset is read, hashed and gzip compressed once per class loader when
+ * it is first published. If a build step places a precompressed
+ * <code>.gz</code> or <code>.br</code> file next to the asset on the
+ * classpath, it is used as is. The encoding is negotiated with the
+ * <code>Accept-Encoding</code> header of each request.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5AssetHandler implements RequestHandler {
+
+  /**
+   * The URL prefix that this handler will handle. The content hash and the
+   * file name of the asset follow the prefix.
+   */
+  public static final String URL_PREFIX = "APP/HTML5_UPLOAD_ASSET/";
+
+  /**
+   * The cache control header of the assets. The URL of an asset changes with
+   * its content so it can be cached forever.
+   */
+  private static final String CACHE_CONTROL =
+      "public, max-age=31536000, immutable";
+
+  /**
+   * The number of hex characters of the content hash used in the URL.
+   */
+  private static final int HASH_LENGTH = 16;
+
+  /**
+   * The published assets by URL path (i.e. hash and file name).
+   */
+  private static final Map<String, Asset> ASSETS = new ConcurrentHashMap<>();
+
+  /**
+   * The URL paths of the published assets by class and resource path.
+   */
+  private static final Map<String, String> PUBLISHED =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Publishes the resource at the given path relative to the given class and
+   * returns the content hashed URL of the asset. The URL uses the
+   * <code>app://</code> protocol so it must be translated on the client side
+   * (e.g. with <code>translateVaadinUri</code>). The
+   * {@link Html5AssetHandler} must be installed in the session that serves
+   * the URL.
+   *
+   * @param context the class the path is relative to
+   * @param path the path of the resource
+   *
+   * @return the URL of the asset
+   */
+  public static String publish(Class<?> context, String path) {
+    String key = context.getName() + ":" + path;
+
+    String urlPath = PUBLISHED.get(key);
+    if (urlPath == null) {
+      Asset asset = new Asset(context, path);
+      urlPath = asset.hash + "/" + Streams.removePath(path);
+
+      ASSETS.put(urlPath, asset);
+      PUBLISHED.put(key, urlPath);
+    }
+
+    return "app://" + URL_PREFIX + urlPath;
+  }
+
+  @Override
+  public boolean handleRequest(VaadinSession session, VaadinRequest request,
+      VaadinResponse response) throws IOException {
+
+    String pathInfo = request.getPathInfo();
+    if (pathInfo == null || !pathInfo.startsWith("/" + URL_PREFIX)) {
+      return false;
+    }
+
+    // Expected URI pattern: APP/HTML5_UPLOAD_ASSET/[HASH]/[NAME]
+    Asset asset = ASSETS.get(pathInfo.substring(URL_PREFIX.length() + 1));
+    if (asset == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Asset not found.");
+      return true;
+    }
+
+    response.setHeader("Cache-Control", CACHE_CONTROL);
+    response.setHeader("ETag", asset.etag);
+    response.setHeader("Vary", "Accept-Encoding");
+
+    if (asset.etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    byte[] content = asset.content;
+    if (asset.brotli != null && accepts(acceptEncoding, "br")) {
+      response.setHeader("Content-Encoding", "br");
+      content = asset.brotli;
+    }
+    else if (accepts(acceptEncoding, "gzip")) {
+      response.setHeader("Content-Encoding", "gzip");
+      content = asset.gzip;
+    }
+
+    String mimeType = response.getService().getMimeType(asset.name);
+    response.setContentType(mimeType != null ? mimeType :
+        FileTypeResolver.getMIMEType(asset.name));
+    response.setContentLength(content.length);
+
+    try (OutputStream outstream = response.getOutputStream()) {
+      outstream.write(content);
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns true if the given Accept-Encoding header accepts the given
+   * encoding.
+   *
+   * @param header the Accept-Encoding header or null
+   * @param encoding the content encoding
+   *
+   * @return true if the encoding is accepted
+   */
+  private static boolean accepts(String header, String encoding) {
+    if (header == null) {
+      return false;
+    }
+
+    for (String token : header.split(",")) {
+      String[] parts = token.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase(encoding)) {
+        return parts.length == 1 || !parts[1].trim().matches(
+            "q=0(\\.0*)?");
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Reads the resource at the given path relative to the given class.
+   *
+   * @param context the class the path is relative to
+   * @param path the path of the resource
+   *
+   * @return the content or null if the resource doesn't exist
+   */
+  private static byte[] read(Class<?> context, String path) {
+    try (InputStream instream = context.getResourceAsStream(path)) {
+      if (instream == null) {
+        return null;
+      }
+
+      ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+      Streams.copy(instream, outstream);
+      return outstream.toByteArray();
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to read asset " + path, ex);
+    }
+  }
+
+  /**
+   * A published asset with its content in each of the supported encodings.
+   */
+  private static class Asset {
+
+    private final String name;
+    private final String hash;
+    private final String etag;
+    private final byte[] content;
+    private final byte[] gzip;
+    private final byte[] brotli;
+
+    /**
+     * Constructs the asset by reading and compressing the resource.
+     *
+     * @param context the class the path is relative to
+     * @param path the path of the resource
+     */
+    public Asset(Class<?> context, String path) {
+      content = read(context, path);
+      if (content == null) {
+        throw new IllegalArgumentException("Asset " + path + " of "
+            + context.getName() + " not found.");
+      }
+
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+        hash = Streams.toHex(digest).substring(0, HASH_LENGTH);
+      }
+      catch (NoSuchAlgorithmException ex) {
+        throw new RuntimeException("SHA-256 is not supported.", ex);
+      }
+
+      byte[] data = read(context, path + ".gz");
+      if (data == null) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream outstream = new GZIPOutputStream(compressed)) {
+          outstream.write(content);
+        }
+        catch (IOException ex) {
+          throw new RuntimeException("Unable to compress asset " + path, ex);
+        }
+        data = compressed.toByteArray();
+      }
+
+      name = Streams.removePath(path);
+      etag = "\"" + hash + "\"";
+      gzip = data;
+      brotli = read(context, path + ".br");
+    }
+  }
+}
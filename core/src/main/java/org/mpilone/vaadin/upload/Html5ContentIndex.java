@@ -0,0 +1,71 @@
+package org.mpilone.vaadin.upload;
+
+/**
+ * <p>
+ * An index of content that has already been received and stored by the
+ * application. When an index is set on an upload component, the client hashes
+ * the selected file before uploading it and asks the server if the content is
+ * already known. If the index finds the content, the upload is completed
+ * immediately with a reference to the existing content and the file data is
+ * never transferred.
+ * </p>
+ * <p>
+ * <strong>Security:</strong> the hash and the length are supplied by the
+ * client and knowing them does not prove that the client has the content. A
+ * client that learns the hash of a file stored by another user (for example
+ * a published hash of a well known document) can claim the file without
+ * uploading it and the application will receive a reference to the other
+ * user's content. An index should therefore only find content the current
+ * user may already access, normally by keeping a separate index per user or
+ * tenant rather than one index for the whole application. When a shared index
+ * is required, a {@link Verifier} should be set on the component to decide if
+ * a found reference may be handed out.
+ * </p>
+ *
+ * @author mpilone
+ */
+public interface Html5ContentIndex {
+
+  /**
+   * Looks up existing content with the given hash and length. The hash is a
+   * {@link TreeHash} built with the chunk size configured on the upload
+   * component so the index must be keyed with the same chunk size that is
+   * used when the content is uploaded (for example by recording the value of
+   * {@link AbstractHtml5Upload.SucceededEvent#getChecksum()} after each
+   * upload).
+   * <p>
+   * The returned reference is given to the application as if the client had
+   * uploaded the content, so the index must not find content the current user
+   * is not allowed to access (see the class documentation).
+   * </p>
+   *
+   * @param checksum the hex encoded {@link TreeHash} of the content
+   * @param contentLength the length of the content in bytes
+   *
+   * @return an application defined reference to the existing content (such
+   * as a storage key) or null if the content is not known
+   */
+  String find(String checksum, long contentLength);
+
+  /**
+   * A check that is run on content found in the index before the upload is
+   * completed with the reference. The verifier is called with the session
+   * locked so it can check the current user, for example against the owners
+   * recorded for the content.
+   */
+  interface Verifier {
+
+    /**
+     * Returns true if the existing content may be given to the client that
+     * claims it. If false is returned, the file is uploaded normally.
+     *
+     * @param reference the reference returned by the index
+     * @param checksum the hex encoded {@link TreeHash} claimed by the client
+     * @param contentLength the length of the content in bytes
+     *
+     * @return true to complete the upload with the reference, false to
+     * upload the file
+     */
+    boolean verify(String reference, String checksum, long contentLength);
+  }
+}
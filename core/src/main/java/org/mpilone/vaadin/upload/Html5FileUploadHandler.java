@@ -5,7 +5,12 @@ import static java.lang.String.format;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.*;
 
@@ -54,6 +59,120 @@ public class Html5FileUploadHandler implements RequestHandler {
    */
   public static final String URL_PREFIX = "APP/HTML5_FILE_UPLOAD/";
 
+  /**
+   * The name of the optional request parameter containing the hex encoded
+   * {@link TreeHash#ALGORITHM} checksum of the file data in the request as
+   * computed by the client. If present, the checksum of the received data is
+   * verified before the stream variable is told the data is complete.
+   */
+  public static final String CHECKSUM_PARAM = "checksum";
+
+  /**
+   * The name of the URL parameter which marks a batch request. A batch
+   * request is a multipart request that contains several small files. Each
+   * file part is streamed to the stream variable as an independent upload and
+   * the form fields sent before a file part only apply to that file. The
+   * responses of the files must be JSON and are combined into a JSON array in
+   * the order of the file parts.
+   */
+  public static final String BATCH_PARAM = "batch";
+
+  /**
+   * The name of the optional request header containing the mime-type of the
+   * file data in a raw (non-multipart) upload. The request content type of a
+   * raw upload is normally "application/octet-stream" so the client sends the
+   * actual mime-type of the file in this header.
+   */
+  public static final String MIME_TYPE_HEADER = "X-Mime-Type";
+
+  /**
+   * The name of the optional request header containing the name of the file
+   * in a raw (non-multipart) upload. Most clients send the name as a URL
+   * parameter instead.
+   */
+  public static final String FILE_NAME_HEADER = "X-File-Name";
+
+  /**
+   * The maximum size in bytes of the file data in a request that is handled
+   * by the fast path for tiny uploads. The data of a tiny upload is read into
+   * a pooled memory buffer before the session is locked once to deliver the
+   * started event, the data, and the finished event together.
+   */
+  public static final int TINY_UPLOAD_SIZE = 64 * 1024;
+
+  /**
+   * The maximum number of buffers kept in the pool for tiny uploads.
+   */
+  private static final int MAX_POOLED_BUFFERS = 32;
+
+  /**
+   * The pool of buffers used to read tiny uploads. Each buffer has room for
+   * one byte more than {@link #TINY_UPLOAD_SIZE} to detect data that is
+   * larger than expected.
+   */
+  private static final BlockingQueue<byte[]> TINY_BUFFERS =
+      new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+  /**
+   * The uploads currently streaming data to a stream variable. This is used
+   * to abort the request of an upload as soon as it is interrupted.
+   */
+  private static final Map<StreamVariable, UploadContext> ACTIVE_UPLOADS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Returns the number of requests currently streaming upload data on this
+   * node.
+   *
+   * @return the number of active uploads
+   */
+  public static int getActiveUploadCount() {
+    return ACTIVE_UPLOADS.size();
+  }
+
+  /**
+   * Returns true if a request is currently streaming upload data to the given
+   * stream variable on this node.
+   *
+   * @param streamVariable the stream variable receiving the data
+   *
+   * @return true if the stream variable is counted as an active upload
+   */
+  public static boolean isActive(StreamVariable streamVariable) {
+    return ACTIVE_UPLOADS.containsKey(streamVariable);
+  }
+
+  /**
+   * Aborts the request that is currently streaming data to the given stream
+   * variable, if any. The request input stream is closed so the receiving
+   * thread stops reading immediately rather than at the end of the chunk and
+   * the connection is closed after the response so the client stops sending
+   * the rest of the request body. The stream variable gets a failed event
+   * with an {@link FileUploadHandler.UploadInterruptedException}. This method
+   * can be called from any thread.
+   *
+   * @param streamVariable the stream variable receiving the data
+   *
+   * @return true if a request was aborted
+   */
+  public static boolean abort(StreamVariable streamVariable) {
+    UploadContext context = ACTIVE_UPLOADS.get(streamVariable);
+    if (context == null) {
+      return false;
+    }
+
+    context.aborted = true;
+    try {
+      if (context.servletRequest != null) {
+        context.servletRequest.getInputStream().close();
+      }
+    }
+    catch (IOException | RuntimeException ex) {
+      // Ignore. The reading thread checks the aborted flag.
+    }
+    return true;
+  }
+
   @Override
   public boolean handleRequest(final VaadinSession session,
       VaadinRequest request,
@@ -81,6 +200,7 @@ public class Html5FileUploadHandler implements RequestHandler {
 
     // Populate initial fields while session is locked.
     final UploadContext context = new UploadContext();
+    context.requestStartTime = System.nanoTime();
 
     runInLock(session, new Runnable() {
       @Override
@@ -111,6 +231,48 @@ public class Html5FileUploadHandler implements RequestHandler {
       return true;
     }
 
+    handleRequest(context, session, request, response);
+
+    return true;
+  }
+
+  /**
+   * Handles an upload request for the given stream variable that was
+   * authenticated by other means than the security key in the URL (for
+   * example by the token of an {@link Html5IngestTarget}). The request and
+   * response must wrap servlet requests. If the session is null, the stream
+   * variable must be safe to call from the request thread without a lock.
+   *
+   * @param session the session of the stream variable or null
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   * @param request the upload request
+   * @param response the response to the upload request
+   */
+  void handleRequest(VaadinSession session, ClientConnector source,
+      StreamVariable streamVariable, VaadinRequest request,
+      VaadinResponse response) {
+
+    UploadContext context = new UploadContext();
+    context.requestStartTime = System.nanoTime();
+    context.streamVariable = streamVariable;
+    context.source = source;
+
+    handleRequest(context, session, request, response);
+  }
+
+  /**
+   * Populates the request fields of the given upload context and handles the
+   * request for upload.
+   *
+   * @param context the upload context with the stream variable and source
+   * @param session the session of the stream variable
+   * @param request the upload request
+   * @param response the response to the upload request
+   */
+  private void handleRequest(UploadContext context, VaadinSession session,
+      VaadinRequest request, VaadinResponse response) {
+
     String contentLengthHeader = request.
         getHeader(FileUploadBase.CONTENT_LENGTH);
 
@@ -129,8 +291,6 @@ public class Html5FileUploadHandler implements RequestHandler {
 //    context.addParams(request.getParameterMap());
 
     handleRequest(context);
-
-    return true;
   }
 
   /**
@@ -166,8 +326,40 @@ public class Html5FileUploadHandler implements RequestHandler {
       handleMultipartRequest(context);
     }
     else {
-      throw new UnsupportedOperationException("Not supported. Client should "
-          + "use multipart upload.");
+      handleRawRequest(context);
+    }
+  }
+
+  /**
+   * Handles the given raw (non-multipart) request for upload after the
+   * required fields have been extracted from the URL and put into the upload
+   * context. The request body is the file data so it is streamed directly to
+   * the receiver without any parsing and the data length is the exact content
+   * length of the request. The parameters are taken from the URL.
+   *
+   * @param context the upload context including the request, session, and
+   * stream variable
+   */
+  private void handleRawRequest(final UploadContext context) {
+
+    Html5StreamVariable.UploadResponse response = null;
+
+    String mimeType = context.request.getHeader(MIME_TYPE_HEADER);
+    if (mimeType != null && !mimeType.isEmpty()) {
+      context.contentType = mimeType;
+    }
+
+    String filename = context.request.getHeader(FILE_NAME_HEADER);
+    if (filename != null) {
+      context.filename = Streams.removePath(filename);
+    }
+
+    try (InputStream stream = context.servletRequest.getInputStream()) {
+      response = receive(stream, context);
+      writeResponse(context, response);
+    }
+    catch (IOException | UploadException e) {
+      handleRequestException(context, response, e);
     }
   }
 
@@ -190,6 +382,11 @@ public class Html5FileUploadHandler implements RequestHandler {
     String boundary = contentDispositionHeader.substring(pos + "boundary=".
         length());
 
+    // In a batch request, each file part is an independent upload.
+    boolean batch = context.getParam(BATCH_PARAM) != null;
+    List<Html5StreamVariable.UploadResponse> batchResponses =
+        new ArrayList<>();
+
     // Create a new Apache commons file upload handler.
     ServletFileUpload upload = new ServletFileUpload();
 
@@ -216,35 +413,143 @@ public class Html5FileUploadHandler implements RequestHandler {
             // to the receiver variable.
             context.filename = Streams.removePath(item.getName());
             context.contentType = item.getContentType();
-            context.dataContentLength -=
-                calcTotalItemSize(boundary, null, item.getHeaders());
 
-            response = streamToReceiver(stream, context);
+            if (batch) {
+              // The length of a part isn't known until it is read.
+              context.dataRead = 0;
+              context.dataContentLength = -1;
+            }
+            else {
+              context.dataContentLength -=
+                  calcTotalItemSize(boundary, null, item.getHeaders());
+            }
+
+            response = receive(stream, context);
+
+            if (batch) {
+              // The fields sent so far only apply to this file.
+              batchResponses.add(response);
+              context.params.clear();
+            }
+
+            if (context.aborted) {
+              // Don't read (or skip) the rest of the request.
+              break;
+            }
           }
         }
       }
 
-      // If no custom response was set, create a default.
-      if (response == null) {
-        response = new Html5StreamVariable.UploadResponse(
-            HttpServletResponse.SC_OK, "text/plain", "Upload Successful");
+      if (batch) {
+        response = toBatchResponse(batchResponses);
       }
 
-      // Write the response to the client.
-      try (Writer writer = context.response.getWriter()) {
-        context.response.setStatus(response.getStatusCode());
-        context.response.setContentType(response.getContentType());
-        writer.append(response.getContent());
-      }
+      writeResponse(context, response);
     }
     catch (IOException | FileUploadException | UploadException e) {
-      runInLock(context.session, new Runnable() {
-        @Override
-        public void run() {
-          context.session.getCommunicationManager()
-              .handleConnectorRelatedException(context.source, e);
-        }
-      });
+      handleRequestException(context, response, e);
+    }
+  }
+
+  /**
+   * Combines the JSON responses of the files in a batch request into a single
+   * JSON array response. Files without a response are represented by null.
+   *
+   * @param responses the responses of the files in the order of the parts
+   *
+   * @return the combined response
+   */
+  private static Html5StreamVariable.UploadResponse toBatchResponse(
+      List<Html5StreamVariable.UploadResponse> responses) {
+
+    StringBuilder content = new StringBuilder("[");
+    for (Html5StreamVariable.UploadResponse response : responses) {
+      if (content.length() > 1) {
+        content.append(",");
+      }
+      content.append(response == null ? "null" : response.getContent());
+    }
+    content.append("]");
+
+    return new Html5StreamVariable.UploadResponse(HttpServletResponse.SC_OK,
+        "text/plain", content.toString());
+  }
+
+  /**
+   * Handles an exception raised while reading the request or writing the
+   * response. If the upload was aborted, the response is still written so the
+   * client doesn't retry. Otherwise the exception is relayed to the
+   * communication manager of the session.
+   *
+   * @param context the upload context
+   * @param response the response set by the stream variable or null
+   * @param e the exception raised
+   */
+  private void handleRequestException(final UploadContext context,
+      Html5StreamVariable.UploadResponse response, final Exception e) {
+    if (context.aborted) {
+      // The request input was closed so the stream can't be closed
+      // cleanly. Respond anyway so the client doesn't retry.
+      try {
+        writeResponse(context, response);
+      }
+      catch (IOException ex) {
+        // Ignore. The client may have already gone away.
+      }
+      return;
+    }
+
+    if (context.session == null) {
+      // There is no session to report the error to so the client gets a
+      // failure response instead.
+      try {
+        writeResponse(context, new Html5StreamVariable.UploadResponse(
+            HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "text/plain",
+            "Upload Failed"));
+      }
+      catch (IOException ex) {
+        // Ignore. The client may have already gone away.
+      }
+      return;
+    }
+
+    runInLock(context.session, new Runnable() {
+      @Override
+      public void run() {
+        context.session.getCommunicationManager()
+            .handleConnectorRelatedException(context.source, e);
+      }
+    });
+  }
+
+  /**
+   * Writes the response to the client. If no custom response was set, a
+   * default response is written. If the upload was aborted, the connection is
+   * closed after the response so the client stops sending data.
+   *
+   * @param context the upload context
+   * @param response the response set by the stream variable or null
+   *
+   * @throws IOException if the response cannot be written
+   */
+  private void writeResponse(UploadContext context,
+      Html5StreamVariable.UploadResponse response) throws IOException {
+
+    // If no custom response was set, create a default.
+    if (response == null) {
+      response = new Html5StreamVariable.UploadResponse(
+          HttpServletResponse.SC_OK, "text/plain", "Upload Successful");
+    }
+
+    if (context.aborted) {
+      context.response.setHeader("Connection", "close");
+    }
+
+    // Write the response to the client.
+    try (Writer writer = context.response.getWriter()) {
+      context.response.setStatus(response.getStatusCode());
+      context.response.setContentType(response.getContentType());
+      writer.append(response.getContent());
     }
   }
 
@@ -300,18 +605,212 @@ public class Html5FileUploadHandler implements RequestHandler {
   /**
    * Runs the given task in the session after acquiring the session lock. This
    * is a thin wrapper over {@link VaadinSession#accessSynchronously(java.lang.Runnable)
-   * } to support different strategies.
+   * } to support different strategies. If there is no session (i.e. a
+   * session-free stream variable such as the
+   * {@link DirectIngestStreamVariable}), the task is run directly.
    *
-   * @param session the session to lock
+   * @param session the session to lock or null
    * @param task the task to run
    */
   private static void runInLock(VaadinSession session, Runnable task) {
+    if (session == null) {
+      task.run();
+      return;
+    }
+
     // The original Vaadin file upload handler does session locking
     // manually using VaadinSession#lock(); however it seems to be safer 
     // (although maybe a bit slower) to use the new accessSynchronously method.
     session.accessSynchronously(task);
   }
 
+  /**
+   * Delivers the data of an upload received outside of an HTTP request (for
+   * example over an {@link Html5UploadChannel}) to the given stream variable.
+   * The stream variable gets the same events as for an HTTP upload and the
+   * parameters are only taken from the given map.
+   *
+   * @param session the session of the stream variable
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   * @param filename the name of the file
+   * @param contentType the mime-type of the file
+   * @param params the upload parameters
+   * @param in the input stream to read from
+   * @param length the length of the data in the input stream
+   *
+   * @return the response if set by the stream variable or null
+   * @throws IOException if the data cannot be read
+   * @throws UploadException if an error occurs while streaming the data
+   */
+  Html5StreamVariable.UploadResponse receive(VaadinSession session,
+      ClientConnector source, StreamVariable streamVariable, String filename,
+      String contentType, Map<String, String> params, InputStream in,
+      int length) throws IOException, UploadException {
+
+    UploadContext context = new UploadContext();
+    context.requestStartTime = System.nanoTime();
+    context.session = session;
+    context.source = source;
+    context.streamVariable = streamVariable;
+    context.filename = Streams.removePath(filename);
+    context.contentType = contentType;
+    context.contentLength = length;
+    context.dataContentLength = length;
+    context.params = new HashMap<>(params.size() * 2);
+
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      context.addParam(param.getKey(), param.getValue());
+    }
+
+    return receive(in, context);
+  }
+
+  /**
+   * Delivers the data in the input stream to the receiver using the fast path
+   * for tiny uploads if the length of the data is known to be small enough or
+   * by streaming otherwise.
+   *
+   * @param in the input stream to read from
+   * @param context the current upload context
+   *
+   * @return the response if set by the stream variable or null
+   * @throws IOException if the data cannot be read
+   * @throws UploadException if an error occurs while streaming the data
+   */
+  private Html5StreamVariable.UploadResponse receive(InputStream in,
+      UploadContext context) throws IOException, UploadException {
+
+    if (in != null && context.dataContentLength >= 0
+        && context.dataContentLength <= TINY_UPLOAD_SIZE) {
+      return receiveTiny(in, context);
+    }
+    else {
+      return streamToReceiver(in, context);
+    }
+  }
+
+  /**
+   * Reads all the data in the input stream into a pooled memory buffer and
+   * then delivers it to the receiver in a single session lock, firing the
+   * started and finished events together. Compared to streaming, this avoids
+   * locking the session several times and the progress events for uploads
+   * that are received almost instantly. If the data turns out to be larger
+   * than {@link #TINY_UPLOAD_SIZE}, it is streamed instead.
+   *
+   * @param in the input stream to read from
+   * @param context the current upload context including the target stream
+   * variable and session to lock
+   *
+   * @return the response if set by the stream variable or null
+   * @throws IOException if the data cannot be read
+   * @throws UploadException if an error occurs while streaming the data
+   */
+  private Html5StreamVariable.UploadResponse receiveTiny(InputStream in,
+      final UploadContext context) throws IOException, UploadException {
+
+    byte[] buffer = TINY_BUFFERS.poll();
+    if (buffer == null) {
+      buffer = new byte[TINY_UPLOAD_SIZE + 1];
+    }
+
+    try {
+      // Read the data without holding the session lock.
+      int length = 0;
+      int bytesRead;
+      context.transferStartTime = System.nanoTime();
+      while (length < buffer.length && (bytesRead = in.read(buffer, length,
+          buffer.length - length)) > 0) {
+        length += bytesRead;
+      }
+      context.transferEndTime = System.nanoTime();
+
+      if (length > TINY_UPLOAD_SIZE) {
+        // Not so tiny after all. Stream the data read so far followed by the
+        // rest of the input.
+        return streamToReceiver(new SequenceInputStream(
+            new ByteArrayInputStream(Arrays.copyOf(buffer, length)), in),
+            context);
+      }
+
+      // Verify the checksum before any data is handed to the receiver.
+      final String expectedChecksum = context.getParam(CHECKSUM_PARAM);
+      String checksum = null;
+      if (expectedChecksum != null) {
+        MessageDigest digest = TreeHash.newDigest();
+        digest.update(buffer, 0, length);
+        checksum = Streams.toHex(digest.digest());
+      }
+
+      context.dataRead = length;
+      return deliverTiny(context, buffer, length, expectedChecksum, checksum);
+    }
+    finally {
+      TINY_BUFFERS.offer(buffer);
+    }
+  }
+
+  /**
+   * Delivers the data of a tiny upload to the receiver in a single session
+   * lock. The stream variable gets the started event, the output stream is
+   * written and closed, and the stream variable gets the finished event or
+   * the failed event if anything goes wrong.
+   *
+   * @param context the current upload context
+   * @param data the buffer containing the data
+   * @param length the length of the data in the buffer
+   * @param expectedChecksum the checksum sent by the client or null
+   * @param checksum the checksum of the data or null
+   *
+   * @return the response if set by the stream variable or null
+   */
+  private Html5StreamVariable.UploadResponse deliverTiny(
+      final UploadContext context, final byte[] data, final int length,
+      final String expectedChecksum, final String checksum) {
+
+    final StreamVariable streamVariable = context.streamVariable;
+    final Html5StreamVariable.UploadResponse[] response =
+        new Html5StreamVariable.UploadResponse[1];
+
+    runInLock(context.session, new Runnable() {
+      @Override
+      public void run() {
+        OutputStream out = null;
+        try {
+          streamVariable.streamingStarted(new StreamingStartEventImpl(context));
+          out = streamVariable.getOutputStream();
+
+          if (out == null) {
+            // No output stream to write to.
+            throw new NoOutputStreamException();
+          }
+
+          if (checksum != null && !checksum.equalsIgnoreCase(
+              expectedChecksum)) {
+            throw new ChecksumMismatchException(expectedChecksum, checksum);
+          }
+
+          out.write(data, 0, length);
+          out.close();
+
+          StreamingEndEventImpl event = new StreamingEndEventImpl(context,
+              checksum);
+          streamVariable.streamingFinished(event);
+          response[0] = event.getResponse();
+        }
+        catch (Exception e) {
+          Streams.tryClose(out);
+          StreamingErrorEventImpl event = new StreamingErrorEventImpl(context,
+              e);
+          streamVariable.streamingFailed(event);
+          response[0] = event.getResponse();
+        }
+      }
+    });
+
+    return response[0];
+  }
+
   /**
    * Streams all the data in the input stream to the receiver's output stream.
    * Proper session locking will be done so the streaming events are dispatched
@@ -336,6 +835,7 @@ public class Html5FileUploadHandler implements RequestHandler {
     OutputStream out = null;
     boolean listenProgress;
 
+    ACTIVE_UPLOADS.put(streamVariable, context);
     try {
       // Fire the started event and determine if the receiver wants to
       // be notified of progress events.
@@ -365,14 +865,25 @@ public class Html5FileUploadHandler implements RequestHandler {
         throw new NoInputStreamException();
       }
 
+      // If the client sent a checksum, digest the data as it is streamed so
+      // it can be verified before the chunk is committed.
+      final String expectedChecksum = context.getParam(CHECKSUM_PARAM);
+      final MessageDigest digest = expectedChecksum == null ? null :
+          TreeHash.newDigest();
+
       // Stream the data using a simple memory buffer.
       final byte buffer[] = new byte[Streams.IO_BUFFER_SIZE];
       int bytesRead;
       long lastProgressEventTime = 0;
-      while ((bytesRead = in.read(buffer)) > 0) {
+      context.transferStartTime = System.nanoTime();
+      while (!context.aborted && (bytesRead = in.read(buffer)) > 0) {
         out.write(buffer, 0, bytesRead);
         context.dataRead += bytesRead;
 
+        if (digest != null) {
+          digest.update(buffer, 0, bytesRead);
+        }
+
         // To avoid excessive session locking and event storms,
         // events are sent in intervals, or at the end of the file.
         long now = System.currentTimeMillis();
@@ -399,13 +910,31 @@ public class Html5FileUploadHandler implements RequestHandler {
         // Check if the server side interrupted the upload. If so, we should
         // attempt to abort the receiving process as soon as possible.
         if (streamVariable.isInterrupted()) {
-          throw new FileUploadHandler.UploadInterruptedException();
+          context.aborted = true;
+        }
+      }
+
+      context.transferEndTime = System.nanoTime();
+
+      if (context.aborted) {
+        throw new FileUploadHandler.UploadInterruptedException();
+      }
+
+      // Reject the data if it was corrupted on the way. The stream variable
+      // will get a failed event and the client can retry the chunk.
+      String checksum = null;
+      if (digest != null) {
+        checksum = Streams.toHex(digest.digest());
+
+        if (!checksum.equalsIgnoreCase(expectedChecksum)) {
+          throw new ChecksumMismatchException(expectedChecksum, checksum);
         }
       }
 
       // Upload successful. Fire the end event.
       out.close();
-      final StreamingEndEventImpl event = new StreamingEndEventImpl(context);
+      final StreamingEndEventImpl event = new StreamingEndEventImpl(context,
+          checksum);
 
       runInLock(session, new Runnable() {
         @Override
@@ -425,7 +954,8 @@ public class Html5FileUploadHandler implements RequestHandler {
       // not a terminal level error like all other exception.
       Streams.tryClose(out);
       final StreamingErrorEventImpl event =
-          new StreamingErrorEventImpl(context, e);
+          new StreamingErrorEventImpl(context, context.aborted ?
+              new FileUploadHandler.UploadInterruptedException() : e);
 
       runInLock(session, new Runnable() {
         @Override
@@ -436,6 +966,9 @@ public class Html5FileUploadHandler implements RequestHandler {
 
       response = event.getResponse();
     }
+    finally {
+      ACTIVE_UPLOADS.remove(streamVariable, context);
+    }
 //    catch (Exception e) {
 //      // Download interrupted by an unexpected error. Replay the error to
 //      // the stream variable and raise an exception.
@@ -511,6 +1044,10 @@ public class Html5FileUploadHandler implements RequestHandler {
     public StreamVariable streamVariable;
     public ClientConnector source;
     public Map<String, Collection<String>> params;
+    public volatile boolean aborted;
+    public long requestStartTime;
+    public long transferStartTime;
+    public long transferEndTime;
 
     /**
      * Returns the value of the given parameter by first searching the request
@@ -522,7 +1059,7 @@ public class Html5FileUploadHandler implements RequestHandler {
      * @return the parameter values or null if the parameter isn't found
      */
     public Collection<String> getParams(String name) {
-      if (request.getParameterMap().containsKey(name)) {
+      if (request != null && request.getParameterMap().containsKey(name)) {
         return Arrays.asList(request.getParameterMap().get(name));
       }
       else {
@@ -530,6 +1067,25 @@ public class Html5FileUploadHandler implements RequestHandler {
       }
     }
 
+    /**
+     * Returns the first value of the given parameter using the same search
+     * order as {@link #getParams(java.lang.String)}.
+     *
+     * @param name the name of the parameter to get
+     *
+     * @return the first parameter value or null if the parameter isn't found
+     */
+    public String getParam(String name) {
+      Collection<String> values = getParams(name);
+
+      if (values == null || values.isEmpty()) {
+        return null;
+      }
+      else {
+        return values.iterator().next();
+      }
+    }
+
 //    /**
 //     * Adds all the parameters defined in the map to the {@link #params} field.
 //     *
@@ -605,6 +1161,18 @@ public class Html5FileUploadHandler implements RequestHandler {
       return context.dataRead;
     }
 
+    /**
+     * Returns the first parameter value with the given name or null if the
+     * parameter isn't defined.
+     *
+     * @param name the name of the parameter
+     *
+     * @return the first parameter value or null
+     */
+    public String getParameterValue(String name) {
+      return context.getParam(name);
+    }
+
   }
 
   /**
@@ -671,6 +1239,7 @@ public class Html5FileUploadHandler implements RequestHandler {
   private static class StreamingEndEventImpl extends AbstractStreamingEvent
       implements Html5StreamVariable.Html5StreamingEndEvent {
 
+    private final String checksum;
     private Html5StreamVariable.UploadResponse response;
 
     /**
@@ -678,9 +1247,28 @@ public class Html5FileUploadHandler implements RequestHandler {
      * information.
      *
      * @param context the upload context
+     * @param checksum the verified checksum of the data or null
      */
-    private StreamingEndEventImpl(UploadContext context) {
+    private StreamingEndEventImpl(UploadContext context, String checksum) {
       super(context);
+      this.checksum = checksum;
+    }
+
+    @Override
+    public String getChecksum() {
+      return checksum;
+    }
+
+    @Override
+    public long getRequestTime() {
+      return TimeUnit.NANOSECONDS.toMillis(context.transferEndTime
+          - context.requestStartTime);
+    }
+
+    @Override
+    public long getTransferTime() {
+      return TimeUnit.NANOSECONDS.toMillis(context.transferEndTime
+          - context.transferStartTime);
     }
 
     @Override
@@ -723,17 +1311,5 @@ public class Html5FileUploadHandler implements RequestHandler {
     public Collection<String> getParameterValues(String name) {
       return context.getParams(name);
     }
-
-    @Override
-    public String getParameterValue(String name) {
-      Collection<String> values = getParameterValues(name);
-
-      if (values == null || values.isEmpty()) {
-        return null;
-      }
-      else {
-        return values.iterator().next();
-      }
-    }
   }
 }
@@ -0,0 +1,172 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.IOException;
+import java.util.*;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.vaadin.server.VaadinServletRequest;
+import com.vaadin.server.VaadinServletResponse;
+
+/**
+ * <p>
+ * A servlet that receives the upload requests sent to an
+ * {@link Html5IngestTarget} on a separate ingest origin. The servlet must be
+ * mapped to {@link Html5IngestTarget#ENDPOINT_PATH}/* in the web application
+ * serving the ingest origin. The requests are authenticated by the signed
+ * token in the URL and delivered to the same {@link Html5FileUploadHandler}
+ * pipeline as uploads through the Vaadin servlet. The requests to a
+ * session-free target never touch the Vaadin session.
+ * </p>
+ * <p>
+ * The servlet answers CORS preflight requests and adds the CORS headers to
+ * the upload responses for the origins configured with the "allowedOrigins"
+ * init parameter, a comma separated list of origins (e.g.
+ * https://www.example.com) or "*" for any origin. Credentials are never
+ * allowed because the token replaces the session cookie. The preflight
+ * response is cached by the browser for the "preflightMaxAge" init parameter
+ * in seconds (one day by default) so chunks don't pay for a preflight each.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5IngestServlet extends HttpServlet {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The name of the init parameter with the allowed origins.
+   */
+  public static final String ALLOWED_ORIGINS_PARAM = "allowedOrigins";
+
+  /**
+   * The name of the init parameter with the preflight cache time in seconds.
+   */
+  public static final String PREFLIGHT_MAX_AGE_PARAM = "preflightMaxAge";
+
+  /**
+   * The default preflight cache time in seconds.
+   */
+  private static final int DEFAULT_PREFLIGHT_MAX_AGE = 24 * 60 * 60;
+
+  /**
+   * The headers the clients may send by default.
+   */
+  private static final String ALLOWED_HEADERS = "Content-Type, "
+      + "X-Requested-With, Cache-Control, "
+      + Html5FileUploadHandler.MIME_TYPE_HEADER + ", "
+      + Html5FileUploadHandler.FILE_NAME_HEADER;
+
+  /**
+   * The handler used to deliver the requests to the stream variables.
+   */
+  private final Html5FileUploadHandler handler = new Html5FileUploadHandler();
+
+  private final Set<String> allowedOrigins = new HashSet<>();
+  private boolean anyOrigin;
+  private int preflightMaxAge = DEFAULT_PREFLIGHT_MAX_AGE;
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+
+    String param = getInitParameter(ALLOWED_ORIGINS_PARAM);
+    if (param != null) {
+      for (String origin : param.split(",")) {
+        origin = origin.trim();
+        if (origin.equals("*")) {
+          anyOrigin = true;
+        }
+        else if (!origin.isEmpty()) {
+          allowedOrigins.add(origin);
+        }
+      }
+    }
+
+    param = getInitParameter(PREFLIGHT_MAX_AGE_PARAM);
+    if (param != null) {
+      preflightMaxAge = Integer.parseInt(param.trim());
+    }
+  }
+
+  @Override
+  protected void doOptions(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+
+    if (!addCorsHeaders(req, resp)) {
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    // Echo the requested headers because the upload libraries add their own.
+    String headers = req.getHeader("Access-Control-Request-Headers");
+    resp.setHeader("Access-Control-Allow-Methods", "POST, OPTIONS");
+    resp.setHeader("Access-Control-Allow-Headers", headers != null ? headers :
+        ALLOWED_HEADERS);
+    resp.setHeader("Access-Control-Max-Age", String.valueOf(preflightMaxAge));
+    resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+
+    if (!addCorsHeaders(req, resp)) {
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    // Expected path: /[TOKEN]
+    String token = req.getPathInfo();
+    if (token != null && token.startsWith("/")) {
+      token = token.substring(1);
+    }
+
+    Html5IngestTarget target = Html5IngestTarget.verify(token);
+    if (target == null) {
+      // The client treats this like any other failed chunk.
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Invalid or expired upload token.");
+      return;
+    }
+
+    // The handler only uses the request and response wrappers to access the
+    // servlet request so there is no Vaadin service on the ingest origin.
+    handler.handleRequest(target.getSession(), target.getSource(), target.
+        getStreamVariable(), new VaadinServletRequest(req, null),
+        new VaadinServletResponse(resp, null));
+  }
+
+  /**
+   * Adds the CORS headers to the response if the request is cross-origin
+   * and the origin is allowed. Same origin requests (without an origin
+   * header) are always allowed.
+   *
+   * @param req the request
+   * @param resp the response
+   *
+   * @return true if the request is allowed
+   */
+  private boolean addCorsHeaders(HttpServletRequest req,
+      HttpServletResponse resp) {
+
+    String origin = req.getHeader("Origin");
+    if (origin == null) {
+      return true;
+    }
+
+    if (!anyOrigin && !allowedOrigins.contains(origin)) {
+      return false;
+    }
+
+    resp.setHeader("Access-Control-Allow-Origin", origin);
+    resp.addHeader("Vary", "Origin");
+    return true;
+  }
+}
@@ -0,0 +1,393 @@
+package org.mpilone.vaadin.upload;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * <p>
+ * A target that receives the upload requests of a component on a separate
+ * ingest origin (e.g. https://upload.example.com) rather than through the
+ * Vaadin servlet of the application. Upload traffic can then be routed to
+ * dedicated ingest nodes by the load balancer and the browser uses a separate
+ * per-host connection budget for it so uploads don't compete with UI requests.
+ * </p>
+ * <p>
+ * The browser doesn't send the session cookie on cross-origin requests so the
+ * target is identified by a signed, short-lived token in the URL instead. The
+ * token contains the random ID of the target and an expiry time signed with an
+ * HMAC key. The requests are received by the {@link Html5IngestServlet} which
+ * must be mapped to {@link #ENDPOINT_PATH} on the ingest origin.
+ * </p>
+ * <p>
+ * A session-free target (see {@link #openSessionFree openSessionFree}) takes
+ * the Vaadin request pipeline and the session lock off the data path
+ * altogether. Its stream variable is called directly by the request threads
+ * and notifies the component asynchronously.
+ * </p>
+ * <p>
+ * The targets are registered in memory so the ingest origin must route the
+ * requests to the node that holds the session of the component. All nodes that
+ * verify tokens must share the signing key set with
+ * {@link #setSigningKey(byte[])}; by default a random key is generated for the
+ * node.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5IngestTarget {
+
+  /**
+   * The path, relative to the servlet context, at which the ingest servlet
+   * must be mapped. The token of the target is appended as the last path
+   * segment.
+   */
+  public static final String ENDPOINT_PATH = "/HTML5_FILE_INGEST";
+
+  /**
+   * The default lifetime of a token in milliseconds.
+   */
+  public static final long DEFAULT_TOKEN_LIFETIME = TimeUnit.MINUTES.toMillis(
+      30);
+
+  /**
+   * The algorithm used to sign the tokens.
+   */
+  private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+
+  /**
+   * The open targets by ID.
+   */
+  private static final Map<String, Html5IngestTarget> TARGETS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The source of the random target IDs and the default signing key.
+   */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * The key used to sign the tokens.
+   */
+  private static volatile SecretKeySpec signingKey;
+
+  static {
+    byte[] key = new byte[32];
+    RANDOM.nextBytes(key);
+    signingKey = new SecretKeySpec(key, SIGNATURE_ALGORITHM);
+  }
+
+  /**
+   * The lifetime of new tokens in milliseconds.
+   */
+  private static volatile long tokenLifetime = DEFAULT_TOKEN_LIFETIME;
+
+  private final String id;
+  private final String origin;
+  private final String endpointUrl;
+  private final VaadinSession session;
+  private final ClientConnector source;
+  private final StreamVariable streamVariable;
+  private volatile String token;
+  private volatile long tokenIssued;
+
+  /**
+   * Constructs the target.
+   *
+   * @param id the random ID of the target
+   * @param origin the base URL of the ingest origin
+   * @param session the session of the stream variable
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   */
+  private Html5IngestTarget(String id, String origin, VaadinSession session,
+      ClientConnector source, StreamVariable streamVariable) {
+    this.id = id;
+    this.origin = origin;
+    this.endpointUrl = (origin.endsWith("/") ? origin.substring(0, origin.
+        length() - 1) : origin) + ENDPOINT_PATH + "/";
+    this.session = session;
+    this.source = source;
+    this.streamVariable = streamVariable;
+  }
+
+  /**
+   * Sets the key used to sign and verify the tokens. All the nodes that issue
+   * or verify tokens must use the same key. The key should be at least 32
+   * random bytes.
+   *
+   * @param key the signing key
+   */
+  public static void setSigningKey(byte[] key) {
+    if (key == null || key.length < 16) {
+      throw new IllegalArgumentException(
+          "The signing key must be at least 16 bytes.");
+    }
+    signingKey = new SecretKeySpec(key.clone(), SIGNATURE_ALGORITHM);
+  }
+
+  /**
+   * Sets the lifetime of new tokens. The token of a target is renewed once
+   * half of the lifetime has passed so the lifetime should be at least twice
+   * as long as the longest expected request. The default is
+   * {@link #DEFAULT_TOKEN_LIFETIME}.
+   *
+   * @param lifetime the lifetime in milliseconds
+   */
+  public static void setTokenLifetime(long lifetime) {
+    if (lifetime <= 0) {
+      throw new IllegalArgumentException("Lifetime must be positive.");
+    }
+    tokenLifetime = lifetime;
+  }
+
+  /**
+   * Returns the lifetime of new tokens in milliseconds.
+   *
+   * @return the token lifetime
+   */
+  public static long getTokenLifetime() {
+    return tokenLifetime;
+  }
+
+  /**
+   * Opens a target for the given stream variable on the given ingest origin.
+   * The session of the source connector must be locked. The target must be
+   * closed when the source is detached.
+   *
+   * @param origin the base URL of the ingest origin including the context
+   * path (e.g. https://upload.example.com/app)
+   * @param source the attached connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   *
+   * @return the new target
+   */
+  public static Html5IngestTarget open(String origin, ClientConnector source,
+      StreamVariable streamVariable) {
+    UI ui = source.getUI();
+    if (ui == null) {
+      throw new IllegalStateException(
+          "The connector must be attached to open a target.");
+    }
+
+    return open(origin, ui.getSession(), source, streamVariable);
+  }
+
+  /**
+   * Opens a session-free target for the given stream variable on the given
+   * ingest origin. The requests to the target never touch the Vaadin session
+   * so the stream variable is called from the request threads without the
+   * session lock and must notify the source asynchronously (e.g. the
+   * {@link DirectIngestStreamVariable}). The target must be closed when the
+   * source is detached.
+   *
+   * @param origin the base URL of the ingest origin including the context
+   * path (e.g. https://upload.example.com/app)
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the thread safe stream variable to receive the data
+   *
+   * @return the new target
+   */
+  public static Html5IngestTarget openSessionFree(String origin,
+      ClientConnector source, StreamVariable streamVariable) {
+    return open(origin, null, source, streamVariable);
+  }
+
+  /**
+   * Opens a target for the given stream variable and registers it.
+   *
+   * @param origin the base URL of the ingest origin
+   * @param session the session of the stream variable or null
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   *
+   * @return the new target
+   */
+  private static Html5IngestTarget open(String origin, VaadinSession session,
+      ClientConnector source, StreamVariable streamVariable) {
+    byte[] bytes = new byte[16];
+    RANDOM.nextBytes(bytes);
+    String id = Streams.toHex(bytes);
+
+    Html5IngestTarget target = new Html5IngestTarget(id, origin, session,
+        source, streamVariable);
+    target.renewToken();
+    TARGETS.put(id, target);
+
+    return target;
+  }
+
+  /**
+   * Returns the open target identified by the given token if the signature of
+   * the token is valid and the token hasn't expired.
+   *
+   * @param token the token from the request URL
+   *
+   * @return the target or null if the token is invalid, expired, or the
+   * target is closed
+   */
+  public static Html5IngestTarget verify(String token) {
+    String id = verifyToken(token);
+    return id == null ? null : TARGETS.get(id);
+  }
+
+  /**
+   * Verifies the signature and expiry of the given token and returns the
+   * subject signed in the token.
+   *
+   * @param token the token to verify
+   *
+   * @return the subject of the token or null if the token is invalid or
+   * expired
+   */
+  static String verifyToken(String token) {
+    if (token == null) {
+      return null;
+    }
+
+    // Token format: [SUBJECT].[EXPIRES].[SIGNATURE]
+    int sigPos = token.lastIndexOf('.');
+    int expiresPos = token.lastIndexOf('.', sigPos - 1);
+    if (sigPos <= 0 || expiresPos <= 0) {
+      return null;
+    }
+
+    String payload = token.substring(0, sigPos);
+    byte[] signature;
+    long expires;
+    try {
+      signature = Streams.fromHex(token.substring(sigPos + 1));
+      expires = Long.parseLong(token.substring(expiresPos + 1, sigPos));
+    }
+    catch (IllegalArgumentException ex) {
+      return null;
+    }
+
+    if (!MessageDigest.isEqual(sign(payload), signature)
+        || expires < System.currentTimeMillis()) {
+      return null;
+    }
+
+    return token.substring(0, expiresPos);
+  }
+
+  /**
+   * Creates a new token for the given subject that expires after the current
+   * token lifetime.
+   *
+   * @param subject the subject of the token which must not contain the
+   * characters that need escaping in a URL path
+   *
+   * @return the signed token
+   */
+  static String createToken(String subject) {
+    String payload = subject + "." + (System.currentTimeMillis()
+        + tokenLifetime);
+    return payload + "." + Streams.toHex(sign(payload));
+  }
+
+  /**
+   * Signs the given payload with the signing key.
+   *
+   * @param payload the payload to sign
+   *
+   * @return the signature
+   */
+  private static byte[] sign(String payload) {
+    try {
+      Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+      mac.init(signingKey);
+      return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("Unable to sign the ingest token.", ex);
+    }
+  }
+
+  /**
+   * Closes the target. Requests to a closed target are rejected even if the
+   * token hasn't expired.
+   */
+  public void close() {
+    TARGETS.remove(id, this);
+  }
+
+  /**
+   * Returns true if the target is open.
+   *
+   * @return true if the target is open
+   */
+  public boolean isOpen() {
+    return TARGETS.get(id) == this;
+  }
+
+  /**
+   * Returns the URL of the target on the ingest origin including the current
+   * token. The token is renewed first if half of its lifetime has passed so
+   * the URL should be sent to the client again when it changes.
+   *
+   * @return the URL of the target
+   */
+  public String getUrl() {
+    if (System.currentTimeMillis() - tokenIssued > tokenLifetime / 2) {
+      renewToken();
+    }
+    return endpointUrl + token;
+  }
+
+  /**
+   * Issues a new token for the target.
+   */
+  private void renewToken() {
+    tokenIssued = System.currentTimeMillis();
+    token = createToken(id);
+  }
+
+  /**
+   * Returns the base URL of the ingest origin.
+   *
+   * @return the ingest origin
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * Returns the session of the stream variable.
+   *
+   * @return the session or null if the target is session-free
+   */
+  public VaadinSession getSession() {
+    return session;
+  }
+
+  /**
+   * Returns the connector that owns the stream variable.
+   *
+   * @return the source connector
+   */
+  public ClientConnector getSource() {
+    return source;
+  }
+
+  /**
+   * Returns the stream variable that receives the data.
+   *
+   * @return the stream variable
+   */
+  public StreamVariable getStreamVariable() {
+    return streamVariable;
+  }
+}
@@ -0,0 +1,494 @@
+package org.mpilone.vaadin.upload;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An S3 compatible object store that the browser uploads files to directly
+ * with a multipart upload. The server starts the multipart upload and signs a
+ * presigned URL for each part which is sent to the client over RPC. The client
+ * PUTs the parts to the bucket in parallel and reports the ETag of each part
+ * back to the server which completes the upload and verifies the size of the
+ * object before the upload succeeds. The file data never passes through the
+ * application server.
+ * </p>
+ * <p>
+ * The bucket must allow cross-origin PUT requests from the application's
+ * origin and expose the ETag header to the browser in its CORS
+ * configuration. The incomplete parts of failed uploads that could not be
+ * aborted should be removed with a lifecycle rule on the bucket.
+ * </p>
+ * <p>
+ * The {@link ObjectStoreClient} holds the secret access key and is never
+ * serialized with the session. A store that must survive session
+ * serialization or replication is constructed with a {@link ClientProvider}
+ * that looks the client up again, e.g. from a static registry or the
+ * application configuration.
+ * </p>
+ * <p>
+ * The upload components never call the bucket while the session is locked.
+ * Starting, completing and aborting an upload run on the
+ * {@link #getExecutor() executor} of the store and the result is delivered
+ * to the component with {@link com.vaadin.ui.UI#access(java.lang.Runnable)}.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5ObjectStore implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default size in bytes of the parts.
+   */
+  public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The default number of seconds a presigned part URL is valid.
+   */
+  public static final int DEFAULT_URL_EXPIRY = 15 * 60;
+
+  /**
+   * The default number of part URLs signed at a time.
+   */
+  public static final int DEFAULT_SIGN_BATCH_SIZE = 32;
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      Html5ObjectStore.class);
+
+  /**
+   * The executor shared by the stores that don't provide their own.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR = new ThreadPoolExecutor(
+      8, 8, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "html5-upload-object-store-client");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final ClientProvider clientProvider;
+  private transient volatile ObjectStoreClient client;
+  private transient Executor executor;
+  private String keyPrefix = "";
+  private int partSize = DEFAULT_PART_SIZE;
+  private int urlExpiry = DEFAULT_URL_EXPIRY;
+  private int signBatchSize = DEFAULT_SIGN_BATCH_SIZE;
+
+  /**
+   * Constructs the object store. The client is not serialized so the store
+   * can't reach the bucket after the session was deserialized. Use
+   * {@link #Html5ObjectStore(org.mpilone.vaadin.upload.Html5ObjectStore.ClientProvider)}
+   * if sessions are serialized or replicated.
+   *
+   * @param client the client used to access the bucket
+   */
+  public Html5ObjectStore(ObjectStoreClient client) {
+    this.clientProvider = null;
+    this.client = client;
+  }
+
+  /**
+   * Constructs the object store with a provider that supplies the client
+   * when the store is first used and again after the session was
+   * deserialized.
+   *
+   * @param clientProvider the provider of the client used to access the
+   * bucket
+   */
+  public Html5ObjectStore(ClientProvider clientProvider) {
+    this.clientProvider = clientProvider;
+  }
+
+  /**
+   * Returns the client used to access the bucket.
+   *
+   * @return the client
+   * @throws IllegalStateException if the client is no longer available
+   * because the session was deserialized and there is no provider
+   */
+  public ObjectStoreClient getClient() {
+    ObjectStoreClient result = client;
+    if (result == null && clientProvider != null) {
+      result = client = clientProvider.getClient();
+    }
+    if (result == null) {
+      throw new IllegalStateException("The object store client isn't "
+          + "serialized. Construct the store with a ClientProvider.");
+    }
+    return result;
+  }
+
+  /**
+   * Returns the executor that runs the requests to the bucket on behalf of
+   * the upload components.
+   *
+   * @return the executor
+   */
+  public Executor getExecutor() {
+    return executor == null ? DEFAULT_EXECUTOR : executor;
+  }
+
+  /**
+   * Sets the executor that runs the requests to the bucket on behalf of the
+   * upload components. The default is a pool of 8 daemon threads shared by
+   * all the stores. The executor should not run the tasks on the calling
+   * thread because the caller holds the session lock.
+   *
+   * @param executor the executor or null to use the default
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the prefix of the keys of the uploaded objects.
+   *
+   * @return the key prefix
+   */
+  public String getKeyPrefix() {
+    return keyPrefix;
+  }
+
+  /**
+   * Sets the prefix of the keys of the uploaded objects (e.g. "uploads/").
+   *
+   * @param keyPrefix the key prefix
+   */
+  public void setKeyPrefix(String keyPrefix) {
+    this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+  }
+
+  /**
+   * Returns the size in bytes of the parts.
+   *
+   * @return the part size
+   */
+  public int getPartSize() {
+    return partSize;
+  }
+
+  /**
+   * Sets the size in bytes of the parts. The size must be at least
+   * {@link ObjectStoreClient#MIN_PART_SIZE}. The size is increased for very
+   * large files so the file fits in {@link ObjectStoreClient#MAX_PARTS}
+   * parts. The default is {@link #DEFAULT_PART_SIZE}.
+   *
+   * @param partSize the part size
+   */
+  public void setPartSize(int partSize) {
+    if (partSize < ObjectStoreClient.MIN_PART_SIZE) {
+      throw new IllegalArgumentException(format(
+          "The part size must be at least %d bytes.",
+          ObjectStoreClient.MIN_PART_SIZE));
+    }
+    this.partSize = partSize;
+  }
+
+  /**
+   * Returns the number of seconds a presigned part URL is valid.
+   *
+   * @return the URL expiry
+   */
+  public int getUrlExpiry() {
+    return urlExpiry;
+  }
+
+  /**
+   * Sets the number of seconds a presigned part URL is valid. The URLs are
+   * signed in batches as the upload progresses so the expiry only needs to
+   * cover the upload of a batch. The default is {@link #DEFAULT_URL_EXPIRY}.
+   *
+   * @param urlExpiry the URL expiry
+   */
+  public void setUrlExpiry(int urlExpiry) {
+    this.urlExpiry = urlExpiry;
+  }
+
+  /**
+   * Returns the number of part URLs signed at a time.
+   *
+   * @return the sign batch size
+   */
+  public int getSignBatchSize() {
+    return signBatchSize;
+  }
+
+  /**
+   * Sets the number of part URLs signed at a time. The client requests the
+   * next batch before it runs out of URLs. The default is
+   * {@link #DEFAULT_SIGN_BATCH_SIZE}.
+   *
+   * @param signBatchSize the sign batch size
+   */
+  public void setSignBatchSize(int signBatchSize) {
+    this.signBatchSize = Math.max(1, signBatchSize);
+  }
+
+  /**
+   * Starts the multipart upload of a file.
+   *
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   * @param contentLength the content length in bytes provided by the client
+   *
+   * @return the started upload
+   * @throws IOException if the object store request fails
+   */
+  public Upload begin(String filename, String mimeType, long contentLength)
+      throws IOException {
+    String key = createKey(filename);
+
+    String uploadId = getClient().createMultipartUpload(key, mimeType);
+    log.debug("Started multipart upload {} of {}.", uploadId, key);
+
+    return new Upload(key, uploadId, filename, mimeType, contentLength,
+        getPartSize(contentLength));
+  }
+
+  /**
+   * Returns the size in bytes of the parts of a file with the given length.
+   * This is the configured part size unless the file would need more than
+   * {@link ObjectStoreClient#MAX_PARTS} parts.
+   *
+   * @param contentLength the content length in bytes or -1 if unknown
+   *
+   * @return the part size
+   */
+  public int getPartSize(long contentLength) {
+    if (contentLength <= (long) partSize * ObjectStoreClient.MAX_PARTS) {
+      return partSize;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, (contentLength
+        + ObjectStoreClient.MAX_PARTS - 1) / ObjectStoreClient.MAX_PARTS);
+  }
+
+  /**
+   * Creates the key of the object for an uploaded file. This implementation
+   * returns the key prefix followed by a random UUID and the file name so
+   * uploads never overwrite each other.
+   *
+   * @param filename the name of the file provided by the client
+   *
+   * @return the key of the object
+   */
+  protected String createKey(String filename) {
+    return keyPrefix + UUID.randomUUID() + "/" + filename;
+  }
+
+  /**
+   * A provider of the client of a store. The provider is serialized with
+   * the store instead of the client so the secret access key never becomes
+   * part of the session.
+   */
+  public interface ClientProvider extends Serializable {
+
+    /**
+     * Returns the client used to access the bucket.
+     *
+     * @return the client
+     */
+    ObjectStoreClient getClient();
+  }
+
+  /**
+   * A multipart upload of a single file started with
+   * {@link Html5ObjectStore#begin(java.lang.String, java.lang.String, long)}.
+   */
+  public class Upload implements Serializable {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final String uploadId;
+    private final String filename;
+    private final String mimeType;
+    private final long contentLength;
+    private final int partSize;
+    private final int partCount;
+
+    /**
+     * Constructs the upload.
+     *
+     * @param key the key of the object
+     * @param uploadId the ID of the multipart upload
+     * @param filename the name of the file
+     * @param mimeType the mime-type of the file
+     * @param contentLength the content length in bytes
+     * @param partSize the size in bytes of the parts
+     */
+    private Upload(String key, String uploadId, String filename,
+        String mimeType, long contentLength, int partSize) {
+      this.key = key;
+      this.uploadId = uploadId;
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.contentLength = contentLength;
+      this.partSize = partSize;
+      this.partCount = (int) Math.max(1, (contentLength + partSize - 1)
+          / partSize);
+    }
+
+    /**
+     * Signs the URLs of the next batch of parts.
+     *
+     * @param firstPart the one based number of the first part to sign
+     *
+     * @return the presigned URLs of the parts starting at the first part or
+     * an empty list if there are no more parts
+     */
+    public List<String> signParts(int firstPart) {
+      List<String> urls = new ArrayList<>();
+      for (int part = Math.max(1, firstPart); part <= partCount && urls.size()
+          < signBatchSize; part++) {
+        urls.add(getClient().presignUploadPart(key, uploadId, part,
+            urlExpiry));
+      }
+      return urls;
+    }
+
+    /**
+     * Completes the upload with the ETags reported by the client and
+     * verifies that the object has the expected size. An object that fails
+     * verification is deleted.
+     *
+     * @param etags the ETags of the parts in part number order
+     *
+     * @throws IOException if the upload can't be completed or verified
+     */
+    public void complete(List<String> etags) throws IOException {
+      if (etags == null || etags.size() != partCount) {
+        throw new IOException(format("Expected %d parts for %s but got %d.",
+            partCount, key, etags == null ? 0 : etags.size()));
+      }
+
+      getClient().completeMultipartUpload(key, uploadId, etags);
+
+      long size = getClient().getObjectSize(key);
+      if (size != contentLength) {
+        try {
+          getClient().deleteObject(key);
+        }
+        catch (IOException ex) {
+          log.warn("Unable to delete unverified object {}.", key, ex);
+        }
+        throw new IOException(format("Expected %d bytes for %s but found %d.",
+            contentLength, key, size));
+      }
+
+      log.debug("Completed multipart upload {} of {}.", uploadId, key);
+    }
+
+    /**
+     * Aborts the upload and discards the uploaded parts. A failure to abort
+     * is logged and otherwise ignored.
+     */
+    public void abort() {
+      try {
+        getClient().abortMultipartUpload(key, uploadId);
+      }
+      catch (IOException | RuntimeException ex) {
+        log.warn("Unable to abort multipart upload {} of {}.", uploadId, key,
+            ex);
+      }
+    }
+
+    /**
+     * Deletes the object of a completed upload. A failure to delete is
+     * logged and otherwise ignored.
+     */
+    public void delete() {
+      try {
+        getClient().deleteObject(key);
+      }
+      catch (IOException | RuntimeException ex) {
+        log.warn("Unable to delete object {}.", key, ex);
+      }
+    }
+
+    /**
+     * Returns the store the upload belongs to.
+     *
+     * @return the object store
+     */
+    public Html5ObjectStore getObjectStore() {
+      return Html5ObjectStore.this;
+    }
+
+    /**
+     * Returns the key of the object in the bucket.
+     *
+     * @return the key
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the file name
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the mime-type provided by the client.
+     *
+     * @return the mime-type
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * Returns the content length in bytes provided by the client.
+     *
+     * @return the content length
+     */
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * Returns the size in bytes of every part except the last one.
+     *
+     * @return the part size
+     */
+    public int getPartSize() {
+      return partSize;
+    }
+
+    /**
+     * Returns the number of parts.
+     *
+     * @return the part count
+     */
+    public int getPartCount() {
+      return partCount;
+    }
+  }
+}
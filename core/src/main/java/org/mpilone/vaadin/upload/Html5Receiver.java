@@ -32,7 +32,8 @@ public interface Html5Receiver extends Upload.Receiver {
    * @param chunkingEnabled true if chunking is enabled in the uploader (but may
    * not be supported by the client)
    * @param chunkContentLength the length of the first chunk detected
-   * @param contentLength the (estimated) total length of the file
+   * @param contentLength the (estimated) total length of the file which is
+   * {@link Integer#MAX_VALUE} for files of 2 GiB or more
    *
    * @return the output stream to write to
    */
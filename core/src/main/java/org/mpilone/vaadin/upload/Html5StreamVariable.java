@@ -119,6 +119,43 @@ public interface Html5StreamVariable extends StreamVariable {
      * @param response the response information
      */
     void setResponse(UploadResponse response);
+
+    /**
+     * Returns the hex encoded {@link TreeHash#ALGORITHM} checksum of the data
+     * received in this request. The checksum is only computed (and verified)
+     * when the client sends a checksum with the request.
+     *
+     * @return the checksum or null if the client did not send one
+     */
+    String getChecksum();
+
+    /**
+     * Returns the time in milliseconds from the start of the request to the
+     * end of the data. The difference to the transfer time is the per-request
+     * overhead such as parsing and session locking.
+     *
+     * @return the request time
+     */
+    long getRequestTime();
+
+    /**
+     * Returns the time in milliseconds spent reading the data of this
+     * request.
+     *
+     * @return the transfer time
+     */
+    long getTransferTime();
+
+    /**
+     * Returns the first parameter value with the given name or null if the
+     * parameter isn't defined. Concurrent requests to the same stream variable
+     * (e.g. parallel chunks) use the parameters to tell the events apart.
+     *
+     * @param name the name of the parameter
+     *
+     * @return the first parameter value or null
+     */
+    String getParameterValue(String name);
   }
 
   /**
@@ -137,5 +174,15 @@ public interface Html5StreamVariable extends StreamVariable {
      * @param response the response information
      */
     void setResponse(UploadResponse response);
+
+    /**
+     * Returns the first parameter value with the given name or null if the
+     * parameter isn't defined.
+     *
+     * @param name the name of the parameter
+     *
+     * @return the first parameter value or null
+     */
+    String getParameterValue(String name);
   }
 }
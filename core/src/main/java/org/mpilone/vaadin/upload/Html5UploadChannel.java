@@ -0,0 +1,356 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.UploadException;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+import elemental.json.Json;
+import elemental.json.JsonObject;
+
+/**
+ * <p>
+ * A channel that receives the chunks of an upload component over a
+ * long-lived, message based connection such as a WebSocket rather than as
+ * separate HTTP requests. This avoids the headers, multipart framing and
+ * request routing of every chunk as well as new connections behind proxies
+ * that don't keep connections alive. The chunks are delivered to the same
+ * {@link Html5StreamVariable} and {@link Html5Receiver} pipeline as HTTP
+ * uploads so the upload components work the same with either transport.
+ * </p>
+ * <p>
+ * The channel is transport neutral. A transport (e.g. a JSR-356 WebSocket
+ * endpoint mapped to {@link #ENDPOINT_PATH}) looks up the channel by the
+ * token in the URL, opens a {@link Connection} and relays the messages:
+ * </p>
+ * <ol>
+ * <li>The server sends the hello message with the flow control window and
+ * the maximum chunk size.</li>
+ * <li>The client sends a text header message with the sequence number, the
+ * file name, the mime-type and the parameters of a chunk followed by a binary
+ * message with the chunk data. At most window chunks may be unacknowledged.
+ * </li>
+ * <li>The server acknowledges every chunk with a text message containing the
+ * sequence number, the length of the data, the HTTP equivalent status code
+ * and the response of the stream variable.</li>
+ * </ol>
+ * <p>
+ * Chunks are not retried on a channel. Once a chunk of a file fails, the
+ * remaining chunks of the file are rejected without being delivered so the
+ * receiver never sees data out of order.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5UploadChannel {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      Html5UploadChannel.class);
+
+  /**
+   * The path, relative to the servlet context, at which the transport
+   * endpoint must be mapped. The token of the channel is appended as the last
+   * path segment.
+   */
+  public static final String ENDPOINT_PATH = "/HTML5_FILE_UPLOAD_WS";
+
+  /**
+   * The default maximum number of unacknowledged chunks.
+   */
+  public static final int DEFAULT_WINDOW = 4;
+
+  /**
+   * The maximum size in bytes of a chunk sent over a channel. Transports must
+   * accept binary messages of at least this size.
+   */
+  public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The open channels by token.
+   */
+  private static final Map<String, Html5UploadChannel> CHANNELS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The source of the random channel tokens.
+   */
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * The handler used to deliver the chunks to the stream variables.
+   */
+  private static final Html5FileUploadHandler HANDLER =
+      new Html5FileUploadHandler();
+
+  private final String token;
+  private final VaadinSession session;
+  private final ClientConnector source;
+  private final StreamVariable streamVariable;
+  private volatile int window = DEFAULT_WINDOW;
+
+  /**
+   * Constructs the channel.
+   *
+   * @param token the random token of the channel
+   * @param session the session of the stream variable
+   * @param source the connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   */
+  private Html5UploadChannel(String token, VaadinSession session,
+      ClientConnector source, StreamVariable streamVariable) {
+    this.token = token;
+    this.session = session;
+    this.source = source;
+    this.streamVariable = streamVariable;
+  }
+
+  /**
+   * Opens a channel for the given stream variable. The session of the source
+   * connector must be locked. The channel must be closed when the source is
+   * detached.
+   *
+   * @param source the attached connector that owns the stream variable
+   * @param streamVariable the stream variable to receive the data
+   *
+   * @return the new channel
+   */
+  public static Html5UploadChannel open(ClientConnector source,
+      StreamVariable streamVariable) {
+    UI ui = source.getUI();
+    if (ui == null) {
+      throw new IllegalStateException(
+          "The connector must be attached to open a channel.");
+    }
+
+    byte[] bytes = new byte[16];
+    RANDOM.nextBytes(bytes);
+    String token = Streams.toHex(bytes);
+
+    Html5UploadChannel channel = new Html5UploadChannel(token, ui.getSession(),
+        source, streamVariable);
+    CHANNELS.put(token, channel);
+
+    return channel;
+  }
+
+  /**
+   * Returns the open channel with the given token.
+   *
+   * @param token the token of the channel
+   *
+   * @return the channel or null if there is no open channel with the token
+   */
+  public static Html5UploadChannel get(String token) {
+    return token == null ? null : CHANNELS.get(token);
+  }
+
+  /**
+   * Closes the channel. Connections to a closed channel reject all chunks.
+   */
+  public void close() {
+    CHANNELS.remove(token, this);
+  }
+
+  /**
+   * Returns true if the channel is open.
+   *
+   * @return true if the channel is open
+   */
+  public boolean isOpen() {
+    return CHANNELS.get(token) == this;
+  }
+
+  /**
+   * Returns the random token that identifies the channel.
+   *
+   * @return the token
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Returns the path of the channel relative to the servlet context.
+   *
+   * @return the path of the channel
+   */
+  public String getPath() {
+    return ENDPOINT_PATH + "/" + token;
+  }
+
+  /**
+   * Returns the maximum number of unacknowledged chunks.
+   *
+   * @return the flow control window
+   */
+  public int getWindow() {
+    return window;
+  }
+
+  /**
+   * Sets the maximum number of unacknowledged chunks. A larger window keeps
+   * more data in flight on high latency links at the cost of buffering. The
+   * default is {@link #DEFAULT_WINDOW}. The window applies to new
+   * connections.
+   *
+   * @param window the flow control window
+   */
+  public void setWindow(int window) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Window must be positive.");
+    }
+    this.window = window;
+  }
+
+  /**
+   * Opens a new connection to the channel. A connection holds the state of a
+   * single transport connection and its messages must be relayed in order.
+   *
+   * @return the new connection
+   */
+  public Connection openConnection() {
+    return new Connection();
+  }
+
+  /**
+   * The state of a single transport connection to the channel.
+   */
+  public class Connection {
+
+    private JsonObject header;
+    private String failedFile;
+
+    /**
+     * Constructs the connection.
+     */
+    private Connection() {
+    }
+
+    /**
+     * Returns the hello message to be sent to the client when the
+     * connection opens.
+     *
+     * @return the hello message
+     */
+    public String getHello() {
+      JsonObject json = Json.createObject();
+      json.put("window", window);
+      json.put("maxChunkSize", MAX_CHUNK_SIZE);
+      return json.toJson();
+    }
+
+    /**
+     * Handles a text header message that describes the next chunk.
+     *
+     * @param message the header message
+     */
+    public void onHeader(String message) {
+      header = Json.parse(message);
+    }
+
+    /**
+     * Handles a binary message with the data of the chunk described by the
+     * last header and returns the acknowledgement to be sent to the client.
+     *
+     * @param data the chunk data
+     *
+     * @return the acknowledgement message
+     */
+    public String onData(ByteBuffer data) {
+      JsonObject chunk = header;
+      header = null;
+
+      if (chunk == null) {
+        throw new IllegalStateException("Chunk data without a header.");
+      }
+
+      String file = chunk.getString("name");
+      int index = (int) chunk.getNumber("index");
+      int length = data.remaining();
+
+      if (index == 0) {
+        failedFile = null;
+      }
+
+      Html5StreamVariable.UploadResponse response;
+      if (!isOpen() || file.equals(failedFile)) {
+        response = null;
+      }
+      else {
+        response = deliver(chunk, data);
+      }
+
+      int status = response == null ? HttpServletResponse.SC_CONFLICT :
+          response.getStatusCode();
+      if (status != HttpServletResponse.SC_OK) {
+        failedFile = file;
+      }
+
+      JsonObject ack = Json.createObject();
+      ack.put("seq", chunk.getNumber("seq"));
+      ack.put("length", length);
+      ack.put("status", status);
+      if (response != null) {
+        ack.put("response", response.getContent());
+      }
+      return ack.toJson();
+    }
+
+    /**
+     * Delivers the data of a chunk to the stream variable.
+     *
+     * @param chunk the header of the chunk
+     * @param data the chunk data
+     *
+     * @return the response of the stream variable or null if the chunk
+     * failed without a response
+     */
+    private Html5StreamVariable.UploadResponse deliver(JsonObject chunk,
+        ByteBuffer data) {
+
+      Map<String, String> params = new HashMap<>();
+      JsonObject json = chunk.getObject("params");
+      if (json != null) {
+        for (String key : json.keys()) {
+          params.put(key, json.get(key).asString());
+        }
+      }
+
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+
+      try {
+        Html5StreamVariable.UploadResponse response = HANDLER.receive(session,
+            source, streamVariable, chunk.getString("name"), chunk.getString(
+                "type"), params, new ByteArrayInputStream(bytes),
+            bytes.length);
+
+        // The HTTP transport responds with a default success message.
+        return response != null ? response :
+            new Html5StreamVariable.UploadResponse(HttpServletResponse.SC_OK,
+                "text/plain", "Upload Successful");
+      }
+      catch (IOException | UploadException | RuntimeException ex) {
+        log.warn("Failed to deliver chunk on upload channel.", ex);
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package org.mpilone.vaadin.upload;
+
+import static java.lang.String.format;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A bounded, asynchronous pipeline that processes uploads after they
+ * succeed. Heavy follow-up work such as virus scanning, thumbnailing or
+ * indexing runs in the stages of the pipeline rather than in a succeeded
+ * listener so it never holds the session lock or a servlet thread. The
+ * pipeline is set on an upload component with
+ * {@link AbstractHtml5Upload#setPipeline(Html5UploadPipeline)} and the
+ * results are delivered back to the component's
+ * {@link AbstractHtml5Upload.PipelineListener}s with
+ * {@link com.vaadin.ui.UI#access(java.lang.Runnable)}.
+ * </p>
+ * <p>
+ * Each stage has its own executor and a bounded capacity. A stage that
+ * finishes an item waits for room in the next stage before it takes more
+ * work so a slow stage pushes back on the stages in front of it. When the
+ * first stage is full, new items are rejected immediately and reported as
+ * failed rather than blocking the request that completed the upload.
+ * {@link #saturationSignal()} returns a signal that lets the
+ * {@link UploadLoadController} park uploads while the pipeline is full. The
+ * pipeline is shared by all the components it is set on and should be
+ * {@link #shutdown() shut down} when the application stops.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class Html5UploadPipeline {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      Html5UploadPipeline.class);
+
+  private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+  /**
+   * Adds a stage to the end of the pipeline. The first stage receives the
+   * {@link AbstractHtml5Upload.SucceededEvent} of the upload and every other
+   * stage receives the result of the stage before it. Stages should be added
+   * before the pipeline is used.
+   *
+   * @param name the name of the stage used for the threads and the metrics
+   * @param processor the processor of the stage
+   * @param threads the number of threads that run the stage
+   * @param queueCapacity the number of items that can wait for a thread
+   *
+   * @return the added stage for access to its metrics
+   */
+  public Stage addStage(String name, Processor<?, ?> processor, int threads,
+      int queueCapacity) {
+    Stage stage = new Stage(name, processor, Math.max(1, threads), Math.max(0,
+        queueCapacity));
+    stages.add(stage);
+    return stage;
+  }
+
+  /**
+   * Returns the stages of the pipeline in processing order.
+   *
+   * @return the stages
+   */
+  public List<Stage> getStages() {
+    return Collections.unmodifiableList(stages);
+  }
+
+  /**
+   * Returns true if the first stage has no room for another item.
+   *
+   * @return true if new items would be rejected
+   */
+  public boolean isSaturated() {
+    return !stages.isEmpty() && stages.get(0).capacity.availablePermits() == 0;
+  }
+
+  /**
+   * Returns a signal that reports pressure while the first stage is full.
+   * The signal can be added to the {@link UploadLoadController} to pause
+   * uploads until the pipeline catches up.
+   *
+   * @return the signal
+   */
+  public UploadLoadController.PressureSignal saturationSignal() {
+    return new UploadLoadController.PressureSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        return isSaturated();
+      }
+
+      @Override
+      public String toString() {
+        return "pipelineSaturation";
+      }
+    };
+  }
+
+  /**
+   * Shuts down the executors of all the stages. Items in progress are
+   * completed but queued items are discarded.
+   */
+  public void shutdown() {
+    for (Stage stage : stages) {
+      stage.executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Submits an item to the first stage of the pipeline. The callback is
+   * called on a pipeline thread when the item leaves the pipeline or
+   * immediately on the calling thread if the item is rejected.
+   *
+   * @param input the input to the first stage
+   * @param callback the callback that receives the result
+   */
+  void submit(Object input, Callback callback) {
+    Item item = new Item(callback);
+
+    if (stages.isEmpty()) {
+      item.complete(input, null);
+    }
+    else if (!stages.get(0).capacity.tryAcquire()) {
+      item.complete(null, new RejectedExecutionException(format(
+          "Pipeline stage %s is full.", stages.get(0).name)));
+    }
+    else {
+      enqueue(0, item, input);
+    }
+  }
+
+  /**
+   * Queues the item on the given stage. The caller must hold a capacity
+   * permit of the stage.
+   *
+   * @param index the index of the stage
+   * @param item the item
+   * @param input the input to the stage
+   */
+  private void enqueue(final int index, final Item item, final Object input) {
+    final Stage stage = stages.get(index);
+    final long queuedTime = System.nanoTime();
+
+    try {
+      stage.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          process(index, item, input, queuedTime);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      stage.capacity.release();
+      item.complete(null, ex);
+    }
+  }
+
+  /**
+   * Runs the stage on the item and moves the result to the next stage.
+   *
+   * @param index the index of the stage
+   * @param item the item
+   * @param input the input to the stage
+   * @param queuedTime the {@link System#nanoTime()} the item was queued
+   */
+  private void process(int index, Item item, Object input, long queuedTime) {
+    Stage stage = stages.get(index);
+    long startTime = System.nanoTime();
+    stage.queueTime.addAndGet(startTime - queuedTime);
+
+    try {
+      Object output;
+      try {
+        output = stage.process(input);
+      }
+      catch (Exception ex) {
+        stage.failedCount.incrementAndGet();
+        log.debug("Pipeline stage {} failed.", stage.name, ex);
+        item.stageTimes.put(stage.name, stage.record(startTime));
+        item.complete(null, ex);
+        return;
+      }
+      item.stageTimes.put(stage.name, stage.record(startTime));
+
+      if (index + 1 == stages.size()) {
+        item.complete(output, null);
+        return;
+      }
+
+      // Wait for room in the next stage while holding this stage's permit so
+      // a slow stage pushes back on the stages in front of it.
+      Stage next = stages.get(index + 1);
+      try {
+        next.capacity.acquire();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        item.complete(null, ex);
+        return;
+      }
+      enqueue(index + 1, item, output);
+    }
+    finally {
+      stage.capacity.release();
+    }
+  }
+
+  /**
+   * The processor of a single stage.
+   *
+   * @param <I> the type of the input
+   * @param <O> the type of the output passed to the next stage
+   */
+  public interface Processor<I, O> {
+
+    /**
+     * Processes an item. The method is called on a thread of the stage and
+     * must not access the UI without
+     * {@link com.vaadin.ui.UI#access(java.lang.Runnable)}.
+     *
+     * @param input the input from the previous stage
+     *
+     * @return the output for the next stage or the result of the pipeline
+     * @throws Exception if the item cannot be processed; the item leaves the
+     * pipeline as failed
+     */
+    O process(I input) throws Exception;
+  }
+
+  /**
+   * A stage of the pipeline with its executor, capacity and metrics.
+   */
+  public static class Stage {
+
+    private final String name;
+    private final Processor<?, ?> processor;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore capacity;
+    private final int capacityLimit;
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong processingTime = new AtomicLong();
+    private final AtomicLong maxProcessingTime = new AtomicLong();
+    private final AtomicLong queueTime = new AtomicLong();
+
+    /**
+     * Constructs the stage.
+     *
+     * @param name the name of the stage
+     * @param processor the processor of the stage
+     * @param threads the number of threads
+     * @param queueCapacity the number of items that can wait for a thread
+     */
+    private Stage(final String name, Processor<?, ?> processor, int threads,
+        int queueCapacity) {
+      this.name = name;
+      this.processor = processor;
+      this.capacityLimit = threads + queueCapacity;
+      this.capacity = new Semaphore(capacityLimit);
+
+      // The queue is bounded by the capacity permits.
+      this.executor = new ThreadPoolExecutor(threads, threads, 0,
+          TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "html5-upload-pipeline-" + name);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+
+    /**
+     * Runs the processor on the input.
+     *
+     * @param input the input
+     *
+     * @return the output
+     * @throws Exception if the processor fails
+     */
+    @SuppressWarnings("unchecked")
+    private Object process(Object input) throws Exception {
+      return ((Processor<Object, Object>) processor).process(input);
+    }
+
+    /**
+     * Records the processing time of an item.
+     *
+     * @param startTime the {@link System#nanoTime()} processing started
+     *
+     * @return the processing time in milliseconds
+     */
+    private long record(long startTime) {
+      long elapsed = System.nanoTime() - startTime;
+      processedCount.incrementAndGet();
+      processingTime.addAndGet(elapsed);
+
+      long max;
+      do {
+        max = maxProcessingTime.get();
+      }
+      while (elapsed > max && !maxProcessingTime.compareAndSet(max, elapsed));
+
+      return TimeUnit.NANOSECONDS.toMillis(elapsed);
+    }
+
+    /**
+     * Returns the name of the stage.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the number of items queued or in progress in the stage
+     * including items waiting for room in the next stage.
+     *
+     * @return the stage backlog
+     */
+    public int getBacklog() {
+      return capacityLimit - capacity.availablePermits();
+    }
+
+    /**
+     * Returns the number of items processed by the stage including failed
+     * items.
+     *
+     * @return the processed count
+     */
+    public long getProcessedCount() {
+      return processedCount.get();
+    }
+
+    /**
+     * Returns the number of items that failed in the stage.
+     *
+     * @return the failed count
+     */
+    public long getFailedCount() {
+      return failedCount.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds the stage spent processing an
+     * item.
+     *
+     * @return the average processing time or 0 if no item was processed
+     */
+    public long getAverageProcessingTime() {
+      long count = processedCount.get();
+      return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(processingTime.
+          get() / count);
+    }
+
+    /**
+     * Returns the longest time in milliseconds the stage spent processing an
+     * item.
+     *
+     * @return the maximum processing time
+     */
+    public long getMaxProcessingTime() {
+      return TimeUnit.NANOSECONDS.toMillis(maxProcessingTime.get());
+    }
+
+    /**
+     * Returns the average time in milliseconds an item waited in the queue
+     * of the stage for a thread.
+     *
+     * @return the average queue time or 0 if no item was processed
+     */
+    public long getAverageQueueTime() {
+      long count = processedCount.get();
+      return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(queueTime.get()
+          / count);
+    }
+  }
+
+  /**
+   * A callback that receives the result of an item.
+   */
+  interface Callback {
+
+    /**
+     * Called when the item leaves the pipeline.
+     *
+     * @param result the result of the last stage or null if the item failed
+     * @param failure the failure or null if the item succeeded
+     * @param stageTimes the processing time in milliseconds of each stage the
+     * item went through by stage name
+     */
+    void completed(Object result, Throwable failure,
+        Map<String, Long> stageTimes);
+  }
+
+  /**
+   * An item moving through the pipeline.
+   */
+  private static class Item {
+
+    private final Callback callback;
+    private final Map<String, Long> stageTimes = new LinkedHashMap<>();
+
+    /**
+     * Constructs the item.
+     *
+     * @param callback the callback that receives the result
+     */
+    public Item(Callback callback) {
+      this.callback = callback;
+    }
+
+    /**
+     * Notifies the callback that the item left the pipeline.
+     *
+     * @param result the result or null
+     * @param failure the failure or null
+     */
+    public void complete(Object result, Throwable failure) {
+      try {
+        callback.completed(result, failure, new LinkedHashMap<>(stageTimes));
+      }
+      catch (RuntimeException ex) {
+        log.warn("Pipeline callback failed.", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,687 @@
+package org.mpilone.vaadin.upload;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * A minimal client for the multipart upload API of Amazon S3 and compatible
+ * object stores (e.g. MinIO or a local stand-in used for testing). The
+ * requests are signed with AWS Signature Version 4 either in the headers, for
+ * requests made by the server, or in the query string of a presigned URL that
+ * is handed to the browser so it can upload the parts directly to the bucket.
+ * </p>
+ * <p>
+ * The client has no dependencies beyond the JDK and is safe to use from
+ * multiple threads. Object stores other than S3 normally need path style
+ * addressing (e.g. http://localhost:9000/bucket/key).
+ * </p>
+ * <p>
+ * The client holds the secret access key so it is deliberately not
+ * serializable and must not be referenced from a serialized session. The
+ * {@link Html5ObjectStore} only holds it transiently.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ObjectStoreClient {
+
+  /**
+   * The minimum size in bytes of every part except the last one.
+   */
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  /**
+   * The maximum number of parts of a multipart upload.
+   */
+  public static final int MAX_PARTS = 10000;
+
+  /**
+   * The signing algorithm.
+   */
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+  /**
+   * The payload hash of presigned requests.
+   */
+  private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+  /**
+   * The characters that are never encoded in a canonical URI or query.
+   */
+  private static final String UNRESERVED =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.~";
+
+  /**
+   * The timeout in milliseconds for connecting to and reading from the
+   * store.
+   */
+  private static final int TIMEOUT = 60 * 1000;
+
+  private final URL endpoint;
+  private final String region;
+  private final String bucket;
+  private final String accessKey;
+  private final String secretKey;
+  private final boolean pathStyle;
+
+  /**
+   * Constructs the client.
+   *
+   * @param endpoint the URL of the object store (e.g.
+   * https://s3.us-east-1.amazonaws.com or http://localhost:9000)
+   * @param region the region of the bucket (e.g. us-east-1)
+   * @param bucket the name of the bucket
+   * @param accessKey the access key ID
+   * @param secretKey the secret access key
+   * @param pathStyle true to put the bucket in the path rather than in the
+   * host name
+   *
+   * @throws IOException if the endpoint is not a valid URL
+   */
+  public ObjectStoreClient(String endpoint, String region, String bucket,
+      String accessKey, String secretKey, boolean pathStyle) throws
+      IOException {
+    this.endpoint = new URL(endpoint.endsWith("/") ? endpoint.substring(0,
+        endpoint.length() - 1) : endpoint);
+    this.region = region;
+    this.bucket = bucket;
+    this.accessKey = accessKey;
+    this.secretKey = secretKey;
+    this.pathStyle = pathStyle;
+  }
+
+  /**
+   * Returns the name of the bucket.
+   *
+   * @return the bucket
+   */
+  public String getBucket() {
+    return bucket;
+  }
+
+  /**
+   * Starts a multipart upload of the object with the given key.
+   *
+   * @param key the key of the object
+   * @param contentType the mime-type of the object or null
+   *
+   * @return the ID of the multipart upload
+   * @throws IOException if the request fails
+   */
+  public String createMultipartUpload(String key, String contentType) throws
+      IOException {
+    Map<String, String> query = new TreeMap<>();
+    query.put("uploads", "");
+
+    Map<String, String> headers = new TreeMap<>();
+    if (contentType != null) {
+      headers.put("content-type", contentType);
+    }
+
+    String response = send("POST", key, query, headers, new byte[0], 0);
+    String uploadId = getElement(response, "UploadId");
+    if (uploadId == null) {
+      throw new IOException("No upload ID in response: " + response);
+    }
+    return uploadId;
+  }
+
+  /**
+   * Creates a presigned URL that allows the holder to upload a single part
+   * of a multipart upload with a PUT request. The ETag header of the
+   * response must be collected to complete the upload so the bucket must
+   * expose the header to cross-origin requests.
+   *
+   * @param key the key of the object
+   * @param uploadId the ID of the multipart upload
+   * @param partNumber the one based number of the part
+   * @param expires the number of seconds the URL is valid
+   *
+   * @return the presigned URL
+   */
+  public String presignUploadPart(String key, String uploadId, int partNumber,
+      int expires) {
+    Map<String, String> query = new TreeMap<>();
+    query.put("partNumber", String.valueOf(partNumber));
+    query.put("uploadId", uploadId);
+
+    return presign("PUT", key, query, expires, new Date());
+  }
+
+  /**
+   * Creates a presigned URL for a request signed in the query string.
+   *
+   * @param method the HTTP method
+   * @param key the key of the object
+   * @param params the query parameters of the request
+   * @param expires the number of seconds the URL is valid
+   * @param date the time the URL is signed
+   *
+   * @return the presigned URL
+   */
+  String presign(String method, String key, Map<String, String> params,
+      int expires, Date date) {
+    String amzDate = formatDate("yyyyMMdd'T'HHmmss'Z'", date);
+    String scope = formatDate("yyyyMMdd", date) + "/" + region
+        + "/s3/aws4_request";
+
+    Map<String, String> query = new TreeMap<>(params);
+    query.put("X-Amz-Algorithm", ALGORITHM);
+    query.put("X-Amz-Credential", accessKey + "/" + scope);
+    query.put("X-Amz-Date", amzDate);
+    query.put("X-Amz-Expires", String.valueOf(expires));
+    query.put("X-Amz-SignedHeaders", "host");
+
+    Map<String, String> headers = new TreeMap<>();
+    headers.put("host", getHost());
+
+    String canonicalQuery = canonicalQuery(query);
+    String signature = sign(method, key, canonicalQuery, headers,
+        UNSIGNED_PAYLOAD, amzDate, scope);
+
+    return getObjectUrl(key) + "?" + canonicalQuery + "&X-Amz-Signature="
+        + signature;
+  }
+
+  /**
+   * Uploads a single part of a multipart upload from the server.
+   *
+   * @param key the key of the object
+   * @param uploadId the ID of the multipart upload
+   * @param partNumber the one based number of the part
+   * @param data the buffer containing the part data
+   * @param length the length of the data in the buffer
+   *
+   * @return the ETag of the part
+   * @throws IOException if the request fails
+   */
+  public String uploadPart(String key, String uploadId, int partNumber,
+      byte[] data, int length) throws IOException {
+    return uploadPart(key, uploadId, partNumber, Collections.singletonList(
+        ByteBuffer.wrap(data, 0, length)));
+  }
+
+  /**
+   * Uploads a single part of a multipart upload from the server. The part
+   * data is the concatenation of the remaining bytes of the given heap
+   * buffers so it can be held in pooled blocks rather than a single array.
+   * The positions of the buffers are not changed.
+   *
+   * @param key the key of the object
+   * @param uploadId the ID of the multipart upload
+   * @param partNumber the one based number of the part
+   * @param data the buffers containing the part data
+   *
+   * @return the ETag of the part
+   * @throws IOException if the request fails
+   */
+  public String uploadPart(String key, String uploadId, int partNumber,
+      List<ByteBuffer> data) throws IOException {
+    Map<String, String> query = new TreeMap<>();
+    query.put("partNumber", String.valueOf(partNumber));
+    query.put("uploadId", uploadId);
+
+    Map<String, String> responseHeaders = new HashMap<>();
+    send("PUT", key, query, new TreeMap<String, String>(), data,
+        responseHeaders);
+
+    String etag = responseHeaders.get("etag");
+    if (etag == null) {
+      throw new IOException(format("No ETag for part %d of %s.", partNumber,
+          key));
+    }
+    return etag;
+  }
+
+  /**
+   * Completes a multipart upload by assembling the uploaded parts.
+   *
+   * @param key the key of the object
+   * @param uploadId the ID of the multipart upload
+   * @param etags the ETags of the parts in part number order
+   *
+   * @throws IOException if the request fails or the store reports an error
+   */
+  public void completeMultipartUpload(String key, String uploadId,
+      List<String> etags) throws IOException {
+    StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+    for (int i = 0; i < etags.size(); i++) {
+      xml.append("<Part><PartNumber>").append(i + 1).append(
+          "</PartNumber><ETag>").append(escapeXml(etags.get(i))).append(
+              "</ETag></Part>");
+    }
+    xml.append("</CompleteMultipartUpload>");
+
+    Map<String, String> query = new TreeMap<>();
+    query.put("uploadId", uploadId);
+
+    Map<String, String> headers = new TreeMap<>();
+    headers.put("content-type", "application/xml");
+
+    byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+    String response = send("POST", key, query, headers, body, body.length);
+
+    // The store may report an error with a success status once it started
+    // sending the response.
+    if (response.contains("<Error>")) {
+      throw new IOException("Unable to complete multipart upload: "
+          + response);
+    }
+  }
+
+  /**
+   * Aborts a multipart upload and discards the uploaded parts.
+   *
+   * @param key the key of the object
+   * @param uploadId the ID of the multipart upload
+   *
+   * @throws IOException if the request fails
+   */
+  public void abortMultipartUpload(String key, String uploadId) throws
+      IOException {
+    Map<String, String> query = new TreeMap<>();
+    query.put("uploadId", uploadId);
+
+    send("DELETE", key, query, new TreeMap<String, String>(), new byte[0], 0);
+  }
+
+  /**
+   * Returns the size of the object with the given key.
+   *
+   * @param key the key of the object
+   *
+   * @return the size in bytes or -1 if the object doesn't exist
+   * @throws IOException if the request fails
+   */
+  public long getObjectSize(String key) throws IOException {
+    Map<String, String> responseHeaders = new HashMap<>();
+    try {
+      send("HEAD", key, new TreeMap<String, String>(),
+          new TreeMap<String, String>(), Collections.<ByteBuffer>emptyList(),
+          responseHeaders);
+    }
+    catch (NotFoundException ex) {
+      return -1;
+    }
+
+    String length = responseHeaders.get("content-length");
+    return length == null ? -1 : Long.parseLong(length);
+  }
+
+  /**
+   * Deletes the object with the given key. Deleting an object that doesn't
+   * exist is not an error.
+   *
+   * @param key the key of the object
+   *
+   * @throws IOException if the request fails
+   */
+  public void deleteObject(String key) throws IOException {
+    send("DELETE", key, new TreeMap<String, String>(),
+        new TreeMap<String, String>(), new byte[0], 0);
+  }
+
+  /**
+   * Sends a request signed in the headers and returns the response body.
+   *
+   * @param method the HTTP method
+   * @param key the key of the object
+   * @param query the query parameters
+   * @param headers the additional headers to sign and send with lower case
+   * names
+   * @param body the buffer containing the body
+   * @param length the length of the body in the buffer
+   *
+   * @return the response body
+   * @throws IOException if the request fails
+   */
+  private String send(String method, String key, Map<String, String> query,
+      Map<String, String> headers, byte[] body, int length) throws
+      IOException {
+    return send(method, key, query, headers, Collections.singletonList(
+        ByteBuffer.wrap(body, 0, length)), new HashMap<String, String>());
+  }
+
+  /**
+   * Sends a request signed in the headers and returns the response body.
+   *
+   * @param method the HTTP method
+   * @param key the key of the object
+   * @param query the query parameters
+   * @param headers the additional headers to sign and send with lower case
+   * names
+   * @param body the buffers containing the body
+   * @param responseHeaders the map to fill with the response headers with
+   * lower case names
+   *
+   * @return the response body
+   * @throws IOException if the request fails
+   */
+  private String send(String method, String key, Map<String, String> query,
+      Map<String, String> headers, List<ByteBuffer> body,
+      Map<String, String> responseHeaders) throws IOException {
+
+    Date now = new Date();
+    String amzDate = formatDate("yyyyMMdd'T'HHmmss'Z'", now);
+    String scope = formatDate("yyyyMMdd", now) + "/" + region
+        + "/s3/aws4_request";
+
+    long length = 0;
+    MessageDigest digest = newSha256();
+    for (ByteBuffer buffer : body) {
+      length += buffer.remaining();
+      digest.update(buffer.duplicate());
+    }
+    String payloadHash = Streams.toHex(digest.digest());
+
+    headers.put("host", getHost());
+    headers.put("x-amz-content-sha256", payloadHash);
+    headers.put("x-amz-date", amzDate);
+
+    String canonicalQuery = canonicalQuery(query);
+    String signature = sign(method, key, canonicalQuery, headers, payloadHash,
+        amzDate, scope);
+
+    String url = getObjectUrl(key) + (canonicalQuery.isEmpty() ? "" : "?"
+        + canonicalQuery);
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setConnectTimeout(TIMEOUT);
+    conn.setReadTimeout(TIMEOUT);
+    conn.setRequestMethod(method);
+    conn.setRequestProperty("Authorization", format(
+        "%s Credential=%s/%s, SignedHeaders=%s, Signature=%s", ALGORITHM,
+        accessKey, scope, signedHeaders(headers), signature));
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (!header.getKey().equals("host")) {
+        conn.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+
+    if (method.equals("PUT") || method.equals("POST")) {
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(length);
+      try (OutputStream out = conn.getOutputStream()) {
+        for (ByteBuffer buffer : body) {
+          out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+              buffer.remaining());
+        }
+      }
+    }
+
+    int status = conn.getResponseCode();
+    for (Map.Entry<String, List<String>> header : conn.getHeaderFields().
+        entrySet()) {
+      if (header.getKey() != null && !header.getValue().isEmpty()) {
+        responseHeaders.put(header.getKey().toLowerCase(Locale.ENGLISH),
+            header.getValue().get(0));
+      }
+    }
+
+    InputStream in = status >= 400 ? conn.getErrorStream() :
+        conn.getInputStream();
+    String response = in == null ? "" : Streams.asString(in);
+
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+      throw new NotFoundException(format("%s %s failed with status %d: %s",
+          method, key, status, response));
+    }
+    else if (status >= 300) {
+      throw new IOException(format("%s %s failed with status %d: %s", method,
+          key, status, response));
+    }
+
+    return response;
+  }
+
+  /**
+   * Computes the Signature Version 4 signature of a request.
+   *
+   * @param method the HTTP method
+   * @param key the key of the object
+   * @param canonicalQuery the canonical query string
+   * @param headers the headers to sign with lower case names
+   * @param payloadHash the hex encoded SHA-256 hash of the payload or
+   * {@link #UNSIGNED_PAYLOAD}
+   * @param amzDate the request time stamp
+   * @param scope the credential scope
+   *
+   * @return the hex encoded signature
+   */
+  String sign(String method, String key, String canonicalQuery,
+      Map<String, String> headers, String payloadHash, String amzDate,
+      String scope) {
+
+    StringBuilder canonicalHeaders = new StringBuilder();
+    for (Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+      canonicalHeaders.append(header.getKey()).append(':').append(header.
+          getValue().trim()).append('\n');
+    }
+
+    String canonicalRequest = method + "\n" + getObjectPath(key) + "\n"
+        + canonicalQuery + "\n" + canonicalHeaders + "\n"
+        + signedHeaders(headers) + "\n" + payloadHash;
+
+    MessageDigest digest = newSha256();
+    String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+        + Streams.toHex(digest.digest(canonicalRequest.getBytes(
+            StandardCharsets.UTF_8)));
+
+    byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(
+        StandardCharsets.UTF_8), amzDate.substring(0, 8));
+    signingKey = hmac(signingKey, region);
+    signingKey = hmac(signingKey, "s3");
+    signingKey = hmac(signingKey, "aws4_request");
+
+    return Streams.toHex(hmac(signingKey, stringToSign));
+  }
+
+  /**
+   * Returns the semicolon separated, sorted names of the signed headers.
+   *
+   * @param headers the headers to sign with lower case names
+   *
+   * @return the signed headers
+   */
+  private static String signedHeaders(Map<String, String> headers) {
+    StringBuilder names = new StringBuilder();
+    for (String name : new TreeSet<>(headers.keySet())) {
+      if (names.length() > 0) {
+        names.append(';');
+      }
+      names.append(name);
+    }
+    return names.toString();
+  }
+
+  /**
+   * Returns the canonical query string of the given sorted parameters.
+   *
+   * @param query the query parameters
+   *
+   * @return the canonical query string
+   */
+  private static String canonicalQuery(Map<String, String> query) {
+    StringBuilder canonical = new StringBuilder();
+    for (Map.Entry<String, String> param : new TreeMap<>(query).entrySet()) {
+      if (canonical.length() > 0) {
+        canonical.append('&');
+      }
+      canonical.append(encode(param.getKey(), true)).append('=').append(
+          encode(param.getValue(), true));
+    }
+    return canonical.toString();
+  }
+
+  /**
+   * Returns the host header value of the endpoint including the bucket for
+   * virtual host style addressing.
+   *
+   * @return the host
+   */
+  private String getHost() {
+    String host = pathStyle ? endpoint.getHost() : bucket + "." + endpoint.
+        getHost();
+    return endpoint.getPort() == -1 ? host : host + ":" + endpoint.getPort();
+  }
+
+  /**
+   * Returns the encoded path of the object with the given key.
+   *
+   * @param key the key of the object
+   *
+   * @return the path of the object
+   */
+  private String getObjectPath(String key) {
+    String path = endpoint.getPath() + "/";
+    if (pathStyle) {
+      path += encode(bucket, false) + "/";
+    }
+    return path + encode(key, false);
+  }
+
+  /**
+   * Returns the URL of the object with the given key.
+   *
+   * @param key the key of the object
+   *
+   * @return the URL of the object
+   */
+  private String getObjectUrl(String key) {
+    return endpoint.getProtocol() + "://" + getHost() + getObjectPath(key);
+  }
+
+  /**
+   * URI encodes the given value as required by Signature Version 4.
+   *
+   * @param value the value to encode
+   * @param encodeSlash true to encode the '/' character
+   *
+   * @return the encoded value
+   */
+  private static String encode(String value, boolean encodeSlash) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xFF);
+      if (UNRESERVED.indexOf(c) >= 0 || (c == '/' && !encodeSlash)) {
+        encoded.append(c);
+      }
+      else {
+        encoded.append('%').append(Character.toUpperCase(Character.forDigit(
+            (b >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.
+                forDigit(b & 0xF, 16)));
+      }
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * Returns the unescaped text of the first element with the given name in
+   * the XML document.
+   *
+   * @param xml the XML document
+   * @param name the name of the element
+   *
+   * @return the text or null if the element isn't found
+   */
+  private static String getElement(String xml, String name) {
+    Matcher matcher = Pattern.compile("<" + name + ">(.*?)</" + name + ">",
+        Pattern.DOTALL).matcher(xml);
+    if (!matcher.find()) {
+      return null;
+    }
+
+    return matcher.group(1).replace("&quot;", "\"").replace("&apos;", "'").
+        replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+  }
+
+  /**
+   * Escapes the XML special characters in the given text.
+   *
+   * @param text the text to escape
+   *
+   * @return the escaped text
+   */
+  private static String escapeXml(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">",
+        "&gt;").replace("\"", "&quot;");
+  }
+
+  /**
+   * Formats the given date in UTC.
+   *
+   * @param pattern the date pattern
+   * @param date the date to format
+   *
+   * @return the formatted date
+   */
+  private static String formatDate(String pattern, Date date) {
+    SimpleDateFormat formatter = new SimpleDateFormat(pattern, Locale.ENGLISH);
+    formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return formatter.format(date);
+  }
+
+  /**
+   * Computes the HMAC-SHA256 of the given value.
+   *
+   * @param key the key
+   * @param value the value
+   *
+   * @return the HMAC
+   */
+  private static byte[] hmac(byte[] key, String value) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("Unable to sign the request.", ex);
+    }
+  }
+
+  /**
+   * Returns a new SHA-256 digest.
+   *
+   * @return the digest
+   */
+  private static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("SHA-256 is not available.", ex);
+    }
+  }
+
+  /**
+   * The exception raised when the object store responds with not found.
+   */
+  private static class NotFoundException extends IOException {
+
+    /**
+     * Constructs the exception.
+     *
+     * @param message the detail message
+     */
+    public NotFoundException(String message) {
+      super(message);
+    }
+  }
+}
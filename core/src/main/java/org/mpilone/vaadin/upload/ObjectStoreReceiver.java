@@ -0,0 +1,651 @@
+package org.mpilone.vaadin.upload;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An implementation of an {@link Html5Receiver} that streams the uploaded
+ * data to an S3 compatible object store with a multipart upload rather than
+ * to local disk. The data is collected in pooled memory blocks and each
+ * completed part is uploaded by a bounded executor while the next part is
+ * received from the browser, so the latency of the object store overlaps
+ * with the ingestion of the data. Writers block when the buffer pool or the
+ * per-upload part limit is exhausted which pushes back on the client.
+ * </p>
+ * <p>
+ * A part is only uploaded at a chunk boundary reported with
+ * {@link RetryableOutputStream#chunkEnd(int, int)} so a retried chunk never
+ * duplicates data in the object. A chunk larger than the part size is
+ * streamed out as it arrives and can't be retried; the file fails instead.
+ * The multipart upload is completed and the size of the object is verified
+ * when the final chunk ends so a failure is reported to the client as a
+ * failed chunk. The multipart upload is aborted if the file fails or is
+ * interrupted. The {@link StoredListener}s are notified with the key of each
+ * stored object.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ObjectStoreReceiver implements Html5Receiver {
+
+  /**
+   * The default maximum number of parts of an upload sent to the object
+   * store at the same time.
+   */
+  public static final int DEFAULT_MAX_PARALLEL_PARTS = 4;
+
+  /**
+   * The default maximum number of bytes buffered by all the uploads of the
+   * receiver.
+   */
+  public static final long DEFAULT_MAX_BUFFER_MEMORY = 128L * 1024 * 1024;
+
+  /**
+   * The size of the pooled memory blocks that hold the part data.
+   */
+  private static final int BLOCK_SIZE = 1024 * 1024;
+
+  /**
+   * The number of attempts to upload a part before the file fails.
+   */
+  static final int PART_ATTEMPTS = 3;
+
+  /**
+   * The maximum number of seconds a writer waits for a free block.
+   */
+  private static final int BLOCK_TIMEOUT = 120;
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      ObjectStoreReceiver.class);
+
+  /**
+   * The executor shared by the receivers that don't provide their own.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR = new ThreadPoolExecutor(
+      8, 8, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(64),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "html5-upload-object-store");
+          thread.setDaemon(true);
+          return thread;
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+  private final Html5ObjectStore objectStore;
+  private final ExecutorService executor;
+  private final BlockPool pool;
+  private final List<StoredListener> listeners =
+      new CopyOnWriteArrayList<>();
+  private volatile int maxParallelParts = DEFAULT_MAX_PARALLEL_PARTS;
+
+  /**
+   * Constructs the receiver with the default executor and buffer memory.
+   *
+   * @param objectStore the object store that provides the client, the keys
+   * and the part size
+   */
+  public ObjectStoreReceiver(Html5ObjectStore objectStore) {
+    this(objectStore, DEFAULT_EXECUTOR, DEFAULT_MAX_BUFFER_MEMORY);
+  }
+
+  /**
+   * Constructs the receiver.
+   *
+   * @param objectStore the object store that provides the client, the keys
+   * and the part size
+   * @param executor the bounded executor that uploads the parts
+   * @param maxBufferMemory the maximum number of bytes buffered by all the
+   * uploads which should be at least two parts for every concurrent upload
+   */
+  public ObjectStoreReceiver(Html5ObjectStore objectStore,
+      ExecutorService executor, long maxBufferMemory) {
+    this.objectStore = objectStore;
+    this.executor = executor;
+    this.pool = new BlockPool((int) Math.max(1, maxBufferMemory / BLOCK_SIZE));
+  }
+
+  /**
+   * Returns the maximum number of parts of an upload sent to the object
+   * store at the same time.
+   *
+   * @return the maximum parallel parts
+   */
+  public int getMaxParallelParts() {
+    return maxParallelParts;
+  }
+
+  /**
+   * Sets the maximum number of parts of an upload sent to the object store
+   * at the same time. The default is {@link #DEFAULT_MAX_PARALLEL_PARTS}.
+   *
+   * @param maxParallelParts the maximum parallel parts
+   */
+  public void setMaxParallelParts(int maxParallelParts) {
+    this.maxParallelParts = Math.max(1, maxParallelParts);
+  }
+
+  /**
+   * Adds a listener that will be notified when an upload is stored.
+   *
+   * @param listener the listener to add
+   */
+  public void addStoredListener(StoredListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a previously added listener.
+   *
+   * @param listener the listener to remove
+   */
+  public void removeStoredListener(StoredListener listener) {
+    listeners.remove(listener);
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType) {
+    return new PartOutputStream(filename, mimeType, -1);
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType,
+      boolean retryEnabled, boolean chunkingEnabled, int chunkContentLength,
+      int contentLength) {
+
+    // The stream always supports retries because the chunk boundaries are
+    // needed to place the part boundaries.
+    return new PartOutputStream(filename, mimeType, contentLength);
+  }
+
+  /**
+   * Notifies the listeners that an upload was stored.
+   *
+   * @param event the event to fire
+   */
+  private void fireStored(StoredEvent event) {
+    for (StoredListener listener : listeners) {
+      listener.uploadStored(event);
+    }
+  }
+
+  /**
+   * A listener that is notified when an upload is stored.
+   */
+  public interface StoredListener {
+
+    /**
+     * Called when an upload is stored in the object store.
+     *
+     * @param event the stored event
+     */
+    void uploadStored(StoredEvent event);
+  }
+
+  /**
+   * The event fired when an upload is stored.
+   */
+  public static class StoredEvent {
+
+    private final String filename;
+    private final String mimeType;
+    private final String key;
+    private final long length;
+
+    /**
+     * Constructs the event.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param key the key of the object
+     * @param length the length of the object in bytes
+     */
+    public StoredEvent(String filename, String mimeType, String key,
+        long length) {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.key = key;
+      this.length = length;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the file name
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the mime-type provided by the client.
+     *
+     * @return the mime-type
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * Returns the key of the object in the bucket.
+     *
+     * @return the key
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the length of the object in bytes.
+     *
+     * @return the length
+     */
+    public long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * A fixed size pool of memory blocks shared by the uploads of the
+   * receiver. The blocks are allocated on first use.
+   */
+  private static class BlockPool {
+
+    private final BlockingQueue<byte[]> free = new LinkedBlockingQueue<>();
+    private final Semaphore available;
+
+    /**
+     * Constructs the pool.
+     *
+     * @param maxBlocks the maximum number of blocks
+     */
+    public BlockPool(int maxBlocks) {
+      this.available = new Semaphore(maxBlocks);
+    }
+
+    /**
+     * Takes a block from the pool, waiting for one to be released if all
+     * the blocks are in use.
+     *
+     * @return the block
+     * @throws IOException if no block is released in time
+     */
+    public byte[] acquire() throws IOException {
+      try {
+        if (!available.tryAcquire(BLOCK_TIMEOUT, TimeUnit.SECONDS)) {
+          throw new IOException("Timed out waiting for upload buffer memory.");
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted waiting for upload buffer memory.");
+      }
+
+      byte[] block = free.poll();
+      return block != null ? block : new byte[BLOCK_SIZE];
+    }
+
+    /**
+     * Returns the given blocks to the pool.
+     *
+     * @param blocks the blocks to release
+     */
+    public void release(Collection<byte[]> blocks) {
+      for (byte[] block : blocks) {
+        free.add(block);
+        available.release();
+      }
+    }
+  }
+
+  /**
+   * An output stream that collects the data in blocks and uploads a part
+   * whenever a chunk ends with at least a part of data buffered.
+   */
+  private class PartOutputStream extends RetryableOutputStream {
+
+    private final String filename;
+    private final String mimeType;
+    private final int partSize;
+    private final Semaphore partPermits = new Semaphore(maxParallelParts);
+    private final List<Future<?>> partFutures = new ArrayList<>();
+    private final SortedMap<Integer, String> etags =
+        new ConcurrentSkipListMap<>();
+
+    private final List<byte[]> blocks = new ArrayList<>();
+    private int length;
+    private int committedLength;
+    private long totalLength;
+    private int partNumber;
+    private boolean uncommittedSent;
+    private boolean chunked;
+    private boolean completed;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    private String key;
+    private String uploadId;
+
+    /**
+     * Constructs the stream.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param contentLength the (estimated) content length or -1 if unknown
+     */
+    public PartOutputStream(String filename, String mimeType,
+        long contentLength) {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.partSize = objectStore.getPartSize(contentLength);
+    }
+
+    @Override
+    public void chunkStart(int chunkIndex, int chunkCount) throws IOException {
+      chunked = true;
+      checkFailure();
+
+      if (uncommittedSent) {
+        throw new IOException(format("Chunk %d of %s was larger than a part "
+            + "and already sent so it can't be retried.", chunkIndex,
+            filename));
+      }
+
+      // Discard anything written since the last completed chunk.
+      truncate(committedLength);
+    }
+
+    @Override
+    public void chunkEnd(int chunkIndex, int chunkCount) throws IOException {
+      checkFailure();
+
+      committedLength = length;
+      uncommittedSent = false;
+
+      if (chunkIndex + 1 == chunkCount) {
+        complete();
+      }
+      else if (length >= partSize) {
+        sendPart();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkFailure();
+
+      while (len > 0) {
+        int blockOffset = length % BLOCK_SIZE;
+        if (blockOffset == 0 && length / BLOCK_SIZE == blocks.size()) {
+          blocks.add(pool.acquire());
+        }
+
+        int count = Math.min(len, BLOCK_SIZE - blockOffset);
+        System.arraycopy(b, off, blocks.get(length / BLOCK_SIZE), blockOffset,
+            count);
+        length += count;
+        off += count;
+        len += -count;
+      }
+
+      // A chunk larger than a part is streamed out rather than held in
+      // memory so the chunk can no longer be retried.
+      if (length - committedLength >= partSize) {
+        uncommittedSent = true;
+        committedLength = length;
+        sendPart();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+
+      // A stream used as a plain receiver is a single chunk.
+      if (!chunked && failure == null && !completed) {
+        try {
+          complete();
+        }
+        catch (IOException ex) {
+          log.warn("Unable to store {} in the object store.", filename, ex);
+        }
+      }
+
+      closed = true;
+      super.close();
+
+      if (!completed) {
+        abort();
+      }
+    }
+
+    /**
+     * Throws the failure of a part upload if there is one.
+     *
+     * @throws IOException the failure of a part upload
+     */
+    private void checkFailure() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed.");
+      }
+      if (failure != null) {
+        throw new IOException("Unable to upload part to the object store.",
+            failure);
+      }
+    }
+
+    /**
+     * Truncates the buffered data to the given length and releases the
+     * blocks that are no longer needed.
+     *
+     * @param newLength the new length
+     */
+    private void truncate(int newLength) {
+      int neededBlocks = (newLength + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      if (blocks.size() > neededBlocks) {
+        List<byte[]> unused = blocks.subList(neededBlocks, blocks.size());
+        pool.release(new ArrayList<>(unused));
+        unused.clear();
+      }
+      length = newLength;
+    }
+
+    /**
+     * Uploads the buffered data as the next part on the executor. The caller
+     * waits if the maximum number of parts are already being sent.
+     *
+     * @throws IOException if the multipart upload can't be started
+     */
+    private void sendPart() throws IOException {
+      if (uploadId == null) {
+        key = objectStore.createKey(filename);
+        uploadId = objectStore.getClient().createMultipartUpload(key,
+            mimeType);
+        log.debug("Started multipart upload {} of {}.", uploadId, key);
+      }
+
+      try {
+        partPermits.acquire();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to send part.");
+      }
+
+      final int number = ++partNumber;
+      final List<byte[]> partBlocks = new ArrayList<>(blocks);
+      final List<ByteBuffer> data = new ArrayList<>();
+      for (int i = 0, remaining = length; i < partBlocks.size(); i++,
+          remaining -= BLOCK_SIZE) {
+        data.add(ByteBuffer.wrap(partBlocks.get(i), 0, Math.min(BLOCK_SIZE,
+            remaining)));
+      }
+
+      totalLength += length;
+      blocks.clear();
+      length = 0;
+      committedLength = 0;
+
+      try {
+        partFutures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (failure == null) {
+                etags.put(number, uploadPart(number, data));
+              }
+            }
+            catch (IOException ex) {
+              failure = ex;
+            }
+            finally {
+              pool.release(partBlocks);
+              partPermits.release();
+            }
+          }
+        }));
+      }
+      catch (RejectedExecutionException ex) {
+        pool.release(partBlocks);
+        partPermits.release();
+        throw new IOException("Unable to schedule part upload.", ex);
+      }
+    }
+
+    /**
+     * Uploads a single part, retrying a failed attempt.
+     *
+     * @param number the part number
+     * @param data the part data
+     *
+     * @return the ETag of the part
+     * @throws IOException if all the attempts fail
+     */
+    private String uploadPart(int number, List<ByteBuffer> data) throws
+        IOException {
+      for (int attempt = 1;; attempt++) {
+        try {
+          return objectStore.getClient().uploadPart(key, uploadId, number,
+              data);
+        }
+        catch (IOException ex) {
+          if (attempt == PART_ATTEMPTS || closed) {
+            throw ex;
+          }
+          log.debug("Retrying part {} of {} after failure.", number, key, ex);
+        }
+      }
+    }
+
+    /**
+     * Waits for all the parts to be uploaded.
+     *
+     * @throws IOException if a part failed or the wait was interrupted
+     */
+    private void awaitParts() throws IOException {
+      try {
+        for (Future<?> future : partFutures) {
+          future.get();
+        }
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for parts.");
+      }
+      catch (ExecutionException ex) {
+        throw new IOException("Unable to upload part.", ex.getCause());
+      }
+      finally {
+        partFutures.clear();
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * Sends the remaining data as the last part, completes the multipart
+     * upload and verifies the size of the object.
+     *
+     * @throws IOException if the upload can't be completed
+     */
+    private void complete() throws IOException {
+      // An empty file is a single empty part.
+      if (length > 0 || partNumber == 0) {
+        sendPart();
+      }
+      awaitParts();
+
+      ObjectStoreClient client = objectStore.getClient();
+      client.completeMultipartUpload(key, uploadId, new ArrayList<>(etags.
+          values()));
+      completed = true;
+
+      long size = client.getObjectSize(key);
+      if (size != totalLength) {
+        try {
+          client.deleteObject(key);
+        }
+        catch (IOException ex) {
+          log.warn("Unable to delete unverified object {}.", key, ex);
+        }
+        failure = new IOException(format("Expected %d bytes for %s but "
+            + "found %d.", totalLength, key, size));
+        throw failure;
+      }
+
+      log.debug("Completed multipart upload {} of {}.", uploadId, key);
+      fireStored(new StoredEvent(filename, mimeType, key, totalLength));
+    }
+
+    /**
+     * Releases the buffered data and aborts the multipart upload once the
+     * parts in flight are done.
+     */
+    private void abort() {
+      truncate(0);
+
+      if (uploadId == null) {
+        return;
+      }
+
+      try {
+        awaitParts();
+      }
+      catch (IOException ex) {
+        // Ignore. The upload is being aborted.
+      }
+
+      try {
+        objectStore.getClient().abortMultipartUpload(key, uploadId);
+        log.debug("Aborted multipart upload {} of {}.", uploadId, key);
+      }
+      catch (IOException ex) {
+        log.warn("Unable to abort multipart upload {} of {}.", uploadId, key,
+            ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.communication.PushMode;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * <p>
+ * Dispatches upload progress to the UI using server push. The bytes received
+ * are counted while streaming without locking the session and the latest
+ * progress of every upload in the UI is coalesced and delivered in a single
+ * {@link UI#access(java.lang.Runnable)} call at most once per frame. This
+ * replaces the progress polling RPCs sent by the client side which, with many
+ * concurrent uploads, generate a stream of UIDL requests per upload.
+ * </p>
+ * <p>
+ * There is a single dispatcher per UI. The dispatcher is only used when push
+ * is enabled in the UI.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class ProgressDispatcher implements Serializable {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The default number of progress frames pushed per second.
+   */
+  public static final int DEFAULT_FRAME_RATE = 4;
+
+  /**
+   * The scheduler shared by all dispatchers to trigger the frames.
+   */
+  private static final ScheduledExecutorService SCHEDULER = Executors.
+      newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "html5-upload-progress");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final UI ui;
+  private final Map<AbstractHtml5Upload, long[]> pending =
+      new ConcurrentHashMap<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile int frameRate = DEFAULT_FRAME_RATE;
+
+  /**
+   * Constructs the dispatcher.
+   *
+   * @param ui the UI to push the progress to
+   */
+  private ProgressDispatcher(UI ui) {
+    this.ui = ui;
+  }
+
+  /**
+   * Returns the dispatcher for the given UI, creating it if needed. The
+   * session of the UI must be locked.
+   *
+   * @param ui the UI to push the progress to
+   *
+   * @return the dispatcher for the UI
+   */
+  public static ProgressDispatcher get(UI ui) {
+    VaadinSession session = ui.getSession();
+    String key = ProgressDispatcher.class.getName() + "." + ui.getUIId();
+
+    ProgressDispatcher dispatcher = (ProgressDispatcher) session.getAttribute(
+        key);
+    if (dispatcher == null) {
+      dispatcher = new ProgressDispatcher(ui);
+      session.setAttribute(key, dispatcher);
+    }
+
+    return dispatcher;
+  }
+
+  /**
+   * Returns true if push is enabled in the given UI so progress can be
+   * delivered by a dispatcher.
+   *
+   * @param ui the UI to check or null
+   *
+   * @return true if push is enabled
+   */
+  public static boolean isPushEnabled(UI ui) {
+    return ui != null && ui.getPushConfiguration().getPushMode().isEnabled();
+  }
+
+  /**
+   * Returns the maximum number of progress frames pushed per second.
+   *
+   * @return the frame rate
+   */
+  public int getFrameRate() {
+    return frameRate;
+  }
+
+  /**
+   * Sets the maximum number of progress frames pushed per second. All the
+   * progress updates in the UI received during a frame are delivered together
+   * at the end of the frame. The default is {@link #DEFAULT_FRAME_RATE}.
+   *
+   * @param frameRate the frame rate
+   */
+  public void setFrameRate(int frameRate) {
+    if (frameRate <= 0) {
+      throw new IllegalArgumentException("Frame rate must be positive.");
+    }
+    this.frameRate = frameRate;
+  }
+
+  /**
+   * Records the latest progress of the given upload. This method doesn't
+   * require the session lock and is safe to call from the thread receiving
+   * the data.
+   *
+   * @param upload the upload component receiving the data
+   * @param totalBytes the total bytes received so far
+   * @param contentLength the expected total length
+   */
+  public void update(AbstractHtml5Upload upload, long totalBytes,
+      long contentLength) {
+    pending.put(upload, new long[]{totalBytes, contentLength});
+
+    if (scheduled.compareAndSet(false, true)) {
+      SCHEDULER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, 1000 / frameRate, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Discards any progress of the given upload that hasn't been delivered yet.
+   * This should be called when the upload ends so stale progress isn't
+   * delivered after the finished event.
+   *
+   * @param upload the upload component
+   */
+  public void cancel(AbstractHtml5Upload upload) {
+    pending.remove(upload);
+  }
+
+  /**
+   * Returns an output stream that counts the bytes written to the given
+   * stream and records the progress of the upload.
+   *
+   * @param upload the upload component receiving the data
+   * @param outstream the stream to write to
+   * @param offset the bytes already received before this stream
+   * @param contentLength the expected total length
+   *
+   * @return the counting output stream
+   */
+  public OutputStream track(AbstractHtml5Upload upload, OutputStream outstream,
+      long offset, long contentLength) {
+    return new ProgressOutputStream(upload, outstream, offset, contentLength);
+  }
+
+  /**
+   * Delivers all the pending progress to the listeners of the upload
+   * components in a single UI access.
+   */
+  private void flush() {
+    scheduled.set(false);
+
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    try {
+      ui.access(new Runnable() {
+        @Override
+        public void run() {
+          for (Iterator<Map.Entry<AbstractHtml5Upload, long[]>> iter =
+              pending.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<AbstractHtml5Upload, long[]> entry = iter.next();
+            iter.remove();
+
+            entry.getKey().fireUpdateProgress(entry.getValue()[0], entry.
+                getValue()[1]);
+          }
+
+          if (ui.getPushConfiguration().getPushMode() == PushMode.MANUAL) {
+            ui.push();
+          }
+        }
+      });
+    }
+    catch (UIDetachedException ex) {
+      pending.clear();
+    }
+  }
+
+  /**
+   * An output stream that counts the bytes written and records the progress
+   * with the dispatcher.
+   */
+  private class ProgressOutputStream extends UncloseableOutputStream {
+
+    private final AbstractHtml5Upload upload;
+    private final long contentLength;
+    private long totalBytes;
+
+    /**
+     * Constructs the stream.
+     *
+     * @param upload the upload component receiving the data
+     * @param delegate the delegate stream to write to
+     * @param offset the bytes already received before this stream
+     * @param contentLength the expected total length
+     */
+    public ProgressOutputStream(AbstractHtml5Upload upload,
+        OutputStream delegate, long offset, long contentLength) {
+      super(delegate);
+      this.upload = upload;
+      this.totalBytes = offset;
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+
+      totalBytes += len;
+      update(upload, totalBytes, contentLength);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      super.write(b);
+
+      totalBytes++;
+      update(upload, totalBytes, contentLength);
+    }
+  }
+}
@@ -0,0 +1,475 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An implementation of an {@link Html5Receiver} that decouples the
+ * processing of an upload from the network ingest. The data is always written
+ * to a managed spool file at full speed and, once the upload completes, the
+ * file is atomically published into a ready directory and handed off to the
+ * {@link SpoolHandler} on a worker executor. Slow work such as database
+ * inserts or remote calls therefore never runs inside
+ * {@link OutputStream#write(byte[], int, int)} and never extends the time of
+ * a chunk request.
+ * </p>
+ * <p>
+ * The handler receives the path of the published file with the metadata of
+ * the upload. The handler must move or copy the file if it needs to keep it
+ * because the file is deleted when the handler returns. The number of files
+ * waiting for or in handoff and the latency from publication to handoff are
+ * tracked so the spool can be monitored, and {@link #backlogSignal(int)}
+ * returns a signal that lets the {@link UploadLoadController} park uploads
+ * while the handler falls behind.
+ * </p>
+ * <p>
+ * A file is only published once the upload component reports the end of its
+ * last chunk, which the components of this library do for chunked and
+ * unchunked uploads alike. The stream closed after a failed or interrupted
+ * upload cannot be told apart from a complete one without that report, so
+ * the spool file is deleted instead of being handed off with truncated data.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class SpoolReceiver implements Html5Receiver {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      SpoolReceiver.class);
+
+  /**
+   * The executor shared by the receivers that don't provide their own.
+   */
+  private static final ExecutorService DEFAULT_EXECUTOR = Executors.
+      newFixedThreadPool(4, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "html5-upload-spool");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final Path spoolDir;
+  private final Path readyDir;
+  private final SpoolHandler handler;
+  private final ExecutorService executor;
+
+  private final AtomicInteger activeCount = new AtomicInteger();
+  private final AtomicInteger backlog = new AtomicInteger();
+  private final AtomicLong backlogBytes = new AtomicLong();
+  private final AtomicLong handoffCount = new AtomicLong();
+  private final AtomicLong totalHandoffLatency = new AtomicLong();
+  private final AtomicLong maxHandoffLatency = new AtomicLong();
+
+  /**
+   * Constructs the receiver with the default executor. The uploads are
+   * spooled in a "spool" directory and published in a "ready" directory under
+   * the given root. The directories must be on the same file system to allow
+   * for atomic publication.
+   *
+   * @param rootDir the root directory of the spool
+   * @param handler the handler that receives the completed files
+   *
+   * @throws IOException if the directories cannot be created
+   */
+  public SpoolReceiver(File rootDir, SpoolHandler handler) throws
+      IOException {
+    this(rootDir, handler, DEFAULT_EXECUTOR);
+  }
+
+  /**
+   * Constructs the receiver. The uploads are spooled in a "spool" directory
+   * and published in a "ready" directory under the given root. The
+   * directories must be on the same file system to allow for atomic
+   * publication.
+   *
+   * @param rootDir the root directory of the spool
+   * @param handler the handler that receives the completed files
+   * @param executor the executor that runs the handler
+   *
+   * @throws IOException if the directories cannot be created
+   */
+  public SpoolReceiver(File rootDir, SpoolHandler handler,
+      ExecutorService executor) throws IOException {
+    this.spoolDir = Files.createDirectories(rootDir.toPath().resolve("spool"));
+    this.readyDir = Files.createDirectories(rootDir.toPath().resolve("ready"));
+    this.handler = handler;
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the number of uploads currently being written to the spool.
+   *
+   * @return the number of active spool files
+   */
+  public int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /**
+   * Returns the number of completed files that are waiting for or in handoff
+   * to the handler.
+   *
+   * @return the spool backlog
+   */
+  public int getBacklog() {
+    return backlog.get();
+  }
+
+  /**
+   * Returns the total size in bytes of the completed files that are waiting
+   * for or in handoff to the handler.
+   *
+   * @return the spool backlog in bytes
+   */
+  public long getBacklogBytes() {
+    return backlogBytes.get();
+  }
+
+  /**
+   * Returns the number of files handed off to the handler since the receiver
+   * was constructed.
+   *
+   * @return the handoff count
+   */
+  public long getHandoffCount() {
+    return handoffCount.get();
+  }
+
+  /**
+   * Returns the average time in milliseconds from the publication of a file
+   * to the start of its handoff.
+   *
+   * @return the average spool to handoff latency or 0 if no file was handed
+   * off
+   */
+  public long getAverageHandoffLatency() {
+    long count = handoffCount.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalHandoffLatency.
+        get() / count);
+  }
+
+  /**
+   * Returns the longest time in milliseconds from the publication of a file
+   * to the start of its handoff.
+   *
+   * @return the maximum spool to handoff latency
+   */
+  public long getMaxHandoffLatency() {
+    return TimeUnit.NANOSECONDS.toMillis(maxHandoffLatency.get());
+  }
+
+  /**
+   * Returns a signal that reports pressure when the spool backlog exceeds the
+   * given maximum. The signal can be added to the
+   * {@link UploadLoadController} to pause uploads while the handler catches
+   * up.
+   *
+   * @param maxBacklog the maximum number of files waiting for handoff
+   *
+   * @return the signal
+   */
+  public UploadLoadController.PressureSignal backlogSignal(
+      final int maxBacklog) {
+    return new UploadLoadController.PressureSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        return backlog.get() > maxBacklog;
+      }
+
+      @Override
+      public String toString() {
+        return "spoolBacklog(" + maxBacklog + ")";
+      }
+    };
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType) {
+    try {
+      return new SpoolOutputStream(filename, mimeType);
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to create spool file.", ex);
+    }
+  }
+
+  @Override
+  public OutputStream receiveUpload(String filename, String mimeType,
+      boolean retryEnabled, boolean chunkingEnabled, int chunkContentLength,
+      int contentLength) {
+
+    // The spool stream always supports retries because the chunk boundaries
+    // are needed to detect the completion of the upload.
+    return receiveUpload(filename, mimeType);
+  }
+
+  /**
+   * Publishes the spooled file and schedules its handoff.
+   *
+   * @param spooled the spooled file
+   * @param filename the name of the file provided by the client
+   * @param mimeType the mime-type provided by the client
+   * @param length the length of the file in bytes
+   *
+   * @throws IOException if the file cannot be published or scheduled
+   */
+  private void publish(Path spooled, String filename, String mimeType,
+      long length) throws IOException {
+
+    // The client file name is never used in the path to prevent path
+    // traversal.
+    Path ready = readyDir.resolve(UUID.randomUUID().toString());
+    try {
+      Files.move(spooled, ready, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException ex) {
+      Files.deleteIfExists(spooled);
+      throw ex;
+    }
+
+    final SpooledFile file = new SpooledFile(ready, filename, mimeType,
+        length, System.nanoTime());
+
+    backlog.incrementAndGet();
+    backlogBytes.addAndGet(length);
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          handoff(file);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      release(file);
+      throw new IOException("Unable to schedule spool handoff.", ex);
+    }
+
+    log.debug("Spooled upload {} as {}.", filename, ready);
+  }
+
+  /**
+   * Hands the file off to the handler and deletes it once the handler
+   * returns.
+   *
+   * @param file the file to hand off
+   */
+  private void handoff(SpooledFile file) {
+    long latency = System.nanoTime() - file.publishedTime;
+    handoffCount.incrementAndGet();
+    totalHandoffLatency.addAndGet(latency);
+    long max;
+    do {
+      max = maxHandoffLatency.get();
+    }
+    while (latency > max && !maxHandoffLatency.compareAndSet(max, latency));
+
+    try {
+      handler.handle(file);
+    }
+    catch (Exception ex) {
+      log.warn("Spool handler failed for upload {}.", file.getFilename(), ex);
+    }
+    finally {
+      release(file);
+    }
+  }
+
+  /**
+   * Deletes the published file and removes it from the backlog.
+   *
+   * @param file the file to release
+   */
+  private void release(SpooledFile file) {
+    backlog.decrementAndGet();
+    backlogBytes.addAndGet(-file.getLength());
+
+    try {
+      Files.deleteIfExists(file.getPath());
+    }
+    catch (IOException ex) {
+      log.warn("Unable to delete spool file {}.", file.getPath(), ex);
+    }
+  }
+
+  /**
+   * A handler that receives the completed files. The handler is called on
+   * a worker thread of the receiver's executor and must be thread safe.
+   */
+  public interface SpoolHandler {
+
+    /**
+     * Called when an upload is completed and published in the spool. The
+     * file is deleted when this method returns so it must be moved or copied
+     * to be kept.
+     *
+     * @param file the completed file
+     *
+     * @throws Exception if the file cannot be handled
+     */
+    void handle(SpooledFile file) throws Exception;
+  }
+
+  /**
+   * A completed upload published in the spool.
+   */
+  public static class SpooledFile {
+
+    private final Path path;
+    private final String filename;
+    private final String mimeType;
+    private final long length;
+    private final long publishedTime;
+
+    /**
+     * Constructs the file.
+     *
+     * @param path the path of the published file
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     * @param length the length of the file in bytes
+     * @param publishedTime the {@link System#nanoTime()} of the publication
+     */
+    private SpooledFile(Path path, String filename, String mimeType,
+        long length, long publishedTime) {
+      this.path = path;
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.length = length;
+      this.publishedTime = publishedTime;
+    }
+
+    /**
+     * Returns the path of the published file in the spool.
+     *
+     * @return the path
+     */
+    public Path getPath() {
+      return path;
+    }
+
+    /**
+     * Returns the name of the file provided by the client.
+     *
+     * @return the file name
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Returns the mime-type provided by the client.
+     *
+     * @return the mime-type
+     */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /**
+     * Returns the length of the file in bytes.
+     *
+     * @return the length
+     */
+    public long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * An output stream that writes to a spool file. Retried chunks are
+   * discarded by truncating the spool file to the length of the last
+   * completed chunk and the file is published when the stream is closed
+   * after the last chunk ended with {@link #chunkEnd(int, int)}.
+   */
+  private class SpoolOutputStream extends RetryableOutputStream {
+
+    private final String filename;
+    private final String mimeType;
+    private final Path spooled;
+    private final RandomAccessFile spooledStream;
+    private long committedLength;
+    private boolean complete;
+    private boolean closed;
+
+    /**
+     * Constructs the stream and creates the spool file.
+     *
+     * @param filename the name of the file provided by the client
+     * @param mimeType the mime-type provided by the client
+     *
+     * @throws IOException if the spool file cannot be created
+     */
+    public SpoolOutputStream(String filename, String mimeType) throws
+        IOException {
+      this.filename = filename;
+      this.mimeType = mimeType;
+      this.spooled = Files.createTempFile(spoolDir, "upload", ".tmp");
+      this.spooledStream = new RandomAccessFile(spooled.toFile(), "rw");
+
+      activeCount.incrementAndGet();
+    }
+
+    @Override
+    public void chunkStart(int chunkIndex, int chunkCount) throws IOException {
+      complete = false;
+
+      // Discard anything written since the last completed chunk.
+      spooledStream.setLength(committedLength);
+      spooledStream.seek(committedLength);
+    }
+
+    @Override
+    public void chunkEnd(int chunkIndex, int chunkCount) throws IOException {
+      committedLength = spooledStream.getFilePointer();
+      complete = chunkIndex + 1 == chunkCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      spooledStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      spooledStream.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+
+      super.close();
+      activeCount.decrementAndGet();
+
+      spooledStream.close();
+
+      // Only a file that ended with a completed last chunk is published. A
+      // close without it means the upload failed or was interrupted and the
+      // spooled data may be truncated.
+      if (!complete) {
+        Files.deleteIfExists(spooled);
+        return;
+      }
+
+      publish(spooled, filename, mimeType, committedLength);
+    }
+  }
+}
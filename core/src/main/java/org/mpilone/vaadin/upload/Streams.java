@@ -73,6 +73,32 @@ public class Streams {
     return filename;
   }
 
+  /**
+   * Parses a content length sent by the client. Lengths are parsed as longs
+   * because files of 2 GiB or more are common.
+   *
+   * @param value the parameter value or null
+   * @param defaultValue the length to return if the value is null
+   *
+   * @return the content length
+   */
+  public static long parseLength(String value, long defaultValue) {
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
+  /**
+   * Converts a content length to the int length passed to an
+   * {@link Html5Receiver}. Lengths of 2 GiB or more are clamped to
+   * {@link Integer#MAX_VALUE}.
+   *
+   * @param length the content length
+   *
+   * @return the clamped length
+   */
+  public static int toReceiverLength(long length) {
+    return (int) Math.min(Integer.MAX_VALUE, length);
+  }
+
   /**
    * Reads the entire input stream into a String using UTF-8 encoding and
    * returns the String.
@@ -105,6 +131,51 @@ public class Streams {
     }
   }
 
+  /**
+   * Encodes the given bytes as a lower case hex string.
+   *
+   * @param data the bytes to encode
+   *
+   * @return the hex string
+   */
+  public static String toHex(byte[] data) {
+    char[] hex = new char[data.length * 2];
+
+    for (int i = 0; i < data.length; i++) {
+      hex[i * 2] = Character.forDigit((data[i] >> 4) & 0xF, 16);
+      hex[i * 2 + 1] = Character.forDigit(data[i] & 0xF, 16);
+    }
+
+    return new String(hex);
+  }
+
+  /**
+   * Decodes the given hex string into bytes.
+   *
+   * @param hex the hex string to decode
+   *
+   * @return the decoded bytes
+   * @throws IllegalArgumentException if the string is not valid hex
+   */
+  public static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid hex string: " + hex);
+    }
+
+    byte[] data = new byte[hex.length() / 2];
+    for (int i = 0; i < data.length; i++) {
+      int hi = Character.digit(hex.charAt(i * 2), 16);
+      int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+      if (hi < 0 || lo < 0) {
+        throw new IllegalArgumentException("Invalid hex string: " + hex);
+      }
+      data[i] = (byte) ((hi << 4) + lo);
+    }
+
+    return data;
+  }
+
   /**
    * Copies all the data from the given input file stream to the output stream.
    *
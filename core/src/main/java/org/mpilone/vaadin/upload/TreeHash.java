@@ -0,0 +1,120 @@
+package org.mpilone.vaadin.upload;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A whole file hash that is built incrementally from the hashes of the
+ * individual chunks of an upload. The chunk hashes may be added in any order;
+ * each one is folded into the running digest as soon as all the chunks before
+ * it are available so only the hashes of out of order chunks are held in
+ * memory. The final value is the {@link #ALGORITHM} digest of the concatenated
+ * chunk digests or, for a single chunk upload, the chunk digest itself (i.e.
+ * the plain {@link #ALGORITHM} hash of the file). Because the value depends on
+ * the chunk boundaries, two uploads of the same content only produce the same
+ * hash if they use the same chunk size.
+ *
+ * @author mpilone
+ */
+public class TreeHash {
+
+  /**
+   * The digest algorithm used for the chunk hashes and the tree hash.
+   */
+  public static final String ALGORITHM = "SHA-256";
+
+  /**
+   * The running digest of the chunk hashes folded so far.
+   */
+  private final MessageDigest digest = newDigest();
+
+  /**
+   * The chunk hashes that arrived before one or more of the preceding chunks.
+   */
+  private final Map<Integer, byte[]> pending = new HashMap<>();
+
+  /**
+   * The hash of the first chunk which is the final value if the upload only
+   * has a single chunk.
+   */
+  private byte[] firstChunkHash;
+
+  /**
+   * The index of the next chunk hash to be folded into the digest.
+   */
+  private int nextIndex;
+
+  /**
+   * The final hex encoded value or null if not all chunks have been added.
+   */
+  private String value;
+
+  /**
+   * Adds the hash of the given chunk to the tree. Adding a chunk that has
+   * already been added (for example after a retry) is ignored.
+   *
+   * @param chunkIndex the index of the chunk (0 based)
+   * @param chunkCount the total count of chunks to expect
+   * @param chunkHash the hex encoded {@link #ALGORITHM} hash of the chunk data
+   */
+  public void put(int chunkIndex, int chunkCount, String chunkHash) {
+    if (value != null || chunkIndex < nextIndex) {
+      return;
+    }
+
+    pending.put(chunkIndex, Streams.fromHex(chunkHash));
+
+    byte[] leaf;
+    while ((leaf = pending.remove(nextIndex)) != null) {
+      if (nextIndex == 0) {
+        firstChunkHash = leaf;
+      }
+
+      digest.update(leaf);
+      nextIndex++;
+    }
+
+    if (nextIndex >= chunkCount) {
+      value = Streams.toHex(chunkCount == 1 ? firstChunkHash : digest.digest());
+      firstChunkHash = null;
+    }
+  }
+
+  /**
+   * Returns true if the hashes of all the chunks have been added and the final
+   * value is available.
+   *
+   * @return true if the hash is complete
+   */
+  public boolean isComplete() {
+    return value != null;
+  }
+
+  /**
+   * Returns the hex encoded tree hash or null if the hashes of one or more
+   * chunks are still missing.
+   *
+   * @return the hash value or null
+   */
+  public String getValue() {
+    return value;
+  }
+
+  /**
+   * Creates a new message digest for the {@link #ALGORITHM}.
+   *
+   * @return the new digest
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    }
+    catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException("Unable to create " + ALGORITHM
+          + " digest.", ex);
+    }
+  }
+}
@@ -0,0 +1,530 @@
+package org.mpilone.vaadin.upload;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * <p>
+ * A node wide controller that pauses in-flight uploads at chunk boundaries
+ * when the node is under pressure and resumes them once the pressure is gone.
+ * Parking uploads during a storage backend slowdown is usually better than
+ * failing them or letting them pile up request threads. Every upload component
+ * registers itself with the controller while it is attached.
+ * </p>
+ * <p>
+ * The pressure is determined by the configured {@link PressureSignal}s which
+ * are checked periodically once the controller is started. If any signal
+ * reports pressure, all uploading components are paused. A {@link LimitSignal}
+ * such as {@link #activeUploads(int, int)} instead reports how many uploads
+ * are above its limit and only that many are paused.
+ * </p>
+ * <p>
+ * To keep uploads from flapping between paused and resumed, the paused
+ * uploads are only resumed once no signal has reported pressure for the
+ * {@link #setMinPauseTime(long, java.util.concurrent.TimeUnit) minimum
+ * pause time} and a limit signal only lets as many uploads resume as fit
+ * below its separate resume threshold. Uploads can also be paused and resumed
+ * manually with {@link #pauseAll()} and {@link #resumeAll()}.
+ * </p>
+ *
+ * @author mpilone
+ */
+public class UploadLoadController {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      UploadLoadController.class);
+
+  /**
+   * The singleton instance for the node.
+   */
+  private final static UploadLoadController INSTANCE =
+      new UploadLoadController();
+
+  private final Set<AbstractHtml5Upload> uploads = Collections.
+      newSetFromMap(new WeakHashMap<AbstractHtml5Upload, Boolean>());
+  private final Set<AbstractHtml5Upload> pausedUploads = Collections.
+      newSetFromMap(new WeakHashMap<AbstractHtml5Upload, Boolean>());
+  private final List<PressureSignal> signals = new CopyOnWriteArrayList<>();
+  private ScheduledExecutorService scheduler;
+  private volatile boolean shedding;
+  private volatile long minPauseTime = TimeUnit.SECONDS.toNanos(10);
+  private long lastPressureTime;
+
+  /**
+   * Returns the controller for this node.
+   *
+   * @return the controller instance
+   */
+  public static UploadLoadController getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Constructs the controller. Use {@link #getInstance()} for the controller
+   * of the node.
+   */
+  UploadLoadController() {
+  }
+
+  /**
+   * Registers an upload component with the controller.
+   *
+   * @param upload the upload component
+   */
+  void register(AbstractHtml5Upload upload) {
+    synchronized (uploads) {
+      uploads.add(upload);
+    }
+  }
+
+  /**
+   * Unregisters an upload component from the controller.
+   *
+   * @param upload the upload component
+   */
+  void unregister(AbstractHtml5Upload upload) {
+    synchronized (uploads) {
+      uploads.remove(upload);
+      pausedUploads.remove(upload);
+    }
+  }
+
+  /**
+   * Adds a signal that is checked to determine if the node is under pressure.
+   *
+   * @param signal the signal to add
+   */
+  public void addSignal(PressureSignal signal) {
+    signals.add(signal);
+  }
+
+  /**
+   * Removes a previously added signal.
+   *
+   * @param signal the signal to remove
+   */
+  public void removeSignal(PressureSignal signal) {
+    signals.remove(signal);
+  }
+
+  /**
+   * Starts checking the signals periodically. If the controller is already
+   * started, it is restarted with the new interval.
+   *
+   * @param interval the interval between checks
+   * @param unit the unit of the interval
+   */
+  public synchronized void start(long interval, TimeUnit unit) {
+    stop();
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "html5-upload-load-controller");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          check();
+        }
+        catch (RuntimeException ex) {
+          log.warn("Failed to check upload pressure signals.", ex);
+        }
+      }
+    }, interval, interval, unit);
+  }
+
+  /**
+   * Stops checking the signals. Uploads paused by the controller are not
+   * resumed automatically.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Returns the minimum time in milliseconds uploads stay paused after the
+   * last check that found pressure.
+   *
+   * @return the minimum pause time in milliseconds
+   */
+  public long getMinPauseTime() {
+    return TimeUnit.NANOSECONDS.toMillis(minPauseTime);
+  }
+
+  /**
+   * Sets the minimum time uploads stay paused after the last check that found
+   * pressure. The uploads paused by the controller are only resumed once no
+   * signal has reported pressure for this long. The default is 10 seconds.
+   *
+   * @param time the minimum pause time
+   * @param unit the unit of the time
+   */
+  public void setMinPauseTime(long time, TimeUnit unit) {
+    this.minPauseTime = unit.toNanos(Math.max(0, time));
+  }
+
+  /**
+   * Returns true if the last check found the node under pressure and the
+   * uploads are being paused.
+   *
+   * @return true if uploads are being shed
+   */
+  public boolean isShedding() {
+    return shedding;
+  }
+
+  /**
+   * Checks the signals and pauses or resumes the uploads accordingly.
+   */
+  synchronized void check() {
+    long now = System.nanoTime();
+    boolean pressure = false;
+    int excess = 0;
+    int headroom = Integer.MAX_VALUE;
+
+    for (PressureSignal signal : signals) {
+      if (signal instanceof LimitSignal) {
+        LimitSignal limit = (LimitSignal) signal;
+        excess = Math.max(excess, limit.getExcess());
+        headroom = Math.min(headroom, limit.getHeadroom());
+      }
+      else if (signal.isUnderPressure()) {
+        log.debug("Upload pressure signal {} is active.", signal);
+        pressure = true;
+      }
+    }
+
+    if (pressure) {
+      // Keep pausing because new uploads may have started since the last
+      // check.
+      shedding = true;
+      lastPressureTime = now;
+      pauseAll();
+    }
+    else if (excess > 0) {
+      shedding = true;
+      lastPressureTime = now;
+
+      // Uploads paused by an earlier check keep streaming until their chunk
+      // ends and are still counted by the limit, so they only cover the
+      // excess rather than being replaced by more pauses.
+      int draining = countDraining();
+      if (excess > draining) {
+        log.debug("Pausing {} uploads above the upload limit ({} draining).",
+            excess - draining, draining);
+        pause(excess - draining);
+      }
+    }
+    else if (shedding && now - lastPressureTime >= minPauseTime
+        && headroom > 0) {
+      shedding = resume(headroom) > 0;
+    }
+  }
+
+  /**
+   * Returns the number of uploads paused by the controller that are still
+   * streaming the chunk in progress.
+   *
+   * @return the number of draining uploads
+   */
+  private int countDraining() {
+    int draining = 0;
+    for (AbstractHtml5Upload upload : snapshot(pausedUploads)) {
+      if (upload.isStreaming()) {
+        draining++;
+      }
+    }
+    return draining;
+  }
+
+  /**
+   * Pauses all the uploads in progress on this node at the next chunk
+   * boundary.
+   */
+  public void pauseAll() {
+    pause(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Pauses up to the given number of the uploads in progress on this node at
+   * the next chunk boundary.
+   *
+   * @param count the maximum number of uploads to pause
+   */
+  private void pause(int count) {
+    final AtomicInteger remaining = new AtomicInteger(count);
+
+    for (final AbstractHtml5Upload upload : snapshot(uploads)) {
+      access(upload, new Runnable() {
+        @Override
+        public void run() {
+          if (upload.isUploading() && !upload.isPaused()
+              && remaining.getAndDecrement() > 0) {
+            upload.pauseUpload();
+
+            synchronized (uploads) {
+              pausedUploads.add(upload);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Resumes all the uploads paused by the controller.
+   */
+  public void resumeAll() {
+    resume(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Resumes up to the given number of the uploads paused by the controller.
+   *
+   * @param count the maximum number of uploads to resume
+   *
+   * @return the number of uploads that remain paused by the controller
+   */
+  private int resume(int count) {
+    List<AbstractHtml5Upload> paused = new ArrayList<>();
+    int remaining;
+    synchronized (uploads) {
+      Iterator<AbstractHtml5Upload> iter = pausedUploads.iterator();
+      while (iter.hasNext() && paused.size() < count) {
+        paused.add(iter.next());
+        iter.remove();
+      }
+      remaining = pausedUploads.size();
+    }
+
+    for (final AbstractHtml5Upload upload : paused) {
+      access(upload, new Runnable() {
+        @Override
+        public void run() {
+          upload.resumeUpload();
+        }
+      });
+    }
+    return remaining;
+  }
+
+  /**
+   * Returns a copy of the given set of uploads.
+   *
+   * @param set the set to copy
+   *
+   * @return the copy
+   */
+  private List<AbstractHtml5Upload> snapshot(Set<AbstractHtml5Upload> set) {
+    synchronized (uploads) {
+      return new ArrayList<>(set);
+    }
+  }
+
+  /**
+   * Runs the given task with the session of the upload locked.
+   *
+   * @param upload the upload component
+   * @param task the task to run
+   */
+  void access(AbstractHtml5Upload upload, Runnable task) {
+    UI ui = upload.getUI();
+    if (ui != null) {
+      try {
+        ui.access(task);
+      }
+      catch (UIDetachedException ex) {
+        // Ignore. The upload is going away.
+      }
+    }
+  }
+
+  /**
+   * A signal that indicates if the node is under pressure and uploads should
+   * be paused. Signals are checked from the controller thread and must be
+   * thread safe.
+   */
+  public interface PressureSignal {
+
+    /**
+     * Returns true if the node is under pressure.
+     *
+     * @return true if uploads should be paused
+     */
+    boolean isUnderPressure();
+  }
+
+  /**
+   * A signal with a limit on the number of uploads. Rather than pausing all
+   * the uploads, the controller only pauses the uploads above the limit and
+   * resumes paused uploads while there is room below the resume threshold of
+   * the signal. Signals are checked from the controller thread and must be
+   * thread safe.
+   */
+  public interface LimitSignal extends PressureSignal {
+
+    /**
+     * Returns the number of uploads above the limit that should be paused.
+     *
+     * @return the number of uploads to pause or 0 if the limit is not
+     * exceeded
+     */
+    int getExcess();
+
+    /**
+     * Returns the number of paused uploads that can be resumed without
+     * reaching the resume threshold.
+     *
+     * @return the number of uploads that may be resumed or 0 if none
+     */
+    int getHeadroom();
+  }
+
+  /**
+   * Returns a signal that reports pressure when the used heap exceeds the
+   * given fraction of the maximum heap.
+   *
+   * @param maxFraction the maximum used fraction (e.g. 0.85)
+   *
+   * @return the signal
+   */
+  public static PressureSignal heapUsage(final double maxFraction) {
+    return new PressureSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * maxFraction;
+      }
+
+      @Override
+      public String toString() {
+        return "heapUsage(" + maxFraction + ")";
+      }
+    };
+  }
+
+  /**
+   * Returns a signal that limits the number of requests streaming upload data
+   * on this node to the given maximum. Only the uploads above the maximum are
+   * paused and they are resumed as the count falls. This is the same as
+   * {@link #activeUploads(int, int)} with the maximum as the resume
+   * threshold.
+   *
+   * @param maxUploads the maximum number of active uploads
+   *
+   * @return the signal
+   */
+  public static LimitSignal activeUploads(int maxUploads) {
+    return activeUploads(maxUploads, maxUploads);
+  }
+
+  /**
+   * Returns a signal that limits the number of requests streaming upload data
+   * on this node to the given maximum. Only the uploads above the maximum are
+   * paused. Because paused uploads don't stream, the count drops while
+   * uploads are paused, so paused uploads are only resumed while the count is
+   * below the resume threshold and only as many as fit below it. A paused
+   * upload keeps streaming until its chunk ends, so the controller doesn't
+   * pause more uploads for the excess that is still draining.
+   *
+   * @param maxUploads the maximum number of active uploads
+   * @param resumeUploads the number of active uploads below which paused
+   * uploads are resumed (at most the maximum)
+   *
+   * @return the signal
+   */
+  public static LimitSignal activeUploads(final int maxUploads,
+      int resumeUploads) {
+    final int resumeThreshold = Math.min(maxUploads, resumeUploads);
+
+    return new LimitSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        return getExcess() > 0;
+      }
+
+      @Override
+      public int getExcess() {
+        return Math.max(0, Html5FileUploadHandler.getActiveUploadCount()
+            - maxUploads);
+      }
+
+      @Override
+      public int getHeadroom() {
+        return Math.max(0, resumeThreshold - Html5FileUploadHandler.
+            getActiveUploadCount());
+      }
+
+      @Override
+      public String toString() {
+        return "activeUploads(" + maxUploads + ", " + resumeThreshold + ")";
+      }
+    };
+  }
+
+  /**
+   * Returns a signal that reports pressure when the number of I/O requests in
+   * flight on the given block device exceeds the given maximum. The value is
+   * read from {@code /sys/block/[device]/inflight} so the signal is only
+   * supported on Linux; on other platforms it never reports pressure.
+   *
+   * @param device the block device name (e.g. "sda")
+   * @param maxDepth the maximum queue depth
+   *
+   * @return the signal
+   */
+  public static PressureSignal diskQueueDepth(final String device,
+      final int maxDepth) {
+    final Path inflight = Paths.get("/sys/block", device, "inflight");
+
+    return new PressureSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        try {
+          // The file contains the reads and writes in flight.
+          String[] values = new String(Files.readAllBytes(inflight),
+              StandardCharsets.US_ASCII).trim().split("\\s+");
+
+          int depth = 0;
+          for (String value : values) {
+            depth += Integer.parseInt(value);
+          }
+          return depth > maxDepth;
+        }
+        catch (IOException | NumberFormatException ex) {
+          return false;
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "diskQueueDepth(" + device + ", " + maxDepth + ")";
+      }
+    };
+  }
+}
@@ -0,0 +1,1314 @@
+/*
+ * Client side support shared by all the HTML5 upload connectors. This script
+ * is loaded before the connector of each upload implementation.
+ */
+window.org_mpilone_vaadin_upload_html5upload = window.org_mpilone_vaadin_upload_html5upload || (function() {
+
+  /*
+   * The name of the request parameter that carries the chunk checksum. This
+   * must match Html5FileUploadHandler.CHECKSUM_PARAM.
+   */
+  var CHECKSUM_PARAM = "checksum";
+
+  /*
+   * The digest algorithm used for chunk checksums. This must match
+   * TreeHash.ALGORITHM.
+   */
+  var CHECKSUM_ALGORITHM = "SHA-256";
+
+  /*
+   * The name of the URL parameter that marks a batch request. This must 
+   * match Html5FileUploadHandler.BATCH_PARAM.
+   */
+  var BATCH_PARAM = "batch";
+
+  /*
+   * The default number of parts of a file PUT to the object store in 
+   * parallel.
+   */
+  var DEFAULT_OBJECT_STORE_PARALLEL = 3;
+
+  /*
+   * The default number of milliseconds between the polls of the server 
+   * while an object store upload waits for the server to start or complete 
+   * it.
+   */
+  var DEFAULT_OBJECT_STORE_POLL_MS = 500;
+
+  /*
+   * Simple method for logging to the JS console if one is available.
+   */
+  function console_log(msg) {
+    if (window.console) {
+      console.log(msg);
+    }
+  }
+
+  /*
+   * The scripts loaded (or being loaded) by loadScript by URL. Each entry 
+   * has the flag loaded and the callbacks waiting for the script.
+   */
+  var scripts = {};
+
+  /**
+   * Loads the script at the given URL once per page. The callback is called 
+   * when the script is loaded, immediately if it was already loaded by an 
+   * earlier call. If the script fails to load, the callbacks are not called 
+   * and the next call tries again.
+   *
+   * @param {String} url the URL of the script
+   * @param {Function} callback called when the script is loaded
+   * @returns {undefined}
+   */
+  function loadScript(url, callback) {
+    var entry = scripts[url];
+    if (entry && entry.loaded) {
+      callback();
+      return;
+    }
+    else if (entry) {
+      entry.callbacks.push(callback);
+      return;
+    }
+
+    entry = scripts[url] = {loaded: false, callbacks: [callback]};
+
+    var script = document.createElement("script");
+    script.src = url;
+    script.async = true;
+    script.onload = function() {
+      entry.loaded = true;
+      var callbacks = entry.callbacks;
+      entry.callbacks = [];
+      for (var i = 0; i < callbacks.length; i++) {
+        callbacks[i]();
+      }
+    };
+    script.onerror = function() {
+      console_log("Unable to load script: " + url);
+      delete scripts[url];
+    };
+    document.getElementsByTagName("head")[0].appendChild(script);
+  }
+
+  /**
+   * Calls the callback once the given element is first visible in the 
+   * viewport. Without IntersectionObserver support in the browser, the 
+   * callback is called immediately.
+   *
+   * @param {Element} element the element to watch
+   * @param {Function} callback called when the element is visible
+   * @returns {Function} a function that cancels the callback if it hasn't 
+   * been called yet
+   */
+  function whenVisible(element, callback) {
+    if (!window.IntersectionObserver) {
+      callback();
+      return function() {};
+    }
+
+    var observer = new IntersectionObserver(function(entries) {
+      for (var i = 0; i < entries.length; i++) {
+        if (entries[i].isIntersecting) {
+          observer.disconnect();
+          callback();
+          return;
+        }
+      }
+    });
+    observer.observe(element);
+
+    return function() {
+      observer.disconnect();
+    };
+  }
+
+  /**
+   * Encodes the given array buffer as a lower case hex string.
+   *
+   * @param {ArrayBuffer} buffer the data to encode
+   * @returns {String} the hex string
+   */
+  function toHex(buffer) {
+    var bytes = new Uint8Array(buffer);
+    var hex = "";
+    for (var i = 0; i < bytes.length; i++) {
+      hex += (bytes[i] < 16 ? "0" : "") + bytes[i].toString(16);
+    }
+    return hex;
+  }
+
+  /**
+   * Returns true if checksums can be computed in this browser. The Web Crypto
+   * API is only available in secure (i.e. HTTPS) contexts in most browsers.
+   *
+   * @returns {Boolean} true if checksums are supported
+   */
+  function isChecksumSupported() {
+    return !!(window.crypto && window.crypto.subtle && window.FileReader
+            && window.Uint8Array);
+  }
+
+  /**
+   * Decodes the given hex string into a byte array.
+   *
+   * @param {String} hex the hex string to decode
+   * @returns {Uint8Array} the decoded bytes
+   */
+  function fromHex(hex) {
+    var bytes = new Uint8Array(hex.length / 2);
+    for (var i = 0; i < bytes.length; i++) {
+      bytes[i] = parseInt(hex.substr(i * 2, 2), 16);
+    }
+    return bytes;
+  }
+
+  /*
+   * The body of the Web Worker that computes the chunk checksums off the 
+   * UI thread. The function is serialized into a Blob URL so it must not 
+   * reference anything outside of its own body.
+   */
+  function checksumWorker() {
+    self.onmessage = function(e) {
+      var blob = e.data.blob;
+      var chunkSize = e.data.chunkSize;
+      var count = e.data.count;
+      var reader = new FileReaderSync();
+      var checksums = [];
+
+      var toHex = function(buffer) {
+        var bytes = new Uint8Array(buffer);
+        var hex = "";
+        for (var i = 0; i < bytes.length; i++) {
+          hex += (bytes[i] < 16 ? "0" : "") + bytes[i].toString(16);
+        }
+        return hex;
+      };
+
+      var next = function() {
+        if (checksums.length === count) {
+          self.postMessage({checksums: checksums});
+          return;
+        }
+
+        var start = checksums.length * chunkSize;
+        var data = reader.readAsArrayBuffer(blob.slice(start,
+                Math.min(start + chunkSize, blob.size)));
+
+        self.crypto.subtle.digest(e.data.algorithm, data).then(
+                function(hash) {
+                  checksums.push(toHex(hash));
+                  next();
+                },
+                function(err) {
+                  self.postMessage({error: String(err)});
+                });
+      };
+
+      next();
+    };
+  }
+
+  /*
+   * The Blob URL of the worker script, created on first use.
+   */
+  var checksumWorkerUrl;
+
+  /**
+   * Creates a new checksum worker or returns null if workers are not 
+   * available (or are blocked by a content security policy).
+   *
+   * @returns {Worker} the new worker or null
+   */
+  function createChecksumWorker() {
+    if (!window.Worker || !window.URL || !window.URL.createObjectURL) {
+      return null;
+    }
+
+    try {
+      if (!checksumWorkerUrl) {
+        checksumWorkerUrl = window.URL.createObjectURL(new Blob(
+                ["(" + checksumWorker.toString() + ")();"],
+                {type: "application/javascript"}));
+      }
+      return new Worker(checksumWorkerUrl);
+    }
+    catch (ex) {
+      console_log("Unable to create checksum worker: " + ex);
+      return null;
+    }
+  }
+
+  /**
+   * Computes the checksums of the chunks on the UI thread. The chunks are 
+   * read one at a time to limit memory use.
+   *
+   * @param {Blob} blob the file to compute the checksums for
+   * @param {Number} chunkSize the normalized size of each chunk
+   * @param {Number} count the number of chunks
+   * @param {Function} callback called with the array of checksums or null
+   * @returns {undefined}
+   */
+  function computeChecksumsInline(blob, chunkSize, count, callback) {
+    var checksums = [];
+
+    var next = function() {
+      var index = checksums.length;
+      if (index === count) {
+        callback(checksums);
+        return;
+      }
+
+      var start = index * chunkSize;
+      var reader = new FileReader();
+      reader.onload = function() {
+        window.crypto.subtle.digest(CHECKSUM_ALGORITHM, reader.result).then(
+                function(hash) {
+                  checksums.push(toHex(hash));
+                  next();
+                },
+                function(err) {
+                  console_log("Unable to compute checksum: " + err);
+                  callback(null);
+                });
+      };
+      reader.onerror = function() {
+        console_log("Unable to read file for checksum.");
+        callback(null);
+      };
+      reader.readAsArrayBuffer(blob.slice(start,
+              Math.min(start + chunkSize, blob.size)));
+    };
+
+    next();
+  }
+
+  /**
+   * Computes the checksum of each chunk of the given blob. The chunk
+   * boundaries match the ones used by the uploaders: if chunking is disabled
+   * or the blob is not larger than the chunk size, a single checksum is
+   * computed for the entire blob. The work is done in a Web Worker when 
+   * possible to keep the UI responsive while hashing large files.
+   *
+   * @param {Blob} blob the file to compute the checksums for
+   * @param {Number} chunkSize the size of each chunk or 0 for no chunking
+   * @param {Function} callback called with the array of hex encoded checksums
+   * or null if the checksums could not be computed
+   * @returns {undefined}
+   */
+  function computeChecksums(blob, chunkSize, callback) {
+    if (!isChecksumSupported() || !(window.Blob && blob instanceof Blob)) {
+      callback(null);
+      return;
+    }
+
+    if (!chunkSize || chunkSize <= 0 || blob.size <= chunkSize) {
+      chunkSize = blob.size;
+    }
+
+    var count = chunkSize > 0 ? Math.ceil(blob.size / chunkSize) : 1;
+
+    var worker = createChecksumWorker();
+    if (!worker) {
+      computeChecksumsInline(blob, chunkSize, count, callback);
+      return;
+    }
+
+    worker.onmessage = function(e) {
+      worker.terminate();
+
+      if (e.data.error) {
+        console_log("Unable to compute checksum in worker: " + e.data.error);
+        computeChecksumsInline(blob, chunkSize, count, callback);
+      }
+      else {
+        callback(e.data.checksums);
+      }
+    };
+    worker.onerror = function(e) {
+      worker.terminate();
+      e.preventDefault();
+
+      console_log("Checksum worker failed: " + e.message);
+      computeChecksumsInline(blob, chunkSize, count, callback);
+    };
+    worker.postMessage({
+      blob: blob,
+      chunkSize: chunkSize,
+      count: count,
+      algorithm: CHECKSUM_ALGORITHM
+    });
+  }
+
+  /**
+   * Computes the tree hash of a file from its chunk checksums. This must 
+   * match the value computed by TreeHash on the server: the checksum itself 
+   * for a single chunk or the digest of the concatenated chunk digests.
+   *
+   * @param {Array} checksums the checksums computed by computeChecksums or null
+   * @param {Function} callback called with the hex encoded tree hash or null
+   * @returns {undefined}
+   */
+  function computeTreeHash(checksums, callback) {
+    if (!checksums || checksums.length === 0) {
+      callback(null);
+    }
+    else if (checksums.length === 1) {
+      callback(checksums[0]);
+    }
+    else {
+      var leaves = fromHex(checksums.join(""));
+      window.crypto.subtle.digest(CHECKSUM_ALGORITHM, leaves).then(
+              function(hash) {
+                callback(toHex(hash));
+              },
+              function(err) {
+                console_log("Unable to compute tree hash: " + err);
+                callback(null);
+              });
+    }
+  }
+
+  /**
+   * Returns the request parameters for the chunk at the given index.
+   *
+   * @param {Array} checksums the checksums computed by computeChecksums or null
+   * @param {Number} index the index of the chunk to be sent
+   * @returns {Object} the parameters to send with the chunk (may be empty)
+   */
+  function checksumParams(checksums, index) {
+    var params = {};
+    if (checksums && index >= 0 && index < checksums.length) {
+      params[CHECKSUM_PARAM] = checksums[index];
+    }
+    return params;
+  }
+
+  /**
+   * Creates a sender that packs many small files into batch requests. Each 
+   * batch is a single multipart request that contains the fields and the 
+   * data of up to maxFiles files (and about maxBytes bytes). The batches are 
+   * sent one at a time until the queue is empty.
+   *
+   * @param {Object} options the url, maxFiles and maxBytes of the batches 
+   * and the callbacks onBatch(entries, results) called with the queued 
+   * entries and the parsed per-file results (or null if the request failed) 
+   * of each batch and onIdle() called when the queue is empty
+   * @returns {Object} the sender with the functions add(file, name, fields), 
+   * start(), abort() and isBusy()
+   */
+  function createBatchSender(options) {
+    var queue = [];
+    var xhr = null;
+
+    var sendNext = function() {
+      if (queue.length === 0) {
+        if (options.onIdle) {
+          options.onIdle();
+        }
+        return;
+      }
+
+      // Take files until the batch is full. A single large file is still 
+      // sent on its own.
+      var entries = [];
+      var bytes = 0;
+      while (queue.length > 0 && entries.length < options.maxFiles
+          && (entries.length === 0 || bytes + queue[0].file.size 
+          <= options.maxBytes)) {
+        var entry = queue.shift();
+        bytes += entry.file.size;
+        entries.push(entry);
+      }
+
+      var formData = new FormData();
+      for (var i = 0; i < entries.length; i++) {
+        for (var name in entries[i].fields) {
+          formData.append(name, entries[i].fields[name]);
+        }
+        formData.append("file", entries[i].file, entries[i].name);
+      }
+
+      var url = options.url + (options.url.indexOf("?") < 0 ? "?" : "&")
+          + BATCH_PARAM + "=" + entries.length;
+
+      console_log("Sending batch of " + entries.length + " files.");
+      xhr = new XMLHttpRequest();
+      xhr.open("POST", url, true);
+      xhr.onload = function() {
+        xhr = null;
+
+        var results = null;
+        try {
+          results = JSON.parse(this.responseText);
+        }
+        catch (ex) {
+          console_log("Unable to parse batch response: " + ex);
+        }
+
+        options.onBatch(entries, results);
+        sendNext();
+      };
+      xhr.onerror = function() {
+        xhr = null;
+        options.onBatch(entries, null);
+        sendNext();
+      };
+      xhr.send(formData);
+    };
+
+    return {
+      add: function(file, name, fields) {
+        queue.push({file: file, name: name, fields: fields || {}});
+      },
+      start: function() {
+        if (!xhr) {
+          sendNext();
+        }
+      },
+      abort: function() {
+        queue = [];
+        if (xhr) {
+          var current = xhr;
+          xhr = null;
+          current.onload = current.onerror = null;
+          current.abort();
+        }
+      },
+      isBusy: function() {
+        return xhr !== null || queue.length > 0;
+      }
+    };
+  }
+
+  /**
+   * Returns true if files can be uploaded over a WebSocket in this browser.
+   *
+   * @returns {Boolean} true if socket uploads are supported
+   */
+  function isSocketSupported() {
+    return !!(window.WebSocket && window.Blob && window.JSON);
+  }
+
+  /**
+   * Converts the given HTTP URL (which may be relative to the page) to the 
+   * equivalent WebSocket URL.
+   *
+   * @param {String} url the HTTP URL
+   * @returns {String} the absolute WebSocket URL
+   */
+  function toSocketUrl(url) {
+    var a = document.createElement("a");
+    a.href = url;
+    return a.href.replace(/^http/, "ws");
+  }
+
+  /**
+   * Returns true if the given URL (which may be relative to the page) is on 
+   * another origin than the page, such as a separate ingest origin.
+   *
+   * @param {String} url the URL
+   * @returns {Boolean} true if the URL is cross-origin
+   */
+  function isCrossOrigin(url) {
+    var a = document.createElement("a");
+    a.href = url;
+    a.href = a.href;
+    return a.protocol + "//" + a.host !== window.location.protocol + "//" 
+        + window.location.host;
+  }
+
+  /**
+   * Creates a sender that uploads files over a WebSocket channel. Each chunk 
+   * is sent as a text header message followed by a binary message with the 
+   * chunk data. The server acknowledges every chunk with the response of the 
+   * stream variable and allows at most window unacknowledged chunks (the 
+   * window is announced by the server when the socket opens). The files are 
+   * sent one at a time and a file fails as a whole if a chunk fails.
+   *
+   * @param {Object} options the url of the channel, the chunkSize (or 0 to 
+   * use the maximum allowed by the server), the 
+   * function chunkParams(index, count, length) returning the parameters of a 
+   * chunk and the callbacks onProgress(entry, loaded, total), onFile(entry, 
+   * response) called with the parsed response of the final chunk (or null 
+   * if the file failed or was aborted) and onIdle() called when the queue is 
+   * empty
+   * @returns {Object} the sender with the functions add(file, name, fields), 
+   * start(), abort() and isBusy()
+   */
+  function createSocketSender(options) {
+    var queue = [];
+    var socket = null;
+    var windowSize = 0;
+    var chunkSize = options.chunkSize;
+    var seq = 0;
+    var current = null;
+
+    var finishFile = function(response) {
+      var entry = current;
+      current = null;
+      options.onFile(entry, response);
+    };
+
+    var pump = function() {
+      if (!current) {
+        if (queue.length === 0) {
+          if (options.onIdle) {
+            options.onIdle();
+          }
+          return;
+        }
+
+        current = queue.shift();
+        current.count = Math.max(1, Math.ceil(current.file.size / chunkSize));
+        current.next = 0;
+        current.inFlight = 0;
+        current.loaded = 0;
+      }
+
+      // Keep the window full. The server processes the messages in order so 
+      // the chunks of the file arrive in sequence.
+      while (current.next < current.count && current.inFlight < windowSize) {
+        var start = current.next * chunkSize;
+        var end = Math.min(start + chunkSize, current.file.size);
+        var params = options.chunkParams(current.next, current.count, 
+            end - start);
+        for (var name in current.fields) {
+          params[name] = current.fields[name];
+        }
+
+        // The parameters are always strings as in an HTTP request.
+        for (name in params) {
+          params[name] = String(params[name]);
+        }
+
+        socket.send(JSON.stringify({
+          seq: seq++,
+          index: current.next,
+          name: current.name,
+          type: current.file.type || "application/octet-stream",
+          params: params
+        }));
+        socket.send(current.file.slice(start, end));
+
+        current.next++;
+        current.inFlight++;
+      }
+    };
+
+    var onAck = function(ack) {
+      if (!current) {
+        return;
+      }
+
+      current.inFlight--;
+
+      var response = null;
+      try {
+        response = ack.response ? JSON.parse(ack.response) : null;
+      }
+      catch (ex) {
+        console_log("Unable to parse socket response: " + ex);
+      }
+
+      if (ack.status !== 200 || !response || !response.success) {
+        // The server rejects the rest of the chunks of a failed file so 
+        // wait for the chunks in flight before moving on.
+        current.failed = true;
+      }
+      else {
+        current.loaded += ack.length;
+        if (options.onProgress) {
+          options.onProgress(current, current.loaded, current.file.size);
+        }
+      }
+
+      if (current.failed) {
+        current.next = current.count;
+        if (current.inFlight === 0) {
+          finishFile(null);
+          pump();
+        }
+      }
+      else if (current.inFlight === 0 && current.next === current.count) {
+        finishFile(response);
+        pump();
+      }
+      else {
+        pump();
+      }
+    };
+
+    var fail = function() {
+      var entries = current ? [current].concat(queue) : queue;
+      current = null;
+      queue = [];
+      socket = null;
+
+      for (var i = 0; i < entries.length; i++) {
+        options.onFile(entries[i], null);
+      }
+      if (options.onIdle) {
+        options.onIdle();
+      }
+    };
+
+    var connect = function() {
+      console_log("Opening upload socket.");
+      socket = new WebSocket(toSocketUrl(options.url));
+      socket.onmessage = function(event) {
+        var message = JSON.parse(event.data);
+
+        if (message.window) {
+          // The channel is ready.
+          windowSize = message.window;
+          chunkSize = chunkSize > 0 ? Math.min(chunkSize, 
+              message.maxChunkSize) : message.maxChunkSize;
+          pump();
+        }
+        else {
+          onAck(message);
+        }
+      };
+      socket.onclose = function() {
+        console_log("Upload socket closed.");
+        fail();
+      };
+    };
+
+    return {
+      add: function(file, name, fields) {
+        queue.push({file: file, name: name, fields: fields || {}});
+      },
+      start: function() {
+        if (!socket) {
+          connect();
+        }
+        else if (windowSize > 0 && !current) {
+          pump();
+        }
+      },
+      abort: function() {
+        var entry = current;
+        queue = [];
+        current = null;
+        if (entry) {
+          options.onFile(entry, null);
+        }
+        if (socket) {
+          var closing = socket;
+          socket = null;
+          closing.onmessage = closing.onclose = null;
+          closing.close();
+        }
+      },
+      isBusy: function() {
+        return current !== null || queue.length > 0;
+      }
+    };
+  }
+
+  /**
+   * Creates a sender that uploads files directly to an object store with a 
+   * multipart upload. The server starts the upload of each file and signs 
+   * the part URLs in batches so the sender calls the connector which asks 
+   * the server over RPC and passes the answers to started(), partsSigned() 
+   * and completed(). The server starts and completes the upload in the 
+   * background and answers with a later response so the sender calls 
+   * poll(entry) while it waits, unless the connector leaves it out because 
+   * the server pushes. The parts of a file are PUT to the presigned URLs in 
+   * parallel and a failed part is retried. The files are sent one at a 
+   * time and a file fails as a whole once a part runs out of retries.
+   *
+   * @param {Object} options the number of parallel part requests, the 
+   * maxRetries of each part, the callbacks to the server begin(entry), 
+   * sign(entry, firstPart), complete(entry, etags) and abort(entry, 
+   * reason), the optional poll(entry) called every pollInterval 
+   * milliseconds while waiting for started() or completed(), and the 
+   * callbacks onProgress(entry, loaded, total), 
+   * onFile(entry, success) called once the file is complete or failed and 
+   * onIdle() called when the queue is empty
+   * @returns {Object} the sender with the functions add(file, name, fields), 
+   * start(), abort(), isBusy(), started(id, partSize, urls), 
+   * partsSigned(id, firstPart, urls) and completed(id, success)
+   */
+  function createObjectStoreSender(options) {
+    var queue = [];
+    var current = null;
+    var nextId = 0;
+    var parallel = options.parallel || DEFAULT_OBJECT_STORE_PARALLEL;
+    var maxRetries = options.maxRetries || 0;
+    var pollInterval = options.pollInterval || DEFAULT_OBJECT_STORE_POLL_MS;
+    var pollTimer = null;
+
+    var waitForServer = function(entry) {
+      if (options.poll && !pollTimer) {
+        pollTimer = window.setInterval(function() {
+          options.poll(entry);
+        }, pollInterval);
+      }
+    };
+
+    var stopWaiting = function() {
+      if (pollTimer) {
+        window.clearInterval(pollTimer);
+        pollTimer = null;
+      }
+    };
+
+    var sendNext = function() {
+      if (current) {
+        return;
+      }
+
+      if (queue.length === 0) {
+        if (options.onIdle) {
+          options.onIdle();
+        }
+        return;
+      }
+
+      // The part size and count are known once the server started the 
+      // upload.
+      current = queue.shift();
+      current.urls = [];
+      current.etags = [];
+      current.loaded = [];
+      current.requests = {};
+      current.next = 1;
+      current.inFlight = 0;
+      current.done = 0;
+      current.count = 0;
+      options.begin(current);
+      waitForServer(current);
+    };
+
+    var finishFile = function(success) {
+      var entry = current;
+      stopWaiting();
+      current = null;
+      options.onFile(entry, success);
+      sendNext();
+    };
+
+    var stopRequests = function(entry) {
+      for (var part in entry.requests) {
+        var xhr = entry.requests[part];
+        xhr.onload = xhr.onerror = xhr.upload.onprogress = null;
+        xhr.abort();
+      }
+      entry.requests = {};
+    };
+
+    var failFile = function(reason) {
+      console_log("Object store upload failed: " + reason);
+      stopRequests(current);
+      options.abort(current, reason);
+      finishFile(false);
+    };
+
+    var reportProgress = function(entry) {
+      if (options.onProgress) {
+        var loaded = 0;
+        for (var part in entry.loaded) {
+          loaded += entry.loaded[part];
+        }
+        options.onProgress(entry, loaded, entry.file.size);
+      }
+    };
+
+    var pump = function() {
+      var entry = current;
+
+      while (entry.next <= entry.count && entry.inFlight < parallel 
+          && entry.urls[entry.next]) {
+        sendPart(entry, entry.next++, 0);
+      }
+
+      // Ask for the next batch of URLs before the parts run out.
+      var signed = entry.urls.length - 1;
+      if (!entry.signing && signed < entry.count 
+          && signed - entry.next < parallel) {
+        entry.signing = true;
+        options.sign(entry, signed + 1);
+      }
+
+      if (entry.done === entry.count && !entry.completing) {
+        entry.completing = true;
+        options.complete(entry, entry.etags.slice(1));
+        waitForServer(entry);
+      }
+    };
+
+    var sendPart = function(entry, part, attempt) {
+      var start = (part - 1) * entry.partSize;
+      var end = Math.min(start + entry.partSize, entry.file.size);
+
+      var retry = function(reason) {
+        if (current !== entry) {
+          return;
+        }
+
+        entry.loaded[part] = 0;
+        if (attempt < maxRetries) {
+          console_log("Retrying part " + part + ": " + reason);
+          entry.inFlight++;
+          window.setTimeout(function() {
+            entry.inFlight--;
+            if (current === entry) {
+              sendPart(entry, part, attempt + 1);
+            }
+          }, 1000 * (attempt + 1));
+        }
+        else {
+          failFile("Part " + part + " failed: " + reason);
+        }
+      };
+
+      var xhr = new XMLHttpRequest();
+      entry.requests[part] = xhr;
+      entry.inFlight++;
+
+      xhr.open("PUT", entry.urls[part], true);
+      xhr.upload.onprogress = function(event) {
+        entry.loaded[part] = event.loaded;
+        reportProgress(entry);
+      };
+      xhr.onload = function() {
+        delete entry.requests[part];
+        entry.inFlight--;
+
+        // The ETag is only visible if the bucket exposes it to CORS 
+        // requests.
+        var etag = xhr.status >= 200 && xhr.status < 300 
+            ? xhr.getResponseHeader("ETag") : null;
+        if (etag) {
+          entry.etags[part] = etag;
+          entry.loaded[part] = end - start;
+          entry.done++;
+          reportProgress(entry);
+          pump();
+        }
+        else {
+          retry(xhr.status >= 200 && xhr.status < 300 ? "no ETag exposed" 
+              : "status " + xhr.status);
+        }
+      };
+      xhr.onerror = function() {
+        delete entry.requests[part];
+        entry.inFlight--;
+        retry("network error");
+      };
+      xhr.send(entry.file.slice(start, end));
+    };
+
+    return {
+      add: function(file, name, fields) {
+        queue.push({
+          id: "o" + (nextId++), 
+          file: file, 
+          name: name, 
+          fields: fields || {}
+        });
+      },
+      start: function() {
+        sendNext();
+      },
+      abort: function() {
+        queue = [];
+        stopWaiting();
+        if (current) {
+          var entry = current;
+          current = null;
+          stopRequests(entry);
+          options.abort(entry, "interrupted");
+          options.onFile(entry, false);
+        }
+      },
+      isBusy: function() {
+        return current !== null || queue.length > 0;
+      },
+      started: function(id, partSize, urls) {
+        if (!current || current.id !== id) {
+          return;
+        }
+        stopWaiting();
+
+        // The server already fired the failed event if the upload couldn't 
+        // be started.
+        if (partSize <= 0) {
+          finishFile(false);
+          return;
+        }
+
+        current.partSize = partSize;
+        current.count = Math.max(1, Math.ceil(current.file.size / partSize));
+        this.partsSigned(id, 1, urls);
+      },
+      partsSigned: function(id, firstPart, urls) {
+        if (!current || current.id !== id) {
+          return;
+        }
+
+        current.signing = false;
+        if (urls.length === 0) {
+          failFile("No part URLs issued.");
+          return;
+        }
+
+        for (var i = 0; i < urls.length; i++) {
+          current.urls[firstPart + i] = urls[i];
+        }
+        pump();
+      },
+      completed: function(id, success) {
+        if (current && current.id === id) {
+          finishFile(success);
+        }
+      }
+    };
+  }
+
+  /*
+   * The default maximum number of upload connections on the page. Browsers 
+   * open about 6 HTTP/1.1 connections per host so this leaves room for the 
+   * UIDL and heartbeat requests of Vaadin while uploads are running.
+   */
+  var DEFAULT_MAX_UPLOAD_CONNECTIONS = 4;
+
+  /*
+   * The attribute that holds the registration ID on the drop target of a 
+   * component registered with the shared engine.
+   */
+  var SHARED_ID_ATTRIBUTE = "data-html5upload-id";
+
+  /*
+   * The connection scheduler of the page or null if it hasn't been created 
+   * yet.
+   */
+  var scheduler = null;
+
+  /*
+   * The engine shared by all the upload components on the page or null if 
+   * it hasn't been created yet.
+   */
+  var sharedEngine = null;
+
+  /**
+   * Returns the scheduler that limits the number of upload connections on 
+   * the page, creating it on first use. Every upload request of the 
+   * connectors acquires a connection from the scheduler. The waiting 
+   * requests are granted round robin by owner (e.g. connector ID) so a 
+   * component with many parallel chunks doesn't starve the others. The 
+   * scheduler has the functions:
+   * <ul>
+   * <li>acquire(owner, grant): calls grant(release) when a connection is 
+   * free and returns a ticket with a cancel() function. The release 
+   * function must be called once the connection is done.</li>
+   * <li>setMaxConnections(max): sets the maximum number of upload 
+   * connections or 0 for no limit.</li>
+   * <li>getStats(): returns the number of active and waiting requests.</li>
+   * </ul>
+   *
+   * @returns {Object} the connection scheduler
+   */
+  function getScheduler() {
+    if (scheduler) {
+      return scheduler;
+    }
+
+    /* The owners with waiting requests in round robin order. */
+    var owners = [];
+    /* The index of the next owner to be granted a connection. */
+    var next = 0;
+    /* The number of connections in use. */
+    var active = 0;
+    /* The number of waiting requests. */
+    var waiting = 0;
+    /* The maximum number of connections or 0 for no limit. */
+    var maxConnections = DEFAULT_MAX_UPLOAD_CONNECTIONS;
+    /* The flag which indicates if requests are being granted. */
+    var pumping = false;
+
+    function grant(ticket) {
+      var released = false;
+      active++;
+      ticket.granted = true;
+      ticket.grant(function() {
+        if (!released) {
+          released = true;
+          active--;
+          pump();
+        }
+      });
+    }
+
+    function pump() {
+      if (pumping) {
+        return;
+      }
+
+      pumping = true;
+      try {
+        while (owners.length > 0
+            && (maxConnections <= 0 || active < maxConnections)) {
+          if (next >= owners.length) {
+            next = 0;
+          }
+
+          var entry = owners[next];
+          var ticket = entry.tickets.shift();
+          if (entry.tickets.length === 0) {
+            owners.splice(next, 1);
+          }
+          else {
+            next++;
+          }
+
+          waiting--;
+          grant(ticket);
+        }
+      }
+      finally {
+        pumping = false;
+      }
+    }
+
+    scheduler = {
+      acquire: function(owner, grantFn) {
+        var ticket = {grant: grantFn, granted: false};
+
+        var entry = null;
+        for (var i = 0; i < owners.length; i++) {
+          if (owners[i].owner === owner) {
+            entry = owners[i];
+            break;
+          }
+        }
+        if (!entry) {
+          entry = {owner: owner, tickets: []};
+          owners.push(entry);
+        }
+
+        entry.tickets.push(ticket);
+        waiting++;
+        pump();
+
+        return {
+          cancel: function() {
+            var index = entry.tickets.indexOf(ticket);
+            if (!ticket.granted && index !== -1) {
+              entry.tickets.splice(index, 1);
+              waiting--;
+
+              index = owners.indexOf(entry);
+              if (entry.tickets.length === 0 && index !== -1) {
+                owners.splice(index, 1);
+                if (index < next) {
+                  next--;
+                }
+              }
+            }
+          }
+        };
+      },
+      setMaxConnections: function(max) {
+        maxConnections = max;
+        pump();
+      },
+      getStats: function() {
+        return {active: active, waiting: waiting};
+      }
+    };
+
+    return scheduler;
+  }
+
+  /**
+   * Creates a slot for an uploader that holds a single connection of the 
+   * scheduler while it uploads. The slot has the functions schedule(start) 
+   * to call start once the connection is acquired (immediately if the slot 
+   * already holds it), release() to release the connection once the 
+   * uploader is done and cancel() to drop a waiting start and release the 
+   * connection.
+   *
+   * @param {String} owner the owner of the connection (e.g. connector ID)
+   * @returns {Object} the slot
+   */
+  function createSlot(owner) {
+    /* The function that releases the held connection or null. */
+    var held = null;
+    /* The start function waiting for the connection or null. */
+    var pending = null;
+    /* The ticket of the waiting request or null. */
+    var ticket = null;
+
+    return {
+      schedule: function(start) {
+        if (held) {
+          start();
+          return;
+        }
+
+        pending = start;
+        if (!ticket) {
+          ticket = getScheduler().acquire(owner, function(release) {
+            var fn = pending;
+            ticket = null;
+            pending = null;
+            held = release;
+            if (fn) {
+              fn();
+            }
+          });
+        }
+      },
+      release: function() {
+        if (held) {
+          var release = held;
+          held = null;
+          release();
+        }
+      },
+      cancel: function() {
+        pending = null;
+        if (ticket) {
+          ticket.cancel();
+          ticket = null;
+        }
+        this.release();
+      }
+    };
+  }
+
+  /**
+   * Returns the engine shared by all the upload components on the page, 
+   * creating it on first use. The engine owns a single hidden file input 
+   * and a single pair of drag and drop listeners on the document. A 
+   * component registers its element with the options:
+   * <ul>
+   * <li>element: the element that is the drop target of the component</li>
+   * <li>multiple: true to allow more than one file to be selected</li>
+   * <li>onFiles: function(files) called with the selected or dropped 
+   * files</li>
+   * </ul>
+   * The returned registration has the functions browse() to open the file 
+   * dialog from a click handler, setEnabled(enabled) and remove(). The 
+   * uploads of the registered components are limited by the connection 
+   * scheduler like all the others.
+   *
+   * @returns {Object} the shared engine
+   */
+  function getSharedEngine() {
+    if (sharedEngine) {
+      return sharedEngine;
+    }
+
+    var input = document.createElement("input");
+    input.setAttribute("type", "file");
+    input.style.display = "none";
+    document.body.appendChild(input);
+
+    /* The registrations by ID. */
+    var registrations = {};
+    /* The last registration ID. */
+    var lastId = 0;
+    /* The registration that opened the file dialog. */
+    var browsing = null;
+
+    function findRegistration(node) {
+      for (; node && node.getAttribute; node = node.parentNode) {
+        var id = node.getAttribute(SHARED_ID_ATTRIBUTE);
+        if (id && registrations[id]) {
+          return registrations[id];
+        }
+      }
+      return null;
+    }
+
+    function deliver(reg, files) {
+      if (!reg.options.multiple && files.length > 1) {
+        files = files.slice(files.length - 1);
+      }
+      if (files.length > 0) {
+        reg.options.onFiles(files);
+      }
+    }
+
+    input.onchange = function() {
+      var reg = browsing;
+      var files = Array.prototype.slice.call(input.files || []);
+      browsing = null;
+      input.value = "";
+
+      if (reg) {
+        deliver(reg, files);
+      }
+    };
+
+    document.addEventListener("dragover", function(event) {
+      var reg = findRegistration(event.target);
+      if (reg && reg.enabled) {
+        event.preventDefault();
+        event.dataTransfer.dropEffect = "copy";
+      }
+    }, false);
+
+    document.addEventListener("drop", function(event) {
+      var reg = findRegistration(event.target);
+      if (reg && reg.enabled) {
+        event.preventDefault();
+        deliver(reg, Array.prototype.slice.call(
+            event.dataTransfer.files || []));
+      }
+    }, false);
+
+    sharedEngine = {
+      register: function(options) {
+        var id = String(++lastId);
+        var reg = {options: options, enabled: true};
+        registrations[id] = reg;
+        options.element.setAttribute(SHARED_ID_ATTRIBUTE, id);
+
+        return {
+          browse: function() {
+            if (reg.enabled) {
+              browsing = reg;
+              input.multiple = !!options.multiple;
+              input.click();
+            }
+          },
+          setEnabled: function(enabled) {
+            reg.enabled = enabled;
+          },
+          remove: function() {
+            if (browsing === reg) {
+              browsing = null;
+            }
+            delete registrations[id];
+            options.element.removeAttribute(SHARED_ID_ATTRIBUTE);
+          }
+        };
+      }
+    };
+
+    return sharedEngine;
+  }
+
+  return {
+    getScheduler: getScheduler,
+    createSlot: createSlot,
+    getSharedEngine: getSharedEngine,
+    createBatchSender: createBatchSender,
+    createSocketSender: createSocketSender,
+    createObjectStoreSender: createObjectStoreSender,
+    isSocketSupported: isSocketSupported,
+    isCrossOrigin: isCrossOrigin,
+    loadScript: loadScript,
+    whenVisible: whenVisible,
+    isChecksumSupported: isChecksumSupported,
+    computeChecksums: computeChecksums,
+    computeTreeHash: computeTreeHash,
+    checksumParams: checksumParams
+  };
+})();
@@ -0,0 +1,259 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+import org.junit.Test;
+
+import com.vaadin.server.StreamVariable;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.ConnectorTracker;
+import com.vaadin.ui.UI;
+
+/**
+ * Base test of the stream variable of an {@link AbstractHtml5Upload}
+ * implementation. The implementation modules extend this test to supply the
+ * component and the chunk parameters of their client library. The test
+ * classes of the core module are attached as a test jar for this purpose.
+ *
+ * @param <T> the type of the upload component
+ *
+ * @author mpilone
+ */
+public abstract class AbstractStreamVariableTest<T extends AbstractHtml5Upload> {
+
+  /**
+   * The number of chunks in the uploaded file.
+   */
+  protected static final int CHUNK_COUNT = 100;
+
+  /**
+   * The size of each chunk.
+   */
+  protected static final int CHUNK_SIZE = 1024;
+
+  /**
+   * The name of the uploaded file.
+   */
+  protected static final String FILENAME = "test.bin";
+
+  /**
+   * Drives a complete chunked upload through the stream variable of a
+   * component attached to a UI and verifies that no chunk, including the
+   * first and the last, marks the component dirty. A dirty component is
+   * synced to the client with the entire shared state, so a sync per chunk
+   * would resend the state with every chunk. The succeeded event is not
+   * part of the chunk path because it waits for the client by default.
+   *
+   * @throws IOException if writing to the receiver fails
+   */
+  @Test
+  public void testChunksDoNotSyncState() throws IOException {
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    T upload = createUpload(CHUNK_SIZE);
+    upload.setReceiver(new RetryableReceiver(received));
+
+    UI ui = new UI() {
+      @Override
+      protected void init(VaadinRequest request) {
+      }
+    };
+    ui.setContent(upload);
+
+    // The baseline is taken before the first chunk so the initial state of
+    // the upload is counted as well.
+    ConnectorTracker tracker = ui.getConnectorTracker();
+    tracker.markAllConnectorsClean();
+
+    StreamVariable streamVariable = getStreamVariable(upload);
+    byte[] data = new byte[CHUNK_COUNT * CHUNK_SIZE];
+    new Random(data.length).nextBytes(data);
+    int syncCount = 0;
+
+    for (int i = 0; i < CHUNK_COUNT; ++i) {
+      ChunkEvent event = new ChunkEvent(CHUNK_SIZE);
+      putChunkParameters(event.getParameters(), i, CHUNK_COUNT, CHUNK_SIZE,
+          data.length);
+
+      streamVariable.streamingStarted(event);
+      streamVariable.getOutputStream().write(data, i * CHUNK_SIZE,
+          CHUNK_SIZE);
+      streamVariable.streamingFinished(event);
+
+      if (tracker.isDirty(upload)) {
+        syncCount++;
+        tracker.markAllConnectorsClean();
+      }
+    }
+
+    assertEquals("State synced while receiving chunks.", 0, syncCount);
+    assertArrayEquals(data, received.toByteArray());
+  }
+
+  /**
+   * Creates the upload component with chunking and retries enabled.
+   *
+   * @param chunkSize the chunk size
+   *
+   * @return the new component
+   */
+  protected abstract T createUpload(int chunkSize);
+
+  /**
+   * Returns the stream variable that receives the chunks of the component.
+   *
+   * @param upload the component
+   *
+   * @return the stream variable
+   */
+  protected abstract StreamVariable getStreamVariable(T upload);
+
+  /**
+   * Puts the request parameters the client library sends with a chunk of
+   * {@link #FILENAME}.
+   *
+   * @param params the parameters of the chunk request
+   * @param chunkIndex the index of the chunk
+   * @param chunkCount the number of chunks
+   * @param chunkSize the chunk size
+   * @param fileSize the size of the file
+   */
+  protected abstract void putChunkParameters(Map<String, String> params,
+      int chunkIndex, int chunkCount, int chunkSize, long fileSize);
+
+  /**
+   * A receiver that writes to a stream through a retryable stream.
+   */
+  protected static class RetryableReceiver implements Html5Receiver {
+
+    private final OutputStream outstream;
+
+    /**
+     * Constructs the receiver.
+     *
+     * @param outstream the stream that receives the data
+     */
+    public RetryableReceiver(OutputStream outstream) {
+      this.outstream = outstream;
+    }
+
+    @Override
+    public OutputStream receiveUpload(String filename, String mimeType,
+        boolean retryEnabled, boolean chunkingEnabled, int chunkContentLength,
+        int contentLength) {
+      return receiveUpload(filename, mimeType);
+    }
+
+    @Override
+    public OutputStream receiveUpload(String filename, String mimeType) {
+      return new RetryableOutputStream() {
+        @Override
+        public void chunkStart(int chunkIndex, int chunkCount) {
+        }
+
+        @Override
+        public void chunkEnd(int chunkIndex, int chunkCount) {
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+          outstream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          outstream.write(b, off, len);
+        }
+      };
+    }
+  }
+
+  /**
+   * The start and end event of a single chunk request.
+   */
+  protected static class ChunkEvent implements
+      Html5StreamVariable.Html5StreamingStartEvent,
+      Html5StreamVariable.Html5StreamingEndEvent {
+
+    private final Map<String, String> params = new HashMap<>();
+    private final long contentLength;
+
+    /**
+     * Constructs the event.
+     *
+     * @param contentLength the length of the chunk
+     */
+    public ChunkEvent(long contentLength) {
+      this.contentLength = contentLength;
+    }
+
+    /**
+     * Returns the modifiable parameters of the request.
+     *
+     * @return the parameters
+     */
+    public Map<String, String> getParameters() {
+      return params;
+    }
+
+    @Override
+    public String getParameterValue(String name) {
+      return params.get(name);
+    }
+
+    @Override
+    public Collection<String> getParameterValues(String name) {
+      String value = params.get(name);
+      return value == null ? Collections.<String>emptyList() : Collections.
+          singletonList(value);
+    }
+
+    @Override
+    public void setResponse(Html5StreamVariable.UploadResponse response) {
+    }
+
+    @Override
+    public String getChecksum() {
+      return null;
+    }
+
+    @Override
+    public long getRequestTime() {
+      return 10;
+    }
+
+    @Override
+    public long getTransferTime() {
+      return 10;
+    }
+
+    @Override
+    public void disposeStreamVariable() {
+    }
+
+    @Override
+    public String getFileName() {
+      return FILENAME;
+    }
+
+    @Override
+    public String getMimeType() {
+      return "application/octet-stream";
+    }
+
+    @Override
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    @Override
+    public long getBytesReceived() {
+      return contentLength;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
+
+/**
+ * Tests the {@link ContentAddressableReceiver}.
+ *
+ * @author mpilone
+ */
+public class ContentAddressableReceiverTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The root directory of the store.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ContentAddressableReceiver receiver;
+  private final List<ContentAddressableReceiver.StoredEvent> storedEvents =
+      Collections.synchronizedList(
+          new ArrayList<ContentAddressableReceiver.StoredEvent>());
+
+  /**
+   * Creates the receiver.
+   *
+   * @throws IOException if the store can't be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    receiver = new ContentAddressableReceiver(folder.getRoot());
+    receiver.addStoredListener(
+        new ContentAddressableReceiver.StoredListener() {
+      @Override
+      public void uploadStored(ContentAddressableReceiver.StoredEvent event) {
+        storedEvents.add(event);
+      }
+    });
+  }
+
+  /**
+   * Verifies that the content index of an owner only finds content uploaded
+   * by that owner even though the blob is shared.
+   *
+   * @throws IOException if the upload fails
+   */
+  @Test
+  public void testIndexIsScopedToOwner() throws IOException {
+    assertFalse(receiver instanceof Html5ContentIndex);
+
+    ContentAddressableReceiver.OwnerReceiver alice = receiver.forOwner(
+        "alice");
+    ContentAddressableReceiver.OwnerReceiver bob = receiver.forOwner("bob");
+    byte[] data = createData(3 * CHUNK_SIZE);
+
+    upload(alice, data);
+    String key = storedEvents.get(0).getKey();
+    assertFalse(storedEvents.get(0).isDuplicate());
+
+    assertEquals(key, alice.find(key, data.length));
+    assertNull(alice.find(key, data.length + 1));
+    assertNull(bob.find(key, data.length));
+
+    upload(bob, data);
+    assertTrue(storedEvents.get(1).isDuplicate());
+    assertEquals(key, bob.find(key, data.length));
+    assertArrayEquals(data, Files.readAllBytes(receiver.getBlob(key).
+        toPath()));
+  }
+
+  /**
+   * Races two uploads of identical content to the publication while another
+   * thread adds and removes listeners and verifies that exactly one upload
+   * stores the content and the other is reported as a duplicate.
+   *
+   * @throws Exception if an upload fails
+   */
+  @Test
+  public void testConcurrentIdenticalUploads() throws Exception {
+    final int rounds = 20;
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    final AtomicBoolean racing = new AtomicBoolean(true);
+
+    try {
+      Future<?> listenerChurn = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          ContentAddressableReceiver.StoredListener listener =
+              new ContentAddressableReceiver.StoredListener() {
+            @Override
+            public void uploadStored(
+                ContentAddressableReceiver.StoredEvent event) {
+            }
+          };
+          while (racing.get()) {
+            receiver.addStoredListener(listener);
+            receiver.removeStoredListener(listener);
+          }
+          return null;
+        }
+      });
+
+      for (int round = 0; round < rounds; ++round) {
+        final byte[] data = createData(2 * CHUNK_SIZE + round);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Future<?>> uploads = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+          uploads.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              RetryableOutputStream out = (RetryableOutputStream) receiver.
+                  receiveUpload("test.bin", "application/octet-stream", true,
+                      true, CHUNK_SIZE, data.length);
+              for (int i = 0; i < 3; ++i) {
+                writeChunk(out, data, i, 3);
+              }
+
+              // Publish both uploads at the same time.
+              barrier.await(10, TimeUnit.SECONDS);
+              out.close();
+              return null;
+            }
+          }));
+        }
+        for (Future<?> upload : uploads) {
+          upload.get(10, TimeUnit.SECONDS);
+        }
+      }
+
+      racing.set(false);
+      listenerChurn.get(10, TimeUnit.SECONDS);
+    }
+    finally {
+      racing.set(false);
+      executor.shutdownNow();
+    }
+
+    assertEquals(2 * rounds, storedEvents.size());
+    for (int round = 0; round < rounds; ++round) {
+      String key = null;
+      int stored = 0;
+      for (ContentAddressableReceiver.StoredEvent event : storedEvents) {
+        if (event.getLength() == 2 * CHUNK_SIZE + round) {
+          assertTrue(key == null || key.equals(event.getKey()));
+          key = event.getKey();
+          stored += event.isDuplicate() ? 0 : 1;
+        }
+      }
+      assertEquals("Uploads that stored the content.", 1, stored);
+      assertArrayEquals(createData(2 * CHUNK_SIZE + round), Files.
+          readAllBytes(receiver.getBlob(key).toPath()));
+    }
+  }
+
+  /**
+   * Verifies that the data of a failed chunk attempt is discarded when the
+   * chunk is retried and that an interrupted upload is not stored.
+   *
+   * @throws IOException if the upload fails
+   */
+  @Test
+  public void testRetriedChunkIsDiscarded() throws IOException {
+    byte[] data = createData(2 * CHUNK_SIZE);
+    RetryableOutputStream out = (RetryableOutputStream) receiver.
+        receiveUpload("test.bin", "application/octet-stream", true, true,
+            CHUNK_SIZE, data.length);
+
+    writeChunk(out, data, 0, 2);
+    out.chunkStart(1, 2);
+    out.write(data, CHUNK_SIZE, CHUNK_SIZE / 2);
+    writeChunk(out, data, 1, 2);
+    out.close();
+
+    assertEquals(1, storedEvents.size());
+    assertEquals(data.length, storedEvents.get(0).getLength());
+    assertArrayEquals(data, Files.readAllBytes(receiver.getBlob(
+        storedEvents.get(0).getKey()).toPath()));
+
+    out = (RetryableOutputStream) receiver.receiveUpload("test.bin",
+        "application/octet-stream", true, true, CHUNK_SIZE, data.length);
+    writeChunk(out, createData(3 * CHUNK_SIZE), 0, 3);
+    out.close();
+
+    assertEquals(1, storedEvents.size());
+    assertEquals(0, folder.getRoot().toPath().resolve("staging").toFile().
+        list().length);
+  }
+
+  /**
+   * Verifies that a forged key can't be used to look outside of the store.
+   */
+  @Test
+  public void testInvalidKeyIsNotFound() {
+    ContentAddressableReceiver.OwnerReceiver alice = receiver.forOwner(
+        "alice");
+
+    assertNull(alice.find(".." + File.separator + "owners", 0));
+    assertNull(alice.find("ab", 0));
+  }
+
+  /**
+   * Uploads the data in chunks.
+   *
+   * @param target the receiver to upload to
+   * @param data the file data
+   *
+   * @throws IOException if the upload fails
+   */
+  private static void upload(Html5Receiver target, byte[] data) throws
+      IOException {
+    int chunkCount = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    try (RetryableOutputStream out = (RetryableOutputStream) target.
+        receiveUpload("test.bin", "application/octet-stream", true, true,
+            CHUNK_SIZE, data.length)) {
+      for (int i = 0; i < chunkCount; ++i) {
+        writeChunk(out, data, i, chunkCount);
+      }
+    }
+  }
+
+  /**
+   * Writes a complete chunk of the data.
+   *
+   * @param out the stream
+   * @param data the file data
+   * @param chunkIndex the index of the chunk
+   * @param chunkCount the number of chunks
+   *
+   * @throws IOException if the stream fails
+   */
+  private static void writeChunk(RetryableOutputStream out, byte[] data,
+      int chunkIndex, int chunkCount) throws IOException {
+    int offset = chunkIndex * CHUNK_SIZE;
+    out.chunkStart(chunkIndex, chunkCount);
+    out.write(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+    out.chunkEnd(chunkIndex, chunkCount);
+  }
+
+  /**
+   * Creates random file data.
+   *
+   * @param length the length of the data
+   *
+   * @return the data
+   */
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,134 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
+
+import com.vaadin.ui.Upload;
+
+/**
+ * Tests the retryable streams of the {@link DefaultHtml5Receiver}.
+ *
+ * @author mpilone
+ */
+public class DefaultHtml5ReceiverTest {
+
+  private static final int SMALL_CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * Larger than the maximum retry memory of the receiver.
+   */
+  private static final int LARGE_CHUNK_SIZE = 1024 * 1024;
+
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+  /**
+   * Verifies that the data of a failed chunk attempt held in memory is
+   * discarded when the chunk is retried.
+   *
+   * @throws IOException if the stream fails
+   */
+  @Test
+  public void testRetriedChunkIsDiscarded() throws IOException {
+    byte[] data = createData(2 * SMALL_CHUNK_SIZE);
+    RetryableOutputStream out = open(SMALL_CHUNK_SIZE);
+
+    writeChunk(out, data, 0, SMALL_CHUNK_SIZE, 0, 2);
+    out.chunkStart(1, 2);
+    out.write(data, SMALL_CHUNK_SIZE, SMALL_CHUNK_SIZE / 2);
+    writeChunk(out, data, SMALL_CHUNK_SIZE, SMALL_CHUNK_SIZE, 1, 2);
+    out.close();
+
+    assertArrayEquals(data, received.toByteArray());
+  }
+
+  /**
+   * Verifies that a chunk larger than the client advertised spills to disk
+   * rather than growing the memory buffer and that a retry of the spilled
+   * chunk and the following chunks are still handled.
+   *
+   * @throws IOException if the stream fails
+   */
+  @Test
+  public void testLargeChunkSpillsToDisk() throws IOException {
+    byte[] data = createData(SMALL_CHUNK_SIZE + LARGE_CHUNK_SIZE
+        + SMALL_CHUNK_SIZE);
+    RetryableOutputStream out = open(SMALL_CHUNK_SIZE);
+
+    writeChunk(out, data, 0, SMALL_CHUNK_SIZE, 0, 3);
+
+    // The first attempt spills to disk before it fails.
+    out.chunkStart(1, 3);
+    out.write(data, SMALL_CHUNK_SIZE, LARGE_CHUNK_SIZE / 2);
+    writeChunk(out, data, SMALL_CHUNK_SIZE, LARGE_CHUNK_SIZE, 1, 3);
+
+    writeChunk(out, data, SMALL_CHUNK_SIZE + LARGE_CHUNK_SIZE,
+        SMALL_CHUNK_SIZE, 2, 3);
+    out.close();
+
+    assertArrayEquals(data, received.toByteArray());
+  }
+
+  /**
+   * Opens a retryable stream on a receiver that writes to
+   * {@link #received}.
+   *
+   * @param chunkContentLength the chunk length advertised by the client
+   *
+   * @return the stream
+   */
+  private RetryableOutputStream open(int chunkContentLength) {
+    DefaultHtml5Receiver receiver = new DefaultHtml5Receiver(
+        new Upload.Receiver() {
+          @Override
+          public OutputStream receiveUpload(String filename,
+              String mimeType) {
+            return received;
+          }
+        });
+
+    return (RetryableOutputStream) receiver.receiveUpload("test.bin",
+        "application/octet-stream", true, true, chunkContentLength, -1);
+  }
+
+  /**
+   * Writes a complete chunk of the data in small writes.
+   *
+   * @param out the stream
+   * @param data the file data
+   * @param offset the offset of the chunk in the data
+   * @param length the length of the chunk
+   * @param chunkIndex the index of the chunk
+   * @param chunkCount the number of chunks
+   *
+   * @throws IOException if the stream fails
+   */
+  private static void writeChunk(RetryableOutputStream out, byte[] data,
+      int offset, int length, int chunkIndex, int chunkCount) throws
+      IOException {
+    out.chunkStart(chunkIndex, chunkCount);
+    for (int written = 0; written < length; written += 4096) {
+      out.write(data, offset + written, Math.min(4096, length - written));
+    }
+    out.chunkEnd(chunkIndex, chunkCount);
+  }
+
+  /**
+   * Creates random file data.
+   *
+   * @param length the length of the data
+   *
+   * @return the data
+   */
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
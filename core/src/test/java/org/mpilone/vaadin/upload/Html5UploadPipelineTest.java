@@ -0,0 +1,245 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the back pressure and the results of the {@link Html5UploadPipeline}.
+ *
+ * @author mpilone
+ */
+public class Html5UploadPipelineTest {
+
+  private Html5UploadPipeline pipeline;
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /**
+   * Creates the pipeline.
+   */
+  @Before
+  public void setUp() {
+    pipeline = new Html5UploadPipeline();
+  }
+
+  /**
+   * Releases blocked stages and shuts down the pipeline.
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    pipeline.shutdown();
+  }
+
+  /**
+   * Verifies that an item submitted to a full first stage is rejected on the
+   * calling thread without waiting and that the saturation signal reports
+   * pressure until the stage has room again.
+   *
+   * @throws Exception if the wait fails
+   */
+  @Test
+  public void testFullFirstStageRejectsImmediately() throws Exception {
+    Html5UploadPipeline.Stage stage = pipeline.addStage("scan",
+        new BlockingProcessor(), 1, 1);
+    UploadLoadController.PressureSignal signal = pipeline.saturationSignal();
+
+    ResultCallback first = new ResultCallback();
+    ResultCallback second = new ResultCallback();
+    pipeline.submit("a", first);
+    pipeline.submit("b", second);
+    assertTrue(pipeline.isSaturated());
+    assertTrue(signal.isUnderPressure());
+
+    ResultCallback rejected = new ResultCallback();
+    pipeline.submit("c", rejected);
+    assertTrue("The rejection must not wait for the stage.", rejected.done.
+        isDone());
+    assertTrue(rejected.failure() instanceof RejectedExecutionException);
+    assertEquals(Thread.currentThread(), rejected.thread);
+
+    release.countDown();
+    assertEquals("a", first.result());
+    assertEquals("b", second.result());
+    awaitBacklog(stage, 0);
+    assertFalse(signal.isUnderPressure());
+  }
+
+  /**
+   * Verifies that a slow second stage blocks the first stage once it is full
+   * and that every capacity permit is returned when the items drain.
+   *
+   * @throws Exception if the wait fails
+   */
+  @Test
+  public void testSlowStageBlocksFirstStage() throws Exception {
+    Html5UploadPipeline.Stage first = pipeline.addStage("fast",
+        new Html5UploadPipeline.Processor<String, String>() {
+      @Override
+      public String process(String input) {
+        return input + "1";
+      }
+    }, 1, 0);
+    Html5UploadPipeline.Stage second = pipeline.addStage("slow",
+        new BlockingProcessor(), 1, 0);
+
+    // The first item occupies the slow stage and the second waits in the
+    // fast stage for room, holding the fast stage's only permit.
+    ResultCallback a = new ResultCallback();
+    pipeline.submit("a", a);
+    awaitBacklog(second, 1);
+    awaitBacklog(first, 0);
+
+    ResultCallback b = new ResultCallback();
+    pipeline.submit("b", b);
+    awaitBacklog(first, 1);
+    assertEquals(1, second.getBacklog());
+    assertFalse(b.done.isDone());
+
+    ResultCallback c = new ResultCallback();
+    pipeline.submit("c", c);
+    assertTrue(c.failure() instanceof RejectedExecutionException);
+
+    release.countDown();
+    assertEquals("a1", a.result());
+    assertEquals("b1", b.result());
+    awaitBacklog(first, 0);
+    awaitBacklog(second, 0);
+
+    // No permit was lost so the pipeline accepts the full capacity again.
+    ResultCallback d = new ResultCallback();
+    pipeline.submit("d", d);
+    assertEquals("d1", d.result());
+    assertEquals(3, first.getProcessedCount());
+    assertEquals(3, second.getProcessedCount());
+  }
+
+  /**
+   * Verifies that an item failed by a stage reports the failure and the times
+   * of the stages it went through, including the failed stage, and doesn't
+   * reach the following stages.
+   *
+   * @throws Exception if the wait fails
+   */
+  @Test
+  public void testFailedStageReportsStageTimes() throws Exception {
+    final Exception failure = new Exception("Scan failed.");
+
+    pipeline.addStage("thumbnail",
+        new Html5UploadPipeline.Processor<String, String>() {
+      @Override
+      public String process(String input) throws Exception {
+        Thread.sleep(20);
+        return input;
+      }
+    }, 1, 1);
+    Html5UploadPipeline.Stage scan = pipeline.addStage("scan",
+        new Html5UploadPipeline.Processor<String, String>() {
+      @Override
+      public String process(String input) throws Exception {
+        throw failure;
+      }
+    }, 1, 1);
+    Html5UploadPipeline.Stage index = pipeline.addStage("index",
+        new Html5UploadPipeline.Processor<String, String>() {
+      @Override
+      public String process(String input) {
+        return input;
+      }
+    }, 1, 1);
+
+    ResultCallback callback = new ResultCallback();
+    pipeline.submit("a", callback);
+
+    assertSame(failure, callback.failure());
+    assertNull(callback.result);
+    assertEquals(Arrays.asList("thumbnail", "scan"), new ArrayList<>(
+        callback.stageTimes.keySet()));
+    assertTrue(callback.stageTimes.get("thumbnail") >= 20);
+    assertEquals(1, scan.getFailedCount());
+    assertEquals(0, index.getProcessedCount());
+    awaitBacklog(scan, 0);
+  }
+
+  /**
+   * Waits until the backlog of the stage reaches the given value.
+   *
+   * @param stage the stage
+   * @param backlog the expected backlog
+   *
+   * @throws InterruptedException if the wait is interrupted
+   */
+  private static void awaitBacklog(Html5UploadPipeline.Stage stage,
+      int backlog) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (stage.getBacklog() != backlog && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals("Backlog of stage " + stage.getName(), backlog, stage.
+        getBacklog());
+  }
+
+  /**
+   * A processor that waits for {@link #release} before it returns its input.
+   */
+  private class BlockingProcessor implements
+      Html5UploadPipeline.Processor<Object, Object> {
+
+    @Override
+    public Object process(Object input) throws Exception {
+      release.await();
+      return input;
+    }
+  }
+
+  /**
+   * A callback that records the completion of an item.
+   */
+  private static class ResultCallback implements Html5UploadPipeline.Callback {
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private volatile Object result;
+    private volatile Throwable failure;
+    private volatile Map<String, Long> stageTimes;
+    private volatile Thread thread;
+
+    @Override
+    public void completed(Object result, Throwable failure,
+        Map<String, Long> stageTimes) {
+      this.result = result;
+      this.failure = failure;
+      this.stageTimes = stageTimes;
+      this.thread = Thread.currentThread();
+      done.complete(null);
+    }
+
+    /**
+     * Waits for the item and returns its result.
+     *
+     * @return the result
+     * @throws Exception if the wait fails
+     */
+    public Object result() throws Exception {
+      done.get(10, TimeUnit.SECONDS);
+      return result;
+    }
+
+    /**
+     * Waits for the item and returns its failure.
+     *
+     * @return the failure
+     * @throws Exception if the wait fails
+     */
+    public Throwable failure() throws Exception {
+      done.get(10, TimeUnit.SECONDS);
+      return failure;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
+
+/**
+ * Tests the {@link ObjectStoreReceiver} against a {@link FakeObjectStore}.
+ *
+ * @author mpilone
+ */
+public class ObjectStoreReceiverTest {
+
+  private static final int PART_SIZE = ObjectStoreClient.MIN_PART_SIZE;
+  private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+
+  private FakeObjectStore store;
+  private ExecutorService executor;
+  private ObjectStoreReceiver receiver;
+  private final List<ObjectStoreReceiver.StoredEvent> storedEvents =
+      new ArrayList<>();
+
+  /**
+   * Starts the fake object store and creates the receiver.
+   *
+   * @throws IOException if the store can't be started
+   */
+  @Before
+  public void setUp() throws IOException {
+    store = new FakeObjectStore();
+    executor = Executors.newFixedThreadPool(4);
+
+    Html5ObjectStore objectStore = new Html5ObjectStore(store.createClient());
+    objectStore.setPartSize(PART_SIZE);
+
+    receiver = new ObjectStoreReceiver(objectStore, executor,
+        8L * PART_SIZE);
+    receiver.addStoredListener(new ObjectStoreReceiver.StoredListener() {
+      @Override
+      public void uploadStored(ObjectStoreReceiver.StoredEvent event) {
+        storedEvents.add(event);
+      }
+    });
+  }
+
+  /**
+   * Stops the fake object store.
+   */
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    store.stop();
+  }
+
+  /**
+   * Verifies that the partial data of a retried chunk is discarded so the
+   * object contains every byte exactly once even when a part boundary
+   * follows the retried chunk.
+   *
+   * @throws IOException if the upload fails
+   */
+  @Test
+  public void testRetriedChunkIsNotDuplicated() throws IOException {
+    byte[] data = createData(4 * CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+
+    writeChunk(out, data, 0, 4);
+
+    // The first attempt of the chunk fails half way through.
+    out.chunkStart(1, 4);
+    out.write(data, CHUNK_SIZE, CHUNK_SIZE / 2);
+    writeChunk(out, data, 1, 4);
+
+    // The part is sent at the end of this chunk and the final chunk is
+    // retried after it.
+    writeChunk(out, data, 2, 4);
+    out.chunkStart(3, 4);
+    out.write(data, 3 * CHUNK_SIZE, CHUNK_SIZE / 2);
+    writeChunk(out, data, 3, 4);
+    out.close();
+
+    assertEquals(1, storedEvents.size());
+    String key = storedEvents.get(0).getKey();
+    assertEquals(data.length, storedEvents.get(0).getLength());
+    assertArrayEquals(data, store.getObject(key));
+    assertEquals(2, store.getPartRequests());
+    assertTrue(store.getOpenUploads().isEmpty());
+    assertTrue(store.getAbortedUploads().isEmpty());
+  }
+
+  /**
+   * Verifies that a chunk larger than a part is sent before it ends and that
+   * the file fails rather than duplicating data if the chunk is retried.
+   *
+   * @throws IOException if the stream can't be closed
+   */
+  @Test
+  public void testChunkLargerThanPartCanNotBeRetried() throws IOException {
+    byte[] data = createData(PART_SIZE + CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+
+    out.chunkStart(0, 1);
+    out.write(data, 0, PART_SIZE);
+
+    try {
+      out.chunkStart(0, 1);
+      fail("A chunk that was already sent must not be retried.");
+    }
+    catch (IOException ex) {
+      // Expected.
+    }
+    out.close();
+
+    assertEquals(1, store.getPartRequests());
+    assertEquals(1, store.getAbortedUploads().size());
+    assertTrue(store.getOpenUploads().isEmpty());
+    assertTrue(store.getObjectKeys().isEmpty());
+    assertTrue(storedEvents.isEmpty());
+  }
+
+  /**
+   * Verifies that a part that fails fewer times than the attempts allowed is
+   * retried and the upload succeeds.
+   *
+   * @throws IOException if the upload fails
+   */
+  @Test
+  public void testFailedPartIsRetried() throws IOException {
+    store.failParts(ObjectStoreReceiver.PART_ATTEMPTS - 1);
+
+    byte[] data = createData(CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+    writeChunk(out, data, 0, 1);
+    out.close();
+
+    assertEquals(ObjectStoreReceiver.PART_ATTEMPTS, store.getPartRequests());
+    assertEquals(1, storedEvents.size());
+    assertArrayEquals(data, store.getObject(storedEvents.get(0).getKey()));
+  }
+
+  /**
+   * Verifies that a part that fails every attempt fails the file and aborts
+   * the multipart upload.
+   *
+   * @throws IOException if the stream can't be closed
+   */
+  @Test
+  public void testFailedPartAbortsUpload() throws IOException {
+    store.failParts(Integer.MAX_VALUE);
+
+    byte[] data = createData(CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+    try {
+      writeChunk(out, data, 0, 1);
+      fail("The upload must fail when a part can't be uploaded.");
+    }
+    catch (IOException ex) {
+      // Expected.
+    }
+    out.close();
+
+    assertEquals(ObjectStoreReceiver.PART_ATTEMPTS, store.getPartRequests());
+    assertEquals(1, store.getAbortedUploads().size());
+    assertTrue(store.getOpenUploads().isEmpty());
+    assertTrue(store.getObjectKeys().isEmpty());
+    assertTrue(storedEvents.isEmpty());
+  }
+
+  /**
+   * Verifies that an object that doesn't have the size of the upload is
+   * deleted and the file fails.
+   *
+   * @throws IOException if the stream can't be closed
+   */
+  @Test
+  public void testSizeMismatchDeletesObject() throws IOException {
+    store.setSizeError(1);
+
+    byte[] data = createData(CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+    try {
+      writeChunk(out, data, 0, 1);
+      fail("The upload must fail when the object size doesn't match.");
+    }
+    catch (IOException ex) {
+      // Expected.
+    }
+    out.close();
+
+    assertEquals(1, store.getDeletedKeys().size());
+    assertTrue(store.getObjectKeys().isEmpty());
+    assertTrue(storedEvents.isEmpty());
+  }
+
+  /**
+   * Verifies that closing a stream before the final chunk ends aborts the
+   * multipart upload even if parts were already sent.
+   *
+   * @throws IOException if the stream can't be closed
+   */
+  @Test
+  public void testCloseAbortsIncompleteUpload() throws IOException {
+    byte[] data = createData(4 * CHUNK_SIZE);
+    RetryableOutputStream out = open(data.length);
+    for (int i = 0; i < 3; ++i) {
+      writeChunk(out, data, i, 4);
+    }
+    out.close();
+
+    assertEquals(1, store.getPartRequests());
+    assertEquals(1, store.getAbortedUploads().size());
+    assertTrue(store.getOpenUploads().isEmpty());
+    assertTrue(store.getObjectKeys().isEmpty());
+    assertTrue(storedEvents.isEmpty());
+  }
+
+  /**
+   * Opens a retryable stream for an upload.
+   *
+   * @param contentLength the length of the file
+   *
+   * @return the stream
+   */
+  private RetryableOutputStream open(int contentLength) {
+    return (RetryableOutputStream) receiver.receiveUpload("test.bin",
+        "application/octet-stream", true, true, CHUNK_SIZE, contentLength);
+  }
+
+  /**
+   * Writes a complete chunk of the data.
+   *
+   * @param out the stream
+   * @param data the file data
+   * @param chunkIndex the index of the chunk
+   * @param chunkCount the number of chunks
+   *
+   * @throws IOException if the stream fails
+   */
+  private static void writeChunk(RetryableOutputStream out, byte[] data,
+      int chunkIndex, int chunkCount) throws IOException {
+    int offset = chunkIndex * CHUNK_SIZE;
+    out.chunkStart(chunkIndex, chunkCount);
+    out.write(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+    out.chunkEnd(chunkIndex, chunkCount);
+  }
+
+  /**
+   * Creates random file data.
+   *
+   * @param length the length of the data
+   *
+   * @return the data
+   */
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
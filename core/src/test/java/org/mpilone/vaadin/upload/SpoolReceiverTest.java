@@ -0,0 +1,280 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
+
+/**
+ * Tests the {@link SpoolReceiver}.
+ *
+ * @author mpilone
+ */
+public class SpoolReceiverTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The root directory of the spool.
+   */
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ExecutorService executor;
+  private SpoolReceiver receiver;
+  private final List<SpoolReceiver.SpooledFile> handled =
+      new CopyOnWriteArrayList<>();
+  private final List<byte[]> handledData = new CopyOnWriteArrayList<>();
+  private volatile boolean failHandler;
+
+  /**
+   * Creates the receiver with a single handoff thread.
+   *
+   * @throws IOException if the spool can't be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newSingleThreadExecutor();
+    receiver = new SpoolReceiver(folder.getRoot(),
+        new SpoolReceiver.SpoolHandler() {
+      @Override
+      public void handle(SpoolReceiver.SpooledFile file) throws Exception {
+        handled.add(file);
+        handledData.add(Files.readAllBytes(file.getPath()));
+        if (failHandler) {
+          throw new IOException("Handler failure.");
+        }
+      }
+    }, executor);
+  }
+
+  /**
+   * Stops the handoff thread.
+   */
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Verifies that a complete upload with a retried chunk is handed off with
+   * exactly the uploaded data and deleted after the handler returns.
+   *
+   * @throws Exception if the upload fails
+   */
+  @Test
+  public void testCompleteUploadIsHandedOff() throws Exception {
+    byte[] data = createData(3 * CHUNK_SIZE);
+    RetryableOutputStream out = open();
+    assertEquals(1, receiver.getActiveCount());
+
+    writeChunk(out, data, 0, 3);
+    out.chunkStart(1, 3);
+    out.write(data, CHUNK_SIZE, CHUNK_SIZE / 2);
+    writeChunk(out, data, 1, 3);
+    writeChunk(out, data, 2, 3);
+    out.close();
+    drain();
+
+    assertEquals(0, receiver.getActiveCount());
+    assertEquals(1, handled.size());
+    assertEquals("test.bin", handled.get(0).getFilename());
+    assertEquals(data.length, handled.get(0).getLength());
+    assertArrayEquals(data, handledData.get(0));
+    assertFalse(Files.exists(handled.get(0).getPath()));
+    assertEquals(0, receiver.getBacklog());
+    assertEquals(0, receiver.getBacklogBytes());
+    assertEmpty("spool");
+    assertEmpty("ready");
+  }
+
+  /**
+   * Verifies that an upload closed before its last chunk ended is deleted
+   * and never handed off.
+   *
+   * @throws Exception if the upload fails
+   */
+  @Test
+  public void testIncompleteUploadIsDeleted() throws Exception {
+    byte[] data = createData(3 * CHUNK_SIZE);
+    RetryableOutputStream out = open();
+    writeChunk(out, data, 0, 3);
+    writeChunk(out, data, 1, 3);
+
+    // The last chunk starts but the request is interrupted.
+    out.chunkStart(2, 3);
+    out.write(data, 2 * CHUNK_SIZE, CHUNK_SIZE);
+    out.close();
+    drain();
+
+    assertTrue(handled.isEmpty());
+    assertEquals(0, receiver.getActiveCount());
+    assertEquals(0, receiver.getBacklog());
+    assertEquals(0, receiver.getHandoffCount());
+    assertEmpty("spool");
+    assertEmpty("ready");
+  }
+
+  /**
+   * Verifies that the backlog counts the files waiting for handoff, that the
+   * backlog signal reports pressure while the handler is behind and that the
+   * handoff latency includes the time waiting for the handler.
+   *
+   * @throws Exception if the upload fails
+   */
+  @Test
+  public void testBacklogAndLatencyAreTracked() throws Exception {
+    UploadLoadController.PressureSignal signal = receiver.backlogSignal(1);
+    byte[] data = createData(CHUNK_SIZE);
+
+    // Keep the handoff thread busy so the files wait in the backlog.
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    upload(data);
+    assertEquals(1, receiver.getBacklog());
+    assertEquals(data.length, receiver.getBacklogBytes());
+    assertFalse(signal.isUnderPressure());
+
+    upload(data);
+    assertEquals(2, receiver.getBacklog());
+    assertEquals(2L * data.length, receiver.getBacklogBytes());
+    assertTrue(signal.isUnderPressure());
+    assertEquals(2, folder.getRoot().toPath().resolve("ready").toFile().
+        list().length);
+
+    Thread.sleep(50);
+    release.countDown();
+    drain();
+
+    assertEquals(2, handled.size());
+    assertEquals(2, receiver.getHandoffCount());
+    assertEquals(0, receiver.getBacklog());
+    assertEquals(0, receiver.getBacklogBytes());
+    assertFalse(signal.isUnderPressure());
+    assertTrue(receiver.getAverageHandoffLatency() >= 50);
+    assertTrue(receiver.getMaxHandoffLatency() >= receiver.
+        getAverageHandoffLatency());
+    assertEmpty("ready");
+  }
+
+  /**
+   * Verifies that a file is deleted and leaves the backlog even if the
+   * handler fails.
+   *
+   * @throws Exception if the upload fails
+   */
+  @Test
+  public void testFailedHandlerReleasesFile() throws Exception {
+    failHandler = true;
+
+    upload(createData(CHUNK_SIZE));
+    drain();
+
+    assertEquals(1, handled.size());
+    assertFalse(Files.exists(handled.get(0).getPath()));
+    assertEquals(0, receiver.getBacklog());
+    assertEquals(0, receiver.getBacklogBytes());
+    assertEmpty("ready");
+  }
+
+  /**
+   * Opens a spool stream for an upload.
+   *
+   * @return the stream
+   */
+  private RetryableOutputStream open() {
+    return (RetryableOutputStream) receiver.receiveUpload("test.bin",
+        "application/octet-stream", true, true, CHUNK_SIZE, -1);
+  }
+
+  /**
+   * Uploads the data in a single chunk.
+   *
+   * @param data the file data
+   *
+   * @throws IOException if the upload fails
+   */
+  private void upload(byte[] data) throws IOException {
+    RetryableOutputStream out = open();
+    out.chunkStart(0, 1);
+    out.write(data);
+    out.chunkEnd(0, 1);
+    out.close();
+  }
+
+  /**
+   * Waits for the handoffs scheduled so far to complete.
+   *
+   * @throws Exception if the wait fails
+   */
+  private void drain() throws Exception {
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Asserts that the given spool directory is empty.
+   *
+   * @param name the name of the directory
+   */
+  private void assertEmpty(String name) {
+    Path dir = folder.getRoot().toPath().resolve(name);
+    assertEquals(name, 0, dir.toFile().list().length);
+  }
+
+  /**
+   * Writes a complete chunk of the data.
+   *
+   * @param out the stream
+   * @param data the file data
+   * @param chunkIndex the index of the chunk
+   * @param chunkCount the number of chunks
+   *
+   * @throws IOException if the stream fails
+   */
+  private static void writeChunk(RetryableOutputStream out, byte[] data,
+      int chunkIndex, int chunkCount) throws IOException {
+    int offset = chunkIndex * CHUNK_SIZE;
+    out.chunkStart(chunkIndex, chunkCount);
+    out.write(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+    out.chunkEnd(chunkIndex, chunkCount);
+  }
+
+  /**
+   * Creates random file data.
+   *
+   * @param length the length of the data
+   *
+   * @return the data
+   */
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,231 @@
+package org.mpilone.vaadin.upload;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.server.StreamVariable;
+
+/**
+ * Tests the pause and resume decisions of the {@link UploadLoadController}.
+ *
+ * @author mpilone
+ */
+public class UploadLoadControllerTest {
+
+  private UploadLoadController controller;
+  private TestSignal limit;
+  private final List<TestUpload> uploads = new ArrayList<>();
+
+  /**
+   * Creates a controller with a limit signal and four streaming uploads.
+   */
+  @Before
+  public void setUp() {
+    controller = new UploadLoadController() {
+      @Override
+      void access(AbstractHtml5Upload upload, Runnable task) {
+        task.run();
+      }
+    };
+    controller.setMinPauseTime(0, TimeUnit.MILLISECONDS);
+
+    limit = new TestSignal();
+    controller.addSignal(limit);
+
+    for (int i = 0; i < 4; ++i) {
+      TestUpload upload = new TestUpload();
+      controller.register(upload);
+      uploads.add(upload);
+    }
+  }
+
+  /**
+   * Verifies that uploads paused by one check that still stream their chunk
+   * at the next check are not replaced by more pauses while the excess
+   * persists and that only a new excess pauses more uploads.
+   */
+  @Test
+  public void testDrainingUploadsCoverExcess() {
+    limit.excess = 2;
+    controller.check();
+    assertEquals(2, countPaused());
+
+    // The paused uploads are still counted by the limit.
+    controller.check();
+    controller.check();
+    assertEquals(2, countPaused());
+    assertTrue(controller.isShedding());
+
+    limit.excess = 3;
+    controller.check();
+    assertEquals(3, countPaused());
+
+    // Once the paused uploads drain, the remaining excess is new.
+    for (TestUpload upload : uploads) {
+      upload.streaming = !upload.paused;
+    }
+    limit.excess = 1;
+    controller.check();
+    assertEquals(4, countPaused());
+  }
+
+  /**
+   * Verifies that paused uploads stay paused for the minimum pause time after
+   * the last check that found pressure.
+   */
+  @Test
+  public void testResumeWaitsForMinPauseTime() {
+    controller.setMinPauseTime(1, TimeUnit.HOURS);
+
+    limit.excess = 2;
+    controller.check();
+    assertEquals(2, countPaused());
+
+    limit.excess = 0;
+    limit.headroom = 4;
+    controller.check();
+    assertEquals(2, countPaused());
+    assertTrue(controller.isShedding());
+
+    controller.setMinPauseTime(0, TimeUnit.MILLISECONDS);
+    controller.check();
+    assertEquals(0, countPaused());
+    assertFalse(controller.isShedding());
+  }
+
+  /**
+   * Verifies that paused uploads are only resumed while there is headroom
+   * below the resume threshold and only as many as fit.
+   */
+  @Test
+  public void testResumeIsLimitedByHeadroom() {
+    limit.excess = 3;
+    controller.check();
+    assertEquals(3, countPaused());
+
+    // Between the limit and the resume threshold nothing happens.
+    limit.excess = 0;
+    limit.headroom = 0;
+    controller.check();
+    assertEquals(3, countPaused());
+    assertTrue(controller.isShedding());
+
+    limit.headroom = 1;
+    controller.check();
+    assertEquals(2, countPaused());
+    assertTrue(controller.isShedding());
+
+    limit.headroom = 4;
+    controller.check();
+    assertEquals(0, countPaused());
+    assertFalse(controller.isShedding());
+  }
+
+  /**
+   * Verifies that a signal without a limit pauses every upload and that
+   * uploads paused manually by the application aren't resumed.
+   */
+  @Test
+  public void testPressurePausesAllUploads() {
+    uploads.get(0).pauseUpload();
+
+    UploadLoadController.PressureSignal pressure =
+        new UploadLoadController.PressureSignal() {
+      @Override
+      public boolean isUnderPressure() {
+        return true;
+      }
+    };
+    controller.addSignal(pressure);
+    controller.check();
+    assertEquals(4, countPaused());
+
+    controller.removeSignal(pressure);
+    limit.headroom = 4;
+    controller.check();
+    assertEquals(1, countPaused());
+    assertTrue(uploads.get(0).paused);
+  }
+
+  /**
+   * Returns the number of paused uploads.
+   *
+   * @return the paused count
+   */
+  private int countPaused() {
+    int count = 0;
+    for (TestUpload upload : uploads) {
+      count += upload.paused ? 1 : 0;
+    }
+    return count;
+  }
+
+  /**
+   * A limit signal with settable values.
+   */
+  private static class TestSignal implements UploadLoadController.LimitSignal {
+
+    private volatile int excess;
+    private volatile int headroom;
+
+    @Override
+    public boolean isUnderPressure() {
+      return excess > 0;
+    }
+
+    @Override
+    public int getExcess() {
+      return excess;
+    }
+
+    @Override
+    public int getHeadroom() {
+      return headroom;
+    }
+  }
+
+  /**
+   * An upload that is streaming a chunk until it is told otherwise.
+   */
+  private static class TestUpload extends AbstractHtml5Upload {
+
+    private volatile boolean paused;
+    private volatile boolean streaming = true;
+
+    @Override
+    public boolean isUploading() {
+      return true;
+    }
+
+    @Override
+    public void pauseUpload() {
+      paused = true;
+    }
+
+    @Override
+    public void resumeUpload() {
+      paused = false;
+    }
+
+    @Override
+    public boolean isPaused() {
+      return paused;
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return streaming;
+    }
+
+    @Override
+    public StreamVariable getStreamVariable() {
+      return null;
+    }
+  }
+}
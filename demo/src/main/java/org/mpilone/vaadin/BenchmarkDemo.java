@@ -0,0 +1,296 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.StyleConstants.FULL_WIDTH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.mpilone.vaadin.upload.AbstractHtml5Upload;
+import org.mpilone.vaadin.upload.fineuploader.FineUploader;
+import org.mpilone.vaadin.upload.nativeuploader.NativeUploader;
+import org.mpilone.vaadin.upload.plupload.Plupload;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.shared.ui.ContentMode;
+import com.vaadin.ui.*;
+
+/**
+ * Compares the page weight and the connector init time of the upload
+ * components. The page weight is the size of the JavaScript files loaded for
+ * each component with the connector and the size of the library loaded on
+ * demand when the component is first visible. The init time is measured on
+ * the server side from the moment a component is attached until the client
+ * side reports that the uploader is initialized. It includes the download of
+ * the scripts on first use so reload the page to measure a cold start.
+ *
+ * @author mpilone
+ */
+public class BenchmarkDemo extends VerticalLayout {
+
+  /**
+   * The poll interval in milliseconds while the init time is measured.
+   */
+  private static final int RUN_POLL_INTERVAL = 250;
+
+  private final Grid<Result> grid;
+  private final List<Result> results = new ArrayList<>();
+  private final LinkedList<Result> pending = new LinkedList<>();
+  private final HorizontalLayout uploadLayout;
+  private final Button runBtn;
+  private int pollInterval;
+
+  public BenchmarkDemo() {
+    setMargin(true);
+    setSpacing(true);
+    setWidth(FULL_WIDTH);
+
+    Label lbl = new Label("<h2>Page Weight and Init Time</h2>",
+        ContentMode.HTML);
+    addComponent(lbl);
+
+    results.add(new Result("Plupload", Plupload.class,
+        "plupload/js/plupload.full.min.js"));
+    results.add(new Result("Fine Uploader", FineUploader.class,
+        "fineuploader/fineuploader-5.0.8.min.js"));
+    results.add(new Result("Native Uploader", NativeUploader.class, null));
+
+    grid = new Grid<>();
+    grid.setWidth(FULL_WIDTH);
+    grid.setHeightByRows(results.size());
+    grid.addColumn(Result::getName).setCaption("Component");
+    grid.addColumn(Result::getScriptBytes).setCaption("Script Bytes");
+    grid.addColumn(Result::getGzipBytes).setCaption("Gzipped Bytes");
+    grid.addColumn(Result::getLibraryBytes).setCaption("On Demand Bytes");
+    grid.addColumn(Result::getLibraryGzipBytes).setCaption(
+        "On Demand Gzipped Bytes");
+    grid.addColumn(Result::getInitTimes).setCaption("Init Time (ms)");
+    grid.setItems(results);
+    addComponent(grid);
+
+    runBtn = new Button("Measure Init Time", new Button.ClickListener() {
+      @Override
+      public void buttonClick(Button.ClickEvent event) {
+        runBtn.setEnabled(false);
+        pending.addAll(results);
+
+        // Push is disabled in the demo so poll to see the next component
+        // attached.
+        pollInterval = getUI().getPollInterval();
+        getUI().setPollInterval(RUN_POLL_INTERVAL);
+        runNext();
+      }
+    });
+    addComponent(runBtn);
+
+    uploadLayout = new HorizontalLayout();
+    addComponent(uploadLayout);
+  }
+
+  /**
+   * Attaches the next component to be measured or enables the run button
+   * again if all the components were measured.
+   */
+  private void runNext() {
+    uploadLayout.removeAllComponents();
+    grid.getDataProvider().refreshAll();
+
+    Result result = pending.poll();
+    if (result == null) {
+      runBtn.setEnabled(true);
+      getUI().setPollInterval(pollInterval);
+      return;
+    }
+
+    result.startTime = System.nanoTime();
+    uploadLayout.addComponent(result.createUpload());
+  }
+
+  /**
+   * Called when the client side of the component being measured is
+   * initialized.
+   *
+   * @param result the result of the component
+   */
+  private void initialized(Result result) {
+    if (result.startTime > 0) {
+      result.initTimes.add((System.nanoTime() - result.startTime) / 1000000);
+      result.startTime = 0;
+
+      // The components can't be changed while the response is written so
+      // the next one is attached once the session is unlocked.
+      getUI().access(new Runnable() {
+        @Override
+        public void run() {
+          runNext();
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the total size of the JavaScript files of the given component
+   * class including the files of its super classes.
+   *
+   * @param type the component class
+   * @param gzip true to return the gzipped size
+   *
+   * @return the size in bytes
+   */
+  private static long scriptBytes(Class<?> type, boolean gzip) {
+    long size = 0;
+
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      JavaScript js = c.getAnnotation(JavaScript.class);
+      if (js == null) {
+        continue;
+      }
+
+      for (String path : js.value()) {
+        size += resourceBytes(c, path, gzip);
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Returns the size of the resource at the given path relative to the
+   * given class.
+   *
+   * @param context the class the path is relative to
+   * @param path the path of the resource
+   * @param gzip true to return the gzipped size
+   *
+   * @return the size in bytes or 0 if the resource doesn't exist
+   */
+  private static long resourceBytes(Class<?> context, String path,
+      boolean gzip) {
+    try (InputStream instream = context.getResourceAsStream(path)) {
+      if (instream == null) {
+        return 0;
+      }
+
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int read;
+      while ((read = instream.read(buf)) > 0) {
+        data.write(buf, 0, read);
+      }
+
+      if (gzip) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream outstream = new GZIPOutputStream(compressed)) {
+          data.writeTo(outstream);
+        }
+        return compressed.size();
+      }
+      else {
+        return data.size();
+      }
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to read script " + path, ex);
+    }
+  }
+
+  /**
+   * The measurements of a single upload component.
+   */
+  private class Result {
+
+    private final String name;
+    private final Class<? extends AbstractHtml5Upload> type;
+    private final long scriptBytes;
+    private final long gzipBytes;
+    private final long libraryBytes;
+    private final long libraryGzipBytes;
+    private final List<Long> initTimes = new ArrayList<>();
+    private long startTime;
+
+    public Result(String name, Class<? extends AbstractHtml5Upload> type,
+        String libraryPath) {
+      this.name = name;
+      this.type = type;
+      this.scriptBytes = scriptBytes(type, false);
+      this.gzipBytes = scriptBytes(type, true);
+      this.libraryBytes = libraryPath == null ? 0 : resourceBytes(type,
+          libraryPath, false);
+      this.libraryGzipBytes = libraryPath == null ? 0 : resourceBytes(type,
+          libraryPath, true);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getScriptBytes() {
+      return scriptBytes;
+    }
+
+    public long getGzipBytes() {
+      return gzipBytes;
+    }
+
+    public long getLibraryBytes() {
+      return libraryBytes;
+    }
+
+    public long getLibraryGzipBytes() {
+      return libraryGzipBytes;
+    }
+
+    public String getInitTimes() {
+      return initTimes.toString();
+    }
+
+    /**
+     * Creates the component to be measured. Each component clears the
+     * rebuild flag in its state when the client side reports that it is
+     * initialized which is seen before the next response is written.
+     *
+     * @return the new component
+     */
+    private AbstractHtml5Upload createUpload() {
+      final Result result = this;
+
+      if (type == Plupload.class) {
+        return new Plupload() {
+          @Override
+          public void beforeClientResponse(boolean initial) {
+            super.beforeClientResponse(initial);
+            if (!initial && !getState(false).rebuild) {
+              initialized(result);
+            }
+          }
+        };
+      }
+      else if (type == FineUploader.class) {
+        return new FineUploader() {
+          @Override
+          public void beforeClientResponse(boolean initial) {
+            super.beforeClientResponse(initial);
+            if (!initial && !getState(false).rebuild) {
+              initialized(result);
+            }
+          }
+        };
+      }
+      else {
+        return new NativeUploader() {
+          @Override
+          public void beforeClientResponse(boolean initial) {
+            super.beforeClientResponse(initial);
+            if (!initial && !getState(false).rebuild) {
+              initialized(result);
+            }
+          }
+        };
+      }
+    }
+  }
+}
@@ -34,7 +34,8 @@ public class Demo extends UI {
     setContent(contentLayout);
 
     ComboBox cmb = new ComboBox("Select Demo");
-    cmb.setItems("Plupload", "Fine Uploader");
+    cmb.setItems("Plupload", "Fine Uploader", "Native Uploader",
+        "Benchmark", "Latency");
     cmb.setValue("Plupload");
     cmb.setEmptySelectionAllowed(false);
     cmb.addSelectionListener(evt -> {
@@ -62,6 +63,18 @@ public class Demo extends UI {
       case "Fine Uploader":
         c = new FineUploaderDemo();
         break;
+
+      case "Native Uploader":
+        c = new NativeUploaderDemo();
+        break;
+
+      case "Benchmark":
+        c = new BenchmarkDemo();
+        break;
+
+      case "Latency":
+        c = new LatencyProbeDemo();
+        break;
     }
 
     if (demoComponent != null) {
@@ -0,0 +1,31 @@
+package org.mpilone.vaadin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mpilone.vaadin.upload.AbstractHtml5Upload;
+import org.mpilone.vaadin.upload.Html5ContentIndex;
+
+/**
+ * Content index that remembers the checksum of each successful upload in
+ * memory so uploading the same file again completes without a transfer.
+ */
+class DemoContentIndex implements Html5ContentIndex,
+    AbstractHtml5Upload.SucceededListener {
+
+  private final Map<String, String> references = new ConcurrentHashMap<>();
+
+  @Override
+  public String find(String checksum, long contentLength) {
+    return references.get(checksum + ":" + contentLength);
+  }
+
+  @Override
+  public void uploadSucceeded(AbstractHtml5Upload.SucceededEvent evt) {
+    if (evt.getChecksum() != null && evt.getContentReference() == null) {
+      references.put(evt.getChecksum() + ":" + evt.getLength(),
+          evt.getFilename());
+    }
+  }
+
+}
@@ -94,6 +94,48 @@ public class FineUploaderDemo extends AbstractUploadDemo {
     upload.setImmediateMode(true);
     upload.setReceiver(new RandomFailureDemoReceiver(this, true));
     addExample("Immediate Submit and Random Perminant Failure", upload);
+
+    // Upload 10: Immediate submit with chunk checksums.
+    upload = buildUpload();
+    upload.setButtonCaption("Upload w/Checksums");
+    upload.setImmediateMode(true);
+    upload.setChecksumEnabled(true);
+    addExample("Immediate Submit with Checksums", upload);
+
+    // Upload 11: Immediate submit with a content check to skip known files.
+    upload = buildUpload();
+    upload.setButtonCaption("Upload Once");
+    upload.setImmediateMode(true);
+    upload.setChecksumEnabled(true);
+    DemoContentIndex index = new DemoContentIndex();
+    upload.setContentIndex(index);
+    upload.addSucceededListener(index);
+    addExample("Immediate Submit with Content Check", upload);
+
+    // Upload 12: Immediate submit with raw (non-multipart) chunks.
+    upload = buildUpload();
+    upload.setButtonCaption("Upload Raw");
+    upload.setImmediateMode(true);
+    upload.setRawUploadEnabled(true);
+    addExample("Immediate Submit with Raw Chunks", upload);
+
+    // Upload 13: Immediate submit of many small files in batches.
+    upload = buildUpload();
+    upload.setButtonCaption("Upload Many");
+    upload.setImmediateMode(true);
+    upload.setBatchSize(100);
+    addExample("Immediate Submit of Batches", upload);
+
+    // Upload 14: Immediate submit with uploaders sharing a single engine.
+    FineUploader[] shared = new FineUploader[4];
+    for (int i = 0; i < shared.length; i++) {
+      shared[i] = buildUpload();
+      shared[i].setButtonCaption("Shared " + (i + 1));
+      shared[i].setImmediateMode(true);
+      shared[i].setSharedEngineEnabled(true);
+    }
+    addExample("Immediate Submit with a Shared Engine", shared[0], shared[1],
+        shared[2], shared[3]);
   }
 
   private FineUploader buildUpload() {
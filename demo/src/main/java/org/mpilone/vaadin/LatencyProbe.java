@@ -0,0 +1,152 @@
+package org.mpilone.vaadin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.ui.AbstractJavaScriptComponent;
+
+/**
+ * An invisible component that measures the round trip time of Vaadin UIDL
+ * requests. While running, the client side sends a ping RPC at a fixed
+ * interval and the server answers with a pong in the same response. The
+ * round trip time includes any time the request waits for a free browser
+ * connection so it shows how responsive the UI is while uploads are running.
+ * The probe can also set the upload connection limit of the page wide
+ * scheduler of the upload components.
+ *
+ * @author mpilone
+ */
+@JavaScript("latencyprobe_connector.js")
+public class LatencyProbe extends AbstractJavaScriptComponent {
+
+  private final List<Long> samples = new ArrayList<>();
+  private final List<SampleListener> listeners = new ArrayList<>();
+
+  /**
+   * Constructs the probe.
+   */
+  public LatencyProbe() {
+    addFunction("ping", args -> {
+      double sent = args.getNumber(0);
+      long rtt = (long) args.getNumber(1);
+
+      callFunction("pong", sent);
+
+      // The round trip time of a ping is reported with the next one.
+      if (rtt >= 0) {
+        samples.add(rtt);
+        for (SampleListener listener : new ArrayList<>(listeners)) {
+          listener.sampleTaken(this, rtt);
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts sending pings at the given interval.
+   *
+   * @param interval the interval in milliseconds
+   */
+  public void start(int interval) {
+    callFunction("start", interval);
+  }
+
+  /**
+   * Stops sending pings.
+   */
+  public void stop() {
+    callFunction("stop");
+  }
+
+  /**
+   * Sets the maximum number of upload connections of the page or 0 for no
+   * limit.
+   *
+   * @param max the maximum number of upload connections
+   */
+  public void setMaxUploadConnections(int max) {
+    callFunction("setMaxUploadConnections", max);
+  }
+
+  /**
+   * Clears the samples taken.
+   */
+  public void reset() {
+    samples.clear();
+  }
+
+  /**
+   * Returns the number of samples taken.
+   *
+   * @return the number of samples
+   */
+  public int getSampleCount() {
+    return samples.size();
+  }
+
+  /**
+   * Returns the average round trip time.
+   *
+   * @return the average in milliseconds or 0 if there are no samples
+   */
+  public long getAverage() {
+    long total = 0;
+    for (long sample : samples) {
+      total += sample;
+    }
+    return samples.isEmpty() ? 0 : total / samples.size();
+  }
+
+  /**
+   * Returns the round trip time at the given percentile.
+   *
+   * @param percentile the percentile from 0 to 100
+   *
+   * @return the round trip time in milliseconds or 0 if there are no samples
+   */
+  public long getPercentile(int percentile) {
+    if (samples.isEmpty()) {
+      return 0;
+    }
+
+    List<Long> sorted = new ArrayList<>(samples);
+    Collections.sort(sorted);
+
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, index));
+  }
+
+  /**
+   * Adds a listener that is notified of each sample.
+   *
+   * @param listener the listener to add
+   */
+  public void addSampleListener(SampleListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a listener previously added.
+   *
+   * @param listener the listener to remove
+   */
+  public void removeSampleListener(SampleListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * A listener notified of each round trip time sample.
+   */
+  public interface SampleListener {
+
+    /**
+     * Called when a sample is taken.
+     *
+     * @param probe the probe that took the sample
+     * @param rtt the round trip time in milliseconds
+     */
+    void sampleTaken(LatencyProbe probe, long rtt);
+  }
+}
@@ -0,0 +1,114 @@
+package org.mpilone.vaadin;
+
+import static org.mpilone.vaadin.StyleConstants.FULL_WIDTH;
+
+import org.mpilone.vaadin.upload.nativeuploader.NativeUploader;
+import org.mpilone.vaadin.upload.plupload.Plupload;
+
+import com.vaadin.shared.ui.ContentMode;
+import com.vaadin.ui.*;
+
+/**
+ * Measures the UIDL round trip time while heavy uploads are running. Browsers
+ * open about 6 connections per host so uploads that use them all delay every
+ * UI request until a chunk completes. Measure with no connection limit
+ * (before) and with the default limit of the upload scheduler (after) while
+ * uploading a few large files with the uploaders below.
+ *
+ * @author mpilone
+ */
+public class LatencyProbeDemo extends VerticalLayout implements UploadLogger {
+
+  /**
+   * The interval in milliseconds between pings.
+   */
+  private static final int PING_INTERVAL = 500;
+
+  private final LatencyProbe probe;
+  private final Label statsLbl;
+  private final Label logLbl;
+
+  public LatencyProbeDemo() {
+    setMargin(true);
+    setSpacing(true);
+    setWidth(FULL_WIDTH);
+
+    Label lbl = new Label("<h2>UIDL Latency During Uploads</h2>"
+        + "<p>Start the probe, select a connection limit and upload a few "
+        + "large files with each uploader at the same time. Reset the "
+        + "probe and repeat with the other limit to compare.</p>",
+        ContentMode.HTML);
+    addComponent(lbl);
+
+    probe = new LatencyProbe();
+    probe.addSampleListener((p, rtt) -> updateStats());
+    addComponent(probe);
+
+    NativeSelect<Integer> limitSelect = new NativeSelect<>(
+        "Upload Connections");
+    limitSelect.setItems(0, 4);
+    limitSelect.setItemCaptionGenerator(max -> max == 0 ? "No limit (before)"
+        : max + " connections (after)");
+    limitSelect.setEmptySelectionAllowed(false);
+    limitSelect.setValue(4);
+    limitSelect.addValueChangeListener(evt -> {
+      probe.setMaxUploadConnections(evt.getValue());
+    });
+    probe.setMaxUploadConnections(limitSelect.getValue());
+
+    Button startBtn = new Button("Start", evt -> probe.start(PING_INTERVAL));
+    Button stopBtn = new Button("Stop", evt -> probe.stop());
+    Button resetBtn = new Button("Reset", evt -> {
+      probe.reset();
+      updateStats();
+    });
+
+    HorizontalLayout controlLayout = new HorizontalLayout(limitSelect,
+        startBtn, stopBtn, resetBtn);
+    controlLayout.setDefaultComponentAlignment(Alignment.BOTTOM_LEFT);
+    addComponent(controlLayout);
+
+    statsLbl = new Label();
+    addComponent(statsLbl);
+    updateStats();
+
+    HorizontalLayout uploadLayout = new HorizontalLayout();
+    for (int i = 0; i < 2; ++i) {
+      NativeUploader upload = new NativeUploader();
+      upload.setChunkSize(1024 * 1024);
+      upload.setParallelChunks(4);
+      upload.setMaxFileSize(500 * 1024 * 1024);
+      upload.setImmediateMode(true);
+      upload.setButtonCaption("Native Upload");
+      upload.setReceiver(new DemoReceiver(this));
+      uploadLayout.addComponent(upload);
+    }
+
+    Plupload plupload = new Plupload();
+    plupload.setRuntimes(Plupload.Runtime.HTML5);
+    plupload.setChunkSize(1024 * 1024);
+    plupload.setMaxFileSize(500 * 1024 * 1024);
+    plupload.setImmediateMode(true);
+    plupload.setButtonCaption("Plupload");
+    plupload.setReceiver(new DemoReceiver(this));
+    uploadLayout.addComponent(plupload);
+    addComponent(uploadLayout);
+
+    logLbl = new Label();
+    addComponent(logLbl);
+  }
+
+  /**
+   * Updates the statistics label with the samples of the probe.
+   */
+  private void updateStats() {
+    statsLbl.setValue(String.format("Samples: %d, Average: %d ms, "
+        + "95th Percentile: %d ms, Max: %d ms", probe.getSampleCount(),
+        probe.getAverage(), probe.getPercentile(95), probe.getPercentile(100)));
+  }
+
+  @Override
+  public void log(String msg, Object... args) {
+    logLbl.setValue(String.format(msg, args));
+  }
+}
@@ -0,0 +1,112 @@
+package org.mpilone.vaadin;
+
+import org.mpilone.vaadin.upload.nativeuploader.NativeUploader;
+
+import com.vaadin.ui.Button;
+
+/**
+ * Demo for the NativeUploader Vaadin component.
+ *
+ * @author mpilone
+ */
+public class NativeUploaderDemo extends AbstractUploadDemo {
+
+  public NativeUploaderDemo() {
+
+    // Upload 1: Manual submit button.
+    NativeUploader upload = buildUpload();
+    addExample("Manual Submit", upload);
+
+    // Upload 2: Immediate submit.
+    upload = buildUpload();
+    upload.setImmediateMode(true);
+    upload.setButtonCaption("Upload Now");
+    addExample("Immediate Submit", upload);
+
+    // Upload 3: Immediate submit forced slow.
+    upload = buildUpload();
+    upload.setButtonCaption("Slow it Down");
+    upload.setReceiver(new SlowDemoReceiver(this));
+    upload.setImmediateMode(true);
+    final NativeUploader _upload3 = upload;
+
+    Button btn = new Button("Interrupt", new Button.ClickListener() {
+      @Override
+      public void buttonClick(Button.ClickEvent event) {
+        _upload3.interruptUpload();
+      }
+    });
+    addExample("Immediate Submit Forced Slow", upload, btn);
+
+    // Upload 4: Immediate submit with parallel chunks.
+    upload = buildUpload();
+    upload.setImmediateMode(true);
+    upload.setButtonCaption("Upload in Parallel");
+    upload.setParallelChunks(4);
+    addExample("Immediate Submit with 4 Parallel Chunks", upload);
+
+    // Upload 5: Immediate submit with max size 1 MiB.
+    upload = buildUpload();
+    upload.setImmediateMode(true);
+    upload.setButtonCaption("Upload w/Max");
+    upload.setMaxFileSize(1024 * 1024);
+    addExample("Immediate Submit with Max 1 MiB", upload);
+
+    // Upload 6: Immediate submit with no chunking.
+    upload = buildUpload();
+    upload.setImmediateMode(true);
+    upload.setButtonCaption("Upload w/o Chunking");
+    upload.setChunkSize(0);
+    addExample("Immediate Submit with out Chunking", upload);
+
+    // Upload 7: Server initiated manual upload.
+    upload = buildUpload();
+    upload.setImmediateMode(false);
+    upload.setButtonCaption(null);
+
+    final NativeUploader _upload7 = upload;
+    btn = new Button("Server Side Submit", new Button.ClickListener() {
+      @Override
+      public void buttonClick(Button.ClickEvent event) {
+        _upload7.submitUpload();
+      }
+    });
+    addExample("Server Initiated Manual Upload", upload, btn);
+
+    // Upload 8: Random failure submit with parallel chunks.
+    upload = buildUpload();
+    upload.setButtonCaption("Randomly Fail");
+    upload.setImmediateMode(true);
+    upload.setMaxRetries(20);
+    upload.setParallelChunks(4);
+    upload.setReceiver(new RandomFailureDemoReceiver(this));
+    addExample("Immediate Submit and Random Failure", upload);
+
+    // Upload 9: Immediate submit with chunk checksums.
+    upload = buildUpload();
+    upload.setButtonCaption("Upload w/Checksums");
+    upload.setImmediateMode(true);
+    upload.setChecksumEnabled(true);
+    upload.setParallelChunks(4);
+    addExample("Immediate Submit with Checksums", upload);
+  }
+
+  private NativeUploader buildUpload() {
+
+    final NativeUploader upload = new NativeUploader();
+    upload.setChunkSize(256 * 1024);
+    upload.setMaxFileSize(500 * 1024 * 1024);
+    upload.setMaxRetries(5);
+    upload.setButtonCaption("Upload File");
+    upload.setReceiver(new DemoReceiver(this));
+
+    UploadStartedFinishedListener listener = new UploadStartedFinishedListener(
+        this);
+    upload.addSucceededListener(listener);
+    upload.addFailedListener(listener);
+    upload.addFinishedListener(listener);
+    upload.addStartedListener(listener);
+
+    return upload;
+  }
+}
@@ -1,7 +1,13 @@
 package org.mpilone.vaadin;
 
+import java.io.File;
+import java.io.IOException;
+
+import org.mpilone.vaadin.upload.ChunkSizeAdvisor;
+import org.mpilone.vaadin.upload.ContentAddressableReceiver;
 import org.mpilone.vaadin.upload.plupload.Plupload;
 
+import com.vaadin.server.VaadinSession;
 import com.vaadin.ui.Button;
 
 /**
@@ -118,6 +124,91 @@ public class PluploadDemo extends AbstractUploadDemo {
     upload.setImmediateMode(true);
     upload.setReceiver(new RandomFailureDemoReceiver(this, true));
     addExample("Immediate Submit and Random Perminant Failure", upload);
+
+    // Upload 11: Immediate submit with chunk checksums.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Upload w/Checksums");
+    upload.setImmediateMode(true);
+    upload.setChecksumEnabled(true);
+    addExample("Immediate Submit with Checksums", upload);
+
+    // Upload 12: Manual submit with a content check to skip known files.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Upload Once");
+    upload.setChecksumEnabled(true);
+    DemoContentIndex index = new DemoContentIndex();
+    upload.setContentIndex(index);
+    upload.addSucceededListener(index);
+    addExample("Manual Submit with Content Check", upload);
+
+    // Upload 13: Immediate submit into a deduplicating content store.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Store Once");
+    upload.setImmediateMode(true);
+    upload.setChecksumEnabled(true);
+    // The store is shared so each session only finds its own uploads.
+    ContentAddressableReceiver.OwnerReceiver owner = buildContentStore().
+        forOwner(VaadinSession.getCurrent().getSession().getId());
+    upload.setReceiver(owner);
+    upload.setContentIndex(owner);
+    addExample("Immediate Submit into Content Store", upload);
+
+    // Upload 14: Immediate submit with a chunk size adapted to the link.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Adaptive Chunks");
+    upload.setImmediateMode(true);
+    upload.setChunkSizeAdvisor(new ChunkSizeAdvisor(64 * 1024,
+        8 * 1024 * 1024));
+    addExample("Immediate Submit with Adaptive Chunk Size", upload);
+
+    // Upload 15: Immediate submit with raw (non-multipart) chunks.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Upload Raw");
+    upload.setImmediateMode(true);
+    upload.setRawUploadEnabled(true);
+    addExample("Immediate Submit with Raw Chunks", upload);
+
+    // Upload 16: Immediate submit of many small files in batches.
+    upload = buildUpload();
+    upload.setRuntimes(Plupload.Runtime.HTML5);
+    upload.setButtonCaption("Upload Many");
+    upload.setImmediateMode(true);
+    upload.setBatchSize(100);
+    addExample("Immediate Submit of Batches", upload);
+
+    // Upload 17: Immediate submit with uploaders sharing a single engine.
+    Plupload[] shared = new Plupload[4];
+    for (int i = 0; i < shared.length; i++) {
+      shared[i] = buildUpload();
+      shared[i].setButtonCaption("Shared " + (i + 1));
+      shared[i].setImmediateMode(true);
+      shared[i].setSharedEngineEnabled(true);
+    }
+    addExample("Immediate Submit with a Shared Engine", shared[0], shared[1],
+        shared[2], shared[3]);
+  }
+
+  private ContentAddressableReceiver buildContentStore() {
+    try {
+      ContentAddressableReceiver store = new ContentAddressableReceiver(
+          new File(System.getProperty("java.io.tmpdir"), "plupload-demo-cas"));
+      store.addStoredListener(new ContentAddressableReceiver.StoredListener() {
+        @Override
+        public void uploadStored(ContentAddressableReceiver.StoredEvent evt) {
+          log("Stored file %s as %s (duplicate: %s).", evt.getFilename(),
+              evt.getKey(), evt.isDuplicate());
+        }
+      });
+      return store;
+    }
+    catch (IOException ex) {
+      throw new RuntimeException("Unable to create content store.", ex);
+    }
   }
 
   private Plupload buildUpload() {
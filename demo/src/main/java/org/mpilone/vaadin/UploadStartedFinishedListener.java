@@ -33,8 +33,9 @@ public class UploadStartedFinishedListener implements
 
   @Override
   public void uploadSucceeded(Plupload.SucceededEvent evt) {
-    log.log("Upload of file %s succeeded with size %d.", evt.
-        getFilename(), evt.getLength());
+    log.log("Upload of file %s succeeded with size %d, checksum %s, and "
+        + "existing content %s.", evt.getFilename(), evt.getLength(),
+        evt.getChecksum(), evt.getContentReference());
   }
 
   @Override
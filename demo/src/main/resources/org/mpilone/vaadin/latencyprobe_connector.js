@@ -0,0 +1,78 @@
+/*
+ * The entry point into the connector from the Vaadin framework.
+ */
+org_mpilone_vaadin_LatencyProbe = function() {
+
+  var self = this;
+
+  /*
+   * The timer that sends the pings or null if the probe is stopped.
+   */
+  var timer = null;
+
+  /*
+   * The flag which indicates if a ping is waiting for its pong.
+   */
+  var waiting = false;
+
+  /*
+   * The round trip time of the last ping or -1 if it was already reported.
+   */
+  var lastRtt = -1;
+
+  /*
+   * The maximum number of upload connections to apply to the scheduler or
+   * null to leave the default.
+   */
+  var maxUploadConnections = null;
+
+  /*
+   * Applies the upload connection limit to the scheduler of the upload
+   * components. The support script is only loaded with the first upload
+   * component so the limit is applied again with each ping.
+   */
+  function applyLimit() {
+    var html5upload = window.org_mpilone_vaadin_upload_html5upload;
+    if (maxUploadConnections !== null && html5upload) {
+      html5upload.getScheduler().setMaxConnections(maxUploadConnections);
+    }
+  }
+
+  function ping() {
+    applyLimit();
+
+    if (!waiting) {
+      waiting = true;
+      self.ping(new Date().getTime(), lastRtt);
+      lastRtt = -1;
+    }
+  }
+
+  this.pong = function(sent) {
+    waiting = false;
+    lastRtt = new Date().getTime() - sent;
+  };
+
+  this.start = function(interval) {
+    this.stop();
+    timer = window.setInterval(ping, interval);
+  };
+
+  this.stop = function() {
+    if (timer) {
+      window.clearInterval(timer);
+      timer = null;
+    }
+    waiting = false;
+    lastRtt = -1;
+  };
+
+  this.setMaxUploadConnections = function(max) {
+    maxUploadConnections = max;
+    applyLimit();
+  };
+
+  this.onUnregister = function() {
+    self.stop();
+  };
+};
@@ -1,9 +1,12 @@
 package org.mpilone.vaadin.upload.fineuploader;
 
+import static org.mpilone.vaadin.upload.Streams.removePath;
 import static org.mpilone.vaadin.upload.Streams.tryClose;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.mpilone.vaadin.upload.*;
 import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
@@ -28,8 +31,7 @@ import com.vaadin.ui.Upload;
  *
  * @author mpilone
  */
-@JavaScript({"fineuploader_connector.js",
-  "fineuploader/fineuploader-5.0.8.min.js"})
+@JavaScript("fineuploader_connector.js")
 public class FineUploader extends AbstractHtml5Upload {
 
   /**
@@ -42,6 +44,12 @@ public class FineUploader extends AbstractHtml5Upload {
    */
   private final static Logger log = LoggerFactory.getLogger(FineUploader.class);
 
+  /**
+   * The path of the Fine Uploader library loaded by the connector on demand.
+   */
+  private static final String LIBRARY_PATH =
+      "fineuploader/fineuploader-5.0.8.min.js";
+
   private final FineUploaderServerRpc serverRpc
       = new ServerRpcImpl();
   private final FineUploaderClientRpc clientRpc;
@@ -82,10 +90,28 @@ public class FineUploader extends AbstractHtml5Upload {
   public void attach() {
     super.attach();
 
-    // Generate the URL using the standard FileUploadHandler format and then
-    // replace the URL prefix with the prefix for our custom upload request 
-    // handler. This ensures that the IDs and security key are properly
-    // generated and registered for our stream variable.
+    getState().url = createUploadUrl();
+    getState().libraryUrl = publishLibrary(FineUploader.class, LIBRARY_PATH);
+    getState().rebuild = true;
+    getState().pushProgress = isPushProgressActive();
+    getState().serverCompletion = isServerCompletionPushed();
+    getState().socketUrl = openUploadChannel(getStreamVariable());
+
+    installHandler();
+  }
+
+  /**
+   * Creates the URL the upload requests are sent to. The URL of the
+   * {@link Html5FileUploadHandler} is generated using the standard
+   * FileUploadHandler format and then the URL prefix is replaced with the
+   * prefix for our custom upload request handler. This ensures that the IDs
+   * and security key are properly generated and registered for our stream
+   * variable. If an ingest origin is set or direct ingest is enabled, the
+   * signed URL of the ingest target is used instead.
+   *
+   * @return the upload URL
+   */
+  private String createUploadUrl() {
     String url = getSession().getCommunicationManager().
         getStreamVariableTargetUrl(this, "fineuploader", getStreamVariable());
 
@@ -94,10 +120,28 @@ public class FineUploader extends AbstractHtml5Upload {
     url = url.replace(ServletPortletHelper.UPLOAD_URL_PREFIX,
         Html5FileUploadHandler.URL_PREFIX);
 
-    getState().url = url;
-    getState().rebuild = true;
+    return getUploadUrl(getStreamVariable(), url);
+  }
 
-    installHandler();
+  /**
+   * Updates the upload URL in the state if the token of the ingest target was
+   * renewed. The client applies the new URL to the following requests.
+   */
+  @Override
+  protected void renewUploadUrl() {
+    if (ingestTarget != null) {
+      String url = ingestTarget.getUrl();
+      if (!url.equals(getState(false).url)) {
+        getState().url = url;
+      }
+    }
+  }
+
+  @Override
+  protected DirectIngestStreamVariable createDirectIngestStreamVariable() {
+    return new DirectIngestStreamVariable(this,
+        new DirectIngestStreamVariable.Parameters("qqfilename", "qqpartindex",
+            "qqtotalparts", "qqtotalfilesize"), getMaxRetries() > 0);
   }
 
   @Override
@@ -114,6 +158,7 @@ public class FineUploader extends AbstractHtml5Upload {
    *
    * @return the stream variable for this component
    */
+  @Override
   public StreamVariable getStreamVariable() {
     if (streamVariable == null) {
       streamVariable = new StreamVariableImpl();
@@ -185,7 +230,6 @@ public class FineUploader extends AbstractHtml5Upload {
    */
   public void setMaxRetries(int maxRetries) {
     getState().maxRetries = maxRetries;
-    getState().rebuild = true;
   }
 
   /**
@@ -206,8 +250,13 @@ public class FineUploader extends AbstractHtml5Upload {
    * @param size the size of each data chunk
    */
   public void setChunkSize(int size) {
+    // Chunking can only be enabled or disabled with a rebuild but a new chunk
+    // size is applied to the next file by the client.
+    if ((size > 0) != (getState(false).chunkSize > 0)) {
+      getState().rebuild = true;
+    }
     getState().chunkSize = size;
-    getState().rebuild = true;
+    getState().nextChunkSize = 0;
   }
 
   /**
@@ -217,7 +266,24 @@ public class FineUploader extends AbstractHtml5Upload {
    * @return the size of each data chunk
    */
   public int getChunkSize() {
-    return getState().chunkSize;
+    return getState(false).chunkSize;
+  }
+
+  /**
+   * Returns the chunk size the client uses for the next file which is the
+   * size recommended by the chunk size advisor if there is one or the
+   * configured chunk size.
+   *
+   * @return the chunk size of the next file
+   */
+  protected int getNextChunkSize() {
+    int nextChunkSize = getState(false).nextChunkSize;
+    return nextChunkSize > 0 ? nextChunkSize : getChunkSize();
+  }
+
+  @Override
+  protected boolean isChunkSizeFixed() {
+    return super.isChunkSizeFixed() || isChecksumEnabled();
   }
 
   /**
@@ -227,9 +293,243 @@ public class FineUploader extends AbstractHtml5Upload {
    */
   public void setMaxFileSize(long size) {
     getState().maxFileSize = size;
+  }
+
+  /**
+   * Sets the checksum flag. A value of true will cause the client to compute a
+   * {@link TreeHash#ALGORITHM} checksum of each chunk before it is sent. The
+   * server verifies the checksum before the chunk is committed to the receiver
+   * and rejects a corrupted chunk so it can be retried. The verified chunk
+   * checksums are combined into a {@link TreeHash} of the entire file that is
+   * available from {@link SucceededEvent#getChecksum()}. Checksums require the
+   * HTML5 runtime and a browser with the Web Crypto API (normally only
+   * available over HTTPS); otherwise the upload proceeds without them.
+   *
+   * @param enabled true to enable chunk checksums
+   */
+  public void setChecksumEnabled(boolean enabled) {
+    getState().checksumEnabled = enabled;
+  }
+
+  /**
+   * Returns true if the client will compute and send chunk checksums.
+   *
+   * @return true if chunk checksums are enabled
+   */
+  public boolean isChecksumEnabled() {
+    return getState(false).checksumEnabled;
+  }
+
+  /**
+   * Sets the raw upload flag. A value of true will cause the client to send
+   * each chunk as the raw request body (application/octet-stream) with the
+   * parameters in the URL rather than wrapped in a multipart request. This
+   * removes the multipart parsing from the data path on the server side.
+   * Browsers without HTML5 upload support fall back to multipart.
+   *
+   * @param enabled true to enable raw uploads
+   */
+  public void setRawUploadEnabled(boolean enabled) {
+    getState().rawUpload = enabled;
     getState().rebuild = true;
   }
 
+  /**
+   * Returns true if the client sends the file data as the raw request body.
+   *
+   * @return true if raw uploads are enabled
+   */
+  public boolean isRawUploadEnabled() {
+    return getState(false).rawUpload;
+  }
+
+  /**
+   * Sets the shared engine flag. A value of true will cause the client to
+   * register the component with a single engine shared by all the uploaders
+   * on the page that owns the file input, the drop handling and a page wide
+   * upload queue. The component only builds its buttons until files are
+   * selected or dropped on it which keeps the init time and memory low on
+   * screens with many upload components. Server side events are still
+   * delivered per component. The component falls back to its own uploader in
+   * browsers without HTML5 support.
+   *
+   * @param enabled true to use the shared engine
+   */
+  public void setSharedEngineEnabled(boolean enabled) {
+    getState().sharedEngine = enabled;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns true if the component uses the engine shared by the uploaders on
+   * the page.
+   *
+   * @return true if the shared engine is enabled
+   */
+  public boolean isSharedEngineEnabled() {
+    return getState(false).sharedEngine;
+  }
+
+  /**
+   * Sets the maximum number of files sent in a single batch request. A value
+   * greater than 0 enables batch mode in which the user can select many files
+   * and the client packs them into multipart requests of up to this many
+   * files (and about {@link #getBatchMaxBytes()} bytes). Each file is a
+   * separate upload with its own started and finished events and a status in
+   * the batch response. Files in a batch are not chunked or retried so batch
+   * mode is intended for many small files such as folder uploads. Batches
+   * require HTML5 upload support in the browser.
+   *
+   * @param batchSize the maximum number of files per request or 0 to
+   * disable batch mode
+   */
+  public void setBatchSize(int batchSize) {
+    getState().batchSize = batchSize;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns the maximum number of files sent in a single batch request.
+   *
+   * @return the batch size or 0 if batch mode is disabled
+   */
+  public int getBatchSize() {
+    return getState(false).batchSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes sent in a single batch request. A file
+   * larger than this size is sent in a batch of its own. The default is 1
+   * MiB.
+   *
+   * @param batchMaxBytes the maximum bytes per request
+   */
+  public void setBatchMaxBytes(int batchMaxBytes) {
+    getState().batchMaxBytes = batchMaxBytes;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns the maximum number of bytes sent in a single batch request.
+   *
+   * @return the maximum bytes per request
+   */
+  public int getBatchMaxBytes() {
+    return getState(false).batchMaxBytes;
+  }
+
+  /**
+   * Sets the socket upload flag. A value of true will cause the files to be
+   * uploaded over a WebSocket {@link Html5UploadChannel} when the client
+   * supports it rather than with an HTTP request per chunk. The chunks are
+   * pipelined within the flow control window of the channel and delivered to
+   * the same receiver. Chunks sent over the socket are not retried and the
+   * HTML5 runtime is required; other runtimes upload over HTTP. A WebSocket
+   * endpoint relaying to the channels must be deployed at
+   * {@link Html5UploadChannel#ENDPOINT_PATH} (see the websocket module).
+   *
+   * @param enabled true to enable socket upload
+   */
+  public void setSocketUploadEnabled(boolean enabled) {
+    socketUploadEnabled = enabled;
+    getState().socketUrl = openUploadChannel(getStreamVariable());
+    getState().rebuild = true;
+  }
+
+  /**
+   * Sets the base URL of a separate origin that receives the upload requests
+   * (e.g. https://upload.example.com/app) or null to upload through the
+   * Vaadin servlet. The requests are sent to an {@link Html5IngestTarget}
+   * with a signed, short-lived token in place of the session cookie so upload
+   * traffic can be routed to dedicated ingest nodes and doesn't compete with
+   * UI requests for the browser's connections. The
+   * {@link Html5IngestServlet} must be deployed at
+   * {@link Html5IngestTarget#ENDPOINT_PATH} on the ingest origin with this
+   * application's origin allowed.
+   *
+   * @param origin the ingest origin or null
+   */
+  public void setIngestOrigin(String origin) {
+    ingestOrigin = origin;
+    if (getUI() != null) {
+      getState().url = createUploadUrl();
+      getState().rebuild = true;
+    }
+  }
+
+  @Override
+  public boolean isDirectIngestSupported() {
+    return true;
+  }
+
+  @Override
+  public void setDirectIngestEnabled(boolean enabled) {
+    super.setDirectIngestEnabled(enabled);
+    if (getUI() != null) {
+      getState().url = createUploadUrl();
+      getState().rebuild = true;
+    }
+  }
+
+  /**
+   * Sets the object store the files are uploaded to directly or null to
+   * upload through the server. The server starts a multipart upload for each
+   * file and sends presigned part URLs to the client which PUTs the parts to
+   * the bucket in parallel, so the file data never passes through the
+   * application server. The upload is completed and the size of the object
+   * is verified on the server side before the succeeded event is fired with
+   * the key of the object as the
+   * {@link SucceededEvent#getContentReference() content reference}. The
+   * receiver is not used for these uploads. A browser with the File API is
+   * required and the bucket must allow cross-origin PUT requests from this
+   * application and expose the ETag header. Uploads to the object store are
+   * not paused by {@link #pauseUpload()}.
+   *
+   * @param objectStore the object store or null
+   */
+  public void setObjectStore(Html5ObjectStore objectStore) {
+    this.objectStore = objectStore;
+    getState().objectStore = objectStore != null;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Sets the push progress flag. A value of true will cause upload progress to
+   * be delivered to the progress listeners with server push, coalesced with
+   * the progress of all the other uploads in the UI by the
+   * {@link ProgressDispatcher}, rather than polled by the client. The flag only
+   * has an effect if push is enabled in the UI.
+   *
+   * @param enabled true to enable push progress
+   */
+  public void setPushProgressEnabled(boolean enabled) {
+    pushProgressEnabled = enabled;
+    getState().pushProgress = isPushProgressActive();
+  }
+
+  /**
+   * Sets the server completion flag. A value of true will cause the succeeded
+   * event to be fired as soon as the final chunk is committed on the server
+   * side rather than when the client reports that the upload is complete.
+   * The event is fired with
+   * {@link com.vaadin.ui.UI#access(java.lang.Runnable)} and pushed
+   * if push is enabled in the UI. The component may be detached in a
+   * succeeded listener before the client side library has finished with the
+   * file so the listener should not rely on the client state.
+   *
+   * @param enabled true to enable server completion
+   */
+  public void setServerCompletionEnabled(boolean enabled) {
+    serverCompletionEnabled = enabled;
+    getState().serverCompletion = isServerCompletionPushed();
+  }
+
+  @Override
+  public void setContentIndex(Html5ContentIndex contentIndex) {
+    super.setContentIndex(contentIndex);
+    getState().contentCheckEnabled = contentIndex != null;
+  }
+
   /**
    * Starts the upload of any files in the upload queue. Once started, the
    * uploads cannot be stopped until an error occurs or all the data is received
@@ -254,16 +554,43 @@ public class FineUploader extends AbstractHtml5Upload {
   }
 
   /**
-   * Interrupts the upload currently being received. The interruption will be
-   * done by the receiving tread so this method will return immediately and the
-   * actual interrupt will happen a bit later.
+   * Interrupts the upload currently being received. The request being
+   * received is aborted and the client is told to cancel any remaining chunks.
+   * The interruption will be done by the receiving tread so this method will
+   * return immediately and the actual interrupt will happen a bit later.
    */
   public void interruptUpload() {
-    if (uploadSession != null) {
+    if (interruptObjectUploads() || interruptDirectIngest()) {
+      clientRpc.interruptUpload();
+    }
+    else if (uploadSession != null) {
       uploadSession.interrupted = true;
+      Html5FileUploadHandler.abort(getStreamVariable());
+      clientRpc.interruptUpload();
     }
   }
 
+  @Override
+  public void pauseUpload() {
+    if (uploadSession != null && !uploadSession.paused) {
+      uploadSession.paused = true;
+      getState().paused = true;
+    }
+  }
+
+  @Override
+  public void resumeUpload() {
+    if (uploadSession != null && uploadSession.paused) {
+      uploadSession.paused = false;
+      getState().paused = false;
+    }
+  }
+
+  @Override
+  public boolean isPaused() {
+    return uploadSession != null && uploadSession.paused;
+  }
+
   /**
    * Go into upload state. Due to buffering of RPC calls by Vaadin, it is
    * possible that the upload could be started by the data stream or the RPC
@@ -294,10 +621,21 @@ public class FineUploader extends AbstractHtml5Upload {
         tryClose(uploadSession.receiverOutstream);
       }
 
+      if (uploadSession.progressDispatcher != null) {
+        uploadSession.progressDispatcher.cancel(FineUploader.this);
+      }
+
       if (uploadSession.succeededEventPending) {
+        // The recommendation is kept apart from the configured chunk size
+        // and applied to the next file by the client without a rebuild.
+        if (uploadSession.recommendedChunkSize > 0
+            && uploadSession.recommendedChunkSize != getNextChunkSize()) {
+          getState().nextChunkSize = uploadSession.recommendedChunkSize;
+        }
+
         fireUploadSuccess(new SucceededEvent(FineUploader.this,
             uploadSession.filename, uploadSession.mimeType,
-            uploadSession.bytesRead));
+            uploadSession.bytesRead, uploadSession.treeHash.getValue()));
       }
       else if (uploadSession.exception instanceof NoInputStreamException) {
         fireNoInputStream(uploadSession.filename,
@@ -313,6 +651,10 @@ public class FineUploader extends AbstractHtml5Upload {
             uploadSession.contentLength, uploadSession.exception));
       }
 
+      if (uploadSession.paused) {
+        getState().paused = false;
+      }
+
       uploadSession = null;
     }
   }
@@ -322,8 +664,30 @@ public class FineUploader extends AbstractHtml5Upload {
    *
    * @return the upload in progress
    */
+  @Override
   public boolean isUploading() {
-    return uploadSession != null;
+    return uploadSession != null || isDirectIngestUploading()
+        || isObjectUploading();
+  }
+
+  @Override
+  protected void objectUploadStarted(String id,
+      Html5ObjectStore.Upload upload) {
+    log.debug("Object store upload started. id: {}, key: {}", id,
+        upload == null ? null : upload.getKey());
+
+    if (upload == null) {
+      clientRpc.objectUploadStarted(id, 0, new ArrayList<String>());
+    }
+    else {
+      clientRpc.objectUploadStarted(id, upload.getPartSize(),
+          upload.signParts(1));
+    }
+  }
+
+  @Override
+  protected void objectUploadCompleted(String id, boolean success) {
+    clientRpc.objectUploadCompleted(id, success);
   }
 
   @Override
@@ -370,15 +734,60 @@ public class FineUploader extends AbstractHtml5Upload {
     @Override
     public void onProgress(int id, String name, int uploadedBytes,
         int totalBytes) {
-      // Ignore. We want the call to refresh uploader state (i.e. polling)
-      // but we don't care about the progress value.
+      // We want the call to refresh uploader state (i.e. polling) but we
+      // only care about the progress value of files uploaded to the object
+      // store which are reported without a Fine Uploader ID.
+      if (id < 0 && totalBytes > 0 && isObjectUploading()) {
+        fireUpdateProgress(uploadedBytes, totalBytes);
+      }
+    }
+
+    @Override
+    public void onCheckContent(int id, String name, String contentType,
+        long contentLength, String checksum) {
+
+      // Never complete a file while another one is being received.
+      boolean exists = uploadSession == null && fireIfContentExists(
+          removePath(name), contentType, contentLength, checksum);
+
+      log.debug("Content check for upload. id: {}, name: {}, exists: {}", id,
+          name, exists);
+
+      clientRpc.contentChecked(id, exists);
+    }
+
+    @Override
+    public void onObjectUploadStart(String id, String name,
+        String contentType, long contentLength) {
+
+      beginObjectUpload(id, removePath(name), contentType, contentLength);
+    }
+
+    @Override
+    public void onObjectPartsRequest(String id, int firstPart) {
+      clientRpc.objectPartsSigned(id, firstPart, signObjectParts(id,
+          firstPart));
+    }
+
+    @Override
+    public void onObjectUploadComplete(String id, List<String> etags) {
+      completeObjectUpload(id, etags);
+    }
+
+    @Override
+    public void onObjectUploadAbort(String id, String reason) {
+      log.info("Object store upload aborted. id: {}, reason: {}", id, reason);
+
+      interruptObjectUpload(id);
     }
 
     @Override
     public void onInit(String runtime) {
       log.debug("Uploader {} initialized.", getConnectorId());
 
-      getState().rebuild = false;
+      if (getState(false).rebuild) {
+        getState().rebuild = false;
+      }
     }
   }
 
@@ -395,7 +804,9 @@ public class FineUploader extends AbstractHtml5Upload {
 
     @Override
     public boolean listenProgress() {
-      return progressListeners != null && !progressListeners.isEmpty();
+      // Progress is counted while streaming when it is pushed.
+      return uploadSession.progressDispatcher == null
+          && progressListeners != null && !progressListeners.isEmpty();
     }
 
     @Override
@@ -412,7 +823,7 @@ public class FineUploader extends AbstractHtml5Upload {
     @Override
     public OutputStream getOutputStream() {
 
-      boolean retryEnabled = getMaxRetries() > 0;
+      boolean retryEnabled = getMaxRetries() > 0 && !uploadSession.batch;
       boolean chunkEnabled = chunkCount > 1;
 
       if (uploadSession.receiverOutstream == null) {
@@ -420,7 +831,7 @@ public class FineUploader extends AbstractHtml5Upload {
             html5Receiver.receiveUpload(
                 uploadSession.filename, uploadSession.mimeType,
                 retryEnabled, chunkEnabled, chunkContentLength,
-                uploadSession.contentLength);
+                Streams.toReceiverLength(uploadSession.contentLength));
       }
 
       // If retries are configured we need to be able to indicate when the 
@@ -435,7 +846,16 @@ public class FineUploader extends AbstractHtml5Upload {
             + "avoid this warning.");
       }
 
-      return new UncloseableOutputStream(uploadSession.receiverOutstream);
+      OutputStream outstream = new UncloseableOutputStream(
+          uploadSession.receiverOutstream);
+
+      if (uploadSession.progressDispatcher != null
+          && !progressListeners.isEmpty()) {
+        outstream = uploadSession.progressDispatcher.track(FineUploader.this,
+            outstream, uploadSession.bytesRead, uploadSession.contentLength);
+      }
+
+      return outstream;
     }
 
     @Override
@@ -444,8 +864,11 @@ public class FineUploader extends AbstractHtml5Upload {
       Html5StreamVariable.Html5StreamingStartEvent html5Event =
           (Html5StreamVariable.Html5StreamingStartEvent) event;
 
+      // Keep the token of the ingest target fresh while uploading.
+      renewUploadUrl();
+
       String param = html5Event.getParameterValue("qqtotalfilesize");
-      int contentLength = param != null ? Integer.parseInt(param) : -1;
+      long contentLength = Streams.parseLength(param, -1);
 
       param = html5Event.getParameterValue("qqtotalparts");
       chunkCount = param != null ? Integer.parseInt(param) : 1;
@@ -460,11 +883,25 @@ public class FineUploader extends AbstractHtml5Upload {
       if (uploadSession == null) {
         startUpload();
 
+        // Each file in a batch request is a complete, single chunk upload.
+        uploadSession.batch = html5Event.getParameterValue(
+            Html5FileUploadHandler.BATCH_PARAM) != null;
+
+        if (isPushProgressActive()) {
+          uploadSession.progressDispatcher = ProgressDispatcher.get(getUI());
+        }
+
         uploadSession.mimeType = event.getMimeType();
         uploadSession.filename = Streams.removePath(html5Event.
             getParameterValue("qqfilename"));
         uploadSession.contentLength = contentLength;
 
+        // The length of a part in a batch request is only known from the size
+        // sent by the client.
+        if (uploadSession.batch) {
+          chunkContentLength = Streams.toReceiverLength(contentLength);
+        }
+
         fireStarted(new StartedEvent(FineUploader.this, uploadSession.filename,
             event.getMimeType(), contentLength));
 
@@ -507,15 +944,54 @@ public class FineUploader extends AbstractHtml5Upload {
       // may only be one of many chunks.
       uploadSession.bytesRead += event.getBytesReceived();
 
-      html5Event.setResponse(new Html5StreamVariable.UploadResponse(200,
-          "text/plain", "{\"success\":true}"));
+      // Build the whole file hash from the verified chunk checksums.
+      if (html5Event.getChecksum() != null) {
+        uploadSession.treeHash.put(chunkIndex, chunkCount,
+            html5Event.getChecksum());
+      }
+
+      // Adapt the chunk size of the next file to the measured throughput.
+      if (!uploadSession.batch) {
+        uploadSession.recommendedChunkSize = adviseChunkSize(html5Event,
+            getNextChunkSize());
+      }
 
       // See if we're done with this upload.
-      if (chunkIndex + 1 == chunkCount) {
+      boolean complete = chunkIndex + 1 == chunkCount;
+
+      // A file in a batch or a tiny file received in a single request ends as
+      // soon as it is committed. The client learns the status from the
+      // response so there is no need to wait for the completion RPC.
+      boolean ended = complete && (uploadSession.batch || (chunkCount == 1
+          && uploadSession.bytesRead
+          <= Html5FileUploadHandler.TINY_UPLOAD_SIZE));
+
+      ChunkResponse response = buildChunkResponse(complete);
+      response.setEnded(ended);
+      html5Event.setResponse(response.toUploadResponse(200));
+
+      if (complete) {
         Streams.tryClose(uploadSession.receiverOutstream);
 
-        // Delay firing the event until the client tells us it is done.
         uploadSession.succeededEventPending = true;
+
+        // A file that ended in this request has nothing left to do on the
+        // client and a batch must end here because the next file in the same
+        // request starts a new upload session, so the event is fired right
+        // away.
+        if (ended) {
+          endUpload();
+          return;
+        }
+
+        // Otherwise delay firing the event until the client tells us it is
+        // done, unless the server is authoritative for completion.
+        scheduleServerCompletion(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
       }
     }
 
@@ -525,29 +1001,89 @@ public class FineUploader extends AbstractHtml5Upload {
           (Html5StreamVariable.Html5StreamingErrorEvent) event;
 
       Exception exception = event.getException();
-      String responseContent = "{\"success\": false}";
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_FAILED);
 
-      if (exception instanceof FileUploadHandler.UploadInterruptedException) {
-        // We respond and wait for the
-        // interrupted state change to cancel the upload on the client side.
-        responseContent = "{\"success\": false, \"error\": \"interrupted\", "
-            + "\"preventRetry\": true}";
+      uploadSession.exception = exception;
+
+      String msg = exception == null ? "unknown" : exception.getMessage();
+
+      if (uploadSession.batch && !(exception instanceof
+          FileUploadHandler.UploadInterruptedException)) {
+        // A file in a batch isn't retried so the upload ends right away and
+        // the client learns the status from the batch response.
+        response.setPreventRetry(true);
+        response.setError(msg);
+        html5Event.setResponse(response.toUploadResponse(200));
+        endUpload();
+        return;
       }
 
-      uploadSession.exception = exception;
+      if (exception instanceof FileUploadHandler.UploadInterruptedException) {
+        // The client stops as soon as it sees the interrupted flag in the
+        // response. The upload is ended here rather than waiting for the
+        // client to report the error.
+        response = buildInterruptedResponse();
+        scheduleEndUpload(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
+      }
 
       // Because we can't prevent retries on an HTML4 or non-chunked upload,
       // we'll delay ending the upload until we get the RPC call from the
       // client.
-      html5Event.setResponse(new Html5StreamVariable.UploadResponse(200,
-          "text/plain", responseContent));
+      html5Event.setResponse(response.toUploadResponse(200));
+
+      // Failed chunks are costly so back off to smaller chunks.
+      if (chunkSizeAdvisor != null && !(exception instanceof
+          FileUploadHandler.UploadInterruptedException)) {
+        chunkSizeAdvisor.recordFailure();
+      }
 
-      String msg = exception == null ? "unknown" : exception.getMessage();
       log.info("Streaming to receiver failed. The upload will be retried if "
           + "retries are configured and not exhausted. Exception: {}", msg);
+    }
 
-      html5Event.setResponse(new Html5StreamVariable.UploadResponse(200,
-          "text/plain", responseContent));
+    /**
+     * Builds the response to a chunk that was accepted including the current
+     * state of the upload.
+     *
+     * @param complete true if the final chunk was accepted
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildChunkResponse(boolean complete) {
+      ChunkResponse response = new ChunkResponse(true, complete ?
+          ChunkResponse.STATUS_COMPLETE : ChunkResponse.STATUS_CHUNK);
+      response.setBytesAccepted(uploadSession.bytesRead);
+      response.setTotalBytes(uploadSession.contentLength);
+      response.setInterrupted(uploadSession.interrupted);
+      response.setPaused(uploadSession.paused && !complete);
+      response.setRecommendedChunkSize(uploadSession.recommendedChunkSize);
+      return response;
+    }
+
+    /**
+     * Builds the response to a chunk that was rejected because the upload
+     * was interrupted.
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildInterruptedResponse() {
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_INTERRUPTED);
+      response.setInterrupted(true);
+      response.setPreventRetry(true);
+      response.setError("interrupted");
+
+      if (uploadSession != null) {
+        response.setBytesAccepted(uploadSession.bytesRead);
+        response.setTotalBytes(uploadSession.contentLength);
+      }
+      return response;
     }
   }
 
@@ -557,11 +1093,16 @@ public class FineUploader extends AbstractHtml5Upload {
   private static class UploadSession {
 
     OutputStream receiverOutstream;
-    int contentLength;
+    long contentLength;
     String filename;
     String mimeType;
     volatile long bytesRead;
     volatile boolean interrupted;
+    volatile boolean paused;
+    boolean batch;
+    int recommendedChunkSize = -1;
+    final TreeHash treeHash = new TreeHash();
+    ProgressDispatcher progressDispatcher;
     private boolean succeededEventPending;
     private Exception exception;
   }
@@ -1,6 +1,8 @@
 
 package org.mpilone.vaadin.upload.fineuploader.shared;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ClientRpc;
 
 /**
@@ -13,4 +15,14 @@ public interface FineUploaderClientRpc extends ClientRpc {
 
   void submitUpload();
 
+  void interruptUpload();
+
+  void contentChecked(int id, boolean exists);
+
+  void objectUploadStarted(String id, int partSize, List<String> urls);
+
+  void objectPartsSigned(String id, int firstPart, List<String> urls);
+
+  void objectUploadCompleted(String id, boolean success);
+
 }
@@ -1,5 +1,7 @@
 package org.mpilone.vaadin.upload.fineuploader.shared;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ServerRpc;
 
 /**
@@ -18,4 +20,16 @@ public interface FineUploaderServerRpc extends ServerRpc {
   void onInit(String runtime);
 
   void onProgress(int id, String name, int uploadedBytes, int totalBytes);
+
+  void onCheckContent(int id, String name, String contentType,
+      long contentLength, String checksum);
+
+  void onObjectUploadStart(String id, String name, String contentType,
+      long contentLength);
+
+  void onObjectPartsRequest(String id, int firstPart);
+
+  void onObjectUploadComplete(String id, List<String> etags);
+
+  void onObjectUploadAbort(String id, String reason);
 }
@@ -26,11 +26,112 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
    */
   var connectorId = this.getConnectorId();
 
+  /*
+   * The client side support shared by all the HTML5 upload connectors.
+   */
+  var html5upload = window.org_mpilone_vaadin_upload_html5upload;
+
   /*
    * The uploader currently displayed.
    */
   var uploader;
 
+  /*
+   * The sender of batch requests or socket uploads or null if the files are 
+   * sent by Fine Uploader.
+   */
+  var fileSender = null;
+
+  /*
+   * The number of the current build. A build waiting for the library or 
+   * for the component to be visible is dropped if the number changed.
+   */
+  var buildCount = 0;
+
+  /*
+   * The function that cancels the wait for the component to be visible.
+   */
+  var cancelVisible = null;
+
+  /*
+   * The registration with the engine shared by the uploaders on the page or 
+   * null if the component has its own uploader.
+   */
+  var registration = null;
+
+  /*
+   * The slot that holds an upload connection of the page while files are 
+   * uploaded.
+   */
+  var slot = html5upload.createSlot(connectorId);
+
+  /*
+   * The chunk size of the uploader or 0 if chunking is disabled.
+   */
+  var chunkSize = 0;
+
+  /*
+   * The chunk size to apply when the next file starts or -1 to keep the 
+   * current chunk size. The server recommends a size in the chunk 
+   * responses and in the state.
+   */
+  var nextChunkSize = -1;
+
+  /*
+   * The chunk size for the next file from the last state change.
+   */
+  var stateChunkSize = -1;
+
+  /*
+   * The chunk checksums of the submitted files by file ID.
+   */
+  var checksums = {};
+
+  /*
+   * The callbacks waiting for the result of a content check by file ID.
+   */
+  var contentChecks = {};
+
+  /*
+   * The ID of the last submitted file or null.
+   */
+  var submittedId = null;
+
+  /*
+   * The flag which indicates if the server should be asked if the content 
+   * of a file already exists before it is uploaded.
+   */
+  var contentCheckEnabled = false;
+
+  /*
+   * The flag which indicates if the server pushes progress so progress RPC 
+   * calls are not needed.
+   */
+  var pushProgress = false;
+
+  /*
+   * The flag which indicates if the server completes the upload and pushes 
+   * the result so the completion RPC call is not needed.
+   */
+  var serverCompletion = false;
+
+  /*
+   * The flag which indicates if the server asked for the upload to be 
+   * paused at the next chunk boundary.
+   */
+  var pauseRequested = false;
+
+  /*
+   * The ID of the file that is paused at a chunk boundary or null if the 
+   * upload isn't paused.
+   */
+  var pausedId = null;
+
+  /*
+   * The timer that polls the server while the upload is paused.
+   */
+  var pausePollTimer = null;
+
   /**
    * The div that contains the buttons and inputs for upload.
    * 
@@ -76,6 +177,126 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
     }
   }
 
+  /*
+   * Asks the server if the content of the given file already exists. The 
+   * callback is called with true if the content exists and the upload is 
+   * complete on the server side.
+   */
+  function checkContent(id, callback) {
+    html5upload.computeTreeHash(checksums[id], function(hash) {
+      if (!hash) {
+        callback(false);
+        return;
+      }
+
+      console_log("Checking for existing content: " + hash);
+      contentChecks[id] = callback;
+      rpcProxy.onCheckContent(id, uploader.getName(id),
+          uploader.getFile(id).type, uploader.getSize(id), hash);
+    });
+  }
+
+  /*
+   * Pauses the upload of the given file. Fine Uploader continues from the 
+   * last completed chunk when the upload is continued. Unless the server 
+   * pushes state changes, the server is polled so the resume is seen.
+   */
+  function pauseUpload(id) {
+    if (!uploader.pauseUpload(id)) {
+      return;
+    }
+
+    console_log("Paused upload at chunk boundary.");
+    pausedId = id;
+
+    if (!pushProgress) {
+      pausePollTimer = window.setInterval(function() {
+        rpcProxy.onProgress(id, uploader.getName(id), 0, 
+            uploader.getSize(id));
+      }, DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS);
+    }
+  }
+
+  /*
+   * Resumes the upload paused with pauseUpload if there is one.
+   */
+  function resumeUpload() {
+    if (pausePollTimer) {
+      window.clearInterval(pausePollTimer);
+      pausePollTimer = null;
+    }
+
+    if (pausedId !== null) {
+      console_log("Resuming upload.");
+      var id = pausedId;
+      pausedId = null;
+      uploader.continueUpload(id);
+    }
+  }
+
+  /*
+   * Uploads the stored files once an upload connection of the page is free 
+   * so the uploads don't block the UIDL requests. The connection is held 
+   * until all the files are complete.
+   */
+  function uploadStoredFiles() {
+    slot.schedule(function() {
+      if (uploader) {
+        uploader.uploadStoredFiles();
+      }
+    });
+  }
+
+  /*
+   * Starts the file sender once an upload connection of the page is free. 
+   * The connection is held until the sender is idle.
+   */
+  function startFileSender() {
+    slot.schedule(function() {
+      if (fileSender) {
+        fileSender.start();
+      }
+    });
+  }
+
+  /*
+   * Uploads the stored files after checking with the server if the 
+   * content of the submitted file already exists.
+   */
+  function startUpload() {
+    var id = submittedId;
+
+    if (!uploader) {
+      return;
+    }
+
+    if (fileSender && fileSender.isBusy()) {
+      startFileSender();
+    }
+    else if (id !== null && contentChecks[id]) {
+      // Check already in progress.
+    }
+    else if (id !== null && contentCheckEnabled && checksums[id]) {
+      checkContent(id, function(exists) {
+        if (exists) {
+          console_log("Content already exists. Skipping upload.");
+          uploader.clearStoredFiles();
+          if (fileInput) {
+            fileInput.value = "";
+          }
+        }
+        else {
+          uploadStoredFiles();
+        }
+        submittedId = null;
+      });
+    }
+    else {
+      submittedId = null;
+      uploadStoredFiles();
+    }
+  }
+
   /**
    * Builds the container divs and the buttons in the div.
    * 
@@ -122,9 +343,10 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
         submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME;
         submitBtn.caption.innerHTML = state.buttonCaption;
         submitBtn.root.onclick = function() {
-          if (uploader.getUploads().length > 0
-                  && uploader.getInProgress() === 0) {
-            uploader.uploadStoredFiles();
+          if ((fileSender && fileSender.isBusy())
+                  || (uploader && uploader.getUploads().length > 0
+                  && uploader.getInProgress() === 0)) {
+            startUpload();
           }
         };
         container.appendChild(submitBtn.root);
@@ -146,18 +368,200 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
    */
   this._buildUploader = function(state) {
 
+    chunkSize = qq.supportedFeatures.chunking ? stateChunkSize : 0;
+    nextChunkSize = -1;
+
+    fileSender = null;
+    if (state.objectStore) {
+      fileSender = html5upload.createObjectStoreSender({
+        maxRetries: state.maxRetries,
+        begin: function(entry) {
+          rpcProxy.onObjectUploadStart(entry.id, entry.name, 
+              entry.file.type || "application/octet-stream", entry.file.size);
+        },
+        sign: function(entry, firstPart) {
+          rpcProxy.onObjectPartsRequest(entry.id, firstPart);
+        },
+        complete: function(entry, etags) {
+          rpcProxy.onObjectUploadComplete(entry.id, etags);
+        },
+        abort: function(entry, reason) {
+          rpcProxy.onObjectUploadAbort(entry.id, reason);
+        },
+        poll: function(entry) {
+          // The server starts and completes the upload in the background 
+          // so the answer is only seen on the next round trip unless it is 
+          // pushed.
+          if (!pushProgress) {
+            rpcProxy.onProgress(-1, "", 0, -1);
+          }
+        },
+        onProgress: function(entry, loaded, total) {
+          // The server only sees the progress of the object store upload 
+          // over RPC.
+          var now = new Date().getTime();
+          if (lastProgressRpc 
+              + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
+            lastProgressRpc = now;
+            rpcProxy.onProgress(-1, entry.name, loaded, total);
+          }
+        },
+        onFile: function(entry, success) {
+          console_log("Object store upload of " + entry.name 
+              + (success ? " succeeded" : " failed"));
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Object store upload is complete");
+          if (fileInput !== null) {
+            fileInput.value = "";
+          }
+        }
+      });
+    }
+    else if (state.socketUrl && html5upload.isSocketSupported()) {
+      fileSender = html5upload.createSocketSender({
+        url: this.translateVaadinUri(state.socketUrl),
+        chunkSize: chunkSize,
+        chunkParams: function(index, count, length) {
+          return {
+            qqpartindex: index, 
+            qqtotalparts: count, 
+            qqchunksize: length
+          };
+        },
+        onProgress: function(entry, loaded, total) {
+          var now = new Date().getTime();
+          if (!pushProgress && lastProgressRpc 
+              + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
+            lastProgressRpc = now;
+            rpcProxy.onProgress(-1, entry.name, loaded, total);
+          }
+        },
+        onFile: function(entry, response) {
+          if (!response) {
+            rpcProxy.onError(-1, entry.name, "Socket upload failed.");
+          }
+          else if (response.ended || serverCompletion) {
+            // Make a round trip so the events are seen without push.
+            if (!serverCompletion) {
+              rpcProxy.onProgress(-1, "", 0, -1);
+            }
+          }
+          else {
+            rpcProxy.onComplete(-1, entry.name);
+          }
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Socket upload is complete");
+          if (fileInput !== null) {
+            fileInput.value = "";
+          }
+        }
+      });
+    }
+    else if (state.batchSize > 0) {
+      fileSender = html5upload.createBatchSender({
+        url: this.translateVaadinUri(state.url),
+        maxFiles: state.batchSize,
+        maxBytes: state.batchMaxBytes,
+        onBatch: function(entries, results) {
+          // The server already fired the events of each file.
+          for (var i = 0; i < entries.length; i++) {
+            if (!results || !results[i] || !results[i].success) {
+              console_log("Batch file failed: " + entries[i].name);
+            }
+          }
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Batch upload is complete");
+          if (fileInput !== null) {
+            fileInput.value = "";
+          }
+
+          // Make a round trip so the events fired for the batch are seen 
+          // without push.
+          rpcProxy.onProgress(-1, "", 0, -1);
+        }
+      });
+    }
+
     // Create the uploader.
+    // The upload is started when an upload connection is free rather than 
+    // automatically. With the shared engine the files are selected by the 
+    // engine.
     uploader = new qq.FineUploaderBasic({
-      autoUpload: state.immediateMode,
-      button: browseBtn.root,
+      autoUpload: false,
+      button: registration ? null : browseBtn.root,
       callbacks: {
+        onAllComplete: function(succeeded, failed) {
+          slot.release();
+        },
+        onSubmitted: function(id, name) {
+          if (state.immediateMode) {
+            startUpload();
+          }
+        },
         onUpload: function(id, name) {
           console_log("onUpload: " + name);
           lastProgressRpc = 0;
+
+          // Fine Uploader has no API to change the chunk size but reads the 
+          // option when a file starts. A file with checksums keeps the chunk 
+          // size they were computed for.
+          if (chunkSize > 0 && nextChunkSize > 0 && !checksums[id]) {
+            if (nextChunkSize !== chunkSize) {
+              console_log("Chunk size changed to " + nextChunkSize);
+              chunkSize = nextChunkSize;
+              uploader._options.chunking.partSize = chunkSize;
+            }
+            nextChunkSize = -1;
+          }
+
+          uploader.setParams(html5upload.checksumParams(checksums[id], 0), id);
+        },
+        onUploadChunk: function(id, name, chunkData) {
+          uploader.setParams(html5upload.checksumParams(checksums[id], 
+              chunkData.partIndex), id);
+        },
+        onUploadChunkSuccess: function(id, chunkData, responseJSON, xhr) {
+          // The server folds the upload state into the chunk response so an 
+          // interrupt is seen without waiting for an RPC round trip.
+          if (responseJSON.recommendedChunkSize > 0) {
+            nextChunkSize = responseJSON.recommendedChunkSize;
+          }
+
+          if (responseJSON.interrupted) {
+            console_log("Cancelling upload after chunk response.");
+            uploader.cancel(id);
+          }
+          else if ((responseJSON.paused || pauseRequested) 
+              && responseJSON.status === "chunk") {
+            // Pause once Fine Uploader is done with this chunk. The next 
+            // chunk may already be started but it is aborted and resent.
+            window.setTimeout(function() {
+              pauseUpload(id);
+            }, 0);
+          }
+        },
+        onCancel: function(id, name) {
+          console_log("onCancel: " + name);
+          rpcProxy.onError(id, name, "Upload interrupted.");
         },
         onComplete: function(id, name, responseJSON, xhr) {
           console_log("onComplete: " + name);
-          rpcProxy.onComplete(id, name);
+          if (responseJSON.success && responseJSON.ended) {
+            // The server already ended the upload so only make a round trip 
+            // to see the events without push.
+            if (!serverCompletion) {
+              rpcProxy.onProgress(-1, "", 0, -1);
+            }
+          }
+          else if (!serverCompletion || !responseJSON.success) {
+            rpcProxy.onComplete(id, name);
+          }
 
           uploader.clearStoredFiles();
         },
@@ -170,6 +574,10 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
         onProgress: function(id, name, uploadBytes, totalBytes) {
           console_log("onProgress: " + name);
 
+          if (pushProgress) {
+            return;
+          }
+
           var now = new Date().getTime();
           if (lastProgressRpc + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
             lastProgressRpc = now;
@@ -180,6 +588,27 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
           console_log("onStatusChange: " + oldStatus + ", " + newStatus);
         },
         onSubmit: function(id, name) {
+          // In batch, socket or object store mode the files are sent by the 
+          // file sender and Fine Uploader is only used to select them.
+          if (fileSender && uploader.getFile(id)) {
+            fileSender.add(uploader.getFile(id), name, {
+              qqfilename: name,
+              qqtotalfilesize: uploader.getSize(id)
+            });
+
+            if (fileInput !== null) {
+              fileInput.value = name;
+            }
+
+            // Start once all the selected files have been submitted.
+            if (state.immediateMode) {
+              window.setTimeout(function() {
+                startFileSender();
+              }, 0);
+            }
+            return false;
+          }
+
           // Clear the current items.
           uploader.clearStoredFiles();
 
@@ -187,16 +616,57 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
           if (fileInput !== null) {
             fileInput.value = name;
           }
+
+          // Compute the chunk checksums before the file is submitted.
+          checksums = {};
+          contentChecks = {};
+          submittedId = id;
+          if (state.checksumEnabled || state.contentCheckEnabled) {
+            var promise = new qq.Promise();
+            html5upload.computeChecksums(uploader.getFile(id), chunkSize,
+                function(values) {
+                  checksums[id] = values;
+
+                  // In immediate mode the content check is done before the 
+                  // upload starts automatically.
+                  if (state.immediateMode && state.contentCheckEnabled 
+                      && values) {
+                    checkContent(id, function(exists) {
+                      submittedId = null;
+                      if (exists) {
+                        console_log("Content already exists. Skipping upload.");
+                        promise.failure();
+                      }
+                      else {
+                        promise.success(true);
+                      }
+                    });
+                  }
+                  else {
+                    promise.success(true);
+                  }
+                });
+            return promise;
+          }
           return true;
         }
       },
       chunking: {
-        enabled: (state.chunkSize > 0),
-        partSize: state.chunkSize
+        enabled: (chunkSize > 0),
+        partSize: chunkSize
       },
       debug: true,
+      cors: {
+        // Uploads to a separate ingest origin are authenticated by the 
+        // token in the URL rather than the session cookie.
+        expected: html5upload.isCrossOrigin(this.translateVaadinUri(
+            state.url)),
+        sendCredentials: false
+      },
       request: {
-        endpoint: this.translateVaadinUri(state.url)
+        endpoint: this.translateVaadinUri(state.url),
+        forceMultipart: !state.rawUpload,
+        paramsInBody: !state.rawUpload
       },
       retry: {
         enableAuto: (state.maxRetries > 0),
@@ -231,9 +701,27 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
    * @returns {undefined}
    */
   this.onUnregister = function() {
+    buildCount++;
+    if (cancelVisible) {
+      cancelVisible();
+      cancelVisible = null;
+    }
+    if (registration) {
+      registration.remove();
+      registration = null;
+    }
+    slot.cancel();
+
     if (uploader) {
       console_log("Cancelling and cleaning up uploader component.");
 
+      pausedId = null;
+      resumeUpload();
+
+      if (fileSender) {
+        fileSender.abort();
+      }
+
       try {
         uploader.cancelAll();
       }
@@ -256,13 +744,67 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
 
     console_log("State change!");
 
-    if (!uploader || state.rebuild) {
+    contentCheckEnabled = state.contentCheckEnabled;
+    pushProgress = state.pushProgress;
+    serverCompletion = state.serverCompletion;
+
+    // If a stale state resumes the upload, the next chunk response pauses 
+    // it again.
+    pauseRequested = state.paused;
+    if (!pauseRequested && pausedId !== null) {
+      resumeUpload();
+    }
+
+    // A new configured or recommended chunk size is applied when the next 
+    // file starts.
+    var size = state.nextChunkSize > 0 ? state.nextChunkSize : 
+        state.chunkSize;
+    if (size !== stateChunkSize) {
+      stateChunkSize = size;
+      nextChunkSize = size;
+    }
+
+    // The retry and validation options are read when they are needed so 
+    // they are changed in place rather than rebuilding the uploader.
+    if (uploader && !state.rebuild) {
+      uploader._options.retry.enableAuto = (state.maxRetries > 0);
+      uploader._options.retry.maxAutoAttempts = state.maxRetries;
+      uploader._options.validation.sizeLimit = state.maxFileSize;
+
+      // The token of an ingest origin URL is renewed during long uploads.
+      var url = this.translateVaadinUri(state.url);
+      if (uploader._options.request.endpoint !== url) {
+        uploader.setEndpoint(url);
+        uploader._options.request.endpoint = url;
+      }
+    }
+
+    if (!container || state.rebuild) {
       element.innerHTML = "";
       uploader = null;
 
+      buildCount++;
+      if (registration) {
+        registration.remove();
+        registration = null;
+      }
+      slot.cancel();
+
+      // Build the buttons now so the layout doesn't change and build the 
+      // uploader once the library is loaded.
       console_log("Building uploader for connector " + connectorId);
       this._buildButtons(state);
-      this._buildUploader(state);
+
+      if (state.sharedEngine && window.FileReader) {
+        this._registerShared(state);
+      }
+      else {
+        this._loadUploader(state);
+      }
+    }
+
+    if (registration) {
+      registration.setEnabled(state.enabled);
     }
 
     // Check for browse enabled and update the button visibility accordingly.
@@ -278,15 +820,173 @@ org_mpilone_vaadin_upload_fineuploader_FineUploader = function() {
 
   };
 
+  /*
+   * Loads the Fine Uploader library when the component is first visible 
+   * and then builds the uploader with the latest state. The library is 
+   * loaded only once per page and shared by all the uploaders.
+   */
+  this._loadUploader = function(state) {
+    var self = this;
+    var build = ++buildCount;
+
+    if (cancelVisible) {
+      cancelVisible();
+    }
+
+    cancelVisible = html5upload.whenVisible(element, function() {
+      cancelVisible = null;
+
+      var libraryLoaded = function() {
+        if (build === buildCount) {
+          self._buildUploader(self.getState());
+        }
+      };
+
+      if (window.qq || !state.libraryUrl) {
+        libraryLoaded();
+      }
+      else {
+        html5upload.loadScript(self.translateVaadinUri(state.libraryUrl), 
+            libraryLoaded);
+      }
+    });
+  };
+
+  /*
+   * Registers the component with the engine shared by the uploaders on the 
+   * page. The component only has its buttons until files are selected and 
+   * then loads the library and builds its uploader.
+   */
+  this._registerShared = function(state) {
+    var self = this;
+    var build = buildCount;
+
+    registration = html5upload.getSharedEngine().register({
+      element: container,
+      multiple: state.batchSize > 0,
+      onFiles: function(files) {
+        html5upload.loadScript(self.translateVaadinUri(
+            self.getState().libraryUrl), function() {
+          if (build !== buildCount) {
+            return;
+          }
+          if (!uploader) {
+            self._buildUploader(self.getState());
+          }
+          uploader.addFiles(files);
+        });
+      }
+    });
+
+    browseBtn.root.onclick = function() {
+      registration.browse();
+    };
+
+    // The component is ready as soon as it is registered.
+    rpcProxy.onInit("html5 (" + connectorId + ")");
+  };
+
   /**
    * Submits the upload if there is a file selected.
    * 
    * @returns {undefined}
    */
   this.submitUpload = function() {
-    if (uploader.getUploads().length > 0 && uploader.getInProgress() === 0) {
+    if ((fileSender && fileSender.isBusy())
+        || (uploader && uploader.getUploads().length > 0 
+        && uploader.getInProgress() === 0)) {
       console_log("Starting upload due to server side submit.");
-      uploader.uploadStoredFiles();
+      startUpload();
+    }
+  };
+
+  /**
+   * Interrupts the upload if there is a file in progress. Any queued chunks 
+   * are cancelled.
+   * 
+   * @returns {undefined}
+   */
+  this.interruptUpload = function() {
+    // The server aborts the batch request in progress.
+    if (fileSender && fileSender.isBusy()) {
+      console_log("Interrupting batch upload.");
+      fileSender.abort();
+      slot.release();
+    }
+    else if (uploader && (uploader.getInProgress() > 0 
+        || pausedId !== null)) {
+      console_log("Interrupting upload.");
+
+      // A paused upload isn't in progress so it is cancelled explicitly.
+      var id = pausedId;
+      pausedId = null;
+      resumeUpload();
+      if (id !== null) {
+        uploader.cancel(id);
+      }
+
+      uploader.cancelAll();
+      slot.release();
+    }
+  };
+
+  /**
+   * Called by the server once the upload of a file to the object store is 
+   * started with the part size and the first batch of part URLs.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Number} partSize the part size or 0 if the upload failed
+   * @param {Array} urls the presigned URLs of the first parts
+   * @returns {undefined}
+   */
+  this.objectUploadStarted = function(id, partSize, urls) {
+    if (fileSender && fileSender.started) {
+      fileSender.started(id, partSize, urls);
+    }
+  };
+
+  /**
+   * Called by the server with the next batch of part URLs of a file being 
+   * uploaded to the object store.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Number} firstPart the number of the first part signed
+   * @param {Array} urls the presigned URLs of the parts
+   * @returns {undefined}
+   */
+  this.objectPartsSigned = function(id, firstPart, urls) {
+    if (fileSender && fileSender.partsSigned) {
+      fileSender.partsSigned(id, firstPart, urls);
+    }
+  };
+
+  /**
+   * Called by the server once the upload of a file to the object store is 
+   * completed and verified.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Boolean} success true if the upload succeeded
+   * @returns {undefined}
+   */
+  this.objectUploadCompleted = function(id, success) {
+    if (fileSender && fileSender.completed) {
+      fileSender.completed(id, success);
+    }
+  };
+
+  /**
+   * Called by the server with the result of a content check.
+   * 
+   * @param {Number} id the ID of the file that was checked
+   * @param {Boolean} exists true if the content already exists
+   * @returns {undefined}
+   */
+  this.contentChecked = function(id, exists) {
+    var callback = contentChecks[id];
+    delete contentChecks[id];
+
+    if (callback) {
+      callback(exists);
     }
   };
 
@@ -0,0 +1,39 @@
+package org.mpilone.vaadin.upload.fineuploader;
+
+import java.util.Map;
+
+import org.mpilone.vaadin.upload.AbstractStreamVariableTest;
+
+import com.vaadin.server.StreamVariable;
+
+/**
+ * Tests the stream variable of the {@link FineUploader} component.
+ *
+ * @author mpilone
+ */
+public class FineUploaderStreamVariableTest extends
+    AbstractStreamVariableTest<FineUploader> {
+
+  @Override
+  protected FineUploader createUpload(int chunkSize) {
+    FineUploader upload = new FineUploader();
+    upload.setChunkSize(chunkSize);
+    upload.setMaxRetries(2);
+    return upload;
+  }
+
+  @Override
+  protected StreamVariable getStreamVariable(FineUploader upload) {
+    return upload.getStreamVariable();
+  }
+
+  @Override
+  protected void putChunkParameters(Map<String, String> params,
+      int chunkIndex, int chunkCount, int chunkSize, long fileSize) {
+    params.put("qqfilename", FILENAME);
+    params.put("qqpartindex", String.valueOf(chunkIndex));
+    params.put("qqtotalparts", String.valueOf(chunkCount));
+    params.put("qqchunksize", String.valueOf(chunkSize));
+    params.put("qqtotalfilesize", String.valueOf(fileSize));
+  }
+}
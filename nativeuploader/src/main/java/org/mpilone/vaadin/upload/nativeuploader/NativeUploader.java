@@ -0,0 +1,937 @@
+package org.mpilone.vaadin.upload.nativeuploader;
+
+import static org.mpilone.vaadin.upload.Streams.tryClose;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mpilone.vaadin.upload.*;
+import org.mpilone.vaadin.upload.Html5Receiver.RetryableOutputStream;
+import org.mpilone.vaadin.upload.nativeuploader.shared.NativeUploaderClientRpc;
+import org.mpilone.vaadin.upload.nativeuploader.shared.NativeUploaderServerRpc;
+import org.mpilone.vaadin.upload.nativeuploader.shared.NativeUploaderState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.server.*;
+import com.vaadin.server.communication.FileUploadHandler;
+import com.vaadin.ui.Upload;
+
+/**
+ * <p>
+ * A lightweight HTML5 upload component that uses the native file and XHR APIs
+ * of the browser rather than a third-party JavaScript library. The files are
+ * sliced into chunks on the client side and each chunk is sent as the raw
+ * body of a request to the {@link Html5FileUploadHandler}. Failed chunks are
+ * retried and several chunks of a file may be sent at the same time. This
+ * implementation attempts to follow the {@link Upload} API as much as
+ * possible to be a drop-in replacement.
+ * </p>
+ * <p>
+ * The component only supports browsers with HTML5 upload support (i.e. no
+ * Flash, Silverlight, or HTML4 fallback) which keeps the client side down to
+ * a single small connector script.
+ * </p>
+ *
+ * @author mpilone
+ */
+@JavaScript("nativeuploader_connector.js")
+public class NativeUploader extends AbstractHtml5Upload {
+
+  /**
+   * Serialization ID.
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      NativeUploader.class);
+
+  /**
+   * The name of the request parameter containing the name of the file.
+   */
+  private static final String NAME_PARAM = "name";
+
+  /**
+   * The name of the request parameter containing the total file size.
+   */
+  private static final String SIZE_PARAM = "size";
+
+  /**
+   * The name of the request parameter containing the index of the chunk.
+   */
+  private static final String CHUNK_PARAM = "chunk";
+
+  /**
+   * The name of the request parameter containing the number of chunks.
+   */
+  private static final String CHUNKS_PARAM = "chunks";
+
+  private final NativeUploaderServerRpc serverRpc = new ServerRpcImpl();
+  private final NativeUploaderClientRpc clientRpc;
+  private StreamVariable streamVariable;
+  private UploadSession uploadSession;
+
+  /**
+   * Constructs the upload component.
+   *
+   * @see #NativeUploader(java.lang.String, com.vaadin.ui.Upload.Receiver)
+   */
+  public NativeUploader() {
+    this(null, null);
+  }
+
+  /**
+   * Constructs the upload component. The following defaults will be used:
+   * <ul>
+   * <li>chunkSize: 0 (i.e. disabled)</li>
+   * <li>parallelChunks: 1</li>
+   * <li>maxFileSize: 10MB</li>
+   * <li>maxRetries: 0 (i.e. disabled)</li>
+   * </ul>
+   *
+   * @param caption the caption of the component
+   * @param receiver the receiver to create the output stream to receive upload
+   * data
+   */
+  public NativeUploader(String caption, Upload.Receiver receiver) {
+    registerRpc(serverRpc);
+    clientRpc = getRpcProxy(NativeUploaderClientRpc.class);
+
+    setCaption(caption);
+    setReceiver(receiver);
+    setMaxFileSize(10 * 1024 * 1024);
+  }
+
+  @Override
+  public void attach() {
+    super.attach();
+
+    // Generate the URL using the standard FileUploadHandler format and then
+    // replace the URL prefix with the prefix for our custom upload request
+    // handler. This ensures that the IDs and security key are properly
+    // generated and registered for our stream variable.
+    String url = getSession().getCommunicationManager().
+        getStreamVariableTargetUrl(this, "nativeuploader", getStreamVariable());
+
+    // Replace the default upload URL prefix with the advanced upload request
+    // handler to be sure advanced stream variable events are generated.
+    url = url.replace(ServletPortletHelper.UPLOAD_URL_PREFIX,
+        Html5FileUploadHandler.URL_PREFIX);
+
+    getState().url = url;
+    getState().rebuild = true;
+    getState().pushProgress = isPushProgressActive();
+    getState().serverCompletion = isServerCompletionPushed();
+
+    installHandler();
+  }
+
+  @Override
+  public void detach() {
+    // Cleanup our stream variable.
+    getUI().getConnectorTracker().cleanStreamVariable(getConnectorId(),
+        "nativeuploader");
+
+    super.detach();
+  }
+
+  /**
+   * Returns the stream variable that will receive the data events and content.
+   *
+   * @return the stream variable for this component
+   */
+  @Override
+  public StreamVariable getStreamVariable() {
+    if (streamVariable == null) {
+      streamVariable = new StreamVariableImpl();
+    }
+
+    return streamVariable;
+  }
+
+  /**
+   * Returns the caption displayed on the submit button or on the combination
+   * browse and submit button when in immediate mode.
+   *
+   * @return the caption of the submit button
+   */
+  public String getButtonCaption() {
+    return getState(false).buttonCaption;
+  }
+
+  /**
+   * Sets the caption displayed on the submit button or on the combination
+   * browse and submit button when in immediate mode. When not in immediate
+   * mode, the text on the browse button cannot be set.
+   *
+   * @param caption the caption of the submit button
+   */
+  public void setButtonCaption(String caption) {
+    getState().buttonCaption = caption;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Sets the immediate mode flag. A value of true will cause the upload to
+   * begin as soon as the user selects a file.
+   *
+   * @param immediate true for immediate, false to require manual submission
+   * using {@link #submitUpload()}
+   */
+  public void setImmediateMode(boolean immediate) {
+    getState().immediateMode = immediate;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns true if the uploader is configured to submit the upload immediately
+   * after file selection.
+   *
+   * @return true if the upload will submit immediately after file selection
+   */
+  public boolean isImmediateMode() {
+    return getState(false).immediateMode;
+  }
+
+  /**
+   * Returns the maximum number of retries of each chunk if an upload fails.
+   *
+   * @return the number of retries
+   */
+  public int getMaxRetries() {
+    return getState(false).maxRetries;
+  }
+
+  /**
+   * Sets the maximum number of retries of each chunk if an upload fails. The
+   * retries are delayed with an exponential back off.
+   *
+   * @param maxRetries the number of retries
+   */
+  public void setMaxRetries(int maxRetries) {
+    getState().maxRetries = maxRetries;
+  }
+
+  /**
+   * Returns the number of bytes read since the upload started. This value is
+   * cleared after a successful upload.
+   *
+   * @return the number of bytes read
+   */
+  public long getBytesRead() {
+    return uploadSession == null ? 0 : uploadSession.bytesRead;
+  }
+
+  /**
+   * Sets the size in bytes of each data chunk to be sent from the client to the
+   * server. If set to 0, chunking will be disabled.
+   *
+   * @param size the size of each data chunk
+   */
+  public void setChunkSize(int size) {
+    getState().chunkSize = size;
+    getState().nextChunkSize = 0;
+  }
+
+  /**
+   * Returns the size in bytes of each data chunk to be sent from the client to
+   * the server.
+   *
+   * @return the size of each data chunk
+   */
+  public int getChunkSize() {
+    return getState(false).chunkSize;
+  }
+
+  /**
+   * Returns the chunk size the client uses for the next file which is the
+   * size recommended by the chunk size advisor if there is one or the
+   * configured chunk size.
+   *
+   * @return the chunk size of the next file
+   */
+  protected int getNextChunkSize() {
+    int nextChunkSize = getState(false).nextChunkSize;
+    return nextChunkSize > 0 ? nextChunkSize : getChunkSize();
+  }
+
+  @Override
+  protected boolean isChunkSizeFixed() {
+    return super.isChunkSizeFixed() || isChecksumEnabled();
+  }
+
+  /**
+   * Sets the maximum number of chunks of a file that are sent at the same
+   * time. Sending several chunks at once hides the latency of each request on
+   * high latency links. The chunks may arrive in any order so they are held
+   * in memory on the server side until the preceding chunks are committed to
+   * the receiver. This needs up to about parallelChunks * chunkSize bytes of
+   * memory per upload. The default is 1.
+   *
+   * @param parallelChunks the maximum number of chunks in flight
+   */
+  public void setParallelChunks(int parallelChunks) {
+    if (parallelChunks <= 0) {
+      throw new IllegalArgumentException("Parallel chunks must be positive.");
+    }
+
+    getState().parallelChunks = parallelChunks;
+  }
+
+  /**
+   * Returns the maximum number of chunks of a file that are sent at the same
+   * time.
+   *
+   * @return the maximum number of chunks in flight
+   */
+  public int getParallelChunks() {
+    return getState(false).parallelChunks;
+  }
+
+  /**
+   * Sets the maximum size in bytes of files that may be selected and uploaded.
+   *
+   * @param size the maximum file size that may be uploaded
+   */
+  public void setMaxFileSize(long size) {
+    getState().maxFileSize = size;
+  }
+
+  /**
+   * Returns the maximum size in bytes of files that may be selected and
+   * uploaded.
+   *
+   * @return the maximum file size that may be uploaded
+   */
+  public long getMaxFileSize() {
+    return getState(false).maxFileSize;
+  }
+
+  /**
+   * Sets the checksum flag. A value of true will cause the client to compute a
+   * {@link TreeHash#ALGORITHM} checksum of each chunk before it is sent. The
+   * server verifies the checksum before the chunk is committed to the receiver
+   * and rejects a corrupted chunk so it can be retried. The verified chunk
+   * checksums are combined into a {@link TreeHash} of the entire file that is
+   * available from {@link SucceededEvent#getChecksum()}. Checksums require a
+   * browser with the Web Crypto API (normally only available over HTTPS);
+   * otherwise the upload proceeds without them.
+   *
+   * @param enabled true to enable chunk checksums
+   */
+  public void setChecksumEnabled(boolean enabled) {
+    getState().checksumEnabled = enabled;
+  }
+
+  /**
+   * Returns true if the client will compute and send chunk checksums.
+   *
+   * @return true if chunk checksums are enabled
+   */
+  public boolean isChecksumEnabled() {
+    return getState(false).checksumEnabled;
+  }
+
+  /**
+   * Sets the push progress flag. A value of true will cause upload progress to
+   * be delivered to the progress listeners with server push, coalesced with
+   * the progress of all the other uploads in the UI by the
+   * {@link ProgressDispatcher}, rather than polled by the client. The flag only
+   * has an effect if push is enabled in the UI.
+   *
+   * @param enabled true to enable push progress
+   */
+  public void setPushProgressEnabled(boolean enabled) {
+    pushProgressEnabled = enabled;
+    getState().pushProgress = isPushProgressActive();
+  }
+
+  /**
+   * Sets the server completion flag. A value of true will cause the succeeded
+   * event to be fired as soon as the final chunk is committed on the server
+   * side rather than when the client reports that the upload is complete.
+   * The event is fired with
+   * {@link com.vaadin.ui.UI#access(java.lang.Runnable)} and pushed
+   * if push is enabled in the UI.
+   *
+   * @param enabled true to enable server completion
+   */
+  public void setServerCompletionEnabled(boolean enabled) {
+    serverCompletionEnabled = enabled;
+    getState().serverCompletion = isServerCompletionPushed();
+  }
+
+  /**
+   * Starts the upload of the selected file.
+   */
+  public void submitUpload() {
+    if (uploadSession != null) {
+      throw new IllegalStateException("Uploading in progress.");
+    }
+
+    clientRpc.submitUpload();
+  }
+
+  /**
+   * Returns the size (i.e. reported content length) of the current upload. This
+   * value may not be known and will be cleared after a successful upload.
+   *
+   * @return the upload size in bytes
+   */
+  public long getUploadSize() {
+    return uploadSession == null ? -1 : uploadSession.contentLength;
+  }
+
+  /**
+   * Interrupts the upload currently being received. The request being
+   * received is aborted and the client is told to cancel any remaining chunks.
+   * The interruption will be done by the receiving tread so this method will
+   * return immediately and the actual interrupt will happen a bit later.
+   */
+  public void interruptUpload() {
+    if (uploadSession != null) {
+      uploadSession.interrupted = true;
+      Html5FileUploadHandler.abort(getStreamVariable());
+      clientRpc.interruptUpload();
+    }
+  }
+
+  @Override
+  public void pauseUpload() {
+    if (uploadSession != null && !uploadSession.paused) {
+      uploadSession.paused = true;
+      getState().paused = true;
+    }
+  }
+
+  @Override
+  public void resumeUpload() {
+    if (uploadSession != null && uploadSession.paused) {
+      uploadSession.paused = false;
+      getState().paused = false;
+    }
+  }
+
+  @Override
+  public boolean isPaused() {
+    return uploadSession != null && uploadSession.paused;
+  }
+
+  /**
+   * Go into upload state. Due to buffering of RPC calls by Vaadin, it is
+   * possible that the upload could be started by the data stream or the RPC
+   * call. It is safe to call this method multiple times and additional calls
+   * will simply be ignored.
+   */
+  private void startUpload() {
+    if (uploadSession == null) {
+      uploadSession = new UploadSession();
+    }
+  }
+
+  /**
+   * Go into state where new uploading can begin.
+   */
+  private void endUpload() {
+    // Cleanup the receiver stream.
+    if (uploadSession != null) {
+      if (uploadSession.receiverOutstream != null) {
+        tryClose(uploadSession.receiverOutstream);
+      }
+
+      if (uploadSession.progressDispatcher != null) {
+        uploadSession.progressDispatcher.cancel(NativeUploader.this);
+      }
+
+      if (uploadSession.succeededEventPending) {
+        // The recommendation is kept apart from the configured chunk size
+        // and applied to the next file by the client without a rebuild.
+        if (uploadSession.recommendedChunkSize > 0
+            && uploadSession.recommendedChunkSize != getNextChunkSize()) {
+          getState().nextChunkSize = uploadSession.recommendedChunkSize;
+        }
+
+        fireUploadSuccess(new SucceededEvent(NativeUploader.this,
+            uploadSession.filename, uploadSession.mimeType,
+            uploadSession.bytesRead, uploadSession.treeHash.getValue()));
+      }
+      else if (uploadSession.exception instanceof NoInputStreamException) {
+        fireNoInputStream(uploadSession.filename,
+            uploadSession.mimeType, uploadSession.contentLength);
+      }
+      else if (uploadSession.exception instanceof NoOutputStreamException) {
+        fireNoOutputStream(uploadSession.filename,
+            uploadSession.mimeType, uploadSession.contentLength);
+      }
+      else {
+        fireUploadInterrupted(new FailedEvent(NativeUploader.this,
+            uploadSession.filename, uploadSession.mimeType,
+            uploadSession.contentLength, uploadSession.exception));
+      }
+
+      if (uploadSession.paused) {
+        getState().paused = false;
+      }
+
+      uploadSession = null;
+    }
+  }
+
+  /**
+   * Returns true if an upload is currently in progress.
+   *
+   * @return the upload in progress
+   */
+  @Override
+  public boolean isUploading() {
+    return uploadSession != null;
+  }
+
+  @Override
+  protected NativeUploaderState getState() {
+    return (NativeUploaderState) super.getState();
+  }
+
+  @Override
+  protected NativeUploaderState getState(boolean markAsDirty) {
+    return (NativeUploaderState) super.getState(markAsDirty);
+  }
+
+  /**
+   * Returns the integer value of the given parameter.
+   *
+   * @param value the parameter value or null
+   * @param defaultValue the value to return if the parameter is missing
+   *
+   * @return the integer value
+   */
+  private static int parseParam(String value, int defaultValue) {
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  /**
+   * The remote procedure call interface which allows calls from the client side
+   * to the server.
+   */
+  private class ServerRpcImpl implements NativeUploaderServerRpc {
+
+    /**
+     * Serialization ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void onError(String name, String errorReason) {
+
+      log.info("Error on upload. name: {}, reason: {}", name, errorReason);
+
+      if (errorReason != null && errorReason.contains("too large")) {
+        fireFileSizeExceeded(
+            new FileSizeExceededEvent(NativeUploader.this, name, null, -1));
+      }
+
+      endUpload();
+    }
+
+    @Override
+    public void onComplete(String name) {
+      endUpload();
+    }
+
+    @Override
+    public void onProgress(String name, long uploadedBytes, long totalBytes) {
+      // Ignore. We want the call to refresh uploader state (i.e. polling)
+      // but we don't care about the progress value.
+    }
+
+    @Override
+    public void onInit(String runtime) {
+      log.debug("Uploader {} initialized.", getConnectorId());
+
+      if (getState(false).rebuild) {
+        getState().rebuild = false;
+      }
+    }
+  }
+
+  /**
+   * The stream variable that maps the stream events to the upload component and
+   * the configured data receiver. When parallel chunks are enabled, each chunk
+   * is received into its own memory buffer and the buffers are committed to
+   * the receiver in chunk order as soon as all the preceding chunks are
+   * committed.
+   */
+  private class StreamVariableImpl implements
+      com.vaadin.server.StreamVariable {
+
+    private int chunkContentLength;
+    private int chunkCount;
+    private int chunkIndex;
+
+    @Override
+    public boolean listenProgress() {
+      // Progress is counted while streaming when it is pushed.
+      return uploadSession.progressDispatcher == null
+          && progressListeners != null && !progressListeners.isEmpty();
+    }
+
+    @Override
+    public void onProgress(StreamVariable.StreamingProgressEvent event) {
+      fireUpdateProgress(uploadSession.bytesRead + event.getBytesReceived(),
+          uploadSession.contentLength);
+    }
+
+    @Override
+    public boolean isInterrupted() {
+      return uploadSession == null ? false : uploadSession.interrupted;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+
+      OutputStream outstream;
+
+      if (uploadSession.buffered) {
+        // Buffer the chunk until the preceding chunks are committed. The
+        // request that streams the chunk takes the buffer when it finishes.
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(
+            chunkContentLength, 32));
+        uploadSession.receivingChunks.put(chunkIndex, buffer);
+        outstream = buffer;
+      }
+      else {
+        outstream = new UncloseableOutputStream(getReceiverOutputStream());
+      }
+
+      if (uploadSession.progressDispatcher != null
+          && !progressListeners.isEmpty()) {
+        outstream = uploadSession.progressDispatcher.track(NativeUploader.this,
+            outstream, uploadSession.bytesRead, uploadSession.contentLength);
+      }
+
+      return outstream;
+    }
+
+    /**
+     * Returns the output stream of the receiver, creating it if needed.
+     *
+     * @return the receiver output stream
+     */
+    private OutputStream getReceiverOutputStream() {
+
+      // Buffered chunks are only committed once they are complete so they
+      // are never written twice.
+      boolean retryEnabled = getMaxRetries() > 0 && !uploadSession.buffered;
+      boolean chunkEnabled = uploadSession.chunkCount > 1;
+
+      if (uploadSession.receiverOutstream == null) {
+        uploadSession.receiverOutstream =
+            html5Receiver.receiveUpload(
+                uploadSession.filename, uploadSession.mimeType,
+                retryEnabled, chunkEnabled, chunkContentLength,
+                Streams.toReceiverLength(uploadSession.contentLength));
+
+        // If retries are configured we need to be able to indicate when the
+        // data is safe to write so we can throw it away in the event of a
+        // failure.
+        if (retryEnabled && !(uploadSession.receiverOutstream
+            instanceof RetryableOutputStream)) {
+          log.warn("Retries are enabled but the receiver output stream does "
+              + "not implement RetryableOutputStream. Duplicate data may be "
+              + "written to the receiver in the event of a partial upload and "
+              + "retry. Disable retries, enable parallel chunks, or use a "
+              + "RetryableOutputStream to avoid this warning.");
+        }
+      }
+
+      return uploadSession.receiverOutstream;
+    }
+
+    @Override
+    public void streamingStarted(StreamVariable.StreamingStartEvent event) {
+
+      Html5StreamVariable.Html5StreamingStartEvent html5Event =
+          (Html5StreamVariable.Html5StreamingStartEvent) event;
+
+      chunkCount = parseParam(html5Event.getParameterValue(CHUNKS_PARAM), 1);
+      chunkIndex = parseParam(html5Event.getParameterValue(CHUNK_PARAM), 0);
+      chunkContentLength = (int) event.getContentLength();
+
+      if (uploadSession == null) {
+        startUpload();
+
+        if (isPushProgressActive()) {
+          uploadSession.progressDispatcher = ProgressDispatcher.get(getUI());
+        }
+
+        uploadSession.mimeType = event.getMimeType();
+        uploadSession.filename = Streams.removePath(html5Event.
+            getParameterValue(NAME_PARAM));
+        uploadSession.contentLength = Streams.parseLength(html5Event.
+            getParameterValue(SIZE_PARAM), -1);
+        uploadSession.chunkCount = chunkCount;
+        uploadSession.buffered = chunkCount > 1 && getParallelChunks() > 1;
+
+        fireStarted(new StartedEvent(NativeUploader.this,
+            uploadSession.filename, event.getMimeType(),
+            uploadSession.contentLength));
+
+        // Initialize the output stream before the first chunk to support
+        // initializing a retryable output stream.
+        getReceiverOutputStream();
+      }
+
+      if (!uploadSession.buffered && uploadSession.receiverOutstream
+          instanceof RetryableOutputStream) {
+        try {
+          ((RetryableOutputStream) uploadSession.receiverOutstream).chunkStart(
+              chunkIndex, chunkCount);
+        }
+        catch (IOException ex) {
+          throw new RuntimeException("Unable to start chunk in retryable "
+              + "stream.", ex);
+        }
+      }
+    }
+
+    @Override
+    public void streamingFinished(StreamVariable.StreamingEndEvent event) {
+      Html5StreamVariable.Html5StreamingEndEvent html5Event =
+          (Html5StreamVariable.Html5StreamingEndEvent) event;
+
+      int index = parseParam(html5Event.getParameterValue(CHUNK_PARAM), 0);
+      int count = uploadSession.chunkCount;
+
+      if (uploadSession.buffered) {
+        ByteArrayOutputStream buffer = uploadSession.receivingChunks.remove(
+            index);
+
+        // If the client gave up on a request and resent the chunk, the buffer
+        // may belong to the other request. Reject the chunk so it is resent.
+        if (buffer == null || buffer.size() != event.getBytesReceived()) {
+          ChunkResponse response = new ChunkResponse(false,
+              ChunkResponse.STATUS_FAILED);
+          response.setError("Duplicate chunk " + index);
+          html5Event.setResponse(response.toUploadResponse(200));
+          return;
+        }
+
+        uploadSession.pendingChunks.put(index, buffer);
+        commitPendingChunks();
+      }
+      else {
+        // Flush the retry stream if we are supporting retries.
+        if (uploadSession.receiverOutstream instanceof RetryableOutputStream) {
+          try {
+            ((RetryableOutputStream) uploadSession.receiverOutstream).chunkEnd(
+                index, count);
+          }
+          catch (IOException ex) {
+            throw new RuntimeException("Unable to end chunk in retryable "
+                + "stream.", ex);
+          }
+        }
+
+        uploadSession.bytesRead += event.getBytesReceived();
+        uploadSession.committedChunks = index + 1;
+      }
+
+      // Build the whole file hash from the verified chunk checksums.
+      if (html5Event.getChecksum() != null) {
+        uploadSession.treeHash.put(index, count, html5Event.getChecksum());
+      }
+
+      // Adapt the chunk size of the next file to the measured throughput.
+      uploadSession.recommendedChunkSize = adviseChunkSize(html5Event,
+          getNextChunkSize());
+
+      // See if we're done with this upload.
+      boolean complete = uploadSession.committedChunks == count;
+
+      // A tiny file received in a single request ends as soon as it is
+      // committed. The client learns the status from the response so there
+      // is no need to wait for the completion RPC.
+      boolean ended = complete && count == 1 && uploadSession.bytesRead
+          <= Html5FileUploadHandler.TINY_UPLOAD_SIZE;
+
+      ChunkResponse response = buildChunkResponse(complete);
+      response.setEnded(ended);
+      html5Event.setResponse(response.toUploadResponse(200));
+
+      if (complete) {
+        Streams.tryClose(uploadSession.receiverOutstream);
+
+        // Delay firing the event until the client tells us it is done.
+        uploadSession.succeededEventPending = true;
+
+        if (ended) {
+          endUpload();
+          return;
+        }
+
+        // Unless the server is authoritative for completion.
+        scheduleServerCompletion(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
+      }
+    }
+
+    /**
+     * Writes the buffered chunks that directly follow the last committed
+     * chunk to the receiver in chunk order. If a chunk cannot be committed, it
+     * stays buffered and the commit is attempted again when the client resends
+     * the chunk that failed.
+     */
+    private void commitPendingChunks() {
+      OutputStream outstream = getReceiverOutputStream();
+      int count = uploadSession.chunkCount;
+
+      ByteArrayOutputStream buffer;
+      while ((buffer = uploadSession.pendingChunks.get(
+          uploadSession.committedChunks)) != null) {
+        int index = uploadSession.committedChunks;
+
+        try {
+          if (outstream instanceof RetryableOutputStream) {
+            ((RetryableOutputStream) outstream).chunkStart(index, count);
+            buffer.writeTo(outstream);
+            ((RetryableOutputStream) outstream).chunkEnd(index, count);
+          }
+          else {
+            buffer.writeTo(outstream);
+          }
+        }
+        catch (IOException ex) {
+          throw new RuntimeException("Unable to commit chunk to receiver.", ex);
+        }
+
+        uploadSession.pendingChunks.remove(index);
+        uploadSession.bytesRead += buffer.size();
+        uploadSession.committedChunks++;
+      }
+    }
+
+    @Override
+    public void streamingFailed(StreamVariable.StreamingErrorEvent event) {
+      Html5StreamVariable.Html5StreamingErrorEvent html5Event =
+          (Html5StreamVariable.Html5StreamingErrorEvent) event;
+
+      Exception exception = event.getException();
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_FAILED);
+
+      // The streaming may have failed before the upload started.
+      if (uploadSession == null) {
+        html5Event.setResponse(response.toUploadResponse(200));
+        return;
+      }
+
+      uploadSession.exception = exception;
+
+      if (uploadSession.buffered) {
+        uploadSession.receivingChunks.remove(parseParam(html5Event.
+            getParameterValue(CHUNK_PARAM), 0));
+      }
+
+      if (exception instanceof FileUploadHandler.UploadInterruptedException) {
+        // The client stops as soon as it sees the interrupted flag in the
+        // response. The upload is ended here rather than waiting for the
+        // client to report the error.
+        response = buildInterruptedResponse();
+        scheduleEndUpload(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
+      }
+      else if (chunkSizeAdvisor != null) {
+        // Failed chunks are costly so back off to smaller chunks.
+        chunkSizeAdvisor.recordFailure();
+      }
+
+      // The client may retry the chunk so we'll delay ending the upload until
+      // we get the RPC call from the client.
+      html5Event.setResponse(response.toUploadResponse(200));
+
+      log.info("Streaming to receiver failed. The upload will be retried if "
+          + "retries are configured and not exhausted. Exception: {}",
+          exception == null ? "unknown" : exception.getMessage());
+    }
+
+    /**
+     * Builds the response to a chunk that was accepted including the current
+     * state of the upload.
+     *
+     * @param complete true if the final chunk was committed
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildChunkResponse(boolean complete) {
+      ChunkResponse response = new ChunkResponse(true, complete ?
+          ChunkResponse.STATUS_COMPLETE : ChunkResponse.STATUS_CHUNK);
+      response.setBytesAccepted(uploadSession.bytesRead);
+      response.setTotalBytes(uploadSession.contentLength);
+      response.setInterrupted(uploadSession.interrupted);
+      response.setPaused(uploadSession.paused && !complete);
+      response.setRecommendedChunkSize(uploadSession.recommendedChunkSize);
+      return response;
+    }
+
+    /**
+     * Builds the response to a chunk that was rejected because the upload
+     * was interrupted.
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildInterruptedResponse() {
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_INTERRUPTED);
+      response.setInterrupted(true);
+      response.setPreventRetry(true);
+      response.setError("interrupted");
+
+      if (uploadSession != null) {
+        response.setBytesAccepted(uploadSession.bytesRead);
+        response.setTotalBytes(uploadSession.contentLength);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * The information related to a single upload session.
+   */
+  private static class UploadSession {
+
+    OutputStream receiverOutstream;
+    long contentLength;
+    int chunkCount;
+    int committedChunks;
+    boolean buffered;
+    final Map<Integer, ByteArrayOutputStream> receivingChunks =
+        new HashMap<>();
+    final Map<Integer, ByteArrayOutputStream> pendingChunks = new HashMap<>();
+    String filename;
+    String mimeType;
+    volatile long bytesRead;
+    volatile boolean interrupted;
+    volatile boolean paused;
+    int recommendedChunkSize = -1;
+    final TreeHash treeHash = new TreeHash();
+    ProgressDispatcher progressDispatcher;
+    private boolean succeededEventPending;
+    private Exception exception;
+  }
+
+}
@@ -0,0 +1,17 @@
+package org.mpilone.vaadin.upload.nativeuploader.shared;
+
+import com.vaadin.shared.communication.ClientRpc;
+
+/**
+ * The remote procedure call interface which allows calls from the server side
+ * to the client.
+ *
+ * @author mpilone
+ */
+public interface NativeUploaderClientRpc extends ClientRpc {
+
+  void submitUpload();
+
+  void interruptUpload();
+
+}
@@ -0,0 +1,21 @@
+package org.mpilone.vaadin.upload.nativeuploader.shared;
+
+import com.vaadin.shared.communication.ServerRpc;
+
+/**
+ * The remote procedure call interface which allows calls from the client side
+ * to the server. The client uploads a single file at a time so the calls refer
+ * to the file currently being uploaded.
+ *
+ * @author mpilone
+ */
+public interface NativeUploaderServerRpc extends ServerRpc {
+
+  void onError(String name, String errorReason);
+
+  void onComplete(String name);
+
+  void onInit(String runtime);
+
+  void onProgress(String name, long uploadedBytes, long totalBytes);
+}
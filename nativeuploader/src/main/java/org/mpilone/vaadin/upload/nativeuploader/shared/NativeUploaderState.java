@@ -0,0 +1,88 @@
+package org.mpilone.vaadin.upload.nativeuploader.shared;
+
+import org.mpilone.vaadin.upload.nativeuploader.NativeUploader;
+
+import com.vaadin.shared.ui.JavaScriptComponentState;
+
+/**
+ * Shared state for the {@link NativeUploader} component.
+ *
+ * @author mpilone
+ */
+@SuppressWarnings("serial")
+public class NativeUploaderState extends JavaScriptComponentState {
+
+  /**
+   * The flag which indicates if a value changed in the component that will
+   * require a complete rebuild of the client side component.
+   */
+  public boolean rebuild;
+
+  /**
+   * Page URL to where the files will be uploaded to.
+   */
+  public String url;
+
+  /**
+   * Maximum file size that the user can pick in bytes.
+   */
+  public long maxFileSize;
+
+  /**
+   * The size in bytes of each chunk sent in a separate request. To disable
+   * chunking, set to 0.
+   */
+  public int chunkSize;
+
+  /**
+   * The chunk size recommended by the server for the next file or 0 to use
+   * the configured chunk size.
+   */
+  public int nextChunkSize;
+
+  /**
+   * The maximum number of chunks of a file sent at the same time.
+   */
+  public int parallelChunks = 1;
+
+  /**
+   * The maximum number of times to retry a failed chunk. To disable retries,
+   * set to 0.
+   */
+  public int maxRetries;
+
+  /**
+   * The text displayed on the button that initiates the upload.
+   */
+  public String buttonCaption;
+
+  /**
+   * A flag which indicates if the upload should be submitted immediately or
+   * initiated on the server side.
+   */
+  public boolean immediateMode;
+
+  /**
+   * A flag which indicates if the client should compute and send a checksum
+   * of each chunk so the server can verify the data received.
+   */
+  public boolean checksumEnabled;
+
+  /**
+   * A flag which indicates if progress is delivered with server push so the
+   * client should not send progress RPC calls.
+   */
+  public boolean pushProgress;
+
+  /**
+   * A flag which indicates if the server completes the upload and pushes the
+   * result so the client should not report completion.
+   */
+  public boolean serverCompletion;
+
+  /**
+   * A flag which indicates if the upload in progress is paused and the client
+   * should not send the next chunk until the flag is cleared.
+   */
+  public boolean paused;
+}
@@ -0,0 +1,681 @@
+/*
+ * The entry point into the connector from the Vaadin framework.
+ */
+org_mpilone_vaadin_upload_nativeuploader_NativeUploader = function() {
+
+  var BROWSE_BUTTON_CAPTION = "Choose File";
+  var BUTTON_CLASSNAME = "v-button v-widget";
+  var BROWSE_BUTTON_CLASSNAME = "nativeuploader-browse " + BUTTON_CLASSNAME;
+  var SUBMIT_BUTTON_CLASSNAME = "nativeuploader-submit " + BUTTON_CLASSNAME;
+  var DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS = 3000;
+  var RETRY_DELAY_MS = 500;
+  var MAX_RETRY_DELAY_MS = 10000;
+  var DISPLAY_NONE = "none";
+
+  /*
+   *  The root HTML element that represents this component.
+   */
+  var element = this.getElement();
+
+  /*
+   * The RPC proxy to the server side implementation.
+   */
+  var rpcProxy = this.getRpcProxy();
+
+  /*
+   * The unique ID of the connector.
+   */
+  var connectorId = this.getConnectorId();
+
+  /*
+   * The client side support shared by all the HTML5 upload connectors.
+   */
+  var html5upload = window.org_mpilone_vaadin_upload_html5upload;
+
+  /*
+   * The latest state of the component.
+   */
+  var state;
+
+  /*
+   * The upload URL translated for the browser.
+   */
+  var url;
+
+  /*
+   * The file selected by the user but not yet uploaded or null.
+   */
+  var selectedFile = null;
+
+  /*
+   * The upload in progress or null. The upload tracks the chunks of the
+   * file that are in flight, the attempts of each chunk, and the bytes
+   * loaded of each chunk.
+   */
+  var upload = null;
+
+  /*
+   * The timer that polls the server while the upload is paused.
+   */
+  var pausePollTimer = null;
+
+  /**
+   * The div that contains the buttons and inputs for upload.
+   *
+   * @type @exp;document@call;createElement
+   */
+  var container;
+
+  /**
+   * The native file input that is clicked by the browse button.
+   *
+   * @type @exp;document@call;createElement
+   */
+  var picker;
+
+  /**
+   * The div that acts as the browse for files button.
+   *
+   * @type @exp;document@call;createElement
+   */
+  var browseBtn;
+
+  /**
+   * The div that acts as the submit button when in manual mode.
+   *
+   * @type @exp;document@call;createElement
+   */
+  var submitBtn = null;
+
+  /**
+   * The input that displays the file name in manual mode.
+   *
+   * @type @exp;document@call;createElement
+   */
+  var fileInput = null;
+
+  /**
+   * The last time a progress RPC call was sent to the server side. This is
+   * used to throttle the progress calls to prevent flooding the server side.
+   *
+   * @type Number
+   */
+  var lastProgressRpc = 0;
+
+  /*
+   * Simple method for logging to the JS console if one is available.
+   */
+  function console_log(msg) {
+    if (window.console) {
+      console.log(msg);
+    }
+  }
+
+  /*
+   * Returns true if the browser supports the APIs required to upload.
+   */
+  function isSupported() {
+    return !!(window.File && window.Blob && Blob.prototype.slice
+        && window.XMLHttpRequest);
+  }
+
+  /*
+   * Builds the URL of a chunk request with the given parameters.
+   */
+  function chunkUrl(params) {
+    var query = [];
+    for (var key in params) {
+      if (params.hasOwnProperty(key)) {
+        query.push(encodeURIComponent(key) + "="
+            + encodeURIComponent(params[key]));
+      }
+    }
+    return url + (url.indexOf("?") < 0 ? "?" : "&") + query.join("&");
+  }
+
+  /*
+   * Clears the selected file and the file name display.
+   */
+  function clearSelection() {
+    selectedFile = null;
+    picker.value = "";
+    if (fileInput !== null) {
+      fileInput.value = "";
+    }
+  }
+
+  /*
+   * Stops polling the server while paused.
+   */
+  function stopPausePoll() {
+    if (pausePollTimer) {
+      window.clearInterval(pausePollTimer);
+      pausePollTimer = null;
+    }
+  }
+
+  /*
+   * Sends the progress of the upload to the server unless progress is
+   * pushed. The calls are throttled to prevent flooding the server.
+   */
+  function reportProgress() {
+    if (state.pushProgress) {
+      return;
+    }
+
+    var now = new Date().getTime();
+    if (lastProgressRpc + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
+      lastProgressRpc = now;
+
+      var loaded = 0;
+      for (var index in upload.loaded) {
+        if (upload.loaded.hasOwnProperty(index)) {
+          loaded += upload.loaded[index];
+        }
+      }
+      rpcProxy.onProgress(upload.file.name, loaded, upload.file.size);
+    }
+  }
+
+  /*
+   * Ends the upload in progress. All the chunks in flight are aborted and
+   * the server is told the reason if the upload failed.
+   */
+  function endUpload(errorReason) {
+    var current = upload;
+    upload = null;
+    stopPausePoll();
+
+    if (!current) {
+      return;
+    }
+
+    abortChunks(current);
+    for (var i = 0; i < current.timers.length; i++) {
+      window.clearTimeout(current.timers[i]);
+    }
+
+    clearSelection();
+
+    if (errorReason) {
+      console_log("Upload failed: " + errorReason);
+      rpcProxy.onError(current.file.name, errorReason);
+    }
+    else if (current.ended || state.serverCompletion) {
+      // The server already ended the upload so only make a round trip to
+      // see the events without push.
+      if (!state.serverCompletion) {
+        rpcProxy.onProgress("", 0, -1);
+      }
+    }
+    else {
+      rpcProxy.onComplete(current.file.name);
+    }
+  }
+
+  /*
+   * Pauses the upload once the chunks in flight are done. Unless the server
+   * pushes state changes, the server is polled so the resume is seen.
+   */
+  function pauseUpload() {
+    var file = upload.file;
+    upload.paused = true;
+    if (!state.pushProgress && !pausePollTimer) {
+      console_log("Paused upload at chunk boundary.");
+      pausePollTimer = window.setInterval(function() {
+        rpcProxy.onProgress(file.name, 0, file.size);
+      }, DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS);
+    }
+  }
+
+  /*
+   * Aborts the chunks of the upload that are in flight or waiting for a
+   * connection and releases their connections.
+   */
+  function abortChunks(current) {
+    for (var index in current.active) {
+      if (current.active.hasOwnProperty(index)) {
+        current.active[index].abort();
+        current.releases[index]();
+      }
+    }
+    for (var i = 0; i < current.tickets.length; i++) {
+      current.tickets[i].ticket.cancel();
+    }
+    current.tickets = [];
+  }
+
+  /*
+   * Sends the next chunks of the upload until the maximum number of chunks
+   * are in flight. Each chunk waits for an upload connection of the page so
+   * the chunks of all the uploaders share the connections fairly and don't
+   * block the UIDL requests.
+   */
+  function pump() {
+    var current = upload;
+    while (current === upload && !current.paused
+        && current.inFlight + current.tickets.length < current.parallel
+        && current.queue.length > 0) {
+      acquireChunk(current, current.queue.shift());
+    }
+  }
+
+  /*
+   * Sends the chunk at the given index once an upload connection is free.
+   */
+  function acquireChunk(current, index) {
+    // The entry is added first because the connection may be granted
+    // before acquire returns.
+    var entry = {ticket: null};
+    current.tickets.push(entry);
+
+    entry.ticket = html5upload.getScheduler().acquire(connectorId,
+        function(release) {
+          var i = current.tickets.indexOf(entry);
+          if (i !== -1) {
+            current.tickets.splice(i, 1);
+          }
+
+          if (current !== upload || current.paused) {
+            current.queue.unshift(index);
+            release();
+          }
+          else {
+            sendChunk(current, index, release);
+          }
+        });
+  }
+
+  /*
+   * Retries the given chunk after a delay that grows with each attempt or
+   * fails the upload if the retries are exhausted.
+   */
+  function retryChunk(current, index, errorReason) {
+    current.attempts[index] = (current.attempts[index] || 0) + 1;
+    if (current.attempts[index] > state.maxRetries) {
+      endUpload(errorReason);
+      return;
+    }
+
+    var delay = Math.min(RETRY_DELAY_MS
+        * Math.pow(2, current.attempts[index] - 1), MAX_RETRY_DELAY_MS);
+    console_log("Retrying chunk " + index + " in " + delay + " ms.");
+
+    current.timers.push(window.setTimeout(function() {
+      if (current === upload) {
+        current.queue.unshift(index);
+        pump();
+      }
+    }, delay));
+  }
+
+  /*
+   * Handles the response of a chunk that was accepted by the server.
+   */
+  function chunkDone(current, index, response) {
+    current.done++;
+    current.loaded[index] = current.lengths[index];
+
+    if (response.status === "complete") {
+      current.ended = response.ended;
+    }
+
+    if (response.interrupted) {
+      endUpload("Upload interrupted.");
+    }
+    else if (current.done === current.count) {
+      endUpload(null);
+    }
+    else {
+      if (response.paused || state.paused) {
+        pauseUpload();
+      }
+      reportProgress();
+      pump();
+    }
+  }
+
+  /*
+   * Sends the chunk at the given index as the raw body of a request.
+   */
+  function sendChunk(current, index, release) {
+    var file = current.file;
+    var start = index * current.chunkSize;
+    var end = Math.min(start + current.chunkSize, file.size);
+    current.lengths[index] = end - start;
+
+    var params = html5upload.checksumParams(current.checksums, index);
+    params.name = file.name;
+    params.size = file.size;
+    params.chunk = index;
+    params.chunks = current.count;
+
+    var xhr = new XMLHttpRequest();
+    xhr.open("POST", chunkUrl(params), true);
+    xhr.setRequestHeader("Content-Type", "application/octet-stream");
+    if (file.type) {
+      xhr.setRequestHeader("X-Mime-Type", file.type);
+    }
+
+    xhr.upload.onprogress = function(e) {
+      if (current === upload) {
+        current.loaded[index] = e.loaded;
+        reportProgress();
+      }
+    };
+
+    var finish = function() {
+      delete current.active[index];
+      delete current.releases[index];
+      current.inFlight--;
+      release();
+      return current === upload;
+    };
+
+    xhr.onload = function() {
+      if (!finish()) {
+        return;
+      }
+
+      var response = null;
+      try {
+        response = JSON.parse(xhr.responseText);
+      }
+      catch (ex) {
+        // Not a chunk response.
+      }
+
+      current.loaded[index] = 0;
+      if (xhr.status === 200 && response && response.success) {
+        chunkDone(current, index, response);
+      }
+      else if (response && (response.interrupted || response.preventRetry)) {
+        endUpload(response.error || "Upload interrupted.");
+      }
+      else {
+        retryChunk(current, index, (response && response.error)
+            || "Upload failed with status " + xhr.status + ".");
+      }
+    };
+    xhr.onerror = function() {
+      if (finish()) {
+        current.loaded[index] = 0;
+        retryChunk(current, index, "Upload failed.");
+      }
+    };
+
+    current.active[index] = xhr;
+    current.releases[index] = release;
+    current.inFlight++;
+    xhr.send(file.slice(start, end));
+  }
+
+  /*
+   * Starts the upload of the given file.
+   */
+  function startUpload(file) {
+    if (upload !== null || !file) {
+      return;
+    }
+
+    if (state.maxFileSize > 0 && file.size > state.maxFileSize) {
+      clearSelection();
+      rpcProxy.onError(file.name, "File is too large.");
+      return;
+    }
+
+    // A size recommended by the server replaces the configured one from the
+    // next file on.
+    var chunkSize = state.chunkSize <= 0 ? Math.max(file.size, 1) :
+        state.nextChunkSize > 0 ? state.nextChunkSize : state.chunkSize;
+    var count = Math.max(1, Math.ceil(file.size / chunkSize));
+
+    var current = {
+      file: file,
+      chunkSize: chunkSize,
+      count: count,
+      parallel: Math.max(1, state.parallelChunks),
+      queue: [],
+      active: {},
+      releases: {},
+      tickets: [],
+      inFlight: 0,
+      attempts: {},
+      loaded: {},
+      lengths: {},
+      timers: [],
+      done: 0,
+      checksums: null,
+      paused: false,
+      ended: false
+    };
+    for (var i = 0; i < count; i++) {
+      current.queue.push(i);
+    }
+
+    upload = current;
+    lastProgressRpc = 0;
+    console_log("Uploading " + file.name + " in " + count + " chunks.");
+
+    if (state.checksumEnabled) {
+      html5upload.computeChecksums(file, chunkSize, function(values) {
+        current.checksums = values;
+        pump();
+      });
+    }
+    else {
+      pump();
+    }
+  }
+
+  /**
+   * Builds the container divs and the buttons in the div.
+   *
+   * @param {type} state
+   * @returns {undefined}
+   */
+  this._buildButtons = function(state) {
+
+    // Container
+    container = document.createElement("div");
+    container.setAttribute("id", "nativeuploader_container_" + connectorId);
+    container.className = "nativeuploader";
+    element.appendChild(container);
+
+    // Native file input that is opened by the browse button.
+    picker = document.createElement("input");
+    picker.setAttribute("type", "file");
+    picker.style.display = DISPLAY_NONE;
+    picker.onchange = function() {
+      if (!picker.files || picker.files.length === 0) {
+        return;
+      }
+
+      selectedFile = picker.files[0];
+      if (fileInput !== null) {
+        fileInput.value = selectedFile.name;
+      }
+      if (state.immediateMode) {
+        startUpload(selectedFile);
+      }
+    };
+    container.appendChild(picker);
+
+    // Browse button.
+    browseBtn = this._createPseudoVaadinButton();
+    browseBtn.root.className = BROWSE_BUTTON_CLASSNAME;
+    browseBtn.caption.innerHTML = BROWSE_BUTTON_CAPTION;
+    browseBtn.root.onclick = function() {
+      if (upload === null) {
+        picker.click();
+      }
+    };
+    container.appendChild(browseBtn.root);
+
+    browseBtn.disabledBtn = this._createPseudoVaadinButton();
+    browseBtn.disabledBtn.root.className = BROWSE_BUTTON_CLASSNAME + " v-disabled";
+    browseBtn.disabledBtn.root.style.display = DISPLAY_NONE;
+    browseBtn.disabledBtn.caption.innerHTML = BROWSE_BUTTON_CAPTION;
+    container.appendChild(browseBtn.disabledBtn.root);
+
+    fileInput = null;
+    submitBtn = null;
+
+    // If immediate, apply the button caption to the browse button.
+    if (state.immediateMode && state.buttonCaption) {
+      browseBtn.caption.innerHTML = state.buttonCaption;
+      browseBtn.disabledBtn.caption.innerHTML = state.buttonCaption;
+    }
+    // If not immediate, add the file input box to populate with the selected file.
+    else if (!state.immediateMode) {
+      fileInput = document.createElement("input");
+      fileInput.setAttribute("type", "text");
+      fileInput.setAttribute("readonly", "true");
+      fileInput.className = "nativeuploader-file v-textfield v-widget v-textfield-prompt v-readonly v-textfield-readonly";
+      container.appendChild(fileInput);
+
+      // If there is a button caption, create a separate submit button
+      // otherwise assume it will be submitted on the server side.
+      if (state.buttonCaption) {
+        submitBtn = this._createPseudoVaadinButton();
+        submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME;
+        submitBtn.caption.innerHTML = state.buttonCaption;
+        submitBtn.root.onclick = function() {
+          startUpload(selectedFile);
+        };
+        container.appendChild(submitBtn.root);
+
+        submitBtn.disabledBtn = this._createPseudoVaadinButton();
+        submitBtn.disabledBtn.root.className = SUBMIT_BUTTON_CLASSNAME + " v-disabled";
+        submitBtn.disabledBtn.caption.innerHTML = state.buttonCaption;
+        submitBtn.disabledBtn.root.style.display = DISPLAY_NONE;
+        container.appendChild(submitBtn.disabledBtn.root);
+      }
+    }
+  };
+
+  /**
+   * Swaps the style.display property between the two divs.
+   *
+   * @param {type} src div element
+   * @param {type} dest div element
+   * @returns {undefined}
+   */
+  this._swapDisplayStyle = function(src, dest) {
+    var tmp = src.style.display;
+
+    src.style.display = dest.style.display;
+    dest.style.display = tmp;
+  };
+
+  /**
+   * Called when the component is being unregistered (i.e. removed) from the UI.
+   * Cancel an in-progress upload.
+   *
+   * @returns {undefined}
+   */
+  this.onUnregister = function() {
+    if (upload) {
+      console_log("Cancelling and cleaning up uploader component.");
+
+      // The server detaches the component so it isn't told about the error.
+      var current = upload;
+      upload = null;
+      stopPausePoll();
+      abortChunks(current);
+    }
+  };
+
+  /*
+   * Called when the state on the server side changes. If the state
+   * changes require a rebuild of the upload component, it will be
+   * destroyed and recreated. All other state changes are read when the
+   * next chunk or file is sent.
+   */
+  this.onStateChange = function() {
+
+    state = this.getState();
+    url = this.translateVaadinUri(state.url);
+
+    console_log("State change!");
+
+    // If a stale state resumes the upload, the next chunk response pauses
+    // it again.
+    if (upload !== null && upload.paused && !state.paused) {
+      console_log("Resuming upload.");
+      stopPausePoll();
+      upload.paused = false;
+      pump();
+    }
+
+    if (!container || state.rebuild) {
+      element.innerHTML = "";
+
+      console_log("Building uploader for connector " + connectorId);
+      this._buildButtons(state);
+      rpcProxy.onInit(isSupported() ? "html5" : "unsupported");
+    }
+
+    // Check for browse enabled and update the button visibility accordingly.
+    if ((state.enabled && browseBtn.root.style.display === DISPLAY_NONE) ||
+            (!state.enabled && browseBtn.disabledBtn.root.style.display === DISPLAY_NONE)) {
+      this._swapDisplayStyle(browseBtn.root, browseBtn.disabledBtn.root);
+
+      if (submitBtn !== null) {
+        this._swapDisplayStyle(submitBtn.root, submitBtn.disabledBtn.root);
+      }
+    }
+  };
+
+  /**
+   * Submits the upload if there is a file selected.
+   *
+   * @returns {undefined}
+   */
+  this.submitUpload = function() {
+    if (upload === null && selectedFile !== null) {
+      console_log("Starting upload due to server side submit.");
+      startUpload(selectedFile);
+    }
+  };
+
+  /**
+   * Interrupts the upload if there is a file in progress. Any chunks in
+   * flight are aborted.
+   *
+   * @returns {undefined}
+   */
+  this.interruptUpload = function() {
+    if (upload !== null) {
+      console_log("Interrupting upload.");
+      endUpload("Upload interrupted.");
+    }
+  };
+
+  this._createPseudoVaadinButton = function() {
+
+    var btn = document.createElement("div");
+    btn.setAttribute("role", "button");
+    btn.className = BUTTON_CLASSNAME;
+
+    var btnWrap = document.createElement("span");
+    btnWrap.className = "v-button-wrap";
+    btn.appendChild(btnWrap);
+
+    var btnCaption = document.createElement("span");
+    btnCaption.className = "v-button-caption";
+    btnCaption.innerHTML = "Button";
+    btnWrap.appendChild(btnCaption);
+
+    return {
+      root: btn,
+      wrap: btnWrap,
+      caption: btnCaption
+    };
+
+  };
+
+  // -----------------------
+  // Init component
+  this.registerRpc("org.mpilone.vaadin.upload.nativeuploader.shared.NativeUploaderClientRpc", this);
+};
@@ -5,6 +5,9 @@ import static org.mpilone.vaadin.upload.Streams.tryClose;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.mpilone.vaadin.upload.*;
 import org.mpilone.vaadin.upload.plupload.shared.PluploadClientRpc;
@@ -29,7 +32,7 @@ import com.vaadin.util.FileTypeResolver;
  *
  * @author mpilone
  */
-@JavaScript({"plupload_connector.js", "plupload/js/plupload.full.min.js"})
+@JavaScript("plupload_connector.js")
 public class Plupload extends AbstractHtml5Upload {
 
   /**
@@ -42,6 +45,17 @@ public class Plupload extends AbstractHtml5Upload {
    */
   private final Logger log = LoggerFactory.getLogger(getClass());
 
+  /**
+   * The name of the request parameter containing the total file size sent by
+   * the connector with each chunk.
+   */
+  private static final String SIZE_PARAM = "size";
+
+  /**
+   * The path of the Plupload library loaded by the connector on demand.
+   */
+  private static final String LIBRARY_PATH = "plupload/js/plupload.full.min.js";
+
   private final PluploadServerRpc serverRpc = new ServerRpcImpl();
   private final PluploadClientRpc clientRpc;
 
@@ -82,11 +96,6 @@ public class Plupload extends AbstractHtml5Upload {
       FileTypeResolver.addExtension("xap", "application/x-silverlight-app");
     }
 
-    setResource("flashUrl", new ClassResource(getClass(),
-        "plupload/js/Moxie.swf"));
-    setResource("silverlightUrl", new ClassResource(getClass(),
-        "plupload/js/Moxie.xap"));
-
     setCaption(caption);
     setRuntimes(Runtime.HTML5, Runtime.FLASH, Runtime.HTML4);
     setReceiver(receiver);
@@ -97,10 +106,28 @@ public class Plupload extends AbstractHtml5Upload {
   public void attach() {
     super.attach();
 
-    // Generate the URL using the standard FileUploadHandler format and then
-    // replace the URL prefix with the prefix for our custom upload request
-    // handler. This ensures that the IDs and security key are properly
-    // generated and registered for our stream variable.
+    getState().url = createUploadUrl();
+    getState().libraryUrl = publishLibrary(Plupload.class, LIBRARY_PATH);
+    getState().rebuild = true;
+    getState().pushProgress = isPushProgressActive();
+    getState().serverCompletion = isServerCompletionPushed();
+    getState().socketUrl = openUploadChannel(getStreamVariable());
+
+    installHandler();
+  }
+
+  /**
+   * Creates the URL the upload requests are sent to. The URL of the
+   * {@link Html5FileUploadHandler} is generated using the standard
+   * FileUploadHandler format and then the URL prefix is replaced with the
+   * prefix for our custom upload request handler. This ensures that the IDs
+   * and security key are properly generated and registered for our stream
+   * variable. If an ingest origin is set or direct ingest is enabled, the
+   * signed URL of the ingest target is used instead.
+   *
+   * @return the upload URL
+   */
+  private String createUploadUrl() {
     String url = getSession().getCommunicationManager().
         getStreamVariableTargetUrl(this, "plupload", getStreamVariable());
 
@@ -109,10 +136,28 @@ public class Plupload extends AbstractHtml5Upload {
     url = url.replace(ServletPortletHelper.UPLOAD_URL_PREFIX,
         Html5FileUploadHandler.URL_PREFIX);
 
-    getState().url = url;
-    getState().rebuild = true;
+    return getUploadUrl(getStreamVariable(), url);
+  }
 
-    installHandler();
+  /**
+   * Updates the upload URL in the state if the token of the ingest target was
+   * renewed. The client applies the new URL to the following requests.
+   */
+  @Override
+  protected void renewUploadUrl() {
+    if (ingestTarget != null) {
+      String url = ingestTarget.getUrl();
+      if (!url.equals(getState(false).url)) {
+        getState().url = url;
+      }
+    }
+  }
+
+  @Override
+  protected DirectIngestStreamVariable createDirectIngestStreamVariable() {
+    return new DirectIngestStreamVariable(this,
+        new DirectIngestStreamVariable.Parameters("name", "chunk", "chunks",
+            SIZE_PARAM), getMaxRetries() > 0);
   }
 
   @Override
@@ -134,6 +179,7 @@ public class Plupload extends AbstractHtml5Upload {
    *
    * @return the stream variable for this component
    */
+  @Override
   public StreamVariable getStreamVariable() {
     if (streamVariable == null) {
       streamVariable = new StreamVariableImpl();
@@ -149,7 +195,7 @@ public class Plupload extends AbstractHtml5Upload {
    * @return the caption of the submit button
    */
   public String getButtonCaption() {
-    return getState().buttonCaption;
+    return getState(false).buttonCaption;
   }
 
   /**
@@ -170,7 +216,7 @@ public class Plupload extends AbstractHtml5Upload {
    * @return the number of retries
    */
   public long getMaxRetries() {
-    return getState().maxRetries;
+    return getState(false).maxRetries;
   }
 
   /**
@@ -202,6 +248,7 @@ public class Plupload extends AbstractHtml5Upload {
    */
   public void setChunkSize(int size) {
     getState().chunkSize = size;
+    getState().nextChunkSize = 0;
   }
 
   /**
@@ -214,6 +261,23 @@ public class Plupload extends AbstractHtml5Upload {
     return getState(false).chunkSize;
   }
 
+  /**
+   * Returns the chunk size the client uses for the next file which is the
+   * size recommended by the chunk size advisor if there is one or the
+   * configured chunk size.
+   *
+   * @return the chunk size of the next file
+   */
+  protected int getNextChunkSize() {
+    int nextChunkSize = getState(false).nextChunkSize;
+    return nextChunkSize > 0 ? nextChunkSize : getChunkSize();
+  }
+
+  @Override
+  protected boolean isChunkSizeFixed() {
+    return super.isChunkSizeFixed() || isChecksumEnabled();
+  }
+
   /**
    * Sets the maximum size in bytes of files that may be selected and uploaded.
    *
@@ -223,6 +287,243 @@ public class Plupload extends AbstractHtml5Upload {
     getState().maxFileSize = size;
   }
 
+  /**
+   * Sets the checksum flag. A value of true will cause the client to compute a
+   * {@link TreeHash#ALGORITHM} checksum of each chunk before it is sent. The
+   * server verifies the checksum before the chunk is committed to the receiver
+   * and rejects a corrupted chunk so it can be retried. The verified chunk
+   * checksums are combined into a {@link TreeHash} of the entire file that is
+   * available from {@link SucceededEvent#getChecksum()}. Checksums require the
+   * HTML5 runtime and a browser with the Web Crypto API (normally only
+   * available over HTTPS); otherwise the upload proceeds without them.
+   *
+   * @param enabled true to enable chunk checksums
+   */
+  public void setChecksumEnabled(boolean enabled) {
+    getState().checksumEnabled = enabled;
+  }
+
+  /**
+   * Returns true if the client will compute and send chunk checksums.
+   *
+   * @return true if chunk checksums are enabled
+   */
+  public boolean isChecksumEnabled() {
+    return getState(false).checksumEnabled;
+  }
+
+  /**
+   * Sets the raw upload flag. A value of true will cause the client to send
+   * each chunk as the raw request body (application/octet-stream) with the
+   * parameters in the URL rather than wrapped in a multipart request. This
+   * removes the multipart parsing from the data path on the server side. The
+   * HTML4 runtime can't send raw data so it is not used when raw uploads are
+   * enabled.
+   *
+   * @param enabled true to enable raw uploads
+   */
+  public void setRawUploadEnabled(boolean enabled) {
+    getState().rawUpload = enabled;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns true if the client sends the file data as the raw request body.
+   *
+   * @return true if raw uploads are enabled
+   */
+  public boolean isRawUploadEnabled() {
+    return getState(false).rawUpload;
+  }
+
+  /**
+   * Sets the shared engine flag. A value of true will cause the client to
+   * register the component with a single engine shared by all the uploaders
+   * on the page that owns the file input, the drop handling and a page wide
+   * upload queue. The component only builds its buttons until files are
+   * selected or dropped on it which keeps the init time and memory low on
+   * screens with many upload components. Server side events are still
+   * delivered per component. The HTML5 runtime is always used in this mode
+   * and the component falls back to its own uploader in browsers without
+   * HTML5 support.
+   *
+   * @param enabled true to use the shared engine
+   */
+  public void setSharedEngineEnabled(boolean enabled) {
+    getState().sharedEngine = enabled;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns true if the component uses the engine shared by the uploaders on
+   * the page.
+   *
+   * @return true if the shared engine is enabled
+   */
+  public boolean isSharedEngineEnabled() {
+    return getState(false).sharedEngine;
+  }
+
+  /**
+   * Sets the maximum number of files sent in a single batch request. A value
+   * greater than 0 enables batch mode in which the user can select many files
+   * and the client packs them into multipart requests of up to this many
+   * files (and about {@link #getBatchMaxBytes()} bytes). Each file is a
+   * separate upload with its own started and finished events and a status in
+   * the batch response. Files in a batch are not chunked or retried so batch
+   * mode is intended for many small files such as folder uploads. Batches
+   * require the HTML5 runtime; other runtimes upload one file at a time.
+   *
+   * @param batchSize the maximum number of files per request or 0 to
+   * disable batch mode
+   */
+  public void setBatchSize(int batchSize) {
+    getState().batchSize = batchSize;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns the maximum number of files sent in a single batch request.
+   *
+   * @return the batch size or 0 if batch mode is disabled
+   */
+  public int getBatchSize() {
+    return getState(false).batchSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes sent in a single batch request. A file
+   * larger than this size is sent in a batch of its own. The default is 1
+   * MiB.
+   *
+   * @param batchMaxBytes the maximum bytes per request
+   */
+  public void setBatchMaxBytes(int batchMaxBytes) {
+    getState().batchMaxBytes = batchMaxBytes;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Returns the maximum number of bytes sent in a single batch request.
+   *
+   * @return the maximum bytes per request
+   */
+  public int getBatchMaxBytes() {
+    return getState(false).batchMaxBytes;
+  }
+
+  /**
+   * Sets the socket upload flag. A value of true will cause the files to be
+   * uploaded over a WebSocket {@link Html5UploadChannel} when the client
+   * supports it rather than with an HTTP request per chunk. The chunks are
+   * pipelined within the flow control window of the channel and delivered to
+   * the same receiver. Chunks sent over the socket are not retried and the
+   * HTML5 runtime is required; other runtimes upload over HTTP. A WebSocket
+   * endpoint relaying to the channels must be deployed at
+   * {@link Html5UploadChannel#ENDPOINT_PATH} (see the websocket module).
+   *
+   * @param enabled true to enable socket upload
+   */
+  public void setSocketUploadEnabled(boolean enabled) {
+    socketUploadEnabled = enabled;
+    getState().socketUrl = openUploadChannel(getStreamVariable());
+    getState().rebuild = true;
+  }
+
+  /**
+   * Sets the base URL of a separate origin that receives the upload requests
+   * (e.g. https://upload.example.com/app) or null to upload through the
+   * Vaadin servlet. The requests are sent to an {@link Html5IngestTarget}
+   * with a signed, short-lived token in place of the session cookie so upload
+   * traffic can be routed to dedicated ingest nodes and doesn't compete with
+   * UI requests for the browser's connections. The
+   * {@link Html5IngestServlet} must be deployed at
+   * {@link Html5IngestTarget#ENDPOINT_PATH} on the ingest origin with this
+   * application's origin allowed.
+   *
+   * @param origin the ingest origin or null
+   */
+  public void setIngestOrigin(String origin) {
+    ingestOrigin = origin;
+    if (getUI() != null) {
+      getState().url = createUploadUrl();
+      getState().rebuild = true;
+    }
+  }
+
+  @Override
+  public boolean isDirectIngestSupported() {
+    return true;
+  }
+
+  @Override
+  public void setDirectIngestEnabled(boolean enabled) {
+    super.setDirectIngestEnabled(enabled);
+    if (getUI() != null) {
+      getState().url = createUploadUrl();
+      getState().rebuild = true;
+    }
+  }
+
+  /**
+   * Sets the object store the files are uploaded to directly or null to
+   * upload through the server. The server starts a multipart upload for each
+   * file and sends presigned part URLs to the client which PUTs the parts to
+   * the bucket in parallel, so the file data never passes through the
+   * application server. The upload is completed and the size of the object
+   * is verified on the server side before the succeeded event is fired with
+   * the key of the object as the
+   * {@link SucceededEvent#getContentReference() content reference}. The
+   * receiver is not used for these uploads. The HTML5 runtime is required and
+   * the bucket must allow cross-origin PUT requests from this application and
+   * expose the ETag header. Uploads to the object store are not paused by
+   * {@link #pauseUpload()}.
+   *
+   * @param objectStore the object store or null
+   */
+  public void setObjectStore(Html5ObjectStore objectStore) {
+    this.objectStore = objectStore;
+    getState().objectStore = objectStore != null;
+    getState().rebuild = true;
+  }
+
+  /**
+   * Sets the push progress flag. A value of true will cause upload progress to
+   * be delivered to the progress listeners with server push, coalesced with
+   * the progress of all the other uploads in the UI by the
+   * {@link ProgressDispatcher}, rather than polled by the client. The flag only
+   * has an effect if push is enabled in the UI.
+   *
+   * @param enabled true to enable push progress
+   */
+  public void setPushProgressEnabled(boolean enabled) {
+    pushProgressEnabled = enabled;
+    getState().pushProgress = isPushProgressActive();
+  }
+
+  /**
+   * Sets the server completion flag. A value of true will cause the succeeded
+   * event to be fired as soon as the final chunk is committed on the server
+   * side rather than when the client reports that the upload is complete.
+   * The event is fired with
+   * {@link com.vaadin.ui.UI#access(java.lang.Runnable)} and pushed
+   * if push is enabled in the UI. The component may be detached in a
+   * succeeded listener before the client side library has finished with the
+   * file so the listener should not rely on the client state.
+   *
+   * @param enabled true to enable server completion
+   */
+  public void setServerCompletionEnabled(boolean enabled) {
+    serverCompletionEnabled = enabled;
+    getState().serverCompletion = isServerCompletionPushed();
+  }
+
+  @Override
+  public void setContentIndex(Html5ContentIndex contentIndex) {
+    super.setContentIndex(contentIndex);
+    getState().contentCheckEnabled = contentIndex != null;
+  }
+
   /**
    * Sets the immediate mode flag. A value of true will cause the upload to
    * begin as soon as the user selects a file.
@@ -274,12 +575,37 @@ public class Plupload extends AbstractHtml5Upload {
    * actual interrupt will happen a bit later.
    */
   public void interruptUpload() {
-    if (uploadSession != null) {
+    if (interruptObjectUploads() || interruptDirectIngest()) {
+      clientRpc.interruptUpload();
+    }
+    else if (uploadSession != null) {
       uploadSession.interrupted = true;
+      Html5FileUploadHandler.abort(getStreamVariable());
       clientRpc.interruptUpload();
     }
   }
 
+  @Override
+  public void pauseUpload() {
+    if (uploadSession != null && !uploadSession.paused) {
+      uploadSession.paused = true;
+      getState().paused = true;
+    }
+  }
+
+  @Override
+  public void resumeUpload() {
+    if (uploadSession != null && uploadSession.paused) {
+      uploadSession.paused = false;
+      getState().paused = false;
+    }
+  }
+
+  @Override
+  public boolean isPaused() {
+    return uploadSession != null && uploadSession.paused;
+  }
+
   /**
    * Go into upload state. Due to buffering of RPC calls by Vaadin, it is
    * possible that the upload could be started by the data stream or the RPC
@@ -312,10 +638,21 @@ public class Plupload extends AbstractHtml5Upload {
         tryClose(uploadSession.receiverOutstream);
       }
 
+      if (uploadSession.progressDispatcher != null) {
+        uploadSession.progressDispatcher.cancel(Plupload.this);
+      }
+
       if (uploadSession.succeededEventPending) {
+        // The recommendation is kept apart from the configured chunk size
+        // and applied to the next file by the client.
+        if (uploadSession.recommendedChunkSize > 0
+            && uploadSession.recommendedChunkSize != getNextChunkSize()) {
+          getState().nextChunkSize = uploadSession.recommendedChunkSize;
+        }
+
         fireUploadSuccess(new SucceededEvent(Plupload.this,
             uploadSession.filename, uploadSession.mimeType,
-            uploadSession.bytesRead));
+            uploadSession.bytesRead, uploadSession.treeHash.getValue()));
       }
       else if (uploadSession.exception instanceof NoInputStreamException) {
         fireNoInputStream(uploadSession.filename,
@@ -331,6 +668,10 @@ public class Plupload extends AbstractHtml5Upload {
             uploadSession.contentLength, uploadSession.exception));
       }
 
+      if (uploadSession.paused) {
+        getState().paused = false;
+      }
+
       uploadSession = null;
     }
   }
@@ -340,14 +681,17 @@ public class Plupload extends AbstractHtml5Upload {
    *
    * @return the upload in progress
    */
+  @Override
   public boolean isUploading() {
-    return uploadSession != null;
+    return uploadSession != null || isDirectIngestUploading()
+        || isObjectUploading();
   }
 
   /**
    * Sets the list of runtimes that the uploader will attempt to use. It will
    * try to initialize each runtime in order if one fails it will move on to the
-   * next one.
+   * next one. The Flash and Silverlight files are only published when the
+   * matching runtime is in the list.
    *
    * @param runtimes the list of runtimes
    */
@@ -363,6 +707,17 @@ public class Plupload extends AbstractHtml5Upload {
 
     getState().runtimes = value;
     getState().rebuild = true;
+
+    // Only publish the Flash and Silverlight shims if a runtime needs them so
+    // HTML5 only uploaders never reference them. They are served as cached
+    // assets like the library.
+    List<Runtime> list = Arrays.asList(runtimes);
+    setResource("flashUrl", list.contains(Runtime.FLASH) ? new ExternalResource(
+        Html5AssetHandler.publish(Plupload.class, "plupload/js/Moxie.swf")) :
+        null);
+    setResource("silverlightUrl", list.contains(Runtime.SILVERLIGHT) ?
+        new ExternalResource(Html5AssetHandler.publish(Plupload.class,
+            "plupload/js/Moxie.xap")) : null);
   }
 
   /**
@@ -372,8 +727,8 @@ public class Plupload extends AbstractHtml5Upload {
    */
   public Runtime[] getRuntimes() {
     String[] runtimes = new String[0];
-    if (getState().runtimes != null) {
-      runtimes = getState().runtimes.split(",");
+    if (getState(false).runtimes != null) {
+      runtimes = getState(false).runtimes.split(",");
     }
 
     int i = 0;
@@ -396,6 +751,26 @@ public class Plupload extends AbstractHtml5Upload {
     return runtime;
   }
 
+  @Override
+  protected void objectUploadStarted(String id,
+      Html5ObjectStore.Upload upload) {
+    log.debug("Object store upload started. id: {}, key: {}", id,
+        upload == null ? null : upload.getKey());
+
+    if (upload == null) {
+      clientRpc.objectUploadStarted(id, 0, new ArrayList<String>());
+    }
+    else {
+      clientRpc.objectUploadStarted(id, upload.getPartSize(),
+          upload.signParts(1));
+    }
+  }
+
+  @Override
+  protected void objectUploadCompleted(String id, boolean success) {
+    clientRpc.objectUploadCompleted(id, success);
+  }
+
   @Override
   protected PluploadState getState() {
     return (PluploadState) super.getState();
@@ -435,19 +810,17 @@ public class Plupload extends AbstractHtml5Upload {
     }
 
     @Override
-    public void onStateChanged(int state) {
-      // no op. Might remove in the future.
-    }
+    public void onCheckContent(String id, String name, String contentType,
+        long contentLength, String checksum) {
 
-    @Override
-    public void onUploadFile(String id, String name, int contentLength) {
+      // Never complete a file while another one is being received.
+      boolean exists = uploadSession == null && fireIfContentExists(
+          removePath(name), contentType, contentLength, checksum);
 
-      if (contentLength > 0 && uploadSession != null
-          && uploadSession.contentLength != contentLength) {
-        // Get the more accurate content length from the file
-        // if the upload has already started.
-        uploadSession.contentLength = contentLength;
-      }
+      log.debug("Content check for upload. id: {}, name: {}, exists: {}", id,
+          name, exists);
+
+      clientRpc.contentChecked(id, exists);
     }
 
     @Override
@@ -463,6 +836,11 @@ public class Plupload extends AbstractHtml5Upload {
       // We want the call to refresh uploader state (i.e. polling)
       // but we don't care about the progress value.
 
+      // Files uploaded to the object store only report progress over RPC.
+      if (objectUploads.containsKey(id)) {
+        fireUpdateProgress(uploadedBytes, totalBytes);
+      }
+
       // Update the content length value as it may be more accurate than
       // what we have from the actual POST data.
       if (totalBytes > 0 && uploadSession != null
@@ -474,13 +852,40 @@ public class Plupload extends AbstractHtml5Upload {
       }
     }
 
+    @Override
+    public void onObjectUploadStart(String id, String name,
+        String contentType, long contentLength) {
+
+      beginObjectUpload(id, removePath(name), contentType, contentLength);
+    }
+
+    @Override
+    public void onObjectPartsRequest(String id, int firstPart) {
+      clientRpc.objectPartsSigned(id, firstPart, signObjectParts(id,
+          firstPart));
+    }
+
+    @Override
+    public void onObjectUploadComplete(String id, List<String> etags) {
+      completeObjectUpload(id, etags);
+    }
+
+    @Override
+    public void onObjectUploadAbort(String id, String reason) {
+      log.info("Object store upload aborted. id: {}, reason: {}", id, reason);
+
+      interruptObjectUpload(id);
+    }
+
     @Override
     public void onInit(String runtime) {
       log.debug("Uploader {} initialized with runtime {}.", getConnectorId(),
           runtime);
 
       Plupload.this.runtime = Runtime.valueOf(runtime.toUpperCase());
-      getState().rebuild = false;
+      if (getState(false).rebuild) {
+        getState().rebuild = false;
+      }
     }
   }
 
@@ -497,7 +902,9 @@ public class Plupload extends AbstractHtml5Upload {
 
     @Override
     public boolean listenProgress() {
-      return progressListeners != null && !progressListeners.isEmpty();
+      // Progress is counted while streaming when it is pushed.
+      return uploadSession.progressDispatcher == null
+          && progressListeners != null && !progressListeners.isEmpty();
     }
 
     @Override
@@ -514,7 +921,7 @@ public class Plupload extends AbstractHtml5Upload {
     @Override
     public OutputStream getOutputStream() {
 
-      boolean retryEnabled = getMaxRetries() > 0;
+      boolean retryEnabled = getMaxRetries() > 0 && !uploadSession.batch;
       boolean chunkEnabled = chunkCount > 1;
 
       if (uploadSession.receiverOutstream == null) {
@@ -522,7 +929,7 @@ public class Plupload extends AbstractHtml5Upload {
             html5Receiver.receiveUpload(
                 uploadSession.filename, uploadSession.mimeType,
                 retryEnabled, chunkEnabled, chunkContentLength,
-                uploadSession.contentLength);
+                Streams.toReceiverLength(uploadSession.contentLength));
       }
 
       // If retries are configured we need to be able to indicate when the
@@ -537,8 +944,16 @@ public class Plupload extends AbstractHtml5Upload {
             + "avoid this warning.");
       }
 
-      return new org.mpilone.vaadin.upload.UncloseableOutputStream(
+      OutputStream outstream = new UncloseableOutputStream(
           uploadSession.receiverOutstream);
+
+      if (uploadSession.progressDispatcher != null
+          && !progressListeners.isEmpty()) {
+        outstream = uploadSession.progressDispatcher.track(Plupload.this,
+            outstream, uploadSession.bytesRead, uploadSession.contentLength);
+      }
+
+      return outstream;
     }
 
     @Override
@@ -547,6 +962,9 @@ public class Plupload extends AbstractHtml5Upload {
       Html5StreamVariable.Html5StreamingStartEvent html5Event =
           (Html5StreamVariable.Html5StreamingStartEvent) event;
 
+      // Keep the token of the ingest target fresh while uploading.
+      renewUploadUrl();
+
       int contentLength = (int) event.getContentLength();
 
       String param = html5Event.getParameterValue("chunks");
@@ -560,14 +978,31 @@ public class Plupload extends AbstractHtml5Upload {
       if (uploadSession == null) {
         startUpload();
 
+        // Each file in a batch request is a complete, single chunk upload.
+        uploadSession.batch = html5Event.getParameterValue(
+            Html5FileUploadHandler.BATCH_PARAM) != null;
+
+        if (isPushProgressActive()) {
+          uploadSession.progressDispatcher = ProgressDispatcher.get(getUI());
+        }
+
         uploadSession.mimeType = event.getMimeType();
         uploadSession.filename = removePath(
             html5Event.getParameterValue("name"));
 
-        // Plupload doesn't provide a total file size so we have to estimate
-        // it from the chunk length * the number of chunks. We'll get a more
-        // accurate value from the RPC calls.
-        uploadSession.contentLength = contentLength * chunkCount;
+        // Plupload doesn't provide a total file size so the connector sends
+        // it as a parameter. If it is missing (e.g. HTML4 in IE8), estimate
+        // it from the chunk length * the number of chunks.
+        param = html5Event.getParameterValue(SIZE_PARAM);
+        uploadSession.contentLength = Streams.parseLength(param,
+            (long) contentLength * chunkCount);
+
+        // The length of a part in a batch request is only known from the size
+        // sent by the client.
+        if (uploadSession.batch) {
+          chunkContentLength = Streams.toReceiverLength(
+              uploadSession.contentLength);
+        }
 
         fireStarted(new StartedEvent(Plupload.this, uploadSession.filename,
             event.getMimeType(), contentLength));
@@ -614,20 +1049,61 @@ public class Plupload extends AbstractHtml5Upload {
       // may only be one of many chunks.
       uploadSession.bytesRead += event.getBytesReceived();
 
-      html5Event.setResponse(new Html5StreamVariable.UploadResponse(200,
-          "text/plain", "{\"success\":true}"));
+      // Build the whole file hash from the verified chunk checksums.
+      if (html5Event.getChecksum() != null) {
+        uploadSession.treeHash.put(chunkIndex, chunkCount,
+            html5Event.getChecksum());
+      }
+
+      // Adapt the chunk size of the next file to the measured throughput.
+      if (!uploadSession.batch) {
+        uploadSession.recommendedChunkSize = adviseChunkSize(html5Event,
+            getNextChunkSize());
+      }
 
       // See if we're done with this upload.
-      if (chunkCount == chunkIndex + 1) {
+      boolean complete = chunkCount == chunkIndex + 1;
+
+      // A file in a batch or a tiny file received in a single request ends as
+      // soon as it is committed. The client learns the status from the
+      // response so there is no need to wait for the completion RPC.
+      boolean ended = complete && (uploadSession.batch || (chunkCount == 1
+          && uploadSession.bytesRead
+          <= Html5FileUploadHandler.TINY_UPLOAD_SIZE));
+
+      ChunkResponse response = buildChunkResponse(complete);
+      response.setEnded(ended);
+      html5Event.setResponse(response.toUploadResponse(200));
+
+      if (complete) {
         org.mpilone.vaadin.upload.Streams.tryClose(
             uploadSession.receiverOutstream);
 
-        // We delay the success event until we get the uploaded event from
-        // the client. Plupload depends a lot on the DOM element being attached
-        // to the document when the chunks complete so we don't to announce a
-        // successful upload until we know that Plupload is done on the client
-        // side and the server side component might be detached.
         uploadSession.succeededEventPending = true;
+
+        // A file that ended in this request doesn't need the wait below. The
+        // connector only makes a round trip when it sees the ended flag and,
+        // if a listener detaches the component, the connector destroys the
+        // uploader without touching the element again. A batch must end here
+        // anyway because the next file in the same request starts a new
+        // upload session.
+        if (ended) {
+          endUpload();
+          return;
+        }
+
+        // Otherwise we delay the success event until we get the uploaded event
+        // from the client. Plupload depends a lot on the DOM element being
+        // attached to the document when the chunks complete so we don't
+        // announce a successful upload until we know that Plupload is done on
+        // the client side and the server side component might be detached.
+        // Unless the server is authoritative for completion.
+        scheduleServerCompletion(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
       }
     }
 
@@ -637,14 +1113,8 @@ public class Plupload extends AbstractHtml5Upload {
           (Html5StreamVariable.Html5StreamingErrorEvent) event;
 
       Exception exception = event.getException();
-      String responseContent = "{\"success\": false}";
-
-      if (exception instanceof FileUploadHandler.UploadInterruptedException) {
-        // We respond and wait for the
-        // interrupted state change to cancel the upload on the client side.
-        responseContent = "{\"success\": false, \"error\": \"interrupted\", "
-            + "\"preventRetry\": true}";
-      }
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_FAILED);
 
       // Make sure we still have a valid session before trying to store the
       // exception. It is possible that we already terminated the upload by
@@ -653,16 +1123,85 @@ public class Plupload extends AbstractHtml5Upload {
         uploadSession.exception = exception;
       }
 
+      if (exception instanceof FileUploadHandler.UploadInterruptedException) {
+        // Plupload retries any error status so respond with success and the
+        // interrupted flag which stops the client. The upload is ended here
+        // because the client won't report an error.
+        html5Event.setResponse(buildInterruptedResponse().toUploadResponse(
+            200));
+        scheduleEndUpload(new Runnable() {
+          @Override
+          public void run() {
+            endUpload();
+          }
+        });
+        return;
+      }
+
+      String msg = exception == null ? "unknown" : exception.getMessage();
+
+      if (uploadSession != null && uploadSession.batch) {
+        // A file in a batch isn't retried so the upload ends right away and
+        // the client learns the status from the batch response.
+        response.setPreventRetry(true);
+        response.setError(msg);
+        html5Event.setResponse(response.toUploadResponse(200));
+        endUpload();
+        return;
+      }
+
       // Because we can't prevent retries on an HTML4 or non-chunked upload,
       // we'll delay ending the upload until we get the RPC call from the
       // client.
-      html5Event.setResponse(new Html5StreamVariable.UploadResponse(400,
-          "text/plain", responseContent));
+      html5Event.setResponse(response.toUploadResponse(400));
+
+      // Failed chunks are costly so back off to smaller chunks.
+      if (chunkSizeAdvisor != null) {
+        chunkSizeAdvisor.recordFailure();
+      }
 
-      String msg = exception == null ? "unknown" : exception.getMessage();
       log.info("Streaming to receiver failed. The upload will be retried if "
           + "retries are configured and not exhausted. Exception: {}", msg);
     }
+
+    /**
+     * Builds the response to a chunk that was accepted including the current
+     * state of the upload.
+     *
+     * @param complete true if the final chunk was accepted
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildChunkResponse(boolean complete) {
+      ChunkResponse response = new ChunkResponse(true, complete ?
+          ChunkResponse.STATUS_COMPLETE : ChunkResponse.STATUS_CHUNK);
+      response.setBytesAccepted(uploadSession.bytesRead);
+      response.setTotalBytes(uploadSession.contentLength);
+      response.setInterrupted(uploadSession.interrupted);
+      response.setPaused(uploadSession.paused && !complete);
+      response.setRecommendedChunkSize(uploadSession.recommendedChunkSize);
+      return response;
+    }
+
+    /**
+     * Builds the response to a chunk that was rejected because the upload
+     * was interrupted.
+     *
+     * @return the chunk response
+     */
+    private ChunkResponse buildInterruptedResponse() {
+      ChunkResponse response = new ChunkResponse(false,
+          ChunkResponse.STATUS_INTERRUPTED);
+      response.setInterrupted(true);
+      response.setPreventRetry(true);
+      response.setError("interrupted");
+
+      if (uploadSession != null) {
+        response.setBytesAccepted(uploadSession.bytesRead);
+        response.setTotalBytes(uploadSession.contentLength);
+      }
+      return response;
+    }
   }
 
   /**
@@ -671,11 +1210,16 @@ public class Plupload extends AbstractHtml5Upload {
   private static class UploadSession {
 
     OutputStream receiverOutstream;
-    int contentLength;
+    long contentLength;
     String filename;
     String mimeType;
     volatile long bytesRead;
     volatile boolean interrupted;
+    volatile boolean paused;
+    boolean batch;
+    int recommendedChunkSize = -1;
+    final TreeHash treeHash = new TreeHash();
+    ProgressDispatcher progressDispatcher;
     boolean succeededEventPending;
     private Exception exception;
   }
@@ -1,6 +1,8 @@
 
 package org.mpilone.vaadin.upload.plupload.shared;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ClientRpc;
 
 /**
@@ -15,4 +17,12 @@ public interface PluploadClientRpc extends ClientRpc {
 
   void interruptUpload();
 
+  void contentChecked(String id, boolean exists);
+
+  void objectUploadStarted(String id, int partSize, List<String> urls);
+
+  void objectPartsSigned(String id, int firstPart, List<String> urls);
+
+  void objectUploadCompleted(String id, boolean success);
+
 }
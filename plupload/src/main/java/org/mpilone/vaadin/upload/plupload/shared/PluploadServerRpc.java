@@ -1,5 +1,7 @@
 package org.mpilone.vaadin.upload.plupload.shared;
 
+import java.util.List;
+
 import com.vaadin.shared.communication.ServerRpc;
 
 /**
@@ -10,8 +12,6 @@ import com.vaadin.shared.communication.ServerRpc;
  * @author mpilone
  */
 public interface PluploadServerRpc extends ServerRpc {
-  void onUploadFile(String id, String name, int contentLength);
-
   void onError(String id, String name, String contentType,
       int contentLength, Integer errorCode, String errorReason);
 
@@ -21,5 +21,15 @@ public interface PluploadServerRpc extends ServerRpc {
 
   void onProgress(String id, String name, int uploadedBytes, int totalBytes);
 
-  void onStateChanged(int state);
+  void onCheckContent(String id, String name, String contentType,
+      long contentLength, String checksum);
+
+  void onObjectUploadStart(String id, String name, String contentType,
+      long contentLength);
+
+  void onObjectPartsRequest(String id, int firstPart);
+
+  void onObjectUploadComplete(String id, List<String> etags);
+
+  void onObjectUploadAbort(String id, String reason);
 }
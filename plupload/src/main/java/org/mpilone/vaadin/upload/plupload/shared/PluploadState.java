@@ -23,6 +23,12 @@ public class PluploadState extends JavaScriptComponentState {
    */
   public String url;
 
+  /**
+   * The URL of the Plupload library loaded by the connector when the component
+   * is first visible.
+   */
+  public String libraryUrl;
+
   /**
    * This is a comma separated list of runtimes that you want to initialize the
    * uploader instance with. It will try to initialize each runtime in order if
@@ -42,6 +48,12 @@ public class PluploadState extends JavaScriptComponentState {
    */
   public int chunkSize;
 
+  /**
+   * The chunk size recommended by the server for the next file or 0 to use
+   * the configured chunk size.
+   */
+  public int nextChunkSize;
+
   /**
    * The maximum number of times to retry a failed upload or chunk. To disable
    * retries, set to 0.
@@ -59,4 +71,68 @@ public class PluploadState extends JavaScriptComponentState {
    */
   public boolean immediateMode;
 
+  /**
+   * A flag which indicates if the client should compute and send a checksum
+   * of each chunk so the server can verify the data received.
+   */
+  public boolean checksumEnabled;
+
+  /**
+   * A flag which indicates if the client should hash a selected file and ask
+   * the server if the content already exists before uploading it.
+   */
+  public boolean contentCheckEnabled;
+
+  /**
+   * A flag which indicates if progress is delivered with server push so the
+   * client should not send progress RPC calls.
+   */
+  public boolean pushProgress;
+
+  /**
+   * A flag which indicates if the server completes the upload and pushes the
+   * result so the client should not report completion.
+   */
+  public boolean serverCompletion;
+
+  /**
+   * A flag which indicates if the upload in progress is paused and the client
+   * should not send the next chunk until the flag is cleared.
+   */
+  public boolean paused;
+
+  /**
+   * A flag which indicates if the file data should be sent as the raw request
+   * body rather than in a multipart request.
+   */
+  public boolean rawUpload;
+
+  /**
+   * A flag which indicates if the component registers with the engine shared
+   * by all the uploaders on the page rather than building its own uploader.
+   */
+  public boolean sharedEngine;
+
+  /**
+   * The maximum number of files sent in a single batch request or 0 to
+   * disable batch mode.
+   */
+  public int batchSize;
+
+  /**
+   * The maximum number of bytes sent in a single batch request.
+   */
+  public int batchMaxBytes = 1024 * 1024;
+
+  /**
+   * The URL of the WebSocket upload channel or null if files are uploaded
+   * over HTTP.
+   */
+  public String socketUrl;
+
+  /**
+   * A flag which indicates if files are uploaded directly to an object store
+   * with presigned part URLs issued by the server.
+   */
+  public boolean objectStore;
 }
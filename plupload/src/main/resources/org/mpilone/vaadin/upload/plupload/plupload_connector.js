@@ -25,11 +25,130 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
    */
   var connectorId = this.getConnectorId();
 
+  /*
+   * The client side support shared by all the HTML5 upload connectors.
+   */
+  var html5upload = window.org_mpilone_vaadin_upload_html5upload;
+
   /*
    * The uploader currently displayed.
    */
   var uploader;
 
+  /*
+   * The URL that the files are uploaded to.
+   */
+  var uploadUrl;
+
+  /*
+   * The number of the current build. A build waiting for the library or 
+   * for the component to be visible is dropped if the number changed.
+   */
+  var buildCount = 0;
+
+  /*
+   * The function that cancels the wait for the component to be visible.
+   */
+  var cancelVisible = null;
+
+  /*
+   * The registration with the engine shared by the uploaders on the page or 
+   * null if the component has its own uploader.
+   */
+  var registration = null;
+
+  /*
+   * The slot that holds an upload connection of the page while the 
+   * uploader is started.
+   */
+  var slot = html5upload.createSlot(connectorId);
+
+  /*
+   * The files selected with the shared engine that are added once the 
+   * uploader is initialized.
+   */
+  var pendingFiles = null;
+
+  /*
+   * The sender of batch requests or socket uploads or null if the files are 
+   * sent by Plupload.
+   */
+  var fileSender = null;
+
+  /*
+   * The flag which indicates if chunk checksums should be computed and sent.
+   */
+  var checksumEnabled = false;
+
+  /*
+   * The flag which indicates if the server should be asked if the content 
+   * of a file already exists before it is uploaded.
+   */
+  var contentCheckEnabled = false;
+
+  /*
+   * The flag which indicates if the server pushes progress so progress RPC 
+   * calls are not needed.
+   */
+  var pushProgress = false;
+
+  /*
+   * The flag which indicates if the server completes the upload and pushes 
+   * the result so the completion RPC call is not needed.
+   */
+  var serverCompletion = false;
+
+  /*
+   * The flag which indicates if the server asked for the upload to be 
+   * paused at the next chunk boundary.
+   */
+  var pauseRequested = false;
+
+  /*
+   * The file that is paused at a chunk boundary or null if the upload 
+   * isn't paused.
+   */
+  var pausedFile = null;
+
+  /*
+   * The timer that polls the server while the upload is paused.
+   */
+  var pausePollTimer = null;
+
+  /*
+   * The chunk size to apply when the next file starts or -1 to keep the 
+   * current chunk size. The server recommends a size in the chunk 
+   * responses and in the state.
+   */
+  var nextChunkSize = -1;
+
+  /*
+   * The chunk size for the next file from the last state change.
+   */
+  var stateChunkSize = -1;
+
+  /*
+   * The chunk checksums of the queued files by file ID.
+   */
+  var checksums = {};
+
+  /*
+   * The status of the content check of the queued files by file ID. The 
+   * status is "pending" while waiting for the server and true once checked.
+   */
+  var contentCheckStatus = {};
+
+  /*
+   * The number of files for which checksums are still being computed.
+   */
+  var pendingChecksums = 0;
+
+  /*
+   * The flag which indicates if the upload should start as soon as the 
+   * pending checksums are computed.
+   */
+  var startPending = false;
+
   /*
    * The flag which indicates if the upload should be immidiate after 
    * file selection.
@@ -81,6 +200,122 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
     }
   }
 
+  /*
+   * Starts the upload of the queued files. If checksums are still being 
+   * computed or the server is being asked if the content already exists, 
+   * the start is delayed until the answer is available.
+   */
+  function startUpload() {
+    if (!uploader) {
+      return;
+    }
+
+    var file = uploader.files.length > 0 ? uploader.files[0] : null;
+
+    if (fileSender && fileSender.isBusy()) {
+      startFileSender();
+    }
+    else if (pendingChecksums > 0) {
+      console_log("Waiting for checksums before starting upload.");
+      startPending = true;
+    }
+    else if (contentCheckEnabled && file && checksums[file.id]
+        && contentCheckStatus[file.id] !== true) {
+      startPending = true;
+
+      if (contentCheckStatus[file.id] !== "pending") {
+        contentCheckStatus[file.id] = "pending";
+
+        html5upload.computeTreeHash(checksums[file.id], function(hash) {
+          console_log("Checking for existing content: " + hash);
+          rpcProxy.onCheckContent(file.id, file.name, file.type, file.size,
+              hash);
+        });
+      }
+    }
+    else {
+      startUploader();
+    }
+  }
+
+  /*
+   * Starts the uploader once an upload connection of the page is free so 
+   * the uploads don't block the UIDL requests. Plupload sends one request 
+   * at a time so the connection is held until the uploader stops.
+   */
+  function startUploader() {
+    slot.schedule(function() {
+      if (uploader) {
+        uploader.start();
+      }
+    });
+  }
+
+  /*
+   * Starts the file sender once an upload connection of the page is free. 
+   * The connection is held until the sender is idle.
+   */
+  function startFileSender() {
+    slot.schedule(function() {
+      if (fileSender) {
+        fileSender.start();
+      }
+    });
+  }
+
+  /*
+   * Pauses the upload of the given file at the current chunk boundary. 
+   * Plupload resumes from the last completed chunk when it is started 
+   * again. Unless the server pushes state changes, the server is polled so 
+   * the resume is seen.
+   */
+  function pauseUpload(file) {
+    console_log("Pausing upload at chunk boundary.");
+    uploader.stop();
+    pausedFile = file;
+
+    if (!pushProgress) {
+      pausePollTimer = window.setInterval(function() {
+        rpcProxy.onProgress(file.id, file.name, file.loaded, file.size);
+      }, DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS);
+    }
+  }
+
+  /*
+   * Resumes the upload paused with pauseUpload if there is one.
+   */
+  function resumeUpload() {
+    if (pausePollTimer) {
+      window.clearInterval(pausePollTimer);
+      pausePollTimer = null;
+    }
+
+    if (pausedFile) {
+      console_log("Resuming upload.");
+      pausedFile = null;
+      startUploader();
+    }
+  }
+
+  /*
+   * Applies the request parameters for the chunk of the file at the 
+   * given byte offset. The file size is sent with every chunk so the 
+   * server knows the total size without a separate RPC call.
+   */
+  function applyChunkParams(up, file, offset) {
+    var chunkSize = up.getOption("chunk_size");
+    var index = chunkSize > 0 ? Math.floor(offset / chunkSize) : 0;
+
+    var params = html5upload.checksumParams(checksums[file.id], index);
+
+    // It appears that size may be null for HTML4 upload in IE8.
+    if (file.size) {
+      params.size = file.size;
+    }
+
+    up.setOption("multipart_params", params);
+  }
+
   /**
    * Builds the container divs and the buttons in the div.
    * 
@@ -120,8 +355,9 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
         submitBtn.root.className = SUBMIT_BUTTON_CLASSNAME;
         submitBtn.caption.innerHTML = state.buttonCaption;
         submitBtn.root.onclick = function() {
-          if (uploader.files && uploader.files.length > 0) {
-            uploader.start();
+          if ((uploader && uploader.files && uploader.files.length > 0)
+              || (fileSender && fileSender.isBusy())) {
+            startUpload();
           }
         };
         container.appendChild(submitBtn.root);
@@ -135,32 +371,156 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
    */
   this._buildUploader = function(state) {
 
-    var uploadUrl = this.translateVaadinUri(state.url);
-    var flashSwfUrl = this.translateVaadinUri(state.resources["flashUrl"].uRL);
-    var silverlightXapUrl = this.translateVaadinUri(state.resources["silverlightUrl"].uRL);
+    uploadUrl = this.translateVaadinUri(state.url);
+
+    // The Flash and Silverlight files are only published if the runtimes 
+    // are used.
+    var flashSwfUrl = state.resources["flashUrl"] ? 
+        this.translateVaadinUri(state.resources["flashUrl"].uRL) : null;
+    var silverlightXapUrl = state.resources["silverlightUrl"] ? 
+        this.translateVaadinUri(state.resources["silverlightUrl"].uRL) : null;
+
+    // With the shared engine the files are selected by the engine so 
+    // Plupload only needs a placeholder browse button and the HTML5 runtime.
+    var browseButton = browseBtn.root;
+    if (registration) {
+      browseButton = document.createElement("div");
+      browseButton.style.display = "none";
+      container.appendChild(browseButton);
+    }
 
     uploader = new plupload.Uploader({
-      runtimes: state.runtimes,
-      browse_button: browseBtn.root,
+      runtimes: registration ? "html5" : state.runtimes,
+      browse_button: browseButton,
       container: container,
       max_file_size: state.maxFileSize,
-      chunk_size: state.chunkSize,
+      chunk_size: stateChunkSize,
       max_retries: state.maxRetries,
-      multi_selection: false,
+      multi_selection: state.batchSize > 0,
+      multipart: !state.rawUpload,
       url: uploadUrl,
       flash_swf_url: flashSwfUrl,
       silverlight_xap_url: silverlightXapUrl
     });
 
+    fileSender = null;
+    if (state.objectStore) {
+      fileSender = html5upload.createObjectStoreSender({
+        maxRetries: state.maxRetries,
+        begin: function(entry) {
+          rpcProxy.onObjectUploadStart(entry.id, entry.name, 
+              entry.file.type || "application/octet-stream", entry.file.size);
+        },
+        sign: function(entry, firstPart) {
+          rpcProxy.onObjectPartsRequest(entry.id, firstPart);
+        },
+        complete: function(entry, etags) {
+          rpcProxy.onObjectUploadComplete(entry.id, etags);
+        },
+        abort: function(entry, reason) {
+          rpcProxy.onObjectUploadAbort(entry.id, reason);
+        },
+        poll: function(entry) {
+          // The server starts and completes the upload in the background 
+          // so the answer is only seen on the next round trip unless it is 
+          // pushed.
+          if (!pushProgress) {
+            rpcProxy.onProgress("", "", 0, -1);
+          }
+        },
+        onProgress: function(entry, loaded, total) {
+          // The server only sees the progress of the object store upload 
+          // over RPC.
+          var now = new Date().getTime();
+          if (lastProgressRpc 
+              + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
+            lastProgressRpc = now;
+            rpcProxy.onProgress(entry.id, entry.name, loaded, total);
+          }
+        },
+        onFile: function(entry, success) {
+          console_log("Object store upload of " + entry.name 
+              + (success ? " succeeded" : " failed"));
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Object store upload is complete");
+          if (fileInput) {
+            fileInput.value = "";
+          }
+        }
+      });
+    }
+    else if (state.socketUrl && html5upload.isSocketSupported()) {
+      fileSender = html5upload.createSocketSender({
+        url: this.translateVaadinUri(state.socketUrl),
+        chunkSize: state.chunkSize,
+        chunkParams: function(index, count, length) {
+          return {chunk: index, chunks: count};
+        },
+        onProgress: function(entry, loaded, total) {
+          var now = new Date().getTime();
+          if (!pushProgress && lastProgressRpc 
+              + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
+            lastProgressRpc = now;
+            rpcProxy.onProgress("", entry.name, loaded, total);
+          }
+        },
+        onFile: function(entry, response) {
+          if (!response) {
+            rpcProxy.onError("", entry.name, entry.file.type, entry.file.size, 
+                null, "Socket upload failed.");
+          }
+          else if (response.ended || serverCompletion) {
+            // Make a round trip so the events are seen without push.
+            if (!serverCompletion) {
+              rpcProxy.onProgress("", "", 0, -1);
+            }
+          }
+          else {
+            rpcProxy.onFileUploaded("", entry.name, entry.file.size);
+          }
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Socket upload is complete");
+          if (fileInput) {
+            fileInput.value = "";
+          }
+        }
+      });
+    }
+    else if (state.batchSize > 0) {
+      fileSender = html5upload.createBatchSender({
+        url: uploadUrl,
+        maxFiles: state.batchSize,
+        maxBytes: state.batchMaxBytes,
+        onBatch: function(entries, results) {
+          // The server already fired the events of each file.
+          for (var i = 0; i < entries.length; i++) {
+            if (!results || !results[i] || !results[i].success) {
+              console_log("Batch file failed: " + entries[i].name);
+            }
+          }
+        },
+        onIdle: function() {
+          slot.release();
+          console_log("Batch upload is complete");
+          if (fileInput) {
+            fileInput.value = "";
+          }
+
+          // Make a round trip so the events fired for the batch are seen 
+          // without push.
+          rpcProxy.onProgress("", "", 0, -1);
+        }
+      });
+    }
+
     uploader.bind('UploadFile', function(up, file) {
       console_log("Upload file: " + file.name + " with size " + file.size);
 
       lastProgressRpc = 0;
-
-      // It appears that size may be null for HTML4 upload in IE8.
-      var size = file.size ? file.size : -1;
-
-      rpcProxy.onUploadFile(file.id, file.name, size);
     });
 
     uploader.bind('Error', function(up, error) {
@@ -182,6 +542,31 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
     });
 
     uploader.bind('FilesAdded', function(up, files) {
+
+      // In batch, socket or object store mode the files are sent by the 
+      // file sender and Plupload is only used to select them.
+      if (fileSender && up.runtime === "html5") {
+        for (var i = 0; i < files.length; i++) {
+          if (files[i].getNative()) {
+            fileSender.add(files[i].getNative(), files[i].name, {
+              name: files[i].name,
+              size: files[i].size
+            });
+          }
+        }
+        up.splice();
+
+        console_log("Files added to batch: " + files.length);
+        if (fileInput) {
+          fileInput.value = files.length === 1 ? files[0].name 
+              : files.length + " files";
+        }
+
+        if (immediate) {
+          startFileSender();
+        }
+        return;
+      }
       
       // We only want the last file selected so we remove any other files 
       // already in the queue.
@@ -196,40 +581,125 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
         fileInput.value = file.name;
       }
 
+      // Compute the chunk checksums before the upload starts. Only the 
+      // HTML5 runtime provides the native file and chunks it the same way.
+      checksums = {};
+      contentCheckStatus = {};
+      if ((checksumEnabled || contentCheckEnabled) && up.runtime === "html5"
+          && file.getNative()) {
+        pendingChecksums++;
+        html5upload.computeChecksums(file.getNative(),
+            up.getOption("chunk_size"), function(values) {
+              checksums[file.id] = values;
+              pendingChecksums--;
+
+              if (startPending && pendingChecksums === 0) {
+                startPending = false;
+                startUpload();
+              }
+            });
+      }
+
       if (immediate && uploader.state === plupload.STOPPED) {
         console_log("Starting immediately.");
         window.setTimeout(function() {
-          uploader.start();
+          startUpload();
         }, 200);
       }
     });
 
+    uploader.bind('BeforeUpload', function(up, file) {
+      // The chunk size can only change before a file starts and not for a 
+      // file with checksums computed for the current chunk size. Plupload 
+      // reads the option when the file starts.
+      if (nextChunkSize >= 0 && !file.loaded && !checksums[file.id]) {
+        if (up.getOption("chunk_size") !== nextChunkSize) {
+          console_log("Chunk size changed to " + nextChunkSize);
+          up.setOption("chunk_size", nextChunkSize);
+        }
+        nextChunkSize = -1;
+      }
+
+      applyChunkParams(up, file, file.loaded);
+
+      // A raw upload has no part headers so the mime type is sent in a 
+      // request header.
+      if (!up.getOption("multipart")) {
+        up.setOption("headers", {
+          "X-Mime-Type": file.type || "application/octet-stream"
+        });
+      }
+    });
+
     uploader.bind('ChunkUploaded', function(up, file, chunkResponse) {
       var response = JSON.parse(chunkResponse.response);
 
       console_log("Chunk complete. Response: " + chunkResponse.response);
 
-      if (response.preventRetry) {
-        console_log("Preventing retries after chunk response.");
+      if (response.preventRetry || response.interrupted) {
+        console_log("Stopping upload after chunk response.");
         uploader.stop();
+
+        if (response.interrupted) {
+          // Drop the queued chunks once Plupload is done with this one.
+          window.setTimeout(function() {
+            uploader.splice();
+          }, 0);
+        }
+      }
+      else {
+        applyChunkParams(up, file, chunkResponse.offset);
+
+        if (response.recommendedChunkSize > 0) {
+          nextChunkSize = response.recommendedChunkSize;
+        }
+
+        if ((response.paused || pauseRequested) 
+            && chunkResponse.offset < chunkResponse.total) {
+          pauseUpload(file);
+        }
       }
     });
 
     uploader.bind('UploadComplete', function(up, files) {
       console_log("Upload is complete");
 
+      resumeUpload();
+
       // Clear the queue.
       uploader.splice(0, files.length);
     });
 
     uploader.bind('StateChanged', function(up) {
       console_log("StateChanged: " + up.state);
-      rpcProxy.onStateChanged(up.state);
+
+      if (up.state === plupload.STOPPED) {
+        slot.release();
+      }
     });
 
-    uploader.bind('FileUploaded', function(up, file) {
+    uploader.bind('FileUploaded', function(up, file, info) {
       console_log("FileUploaded: " + file.name);
 
+      if (serverCompletion) {
+        return;
+      }
+
+      var response = null;
+      try {
+        response = JSON.parse(info.response);
+      }
+      catch (ex) {
+        // Ignore. Some runtimes don't provide the response.
+      }
+
+      if (response && response.ended) {
+        // The server already ended the upload so only make a round trip to 
+        // see the events without push.
+        rpcProxy.onProgress("", "", 0, -1);
+        return;
+      }
+
       var size = file.size ? file.size : -1;
       rpcProxy.onFileUploaded(file.id, file.name, size);
     });
@@ -241,9 +711,19 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
 
     uploader.bind('PostInit', function(up) {
       //console_log("PostInit: " + up.runtime);
+
+      if (pendingFiles) {
+        var files = pendingFiles;
+        pendingFiles = null;
+        up.addFile(files);
+      }
     });
 
     uploader.bind('UploadProgress', function(up, file) {
+      if (pushProgress) {
+        return;
+      }
+
       // Throttle the progress events so we don't flood the RPC channel.
       var now = new Date().getTime();
       if (lastProgressRpc + DEFAULT_STREAMING_PROGRESS_EVENT_INTERVAL_MS <= now) {
@@ -270,10 +750,25 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
    * @returns {undefined}
    */
   this.onUnregister = function() {
+    buildCount++;
+    if (cancelVisible) {
+      cancelVisible();
+      cancelVisible = null;
+    }
+    if (registration) {
+      registration.remove();
+      registration = null;
+    }
+    slot.cancel();
+
     if (uploader) {
       console_log("Stopping and cleaning up uploader component.");
 
       try {
+        if (fileSender) {
+          fileSender.abort();
+        }
+        resumeUpload();
         uploader.stop();
         uploader.destroy();
       }
@@ -297,7 +792,28 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
 
     console_log("State change!");
 
-    if (!uploader || state.rebuild) {
+    checksumEnabled = state.checksumEnabled;
+    contentCheckEnabled = state.contentCheckEnabled;
+    pushProgress = state.pushProgress;
+    serverCompletion = state.serverCompletion;
+
+    // If a stale state resumes the upload, the next chunk response pauses 
+    // it again.
+    pauseRequested = state.paused;
+    if (!pauseRequested && pausedFile) {
+      resumeUpload();
+    }
+
+    // A new configured or recommended chunk size is applied when the next 
+    // file starts.
+    var chunkSize = state.nextChunkSize > 0 ? state.nextChunkSize : 
+        state.chunkSize;
+    if (chunkSize !== stateChunkSize) {
+      stateChunkSize = chunkSize;
+      nextChunkSize = chunkSize;
+    }
+
+    if (!container || state.rebuild) {
       console_log("Building uploader for connector " + connectorId);
 
       // Cleanup the current uploader if there is one.
@@ -307,29 +823,132 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
       uploader = null;
       element.innerHTML = "";
 
-      try {
-        // Build the new uploader.
-        this._buildButtons(state);
-        this._buildUploader(state);
+      buildCount++;
+      if (registration) {
+        registration.remove();
+        registration = null;
+      }
+      slot.cancel();
+      pendingFiles = null;
 
-        immediate = state.immediateMode;
+      // Build the buttons now so the layout doesn't change and build the 
+      // uploader once the library is loaded.
+      this._buildButtons(state);
+      immediate = state.immediateMode;
+
+      if (state.sharedEngine && window.FileReader) {
+        this._registerShared(state);
       }
-      catch (ex) {
-        // TODO: This needs to be cleaned up!
-        console_log(ex);
-        alert(ex);
+      else {
+        this._loadUploader(state);
       }
     }
+    this._applyState(state);
+  };
 
-    // Apply state changes that don't require a rebuild.
-    if (uploader.getOption("chunk_size") !== state.chunkSize) {
-      uploader.setOption("chunk_size", state.chunkSize);
-    }
-    if (uploader.getOption("max_file_size") !== state.maxFileSize) {
-      uploader.setOption("max_file_size", state.maxFileSize);
+  /*
+   * Registers the component with the engine shared by the uploaders on the 
+   * page. The component only has its buttons until files are selected and 
+   * then loads the library and builds its uploader.
+   */
+  this._registerShared = function(state) {
+    var self = this;
+    var build = buildCount;
+
+    registration = html5upload.getSharedEngine().register({
+      element: container,
+      multiple: state.batchSize > 0,
+      onFiles: function(files) {
+        if (uploader) {
+          uploader.addFile(files);
+          return;
+        }
+
+        pendingFiles = files;
+        html5upload.loadScript(self.translateVaadinUri(
+            self.getState().libraryUrl), function() {
+          if (build === buildCount && !uploader) {
+            self._buildUploader(self.getState());
+            self._applyState(self.getState());
+          }
+        });
+      }
+    });
+
+    browseBtn.root.onclick = function() {
+      registration.browse();
+    };
+
+    // The component is ready as soon as it is registered.
+    rpcProxy.onInit("html5");
+  };
+
+  /*
+   * Loads the Plupload library when the component is first visible and 
+   * then builds the uploader with the latest state. The library is loaded 
+   * only once per page and shared by all the uploaders.
+   */
+  this._loadUploader = function(state) {
+    var self = this;
+    var build = ++buildCount;
+
+    if (cancelVisible) {
+      cancelVisible();
     }
-    if (uploader.getOption("max_retries") !== state.maxRetries) {
-      uploader.setOption("max_retries", state.maxRetries);
+
+    cancelVisible = html5upload.whenVisible(element, function() {
+      cancelVisible = null;
+
+      var libraryLoaded = function() {
+        if (build !== buildCount) {
+          return;
+        }
+
+        try {
+          self._buildUploader(self.getState());
+          if (!browseBtn.enabled) {
+            uploader.disableBrowse(true);
+          }
+          self._applyState(self.getState());
+        }
+        catch (ex) {
+          // TODO: This needs to be cleaned up!
+          console_log(ex);
+          alert(ex);
+        }
+      };
+
+      if (window.plupload || !state.libraryUrl) {
+        libraryLoaded();
+      }
+      else {
+        html5upload.loadScript(self.translateVaadinUri(state.libraryUrl), 
+            libraryLoaded);
+      }
+    });
+  };
+
+  /*
+   * Applies the state changes that don't require a rebuild to the existing 
+   * uploader.
+   */
+  this._applyState = function(state) {
+
+    // Apply state changes that don't require a rebuild.
+    if (uploader) {
+      if (uploader.getOption("max_file_size") !== state.maxFileSize) {
+        uploader.setOption("max_file_size", state.maxFileSize);
+      }
+      if (uploader.getOption("max_retries") !== state.maxRetries) {
+        uploader.setOption("max_retries", state.maxRetries);
+      }
+
+      // The token of an ingest origin URL is renewed during long uploads.
+      var url = this.translateVaadinUri(state.url);
+      if (uploadUrl !== url) {
+        uploadUrl = url;
+        uploader.setOption("url", url);
+      }
     }
 
     // Check for browse enabled and update the button visibility accordingly.
@@ -340,8 +959,14 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
     	stateEnabled = state.enabled;
     }
     
+    if (registration) {
+      registration.setEnabled(stateEnabled);
+    }
+
     if (stateEnabled && !browseBtn.enabled) {
-      uploader.disableBrowse(false);
+      if (uploader) {
+        uploader.disableBrowse(false);
+      }
       browseBtn.root.className = BROWSE_BUTTON_CLASSNAME;
       browseBtn.enabled = true;
 
@@ -350,7 +975,9 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
       }
     }
     else if (!stateEnabled && browseBtn.enabled) {
-      uploader.disableBrowse(true);
+      if (uploader) {
+        uploader.disableBrowse(true);
+      }
       browseBtn.root.className = BROWSE_BUTTON_CLASSNAME + " v-disabled";
       browseBtn.enabled = false;
 
@@ -366,24 +993,110 @@ org_mpilone_vaadin_upload_plupload_Plupload = function() {
    * @returns {undefined}
    */
   this.submitUpload = function() {
-    if (uploader.state === plupload.STOPPED
+    if (fileSender && fileSender.isBusy()) {
+      console_log("Starting batch upload due to server side submit.");
+      startUpload();
+    }
+    else if (uploader && uploader.state === plupload.STOPPED
             && uploader.files && uploader.files.length > 0) {
       console_log("Starting upload due to server side submit.");
-      uploader.start();
+      startUpload();
     }
   };
   
+  /**
+   * Called by the server with the result of a content check. If the content 
+   * already exists, the upload is complete on the server side and the file 
+   * is removed from the queue without being transferred.
+   * 
+   * @param {String} id the ID of the file that was checked
+   * @param {Boolean} exists true if the content already exists
+   * @returns {undefined}
+   */
+  this.contentChecked = function(id, exists) {
+    contentCheckStatus[id] = true;
+
+    if (exists) {
+      console_log("Content already exists. Skipping upload.");
+      startPending = false;
+
+      var file = uploader ? uploader.getFile(id) : null;
+      if (file) {
+        uploader.removeFile(file);
+      }
+    }
+    else if (startPending) {
+      startPending = false;
+      startUpload();
+    }
+  };
+
+  /**
+   * Called by the server once the upload of a file to the object store is 
+   * started with the part size and the first batch of part URLs.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Number} partSize the part size or 0 if the upload failed
+   * @param {Array} urls the presigned URLs of the first parts
+   * @returns {undefined}
+   */
+  this.objectUploadStarted = function(id, partSize, urls) {
+    if (fileSender && fileSender.started) {
+      fileSender.started(id, partSize, urls);
+    }
+  };
+
+  /**
+   * Called by the server with the next batch of part URLs of a file being 
+   * uploaded to the object store.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Number} firstPart the number of the first part signed
+   * @param {Array} urls the presigned URLs of the parts
+   * @returns {undefined}
+   */
+  this.objectPartsSigned = function(id, firstPart, urls) {
+    if (fileSender && fileSender.partsSigned) {
+      fileSender.partsSigned(id, firstPart, urls);
+    }
+  };
+
+  /**
+   * Called by the server once the upload of a file to the object store is 
+   * completed and verified.
+   * 
+   * @param {String} id the ID of the file in the file sender
+   * @param {Boolean} success true if the upload succeeded
+   * @returns {undefined}
+   */
+  this.objectUploadCompleted = function(id, success) {
+    if (fileSender && fileSender.completed) {
+      fileSender.completed(id, success);
+    }
+  };
+
   /**
    * Interrupts the upload if there is a file in progress.
    * 
    * @returns {undefined}
    */
   this.interruptUpload = function() {
+    // The server aborts the batch request in progress.
+    if (fileSender && fileSender.isBusy()) {
+      console_log("Interrupting batch upload.");
+      fileSender.abort();
+      slot.release();
+    }
     // Check for upload stop state change.
-    if (uploader.state === plupload.STARTED) {
+    else if (uploader && (uploader.state === plupload.STARTED || pausedFile)) {
       console_log("Interrupting upload.");
+      pausedFile = null;
+      resumeUpload();
       uploader.stop();
       
+      // Drop the queued chunks so nothing is resent on the next start.
+      uploader.splice();
+
       // We have to generate a call to finalize the upload on the server side
       // because a manual stop of Plupload won't generate any event.
       rpcProxy.onError("", "", "", -1, null, "interrupted server side");
@@ -0,0 +1,38 @@
+package org.mpilone.vaadin.upload.plupload;
+
+import java.util.Map;
+
+import org.mpilone.vaadin.upload.AbstractStreamVariableTest;
+
+import com.vaadin.server.StreamVariable;
+
+/**
+ * Tests the stream variable of the {@link Plupload} component.
+ *
+ * @author mpilone
+ */
+public class PluploadStreamVariableTest extends
+    AbstractStreamVariableTest<Plupload> {
+
+  @Override
+  protected Plupload createUpload(int chunkSize) {
+    Plupload upload = new Plupload();
+    upload.setChunkSize(chunkSize);
+    upload.setMaxRetries(2);
+    return upload;
+  }
+
+  @Override
+  protected StreamVariable getStreamVariable(Plupload upload) {
+    return upload.getStreamVariable();
+  }
+
+  @Override
+  protected void putChunkParameters(Map<String, String> params,
+      int chunkIndex, int chunkCount, int chunkSize, long fileSize) {
+    params.put("name", FILENAME);
+    params.put("chunk", String.valueOf(chunkIndex));
+    params.put("chunks", String.valueOf(chunkCount));
+    params.put("size", String.valueOf(fileSize));
+  }
+}
@@ -0,0 +1,128 @@
+package org.mpilone.vaadin.upload.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.websocket.*;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.mpilone.vaadin.upload.Html5UploadChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JSR-356 WebSocket endpoint that relays the messages of a socket to the
+ * {@link Html5UploadChannel} identified by the token in the URL. The endpoint
+ * is deployed automatically by {@link Html5UploadEndpointConfig} when this
+ * module is in the web application or it can be registered manually with
+ * {@link #register(javax.websocket.server.ServerContainer)}.
+ *
+ * @author mpilone
+ */
+public class Html5UploadEndpoint extends Endpoint {
+
+  /**
+   * The log for this class.
+   */
+  private final static Logger log = LoggerFactory.getLogger(
+      Html5UploadEndpoint.class);
+
+  /**
+   * The path of the endpoint relative to the servlet context.
+   */
+  public static final String PATH = Html5UploadChannel.ENDPOINT_PATH
+      + "/{token}";
+
+  /**
+   * Returns the configuration of the endpoint.
+   *
+   * @return the endpoint configuration
+   */
+  public static ServerEndpointConfig createConfig() {
+    return ServerEndpointConfig.Builder.create(Html5UploadEndpoint.class, PATH).
+        build();
+  }
+
+  /**
+   * Registers the endpoint with the given container. This is only needed if
+   * the container doesn't scan the application for
+   * {@link ServerApplicationConfig} implementations.
+   *
+   * @param container the container to register with
+   *
+   * @throws DeploymentException if the endpoint cannot be deployed
+   */
+  public static void register(ServerContainer container) throws
+      DeploymentException {
+    container.addEndpoint(createConfig());
+  }
+
+  @Override
+  public void onOpen(final Session session, EndpointConfig config) {
+    Html5UploadChannel channel = Html5UploadChannel.get(session.
+        getPathParameters().get("token"));
+
+    if (channel == null) {
+      close(session, new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT,
+          "Unknown upload channel."));
+      return;
+    }
+
+    final Html5UploadChannel.Connection connection = channel.openConnection();
+
+    session.setMaxBinaryMessageBufferSize(Html5UploadChannel.MAX_CHUNK_SIZE);
+    session.addMessageHandler(new MessageHandler.Whole<String>() {
+      @Override
+      public void onMessage(String message) {
+        connection.onHeader(message);
+      }
+    });
+    session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+      @Override
+      public void onMessage(ByteBuffer data) {
+        send(session, connection.onData(data));
+      }
+    });
+
+    send(session, connection.getHello());
+  }
+
+  @Override
+  public void onError(Session session, Throwable thr) {
+    log.warn("Error on upload socket.", thr);
+    close(session, new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION,
+        "Upload channel error."));
+  }
+
+  /**
+   * Sends the given text message. Messages are sent synchronously so the
+   * acknowledgements are sent in the order of the chunks.
+   *
+   * @param session the socket session
+   * @param message the message to send
+   */
+  private static void send(Session session, String message) {
+    try {
+      session.getBasicRemote().sendText(message);
+    }
+    catch (IOException ex) {
+      log.debug("Unable to send message on upload socket.", ex);
+    }
+  }
+
+  /**
+   * Closes the given session, ignoring any errors.
+   *
+   * @param session the socket session
+   * @param reason the reason for closing
+   */
+  private static void close(Session session, CloseReason reason) {
+    try {
+      session.close(reason);
+    }
+    catch (IOException ex) {
+      // Ignore. The socket is going away.
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package org.mpilone.vaadin.upload.websocket;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.websocket.Endpoint;
+import javax.websocket.server.ServerApplicationConfig;
+import javax.websocket.server.ServerEndpointConfig;
+
+/**
+ * Deploys the {@link Html5UploadEndpoint} in containers that scan the web
+ * application for {@link ServerApplicationConfig} implementations. The
+ * annotated endpoints found by the container are deployed unchanged.
+ *
+ * @author mpilone
+ */
+public class Html5UploadEndpointConfig implements ServerApplicationConfig {
+
+  @Override
+  public Set<ServerEndpointConfig> getEndpointConfigs(
+      Set<Class<? extends Endpoint>> endpointClasses) {
+    if (endpointClasses.contains(Html5UploadEndpoint.class)) {
+      return Collections.singleton(Html5UploadEndpoint.createConfig());
+    }
+    return Collections.emptySet();
+  }
+
+  @Override
+  public Set<Class<?>> getAnnotatedEndpointClasses(Set<Class<?>> scanned) {
+    // Other configurations may filter the annotated endpoints but this one
+    // must not hide them.
+    return new HashSet<>(scanned);
+  }
+}